@@ -100,10 +100,15 @@ class RpcRequestDeserializer : JsonDeserializer<RpcRequest> {
   override fun deserialize(json: JsonElement?, typeOfT: Type?, context: JsonDeserializationContext?): RpcRequest {
     if (json is JsonObject) {
       val jsonrpc : String?           = object : JsonParser("jsonrpc") { operator fun invoke() = optional(json)?.getStringValue() }()
-      val id      : Long              = object : JsonParser("id")      { operator fun invoke() = required(json).getLongValue()    }()
+      val idValue : JsonElement       = object : JsonParser("id")      { operator fun invoke() = required(json)                   }()
+      // JSON-RPC allows string ids. They are echoed in the response as they are.
+      val jsonId  : JsonPrimitive?    = if (idValue is JsonPrimitive && idValue.isString) idValue else null
+      val id      : Long              =
+        if (jsonId != null) jsonId.asString.toLongOrNull() ?: 0L
+        else object : JsonParser("id") { operator fun invoke() = idValue.getLongValue() }()
       val method  : String            = object : JsonParser("method")  { operator fun invoke() = required(json).getStringValue()  }()
       val params  : List<JsonElement> = object : JsonParser("params")  { operator fun invoke() = required(json).getArray()        }()
-      return RpcRequest(jsonrpc, id, method, RpcParams(params))
+      return RpcRequest(jsonrpc, id, method, RpcParams(params), jsonId)
     } else {
       throw RpcException(ErrorCode.RpcRequestParseFailure, "Expected Json object for the rpc request.")
     }
@@ -146,7 +151,7 @@ class RpcResponseSerializer : JsonSerializer<RpcResponse> {
         }
     )
 
-    jsonObject.add("id", JsonPrimitive(src.id))
+    jsonObject.add("id", src.jsonId ?: JsonPrimitive(src.id))
 
     return jsonObject
   }
@@ -1,11 +1,19 @@
 package io.scalechain.blockchain.api
 
+import com.google.gson.*
+import io.scalechain.blockchain.RpcException
+import io.scalechain.blockchain.api.domain.RpcError
 import io.scalechain.blockchain.api.domain.RpcResponse
 import io.scalechain.blockchain.api.domain.RpcRequest
+import io.scalechain.blockchain.api.http.RpcExecutor
+import io.scalechain.util.StackUtil
 import io.scalechain.util.StringUtil
 
 import org.slf4j.LoggerFactory
+import java.io.Reader
+import java.io.Writer
 import java.util.*
+import java.util.concurrent.RejectedExecutionException
 
 object RequestHandler : ServiceDispatcher {
   private val logger = LoggerFactory.getLogger(RequestHandler.javaClass)
@@ -42,4 +50,125 @@ object RequestHandler : ServiceDispatcher {
     logger.trace("String Response : ${StringUtil.getBrief(stringResponse,2048)}")
     return stringResponse
   }
+
+  /** Parse the body of a JSON-RPC call without converting it to a string.
+    *
+    * @param reader The reader of the request body.
+    * @return A JsonObject for a single request, or a JsonArray for a batch of requests.
+    */
+  fun parseBody(reader : Reader) : JsonElement {
+    return JsonParser().parse(reader)
+  }
+
+  /** Handle a single request. Errors are returned as the error of the response instead of being thrown,
+    * so that an entry of a batch does not fail the other entries.
+    *
+    * @param json The JSON object of the request.
+    * @param rpcExecutor The executor that limits concurrent executions of each method.
+    * @param waitForLimit If true, wait until the method is under its limit instead of answering that the server is busy. Used for requests in a batch.
+    * @return The response of the request.
+    */
+  fun handleRequest(json : JsonElement, rpcExecutor : RpcExecutor, waitForLimit : Boolean = false) : RpcResponse {
+    if (json !is JsonObject) {
+      return errorResponse(RpcError.RPC_INVALID_REQUEST, "Expected Json object for the rpc request.", 0L, JsonNull.INSTANCE)
+    }
+    val request = try {
+      Json.get().fromJson(json, RpcRequest::class.java)
+    } catch (e : RpcException) {
+      return errorResponse(RpcError.RPC_INVALID_REQUEST, e.message, 0L, requestId(json))
+    } catch (e : JsonParseException) {
+      return errorResponse(RpcError.RPC_PARSE_ERROR, e.message ?: "", 0L, requestId(json))
+    }
+
+    try {
+      return rpcExecutor.withMethodLimit(request.method, waitForLimit) {
+        dispatch(request)
+      }
+    } catch (e : RejectedExecutionException) {
+      logger.warn("Rejected an RPC request : ${request.method}. ${e.message}")
+      return errorResponse(RpcError.RPC_MISC_ERROR, "The server is busy. ${e.message}", request.id, request.jsonId)
+    } catch (e : Exception) {
+      logger.error("Failed to handle an RPC request : ${request.method}. Stack : ${StackUtil.getStackTrace(e)}")
+      return errorResponse(RpcError.RPC_INTERNAL_ERROR, e.message ?: "", request.id, request.jsonId)
+    }
+  }
+
+  /** Check if a batch can be handled. JSON-RPC 2.0 answers an empty batch with a single error response, not with an array.
+    *
+    * @param batch The JSON array of requests.
+    * @param rpcExecutor The executor that limits the number of requests in a batch.
+    * @return The error response to write instead of an array of responses if the batch is empty or too big; null otherwise.
+    */
+  fun checkBatch(batch : JsonArray, rpcExecutor : RpcExecutor) : RpcResponse? {
+    if (batch.size() == 0) {
+      return errorResponse(RpcError.RPC_INVALID_REQUEST, "The batch is empty.", 0L, JsonNull.INSTANCE)
+    }
+    if (batch.size() > rpcExecutor.maxBatchSize) {
+      return errorResponse(RpcError.RPC_INVALID_REQUEST, "The batch has more than ${rpcExecutor.maxBatchSize} requests.", 0L, JsonNull.INSTANCE)
+    }
+    return null
+  }
+
+  /** Handle a batch of requests. Requests in the batch run in parallel, and responses are returned in the order of requests.
+    * Requests of a method with a concurrency limit wait for each other, so no request in the batch is rejected because of the limit.
+    * The batch should have been checked by checkBatch.
+    *
+    * @param batch The JSON array of requests.
+    * @param rpcExecutor The executor that runs the requests in parallel.
+    * @return The responses of the requests.
+    */
+  fun handleBatch(batch : JsonArray, rpcExecutor : RpcExecutor) : List<RpcResponse> {
+    assert(checkBatch(batch, rpcExecutor) == null)
+    return rpcExecutor.invokeAll(
+      batch.map { json ->
+        { handleRequest(json, rpcExecutor, waitForLimit = true) }
+      }
+    )
+  }
+
+  /** Get the id of a request that could not be parsed. A number or a string id is echoed as it is, and other ids are written as null.
+    */
+  private fun requestId(json : JsonElement) : JsonElement {
+    if (json is JsonObject) {
+      val id = json.get("id")
+      if (id is JsonPrimitive && (id.isNumber || id.isString)) {
+        return id
+      }
+    }
+    return JsonNull.INSTANCE
+  }
+
+  fun errorResponse(error : RpcError.Companion.ErrorDescription, data : String, id : Long, jsonId : JsonElement? = null) : RpcResponse {
+    return RpcResponse(
+      result = null,
+      error = RpcError(code = error.code, message = error.messagePrefix, data = data),
+      id = id,
+      jsonId = jsonId
+    )
+  }
+
+  /** Write a JSON-RPC response to the writer while it is serialized, instead of creating a string of the whole response.
+    *
+    * @param response The response to write.
+    * @param writer The writer of the response body. Not closed by this method.
+    */
+  fun writeResponse(response : RpcResponse, writer : Writer) : Unit {
+    Json.get().toJson(response, RpcResponse::class.java, writer)
+  }
+
+  /** Write responses of a batch as a JSON array. Each response is written to the writer while it is serialized.
+    *
+    * @param responses The responses to write.
+    * @param writer The writer of the response body. Not closed by this method.
+    */
+  fun writeResponses(responses : List<RpcResponse>, writer : Writer) : Unit {
+    val gson = Json.get()
+    val jsonWriter = gson.newJsonWriter(writer)
+    jsonWriter.beginArray()
+    responses.forEach { response ->
+      gson.toJson(response, RpcResponse::class.java, jsonWriter)
+    }
+    jsonWriter.endArray()
+    jsonWriter.flush()
+  }
 }
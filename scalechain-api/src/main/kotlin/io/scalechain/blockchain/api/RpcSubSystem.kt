@@ -18,6 +18,10 @@ enum class SubmitBlockResult {
 }
 
 
+/**
+  * Read-only queries on blocks and transactions read from a snapshot of the database,
+  * so that they see a consistent view even while a block is being connected.
+  */
 class RpcSubSystem(private val db : KeyValueDatabase, private val chain : Blockchain, private val peerCommunicator: PeerCommunicator) {
 
   /** Get the hash of a block specified by the block height on the best blockchain.
@@ -39,7 +43,7 @@ class RpcSubSystem(private val db : KeyValueDatabase, private val chain : Blockc
     * @return The searched block.
     */
   fun getBlock(blockHash: Hash): Pair<BlockInfo, Block>? {
-    return chain.getBlock(db, blockHash)
+    return db.snapshot().use { snapshot -> chain.getBlock(snapshot, blockHash) }
   }
 
   /** Get the header hash of the most recent block on the best block chain.
@@ -82,7 +86,55 @@ class RpcSubSystem(private val db : KeyValueDatabase, private val chain : Blockc
     * @return The searched block.
     */
   fun getTransaction(txHash : Hash): Transaction? {
-    return chain.getTransaction(db, txHash)
+    return db.snapshot().use { snapshot -> chain.getTransaction(snapshot, txHash) }
+  }
+
+  /** Get a serialized block without decoding it.
+    *
+    * Used by : /rest/block REST endpoint.
+    *
+    * @param blockHash The header hash of the block.
+    * @return The serialized block, or null if the block does not exist.
+    */
+  fun getRawBlock(blockHash : Hash) : ByteArray? {
+    return db.snapshot().use { snapshot -> chain.getRawBlock(snapshot, blockHash) }
+  }
+
+  /** Get a serialized transaction without decoding it.
+    *
+    * Used by : /rest/tx REST endpoint.
+    *
+    * @param txHash The hash of the transaction.
+    * @return The serialized transaction, or null if the transaction does not exist.
+    */
+  fun getRawTransaction(txHash : Hash) : ByteArray? {
+    return db.snapshot().use { snapshot -> chain.getRawTransaction(snapshot, txHash) }
+  }
+
+  /** Get serialized block headers starting from a block.
+    * If the block is on the best blockchain, headers of following blocks on the best blockchain are also returned.
+    * Headers come from the in-memory block tree, so no header is read from the database.
+    *
+    * Used by : /rest/headers REST endpoint.
+    *
+    * @param count The maximum number of headers to get.
+    * @param blockHash The header hash of the first block.
+    * @return The list of 80 byte serialized block headers. Empty if the block does not exist.
+    */
+  fun getSerializedBlockHeaders(count : Int, blockHash : Hash) : List<ByteArray> {
+    val blockTree = chain.blockTree
+    // The read lock keeps the best blockchain unchanged while headers are collected.
+    return blockTree.withReadLock {
+      val firstNode = blockTree.getNode(blockHash)
+      if (firstNode == null || count <= 0) {
+        listOf<ByteArray>()
+      } else if (blockTree.isOnBestChain(blockHash)) {
+        // No block has the all-zero hash, so headers are collected until the count limit or the best block.
+        blockTree.getSerializedHeaders(firstNode.height, count, Hash.ALL_ZERO)
+      } else {
+        listOf(firstNode.serializedHeader)
+      }
+    }
   }
 
   /** Accepts a block, verifies it is a valid addition to the block chain, and broadcasts it to the network.
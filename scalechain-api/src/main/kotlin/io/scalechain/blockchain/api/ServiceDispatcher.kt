@@ -24,14 +24,16 @@ interface ServiceDispatcher {
           return RpcResponse(
             result = null,
             error = serviceResult.value,
-            id = request.id
+            id = request.id,
+            jsonId = request.jsonId
           )
         }
         serviceResult is Right -> {
           return RpcResponse(
               result = serviceResult.value,
               error = null,
-              id = request.id
+              id = request.id,
+            jsonId = request.jsonId
           )
         }
         else -> throw AssertionError()
@@ -44,7 +46,8 @@ interface ServiceDispatcher {
           message = RpcError.RPC_METHOD_NOT_FOUND.messagePrefix,
           data = methodName
         ),
-        id = request.id
+        id = request.id,
+        jsonId = request.jsonId
       )
     }
   }
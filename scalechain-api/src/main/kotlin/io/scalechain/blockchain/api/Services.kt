@@ -2,6 +2,7 @@ package io.scalechain.blockchain.api
 
 import io.scalechain.blockchain.api.command.blockchain.*
 import io.scalechain.blockchain.api.command.wallet.*
+import io.scalechain.blockchain.api.command.wallet.p0.GetBalance
 import io.scalechain.blockchain.api.command.help.*
 import io.scalechain.blockchain.api.command.mining.*
 import io.scalechain.blockchain.api.command.network.*
@@ -27,6 +28,7 @@ object Services {
     GetAccount,
     GetAccountAddress,
     GetAddressesByAccount,
+    GetBalance,
     GetNewAddress,
     GetReceivedByAddress,
     ListTransactions,
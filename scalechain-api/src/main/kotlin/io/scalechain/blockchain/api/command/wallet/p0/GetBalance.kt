@@ -1,9 +1,13 @@
 package io.scalechain.blockchain.api.command.wallet.p0
 
+import io.scalechain.blockchain.chain.Blockchain
+import io.scalechain.blockchain.transaction.CoinAmount
 import io.scalechain.blockchain.api.command.RpcCommand
+import io.scalechain.blockchain.api.domain.NumberResult
 import io.scalechain.blockchain.api.domain.RpcError
 import io.scalechain.blockchain.api.domain.RpcRequest
 import io.scalechain.blockchain.api.domain.RpcResult
+import io.scalechain.wallet.Wallet
 import io.scalechain.util.Either
 import io.scalechain.util.Either.Left
 import io.scalechain.util.Either.Right
@@ -32,9 +36,17 @@ import io.scalechain.util.Either.Right
   */
 object GetBalance : RpcCommand() {
   override fun invoke(request : RpcRequest) : Either<RpcError, RpcResult?> {
-    // TODO : Implement
-    assert(false)
-    return Right(null)
+    return handlingException {
+      val account          : String  = request.params.getOption<String> ("Account", 0) ?: "*"
+      val minConfirmations : Long    = request.params.getOption<Long>   ("Minimum Confirmations", 1) ?: 1L
+      // BUGBUG : Watch-only addresses are always included, as balances are not kept separately for them.
+      // val includeWatchOnly : Boolean = request.params.getOption<Boolean>("Include WatchOnly", 2) ?: false
+
+      // "*" is the account that keeps the balance of the whole wallet.
+      val amount : CoinAmount = Wallet.get().getBalance(Blockchain.get().db, Blockchain.get(), account, minConfirmations)
+
+      Right(NumberResult(amount.value))
+    }
   }
   override fun help() : String =
     """getbalance ( "account" minconf includeWatchonly )
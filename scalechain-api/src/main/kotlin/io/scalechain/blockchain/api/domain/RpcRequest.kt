@@ -1,5 +1,11 @@
 package io.scalechain.blockchain.api.domain
 
+import com.google.gson.JsonPrimitive
+
 // BUGBUG : A Int value may come as an element of params.
 // Ex> <"abc", 1>
-data class RpcRequest(val jsonrpc:String?, val id:Long, val method:String, val params:RpcParams)
+/**
+  * @param id The id of the request. 0 if the id is a string that is not a number.
+  * @param jsonId The id of the request if it is a string, which is echoed in the response as it is.
+  */
+data class RpcRequest(val jsonrpc:String?, val id:Long, val method:String, val params:RpcParams, val jsonId : JsonPrimitive? = null)
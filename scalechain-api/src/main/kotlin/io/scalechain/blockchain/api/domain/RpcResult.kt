@@ -1,5 +1,7 @@
 package io.scalechain.blockchain.api.domain
 
+import com.google.gson.JsonElement
+
 interface RpcResult
 // Return JsNull. (for submitblock)
 //data class NullResult() : RpcResult
@@ -7,5 +9,9 @@ data class StringResult(val value : String) : RpcResult
 data class StringListResult(val value : List<String>) : RpcResult
 data class NumberResult(val value : java.math.BigDecimal) : RpcResult
 
-data class RpcResponse(val result : RpcResult?, val error : RpcError?, val id : Long)
+/**
+  * @param id The id of the request.
+  * @param jsonId The id written in the response instead of the numeric id, such as a string id or null. null to write the numeric id.
+  */
+data class RpcResponse(val result : RpcResult?, val error : RpcError?, val id : Long, val jsonId : JsonElement? = null)
 
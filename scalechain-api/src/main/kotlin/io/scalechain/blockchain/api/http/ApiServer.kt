@@ -1,21 +1,27 @@
 package io.scalechain.blockchain.api.http
 
 import io.netty.bootstrap.ServerBootstrap
-import io.netty.channel.socket.nio.NioServerSocketChannel
 import io.netty.channel.*
-import io.netty.channel.nio.NioEventLoopGroup
 import io.netty.handler.logging.LogLevel
 import io.netty.handler.logging.LoggingHandler
 import io.netty.handler.ssl.SslContextBuilder
 import io.netty.handler.ssl.SslContext
 import io.netty.handler.ssl.util.SelfSignedCertificate
+import io.scalechain.util.NettyTransport
 import org.slf4j.LoggerFactory
 
-class ApiServer {
+/**
+  * The HTTP server for JSON-RPC requests.
+  *
+  * @param rpcExecutor Executes RPCs off the event loop.
+  * @param transport The transport, event loop sizes and socket options. Configured by scalechain.api in the configuration file by default.
+  */
+class ApiServer(private val rpcExecutor : RpcExecutor = RpcExecutor.create(),
+                private val transport : NettyTransport = NettyTransport.create("scalechain.api")) {
   private val logger = LoggerFactory.getLogger(ApiServer::class.java)
 
-  private val bossGroup: EventLoopGroup = NioEventLoopGroup(1)
-  private val workerGroup: EventLoopGroup = NioEventLoopGroup()
+  private val bossGroup: EventLoopGroup = transport.bossGroup("api")
+  private val workerGroup: EventLoopGroup = transport.workerGroup("api")
 
   fun listen(port : Int, useSSL : Boolean = false) {
     val sslCtx: SslContext? =
@@ -27,12 +33,9 @@ class ApiServer {
         null
       }
     val b: ServerBootstrap = ServerBootstrap()
-    //b.option<Integer>(ChannelOption.SO_BACKLOG, 1024)
-    b.group(bossGroup, workerGroup)
-     .channel(NioServerSocketChannel::class.java)
-     .option(ChannelOption.SO_KEEPALIVE, true)
+    transport.configure(b.group(bossGroup, workerGroup))
      .handler(LoggingHandler(LogLevel.INFO))
-     .childHandler(ApiServerInitializer(sslCtx))
+     .childHandler(ApiServerInitializer(sslCtx, rpcExecutor))
 
     b.bind(port).addListener(object : ChannelFutureListener {
       override fun operationComplete(future:ChannelFuture) {
@@ -55,6 +58,7 @@ class ApiServer {
   fun shutdown() : Unit {
     bossGroup.shutdownGracefully()
     workerGroup.shutdownGracefully()
+    rpcExecutor.shutdown()
   }
 
 }
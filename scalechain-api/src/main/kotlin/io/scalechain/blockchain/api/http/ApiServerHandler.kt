@@ -1,9 +1,14 @@
 package io.scalechain.blockchain.api.http
 
-import io.netty.buffer.Unpooled
+import com.google.gson.JsonArray
+import com.google.gson.JsonNull
+import com.google.gson.JsonParseException
 import io.netty.buffer.ByteBuf
+import io.netty.buffer.ByteBufInputStream
+import io.netty.buffer.CompositeByteBuf
 import io.netty.channel.SimpleChannelInboundHandler
 import io.netty.channel.ChannelHandlerContext
+import io.netty.channel.ChannelFuture
 import io.netty.channel.ChannelFutureListener
 import io.netty.handler.codec.http.HttpHeaders.Names.*
 import io.netty.handler.codec.http.HttpResponseStatus.*
@@ -11,17 +16,42 @@ import io.netty.handler.codec.http.HttpVersion.*
 import io.netty.handler.codec.http.*
 import io.netty.util.CharsetUtil
 import io.scalechain.blockchain.api.RequestHandler
+import io.scalechain.blockchain.api.domain.RpcError
 import io.scalechain.blockchain.net.p2p.NodeThrottle
 import io.scalechain.util.StackUtil
 import io.scalechain.util.ExceptionUtil
 import org.slf4j.LoggerFactory
+import java.io.InputStreamReader
+import java.io.OutputStreamWriter
+import java.io.Writer
+import java.util.*
+import java.util.concurrent.RejectedExecutionException
 
-class ApiServerHandler : SimpleChannelInboundHandler<Any>() {
+/**
+  * Handles JSON-RPC requests on HTTP.
+  * GET requests on /rest/ are served by RestRequestHandler.
+  *
+  * The request body is kept in a composite buffer of the received chunks, and handled on a worker thread of the RPC executor.
+  * The response is serialized straight into pooled ByteBuf chunks, and written with the content length so that HTTP/1.1 connections are kept alive.
+  *
+  * Requests pipelined on a connection are handled one by one, so that responses are written in the order of requests.
+  * While a request is handled, reading from the connection is paused.
+  *
+  * @param rpcExecutor The executor that runs requests on worker threads.
+  */
+class ApiServerHandler(private val rpcExecutor : RpcExecutor) : SimpleChannelInboundHandler<Any>() {
   private val logger = LoggerFactory.getLogger(ApiServerHandler::class.java)
 
+  /** A request whose body was fully received. restUri is the URI of a REST request, or null for a JSON-RPC request. */
+  private class PendingRequest(val body : ByteBuf, val keepAlive : Boolean, val decoderSuccess : Boolean, val restUri : String?)
+
+  // The fields below are accessed only on the event loop of the channel. Worker threads hand responses over to the event loop. See writeHttpResponse.
   private var request: HttpRequest? = null
-  /** Buffer that stores the response content */
-  private final val requestData: StringBuilder = StringBuilder()
+  /** Buffer that stores the request content */
+  private var requestBody: CompositeByteBuf? = null
+  /** Requests received while another request on the same connection is being handled. */
+  private val pendingRequests = ArrayDeque<PendingRequest>()
+  private var handlingRequest = false
 
   override fun channelReadComplete(ctx: ChannelHandlerContext) {
     ctx.flush()
@@ -31,57 +61,192 @@ class ApiServerHandler : SimpleChannelInboundHandler<Any>() {
     if (msg is HttpRequest) {
       val request: HttpRequest = msg
       this.request = request
-      if (HttpHeaders.is100ContinueExpected(request)) {
+      if (HttpUtil.is100ContinueExpected(request)) {
         ApiServerHandler.send100Continue(ctx)
       }
-      requestData.setLength(0)
+      requestBody?.release()
+      requestBody = ctx.alloc().compositeBuffer(Int.MAX_VALUE)
     }
     if (msg is HttpContent) {
       val httpContent: HttpContent = msg
       val content: ByteBuf = httpContent.content()
-      if (content.isReadable) {
-        requestData.append(content.toString(CharsetUtil.UTF_8))
+      val body = requestBody
+      if (content.isReadable && body != null) {
+        // The message is released after this method returns. Keep the content without copying it.
+        body.addComponent(true, content.retain())
       }
       if (msg is LastHttpContent) {
         val trailer: LastHttpContent = msg
 
-        val responseString = RequestHandler.handleRequest(requestData.toString())
+        requestBody = null
+        pendingRequests.addLast(
+          PendingRequest(
+            body ?: ctx.alloc().buffer(0),
+            HttpUtil.isKeepAlive(request),
+            trailer.decoderResult().isSuccess,
+            restUri(request)
+          )
+        )
+        handleNextRequest(ctx)
+      }
+    }
+  }
 
-        if (!writeResponse(trailer, ctx, responseString)) {
-          ctx.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE)
-        }
+  private fun restUri(request : HttpRequest?) : String? {
+    if (request != null && request.method() == HttpMethod.GET && RestRequestHandler.isRestRequest(request.uri())) {
+      return request.uri()
+    }
+    return null
+  }
 
-        NodeThrottle.throttle(logger)
+  /** Submit the next pending request to the RPC executor unless a request on this connection is being handled.
+    * Called on the event loop of the channel.
+    */
+  private fun handleNextRequest(ctx: ChannelHandlerContext) {
+    if (handlingRequest || pendingRequests.isEmpty()) {
+      return
+    }
+    val pendingRequest = pendingRequests.removeFirst()
+    handlingRequest = true
+    // Stop reading further requests until the response is written.
+    ctx.channel().config().isAutoRead = false
+
+    try {
+      rpcExecutor.submit {
+        handleRequest(ctx, pendingRequest)
       }
+    } catch (e : RejectedExecutionException) {
+      pendingRequest.body.release()
+      logger.warn("Too many RPC requests are waiting. Rejecting a request.")
+      writeErrorResponse(ctx, SERVICE_UNAVAILABLE, RpcError.RPC_MISC_ERROR, "The server is busy.", pendingRequest.keepAlive)
     }
   }
 
-  private fun writeResponse(currentObj: HttpObject, ctx: ChannelHandlerContext, responseString : String): Boolean {
-    val keepAlive: Boolean = HttpHeaders.isKeepAlive(request)
-    val response: FullHttpResponse = DefaultFullHttpResponse(HTTP_1_1, if (currentObj.getDecoderResult().isSuccess) OK else BAD_REQUEST, Unpooled.copiedBuffer(responseString, CharsetUtil.UTF_8))
-    response.headers().set(CONTENT_TYPE, "application/json; charset=UTF-8")
-    if (keepAlive) {
-      response.headers().set(CONTENT_LENGTH, response.content().readableBytes())
-      response.headers().set(CONNECTION, HttpHeaders.Values.KEEP_ALIVE)
+  /** Parse, dispatch and write the response of a request or a batch of requests. Runs on a worker thread of the RPC executor.
+    */
+  private fun handleRequest(ctx: ChannelHandlerContext, pendingRequest : PendingRequest) {
+    if (pendingRequest.restUri != null) {
+      pendingRequest.body.release()
+      handleRestRequest(ctx, pendingRequest.restUri, pendingRequest.keepAlive)
+      return
     }
-    /*
-    val cookieString: String = request.headers.get(COOKIE)
-    if (cookieString != null) {
-      val cookies: util.Set<Cookie> = CookieDecoder.decode(cookieString)
-      if (!cookies.isEmpty) {
-        import scala.collection.JavaConversions.*
-        for (cookie <- cookies) {
-          response.headers.add(SET_COOKIE, ServerCookieEncoder.encode(cookie))
+
+    val status = if (pendingRequest.decoderSuccess) OK else BAD_REQUEST
+    try {
+      val json = try {
+        RequestHandler.parseBody(InputStreamReader(ByteBufInputStream(pendingRequest.body), CharsetUtil.UTF_8))
+      } finally {
+        pendingRequest.body.release()
+      }
+
+      val batchError = if (json is JsonArray) RequestHandler.checkBatch(json, rpcExecutor) else null
+      if (batchError != null) {
+        writeResponse(ctx, status, pendingRequest.keepAlive) { writer ->
+          RequestHandler.writeResponse(batchError, writer)
+        }
+      } else if (json is JsonArray) {
+        val responses = RequestHandler.handleBatch(json, rpcExecutor)
+        writeResponse(ctx, status, pendingRequest.keepAlive) { writer ->
+          RequestHandler.writeResponses(responses, writer)
+        }
+      } else {
+        val response = RequestHandler.handleRequest(json, rpcExecutor)
+        writeResponse(ctx, status, pendingRequest.keepAlive) { writer ->
+          RequestHandler.writeResponse(response, writer)
         }
       }
+    } catch (e : JsonParseException) {
+      writeErrorResponse(ctx, status, RpcError.RPC_PARSE_ERROR, e.message ?: "", pendingRequest.keepAlive)
+    } catch (e : Exception) {
+      logger.error("Failed to handle an RPC request. Stack : ${StackUtil.getStackTrace(e)}")
+      ctx.close()
     }
-    else {
-      response.headers.add(SET_COOKIE, ServerCookieEncoder.encode("key1", "value1"))
-      response.headers.add(SET_COOKIE, ServerCookieEncoder.encode("key2", "value2"))
+
+    NodeThrottle.throttle(logger)
+  }
+
+  /** Serve a REST request. Runs on a worker thread of the RPC executor.
+    */
+  private fun handleRestRequest(ctx: ChannelHandlerContext, uri : String, keepAlive : Boolean) {
+    try {
+      val restResponse = RestRequestHandler.handle(uri, ctx.alloc())
+      writeHttpResponse(ctx, restResponse.status, restResponse.contentType, restResponse.content, keepAlive)
+    } catch (e : Exception) {
+      logger.error("Failed to handle a REST request : ${uri}. Stack : ${StackUtil.getStackTrace(e)}")
+      ctx.close()
     }
+  }
+
+  private fun writeErrorResponse(ctx: ChannelHandlerContext, status : HttpResponseStatus, error : RpcError.Companion.ErrorDescription, data : String, keepAlive : Boolean) {
+    val response = RequestHandler.errorResponse(error, data, 0L, JsonNull.INSTANCE)
+    writeResponse(ctx, status, keepAlive) { writer ->
+      RequestHandler.writeResponse(response, writer)
+    }
+  }
+
+  /** Serialize the response into pooled chunks and write it. May be called on any thread.
+    *
+    * @param serialize The function that writes the response body to the given writer.
     */
-    ctx.write(response)
-    return keepAlive
+  private fun writeResponse(ctx: ChannelHandlerContext, status : HttpResponseStatus, keepAlive : Boolean, serialize : (Writer) -> Unit) {
+    val outputStream = ByteBufChunkOutputStream(ctx.alloc())
+    try {
+      val writer = OutputStreamWriter(outputStream, CharsetUtil.UTF_8)
+      serialize(writer)
+      writer.flush()
+      outputStream.close()
+    } catch (e : Throwable) {
+      outputStream.close()
+      outputStream.content.release()
+      throw e
+    }
+
+    writeHttpResponse(ctx, status, "application/json; charset=UTF-8", outputStream.content, keepAlive)
+  }
+
+  /** Write a response with the given content. The content is released after it is written. May be called on any thread.
+    * The response is written on the event loop of the channel, which then handles the next pending request.
+    */
+  private fun writeHttpResponse(ctx: ChannelHandlerContext, status : HttpResponseStatus, contentType : String, content : ByteBuf, keepAlive : Boolean) {
+    if (!ctx.executor().inEventLoop()) {
+      ctx.executor().execute(Runnable {
+        writeHttpResponse(ctx, status, contentType, content, keepAlive)
+      })
+      return
+    }
+
+    val response: FullHttpResponse = DefaultFullHttpResponse(HTTP_1_1, status, content)
+    response.headers().set(CONTENT_TYPE, contentType)
+    response.headers().set(CONTENT_LENGTH, response.content().readableBytes())
+    if (keepAlive) {
+      response.headers().set(CONNECTION, HttpHeaders.Values.KEEP_ALIVE)
+    } else {
+      response.headers().set(CONNECTION, HttpHeaders.Values.CLOSE)
+    }
+
+    val writeFuture = ctx.writeAndFlush(response)
+    if (keepAlive) {
+      writeFuture.addListener(object : ChannelFutureListener {
+        override fun operationComplete(future: ChannelFuture) {
+          handlingRequest = false
+          if (pendingRequests.isEmpty()) {
+            ctx.channel().config().isAutoRead = true
+          } else {
+            handleNextRequest(ctx)
+          }
+        }
+      })
+    } else {
+      writeFuture.addListener(ChannelFutureListener.CLOSE)
+    }
+  }
+
+  override fun channelInactive(ctx: ChannelHandlerContext) {
+    requestBody?.release()
+    requestBody = null
+    pendingRequests.forEach { it.body.release() }
+    pendingRequests.clear()
+    super.channelInactive(ctx)
   }
 
   override fun exceptionCaught(ctx: ChannelHandlerContext, cause: Throwable) {
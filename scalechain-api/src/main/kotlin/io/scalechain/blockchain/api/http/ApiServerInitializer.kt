@@ -7,7 +7,7 @@ import io.netty.handler.codec.http.HttpResponseEncoder
 import io.netty.handler.codec.http.HttpRequestDecoder
 import io.netty.handler.ssl.SslContext
 
-class ApiServerInitializer(private val sslCtx: SslContext?)  : ChannelInitializer<SocketChannel>() {
+class ApiServerInitializer(private val sslCtx: SslContext?, private val rpcExecutor : RpcExecutor)  : ChannelInitializer<SocketChannel>() {
 
   override fun initChannel(ch: SocketChannel) {
     val p: ChannelPipeline = ch.pipeline()
@@ -21,6 +21,6 @@ class ApiServerInitializer(private val sslCtx: SslContext?)  : ChannelInitialize
     p.addLast(HttpResponseEncoder())
     // Remove the following line if you don't want automatic content compression.
     //p.addLast(HttpContentCompressor());
-    p.addLast(ApiServerHandler())
+    p.addLast(ApiServerHandler(rpcExecutor))
   }
 }
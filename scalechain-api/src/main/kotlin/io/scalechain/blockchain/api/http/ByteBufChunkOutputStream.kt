@@ -0,0 +1,66 @@
+package io.scalechain.blockchain.api.http
+
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.ByteBufAllocator
+import io.netty.buffer.CompositeByteBuf
+import java.io.OutputStream
+
+/**
+  * An output stream that writes into fixed size chunks allocated from a (pooled) ByteBuf allocator.
+  *
+  * A large response is written chunk by chunk, so it does not need one big contiguous buffer or a temporary string.
+  * The chunks are added to a composite buffer, which can be written to a channel as the content of a response.
+  * The caller owns the composite buffer, and should release it if it is not written to a channel.
+  *
+  * @param allocator The allocator of chunks. Usually the allocator of the channel.
+  * @param chunkSize The size of each chunk.
+  */
+class ByteBufChunkOutputStream(private val allocator : ByteBufAllocator, private val chunkSize : Int = DefaultChunkSize) : OutputStream() {
+  val content : CompositeByteBuf = allocator.compositeBuffer(Int.MAX_VALUE)
+
+  private var currentChunk : ByteBuf? = null
+
+  private fun writableChunk() : ByteBuf {
+    val chunk = currentChunk
+    if (chunk != null && chunk.isWritable) {
+      return chunk
+    }
+    flushChunk()
+    val newChunk = allocator.buffer(chunkSize, chunkSize)
+    currentChunk = newChunk
+    return newChunk
+  }
+
+  // Move the current chunk to the composite buffer.
+  private fun flushChunk() : Unit {
+    val chunk = currentChunk
+    if (chunk != null) {
+      content.addComponent(true, chunk)
+      currentChunk = null
+    }
+  }
+
+  override fun write(b : Int) {
+    writableChunk().writeByte(b)
+  }
+
+  override fun write(b : ByteArray, off : Int, len : Int) {
+    var offset = off
+    var remaining = len
+    while (remaining > 0) {
+      val chunk = writableChunk()
+      val length = Math.min(remaining, chunk.writableBytes())
+      chunk.writeBytes(b, offset, length)
+      offset += length
+      remaining -= length
+    }
+  }
+
+  override fun close() {
+    flushChunk()
+  }
+
+  companion object {
+    val DefaultChunkSize = 16 * 1024
+  }
+}
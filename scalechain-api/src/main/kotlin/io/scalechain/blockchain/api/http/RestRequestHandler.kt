@@ -0,0 +1,194 @@
+package io.scalechain.blockchain.api.http
+
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.ByteBufAllocator
+import io.netty.buffer.Unpooled
+import io.netty.handler.codec.http.HttpResponseStatus
+import io.netty.handler.codec.http.QueryStringDecoder
+import io.netty.util.CharsetUtil
+import io.scalechain.blockchain.api.Json
+import io.scalechain.blockchain.api.RpcSubSystem
+import io.scalechain.blockchain.api.command.BlockFormatter
+import io.scalechain.blockchain.api.command.TransactionFormatter
+import io.scalechain.blockchain.proto.Hash
+import io.scalechain.blockchain.proto.codec.BlockCodec
+import io.scalechain.blockchain.proto.codec.BlockHeaderCodec
+import io.scalechain.blockchain.proto.codec.TransactionCodec
+import io.scalechain.util.Bytes
+import io.scalechain.util.HexUtil
+import java.io.OutputStreamWriter
+
+/** A response of a REST request.
+  *
+  * @param status The HTTP status.
+  * @param contentType The content type of the response.
+  * @param content The response body. Owned by the receiver of the response.
+  */
+class RestResponse(val status : HttpResponseStatus, val contentType : String, val content : ByteBuf)
+
+/**
+  * Serves blocks, transactions and block headers on REST endpoints.
+  *
+  * /rest/block/<hash>.<format>
+  * /rest/tx/<hash>.<format>
+  * /rest/headers/<count>/<hash>.<format>
+  *
+  * The format is one of bin, hex and json.
+  * For the bin format, serialized bytes are read from the record storage and written as they are without decoding them.
+  * For the hex format, the serialized bytes are hex-encoded.
+  * For the json format, objects are formatted in the same way as getblock and getrawtransaction RPCs.
+  */
+object RestRequestHandler {
+  val PathPrefix = "/rest/"
+
+  // The maximum number of headers returned by /rest/headers.
+  val MaxHeaderCount = 2000
+
+  private val BinaryContentType = "application/octet-stream"
+  private val TextContentType = "text/plain; charset=UTF-8"
+  private val JsonContentType = "application/json; charset=UTF-8"
+
+  private enum class Format { BIN, HEX, JSON }
+
+  /** Check if a request URI is for the REST endpoints.
+    */
+  fun isRestRequest(uri : String) : Boolean = uri.startsWith(PathPrefix)
+
+  /** Handle a REST request.
+    *
+    * @param uri The URI of the request.
+    * @param allocator The allocator for response buffers.
+    * @return The response.
+    */
+  fun handle(uri : String, allocator : ByteBufAllocator) : RestResponse {
+    val path = QueryStringDecoder(uri).path().substring(PathPrefix.length)
+    val extensionIndex = path.lastIndexOf('.')
+    if (extensionIndex < 0) {
+      return error(HttpResponseStatus.BAD_REQUEST, "The format is missing. Use one of .bin, .hex and .json.")
+    }
+    val format = when (path.substring(extensionIndex + 1)) {
+      "bin" -> Format.BIN
+      "hex" -> Format.HEX
+      "json" -> Format.JSON
+      else -> return error(HttpResponseStatus.BAD_REQUEST, "Invalid format. Use one of .bin, .hex and .json.")
+    }
+    val parts = path.substring(0, extensionIndex).split('/')
+
+    return when {
+      parts.size == 2 && parts[0] == "block" -> {
+        val blockHash = parseHash(parts[1]) ?: return invalidHash(parts[1])
+        getBlock(blockHash, format, allocator)
+      }
+      parts.size == 2 && parts[0] == "tx" -> {
+        val txHash = parseHash(parts[1]) ?: return invalidHash(parts[1])
+        getTransaction(txHash, format, allocator)
+      }
+      parts.size == 3 && parts[0] == "headers" -> {
+        val count = parts[1].toIntOrNull()
+        if (count == null || count <= 0 || count > MaxHeaderCount) {
+          return error(HttpResponseStatus.BAD_REQUEST, "The header count should be between 1 and ${MaxHeaderCount}.")
+        }
+        val blockHash = parseHash(parts[2]) ?: return invalidHash(parts[2])
+        getHeaders(count, blockHash, format, allocator)
+      }
+      else -> error(HttpResponseStatus.NOT_FOUND, "Unknown REST endpoint : ${uri}")
+    }
+  }
+
+  private fun getBlock(blockHash : Hash, format : Format, allocator : ByteBufAllocator) : RestResponse {
+    val rpc = RpcSubSystem.get()
+    if (format == Format.JSON) {
+      val blockOption = rpc.getBlock(blockHash) ?: return notFound("Block", blockHash)
+      val (blockInfo, block) = blockOption
+      return json(BlockFormatter.getBlockResult(blockInfo, block), allocator)
+    } else {
+      val rawBlock = rpc.getRawBlock(blockHash) ?: return notFound("Block", blockHash)
+      return raw(rawBlock, format)
+    }
+  }
+
+  private fun getTransaction(txHash : Hash, format : Format, allocator : ByteBufAllocator) : RestResponse {
+    val rpc = RpcSubSystem.get()
+    if (format == Format.JSON) {
+      val transaction = rpc.getTransaction(txHash) ?: return notFound("Transaction", txHash)
+      val blockInfoOption = rpc.getTransactionBlockInfo(txHash)
+      return json(TransactionFormatter.getRawTransaction(transaction, rpc.getBestBlockHeight(), blockInfoOption), allocator)
+    } else {
+      val rawTransaction = rpc.getRawTransaction(txHash) ?: return notFound("Transaction", txHash)
+      return raw(rawTransaction, format)
+    }
+  }
+
+  private fun getHeaders(count : Int, blockHash : Hash, format : Format, allocator : ByteBufAllocator) : RestResponse {
+    val serializedHeaders = RpcSubSystem.get().getSerializedBlockHeaders(count, blockHash)
+    if (serializedHeaders.isEmpty()) {
+      return notFound("Block", blockHash)
+    }
+    if (format == Format.JSON) {
+      return json(serializedHeaders.map { BlockHeaderCodec.decode(it)!! }, allocator)
+    } else {
+      val content = allocator.buffer(serializedHeaders.size * BlockHeaderSize)
+      serializedHeaders.forEach { serializedHeader ->
+        content.writeBytes(serializedHeader)
+      }
+      if (format == Format.BIN) {
+        return RestResponse(HttpResponseStatus.OK, BinaryContentType, content)
+      } else {
+        try {
+          return hex(ByteArray(content.readableBytes()).apply { content.readBytes(this) })
+        } finally {
+          content.release()
+        }
+      }
+    }
+  }
+
+  // The size of a serialized block header.
+  private val BlockHeaderSize = 80
+
+  private fun raw(bytes : ByteArray, format : Format) : RestResponse {
+    return if (format == Format.BIN) {
+      // Wrap the bytes read from the record file without copying them.
+      RestResponse(HttpResponseStatus.OK, BinaryContentType, Unpooled.wrappedBuffer(bytes))
+    } else {
+      hex(bytes)
+    }
+  }
+
+  private fun hex(bytes : ByteArray) : RestResponse {
+    return RestResponse(HttpResponseStatus.OK, TextContentType, Unpooled.wrappedBuffer(HexUtil.hex(bytes).toByteArray(CharsetUtil.US_ASCII)))
+  }
+
+  private fun json(value : Any, allocator : ByteBufAllocator) : RestResponse {
+    val outputStream = ByteBufChunkOutputStream(allocator)
+    try {
+      val writer = OutputStreamWriter(outputStream, CharsetUtil.UTF_8)
+      Json.get().toJson(value, writer)
+      writer.flush()
+      outputStream.close()
+    } catch (e : Throwable) {
+      outputStream.close()
+      outputStream.content.release()
+      throw e
+    }
+    return RestResponse(HttpResponseStatus.OK, JsonContentType, outputStream.content)
+  }
+
+  private fun parseHash(hexString : String) : Hash? {
+    // Bytes.from skips characters that are not hexadecimal, so check them here.
+    if (hexString.length != 64 || !hexString.all { Character.digit(it, 16) >= 0 }) {
+      return null
+    }
+    return Hash(Bytes.from(hexString))
+  }
+
+  private fun invalidHash(hexString : String) : RestResponse =
+    error(HttpResponseStatus.BAD_REQUEST, "Invalid hash : ${hexString}")
+
+  private fun notFound(what : String, hash : Hash) : RestResponse =
+    error(HttpResponseStatus.NOT_FOUND, "${what} not found : ${hash}")
+
+  private fun error(status : HttpResponseStatus, message : String) : RestResponse {
+    return RestResponse(status, TextContentType, Unpooled.copiedBuffer("${message}\r\n", CharsetUtil.UTF_8))
+  }
+}
@@ -0,0 +1,162 @@
+package io.scalechain.blockchain.api.http
+
+import io.scalechain.util.Config
+import org.slf4j.LoggerFactory
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.Semaphore
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+  * Runs JSON-RPC requests on a bounded pool of worker threads, so that a slow RPC does not block the netty event loop.
+  *
+  * (1) At most threadCount requests run at the same time. Up to queueSize requests wait in the queue.
+  *     When the queue is full, submit throws RejectedExecutionException.
+  * (2) A method listed in methodLimits runs on at most the given number of worker threads at the same time.
+  *     This keeps heavy methods such as listtransactions from occupying all worker threads.
+  *     A request of a method already running on all of its threads is rejected instead of waiting, so it does not park a worker thread.
+  * (3) Requests in a batch run in parallel on a separate pool of threadCount threads.
+  *     A worker thread waits for the requests of its batch, so running them on the worker pool could use up all worker threads.
+  *     A request in a batch waits until its method is under the limit instead of being rejected,
+  *     as a batch often has more requests of the same method, such as getblock, than the limit.
+  *
+  * @param threadCount The number of worker threads.
+  * @param queueSize The maximum number of requests waiting for a worker thread.
+  * @param methodLimits The maximum number of concurrent executions by method name.
+  * @param maxBatchSize The maximum number of requests in a batch.
+  */
+class RpcExecutor(threadCount : Int, queueSize : Int, methodLimits : Map<String, Int>, val maxBatchSize : Int = DefaultMaxBatchSize) {
+  private val logger = LoggerFactory.getLogger(RpcExecutor::class.java)
+
+  private val threadNumber = AtomicInteger(0)
+
+  private val executor = ThreadPoolExecutor(
+    threadCount, threadCount,
+    0L, TimeUnit.MILLISECONDS,
+    ArrayBlockingQueue<Runnable>(queueSize)
+  ) { runnable ->
+    val thread = Thread(runnable, "rpc-worker-${threadNumber.incrementAndGet()}")
+    thread.isDaemon = true
+    thread
+  }
+
+  private val batchExecutor = Executors.newFixedThreadPool(threadCount) { runnable ->
+    val thread = Thread(runnable, "rpc-batch-worker-${threadNumber.incrementAndGet()}")
+    thread.isDaemon = true
+    thread
+  }
+
+  // method name -> semaphore limiting concurrent executions of the method.
+  // Fair, so that batch requests waiting for a method run in the order they started waiting.
+  private val methodSemaphores : Map<String, Semaphore> = methodLimits.mapValues { Semaphore(it.value, true) }
+
+  /** Submit a task to run on a worker thread.
+    *
+    * @throws java.util.concurrent.RejectedExecutionException if the queue is full or the executor was shut down.
+    */
+  fun submit(task : () -> Unit) : Unit {
+    executor.execute(Runnable { task() })
+  }
+
+  /** Run tasks in parallel and wait until all of them finish.
+    *
+    * @param tasks The tasks to run.
+    * @return The results of the tasks in the order of the tasks.
+    */
+  fun<T> invokeAll(tasks : List<() -> T>) : List<T> {
+    val futures = batchExecutor.invokeAll( tasks.map { task -> Callable<T> { task() } } )
+    return futures.map { future ->
+      try {
+        future.get()
+      } catch (e : ExecutionException) {
+        throw e.cause ?: e
+      }
+    }
+  }
+
+  /** Run a function while holding the concurrency limit of the given method.
+    *
+    * @param methodName The JSON-RPC method name.
+    * @param waitForLimit If true, wait until the method is under the limit. Pass true only on a batch worker thread.
+    * @param block The function that executes the method.
+    * @throws java.util.concurrent.RejectedExecutionException if the method is already running as many times as its limit, and waitForLimit is false.
+    */
+  fun<T> withMethodLimit(methodName : String, waitForLimit : Boolean = false, block : () -> T) : T {
+    val semaphore = methodSemaphores[methodName]
+    if (semaphore == null) {
+      return block()
+    }
+    if (waitForLimit) {
+      semaphore.acquire()
+    } else if (!semaphore.tryAcquire()) {
+      throw RejectedExecutionException("Too many requests of ${methodName} are running.")
+    }
+    try {
+      return block()
+    } finally {
+      semaphore.release()
+    }
+  }
+
+  fun shutdown() : Unit {
+    executor.shutdown()
+    batchExecutor.shutdown()
+    if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+      logger.warn("RPC worker threads did not finish in time.")
+    }
+    // Worker threads wait for their batches, so batch requests are mostly done by now.
+    if (!batchExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+      logger.warn("RPC batch worker threads did not finish in time.")
+    }
+  }
+
+  companion object {
+    val DefaultQueueSize = 1024
+    val DefaultMaxBatchSize = 1000
+
+    // Heavy methods that read many records from the database.
+    val DefaultMethodLimits = mapOf(
+      "listtransactions" to 2,
+      "listunspent" to 2,
+      "getblock" to 4,
+      "getrawtransaction" to 4
+    )
+
+    /** Create an executor with settings from scalechain.api in the configuration file.
+      *
+      * scalechain.api.threads : The number of worker threads. The number of available processors by default.
+      * scalechain.api.queue_size : The maximum number of requests waiting for a worker thread.
+      * scalechain.api.method_limits : A map from the method name to the maximum number of concurrent executions.
+      * scalechain.api.max_batch_size : The maximum number of requests in a batch.
+      */
+    fun create() : RpcExecutor {
+      val config = Config.get()
+      val threadCount =
+        if (config.hasPath("scalechain.api.threads")) config.getInt("scalechain.api.threads")
+        else Runtime.getRuntime().availableProcessors()
+      val queueSize =
+        if (config.hasPath("scalechain.api.queue_size")) config.getInt("scalechain.api.queue_size")
+        else DefaultQueueSize
+
+      val methodLimits = hashMapOf<String, Int>()
+      methodLimits.putAll(DefaultMethodLimits)
+      if (config.hasPath("scalechain.api.method_limits")) {
+        val limitConfig = config.config.getConfig("scalechain.api.method_limits")
+        limitConfig.root().keys.forEach { methodName ->
+          methodLimits.put(methodName, limitConfig.getInt(methodName))
+        }
+      }
+
+      val maxBatchSize =
+        if (config.hasPath("scalechain.api.max_batch_size")) config.getInt("scalechain.api.max_batch_size")
+        else DefaultMaxBatchSize
+
+      return RpcExecutor(threadCount, queueSize, methodLimits, maxBatchSize)
+    }
+  }
+}
@@ -0,0 +1,135 @@
+package io.scalechain.blockchain.api
+
+import com.google.gson.JsonArray
+import com.google.gson.JsonElement
+import com.google.gson.JsonObject
+import com.google.gson.JsonParser
+import com.google.gson.JsonPrimitive
+import io.kotlintest.KTestJUnitRunner
+import io.kotlintest.matchers.Matchers
+import io.kotlintest.specs.FlatSpec
+import io.scalechain.blockchain.api.domain.RpcError
+import io.scalechain.blockchain.api.domain.RpcResponse
+import io.scalechain.blockchain.api.http.RpcExecutor
+import org.junit.runner.RunWith
+import java.io.StringWriter
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+@RunWith(KTestJUnitRunner::class)
+class RequestHandlerSpec : FlatSpec(), Matchers {
+
+  lateinit var executor : RpcExecutor
+
+  override fun beforeEach() {
+    executor = RpcExecutor(threadCount = 2, queueSize = 10, methodLimits = mapOf(), maxBatchSize = 3)
+    super.beforeEach()
+  }
+
+  override fun afterEach() {
+    super.afterEach()
+    executor.shutdown()
+  }
+
+  fun request(id : JsonElement?, method : String?) : JsonObject {
+    val json = JsonObject()
+    if (id != null) json.add("id", id)
+    if (method != null) json.addProperty("method", method)
+    json.add("params", JsonArray())
+    return json
+  }
+
+  fun batch(vararg requests : JsonElement) : JsonArray {
+    val array = JsonArray()
+    requests.forEach { array.add(it) }
+    return array
+  }
+
+  fun serialize(response : RpcResponse) : JsonElement {
+    val writer = StringWriter()
+    RequestHandler.writeResponse(response, writer)
+    return JsonParser().parse(writer.toString())
+  }
+
+  fun serialize(responses : List<RpcResponse>) : JsonElement {
+    val writer = StringWriter()
+    RequestHandler.writeResponses(responses, writer)
+    return JsonParser().parse(writer.toString())
+  }
+
+  init {
+    "checkBatch" should "return a single error object with a null id for an empty batch" {
+      val json = serialize(RequestHandler.checkBatch(batch(), executor)!!)
+      json.isJsonObject shouldBe true
+      json.asJsonObject.get("error").asJsonObject.get("code").asInt shouldBe RpcError.RPC_INVALID_REQUEST.code
+      json.asJsonObject.get("id").isJsonNull shouldBe true
+    }
+
+    "checkBatch" should "return a single error object for a batch with more requests than the limit" {
+      val requests = (1..4).map { request(JsonPrimitive(it), "getbestblockhash") }
+      val json = serialize(RequestHandler.checkBatch(batch(*requests.toTypedArray()), executor)!!)
+      json.isJsonObject shouldBe true
+      json.asJsonObject.get("error").asJsonObject.get("code").asInt shouldBe RpcError.RPC_INVALID_REQUEST.code
+
+      RequestHandler.checkBatch(batch(*requests.take(3).toTypedArray()), executor) shouldBe null
+    }
+
+    "handleBatch" should "return responses in the order of requests, echoing numeric and string ids" {
+      val responses = RequestHandler.handleBatch(
+        batch(
+          request(JsonPrimitive("abc"), "nosuchmethod"),
+          request(JsonPrimitive(7), "nosuchmethod"),
+          JsonPrimitive(5)
+        ),
+        executor
+      )
+      val json = serialize(responses)
+      json.isJsonArray shouldBe true
+      val array = json.asJsonArray
+      array.size() shouldBe 3
+
+      array[0].asJsonObject.get("id") shouldBe JsonPrimitive("abc")
+      array[0].asJsonObject.get("error").asJsonObject.get("code").asInt shouldBe RpcError.RPC_METHOD_NOT_FOUND.code
+
+      array[1].asJsonObject.get("id").asLong shouldBe 7L
+      array[1].asJsonObject.get("error").asJsonObject.get("code").asInt shouldBe RpcError.RPC_METHOD_NOT_FOUND.code
+
+      // Not a request object.
+      array[2].asJsonObject.get("id").isJsonNull shouldBe true
+      array[2].asJsonObject.get("error").asJsonObject.get("code").asInt shouldBe RpcError.RPC_INVALID_REQUEST.code
+    }
+
+    "handleBatch" should "run every request of a batch with more requests of a method than its limit" {
+      val limitedExecutor = RpcExecutor(threadCount = 4, queueSize = 10, methodLimits = mapOf("help" to 1), maxBatchSize = 10)
+      try {
+        // Hold the limit of help while the batch starts, so that requests of the batch find the method at its limit.
+        val held = CountDownLatch(1)
+        val holder = Thread(Runnable {
+          limitedExecutor.withMethodLimit("help") {
+            held.countDown()
+            Thread.sleep(200)
+          }
+        })
+        holder.start()
+        held.await(10, TimeUnit.SECONDS) shouldBe true
+
+        val requests = (1..6).map { request(JsonPrimitive(it), "help") }
+        val responses = RequestHandler.handleBatch(batch(*requests.toTypedArray()), limitedExecutor)
+        responses.size shouldBe 6
+        responses.forEach { response ->
+          response.error shouldBe null
+        }
+        holder.join()
+      } finally {
+        limitedExecutor.shutdown()
+      }
+    }
+
+    "handleRequest" should "echo a string id of a request that could not be parsed" {
+      val response = RequestHandler.handleRequest(request(JsonPrimitive("curltest"), null), executor)
+      val json = serialize(response).asJsonObject
+      json.get("id") shouldBe JsonPrimitive("curltest")
+      json.get("error").asJsonObject.get("code").asInt shouldBe RpcError.RPC_INVALID_REQUEST.code
+    }
+  }
+}
@@ -0,0 +1,60 @@
+package io.scalechain.blockchain.api.http
+
+import io.kotlintest.KTestJUnitRunner
+import io.kotlintest.matchers.Matchers
+import io.kotlintest.specs.FlatSpec
+import org.junit.runner.RunWith
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.TimeUnit
+
+@RunWith(KTestJUnitRunner::class)
+class RpcExecutorSpec : FlatSpec(), Matchers {
+
+  lateinit var executor : RpcExecutor
+
+  override fun beforeEach() {
+    executor = RpcExecutor(threadCount = 2, queueSize = 10, methodLimits = mapOf("listtransactions" to 1))
+    super.beforeEach()
+  }
+
+  override fun afterEach() {
+    super.afterEach()
+    executor.shutdown()
+  }
+
+  init {
+    "withMethodLimit" should "reject a method running as many times as its limit instead of waiting" {
+      val running = CountDownLatch(1)
+      val finish = CountDownLatch(1)
+      val finished = CountDownLatch(1)
+      executor.submit {
+        executor.withMethodLimit("listtransactions") {
+          running.countDown()
+          finish.await(10, TimeUnit.SECONDS)
+        }
+        finished.countDown()
+      }
+      running.await(10, TimeUnit.SECONDS) shouldBe true
+
+      shouldThrow<RejectedExecutionException> {
+        executor.withMethodLimit("listtransactions") { 1 }
+      }
+      // Methods without a limit and other methods are not affected.
+      executor.withMethodLimit("getblockcount") { 2 } shouldBe 2
+
+      finish.countDown()
+      finished.await(10, TimeUnit.SECONDS) shouldBe true
+
+      // The limit is released when the running execution finishes.
+      executor.withMethodLimit("listtransactions") { 3 } shouldBe 3
+    }
+
+    "withMethodLimit" should "release the limit if the method throws an exception" {
+      shouldThrow<IllegalStateException> {
+        executor.withMethodLimit("listtransactions") { throw IllegalStateException("test") }
+      }
+      executor.withMethodLimit("listtransactions") { 1 } shouldBe 1
+    }
+  }
+}
@@ -1,7 +1,9 @@
 package io.scalechain.blockchain.chain
 
 import io.scalechain.blockchain.storage.index.KeyValueDatabase
+import io.scalechain.blockchain.storage.index.TransactingKeyValueDatabase
 import io.scalechain.blockchain.storage.index.TransactionDescriptorIndex
+import io.scalechain.blockchain.storage.index.SpentOutputMigration
 import io.scalechain.blockchain.ChainException
 import io.scalechain.blockchain.ErrorCode
 import io.scalechain.blockchain.proto.*
@@ -10,12 +12,26 @@ import io.scalechain.blockchain.storage.*
 
 import io.scalechain.blockchain.transaction.*
 import org.slf4j.LoggerFactory
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
 
 
 class BlockchainLoader(private val db : KeyValueDatabase, private val chain:Blockchain, private val storage : BlockStorage) {
 
   fun load() : Unit {
     val bestBlockHashOption = storage.getBestBlockHash(db)
+
+    // Migrate the index written by older versions before anything is read from it.
+    SpentOutputMigration.migrate(db, isEmpty = (bestBlockHashOption == null))
+
+    // Load the in-memory block tree from BlockInfos on the block database.
+    val blockInfoIterator = storage.seekBlockInfos(db)
+    try {
+      chain.blockTree.load(blockInfoIterator.asSequence(), bestBlockHashOption)
+    } finally {
+      blockInfoIterator.close()
+    }
+
     if (bestBlockHashOption != null) {
       // Set the best block descriptor.
       chain.theBestBlock  = storage.getBlockInfo(db, bestBlockHashOption)!!
@@ -80,9 +96,15 @@ class BlockchainLoader(private val db : KeyValueDatabase, private val chain:Bloc
 class Blockchain(val db : KeyValueDatabase, private val storage : BlockStorage) : BlockchainView {
   private val logger = LoggerFactory.getLogger(Blockchain::class.java)
 
-  val txMagnet = TransactionMagnet(storage, txPoolIndex = storage, txTimeIndex = storage)
-  val txPool = TransactionPool(storage, txMagnet)
-  val blockMagnet = BlockMagnet(storage, txPool, txMagnet)
+  // Transactions recently found to exist. Used to answer inv messages without probing the database.
+  val recentTransactions = RecentTransactionFilter()
+
+  val txMagnet = TransactionMagnet(storage, txPoolIndex = storage, txTimeIndex = storage, recentTransactions = recentTransactions)
+  val txPool = TransactionPool(storage, txMagnet, recentTransactions)
+  // The in-memory tree of block hashes. Used for block locators, finding fork points, and getting block hashes by height.
+  val blockTree = BlockTree()
+
+  val blockMagnet = BlockMagnet(storage, txPool, txMagnet, blockTree)
 
   val blockOrphanage = BlockOrphanage(storage)
   val txOrphanage = TransactionOrphanage(storage)
@@ -90,7 +112,21 @@ class Blockchain(val db : KeyValueDatabase, private val storage : BlockStorage)
   fun txDescIndex() : TransactionDescriptorIndex = storage
 
   fun<T> withTransaction( block : (KeyValueDatabase) -> T ) : T {
-    val transactingRocksDB = db.transacting()
+    return withTransaction(db, block)
+  }
+
+  /** Run a function in a database transaction on the given database.
+    * If the given database is already transacting, the function runs in the transaction of the caller, which commits or aborts it.
+    *
+    * @param database The database to write.
+    * @param block The function to run with the transacting database.
+    */
+  fun<T> withTransaction( database : KeyValueDatabase, block : (KeyValueDatabase) -> T ) : T {
+    if (database is TransactingKeyValueDatabase) {
+      return block(database)
+    }
+
+    val transactingRocksDB = database.transacting()
 
     transactingRocksDB.beginTransaction()
 
@@ -118,8 +154,18 @@ class Blockchain(val db : KeyValueDatabase, private val storage : BlockStorage)
   /** The descriptor of the best block.
     * This value is updated whenever a new best block is found.
     * We also have to check if we need to do block reorganization whenever this field is updated.
+    *
+    * BlockInfo is immutable, so readers that do not hold the block connect lock see either the previous or the new best block as a whole.
+    */
+  @Volatile var theBestBlock : BlockInfo? = null
+
+  /** Serializes putBlock, which changes the tip of the best blockchain.
+    *
+    * Read-only queries and putTransaction do not take this lock, so they are not blocked while a block is connected.
+    * Conflicts between transactions put into the pool and transactions in the block being connected are detected
+    * by the output locks of TransactionMagnet.
     */
-  var theBestBlock : BlockInfo? = null
+  private val blockConnectLock = ReentrantLock()
 
   /**
     * Put the best block hash into on-disk storage, as well as the in-memory best block info.
@@ -153,7 +199,7 @@ class Blockchain(val db : KeyValueDatabase, private val storage : BlockStorage)
 
     // TODO : BUGBUG : Need to think about RocksDB transactions.
 
-    synchronized(this) {
+    blockConnectLock.withLock {
       if (storage.hasBlock(db, blockHash)) {
         logger.trace("Duplicate block was ignored. Block hash : ${blockHash}")
         return false
@@ -166,6 +212,7 @@ class Blockchain(val db : KeyValueDatabase, private val storage : BlockStorage)
           storage.putBlock(db, block)
 
           val blockInfo = storage.getBlockInfo(db, blockHash)!!
+          blockTree.putBlock(blockHash, blockInfo)
 
           // Attach the block. ChainEventListener is invoked in this method.
           // TODO : BUGBUG : Before attaching a block, we need to test if all transactions in the block can be attached.
@@ -186,14 +233,34 @@ class Blockchain(val db : KeyValueDatabase, private val storage : BlockStorage)
 
           storage.putBlock(db, block)
           val blockInfo = storage.getBlockInfo(db, blockHash)!!
+          blockTree.putBlock(blockHash, blockInfo)
 
           // Case 2.A : The previous block of the block is the current best block.
           if (prevBlockHash == theBestBlock!!.blockHeader.hash() ) {
-            // Step 2.A.1 : Attach the block. ChainEventListener is invoked in this method.
-            blockMagnet.attachBlock(db, blockInfo, block)
-
-            // Step 2.A.2 : Update the best block
-            setBestBlock(db, blockHash, blockInfo )
+            // Hold output locks of the block until its changes are committed, so that putTransaction sees outputs spent by the block.
+            txMagnet.withBlockOutputLocks(block) {
+              // Step 2.A.1 : Attach the block, and put the best block hash in one database transaction, which is written at once.
+              // If any transaction fails to attach, nothing is written, and the block tree is restored to the original best blockchain.
+              val events =
+                try {
+                  withTransaction(db) { transactingDB ->
+                    txMagnet.collectEvents(transactingDB) {
+                      blockMagnet.attachBlock(transactingDB, blockInfo, block)
+                      storage.putBestBlockHash(transactingDB, blockHash)
+                    }
+                  }
+                } catch (t : Throwable) {
+                  logger.warn("Failed to attach a block. Block hash : ${blockHash}, Error : ${t}")
+                  blockTree.setBestBlock(prevBlockHash)
+                  throw t
+                }
+
+              // Step 2.A.2 : Update the in-memory best block after the database transaction was committed.
+              theBestBlock = blockInfo
+
+              // Step 2.A.3 : Invoke ChainEventListener for transactions in the block, on the committed database.
+              events.forEach { it(db) }
+            }
 
             // TODO : Update best block in wallet (so we can detect restored wallets)
             //assert(getBestBlockHash(db) == blockHash)
@@ -204,13 +271,36 @@ class Blockchain(val db : KeyValueDatabase, private val storage : BlockStorage)
             if (blockInfo.chainWork > theBestBlock!!.chainWork) {
               logger.info("Block reorganization started. Original Best : (${theBestBlock!!.blockHeader.hash()},${theBestBlock}), The Best (${blockInfo.blockHeader.hash()},${blockInfo})")
 
-              // Step 3.B.2 : Reorganize the blocks.
-              // transaction handling, orphan block handling is done in this method.
-              blockMagnet.reorganize(db, originalBestBlock = theBestBlock!!, newBestBlock = blockInfo)
+              val originalBestBlock = theBestBlock!!
 
-
-              // Step 3.B.3 : Update the best block
-              setBestBlock(db, blockHash, blockInfo)
+              // Step 3.B.2 : Reorganize the blocks, and put the new best block hash in one database transaction.
+              // transaction handling, orphan block handling is done in this method.
+              // If any block fails to attach, nothing is written, and the block tree is restored to the original best blockchain.
+              // Blocks to detach and attach are read first, so that only output locks of outputs they touch are held until the changes are committed,
+              // as with a block connected on the best block.
+              val reorganization = blockMagnet.prepareReorganization(db, originalBestBlock = originalBestBlock, newBestBlock = blockInfo)
+              txMagnet.withOutputLocks(reorganization.outputLockOutPoints()) {
+                val events = blockTree.withWriteLock {
+                  try {
+                    withTransaction(db) { transactingDB ->
+                      txMagnet.collectEvents(transactingDB) {
+                        blockMagnet.reorganize(transactingDB, reorganization)
+                        storage.putBestBlockHash(transactingDB, blockHash)
+                      }
+                    }
+                  } catch (t : Throwable) {
+                    logger.warn("Block reorganization failed. Restoring the original best blockchain. Original Best : ${originalBestBlock.blockHeader.hash()}, Error : ${t}")
+                    blockTree.setBestBlock(originalBestBlock.blockHeader.hash())
+                    throw t
+                  }
+                }
+
+                // Step 3.B.3 : Update the in-memory best block after the database transaction was committed.
+                theBestBlock = blockInfo
+
+                // Step 3.B.4 : Invoke ChainEventListener for transactions detached and attached, on the committed database.
+                events.forEach { it(db) }
+              }
 
               // TODO : Update best block in wallet (so we can detect restored wallets)
               return true
@@ -267,6 +357,10 @@ class Blockchain(val db : KeyValueDatabase, private val storage : BlockStorage)
     }
   */
   /** Put a transaction we received from peers into the disk-pool.
+    *
+    * This method does not wait for putBlock to finish connecting a block.
+    * A transaction spending an output spent by a transaction in the block being connected fails with TransactionOutputAlreadySpent,
+    * whichever of them marks the output spent first.
     *
     * @param transaction The transaction to put into the disk-pool.
     */
@@ -321,6 +415,7 @@ class Blockchain(val db : KeyValueDatabase, private val storage : BlockStorage)
   }
 
   /** Get the hash of a block specified by the block height on the best blockchain.
+    * The block tree is searched first, and the block database is searched only if the tree does not have the height.
     *
     * Used by : getblockhash RPC.
     *
@@ -328,7 +423,7 @@ class Blockchain(val db : KeyValueDatabase, private val storage : BlockStorage)
     * @return The hash of the block header.
     */
   fun getBlockHash(db : KeyValueDatabase, blockHeight : Long) : Hash {
-    val blockHashOption = storage.getBlockHashByHeight(db, blockHeight)
+    val blockHashOption = blockTree.getBlockHash(blockHeight) ?: storage.getBlockHashByHeight(db, blockHeight)
     // TODO : Bitcoin Compatiblity : Make the error code compatible when the block height was a wrong value.
     if (blockHashOption == null) {
       throw ChainException(ErrorCode.InvalidBlockHeight)
@@ -372,6 +467,24 @@ class Blockchain(val db : KeyValueDatabase, private val storage : BlockStorage)
     return storage.getBlock(db, blockHash)
   }
 
+  /** Get the serialized block without decoding it.
+    *
+    * @param blockHash The hash of the block.
+    * @return The serialized block, or null if the block does not exist.
+    */
+  fun getRawBlock(db : KeyValueDatabase, blockHash : Hash) : ByteArray? {
+    return storage.getRawBlock(db, blockHash)
+  }
+
+  /** Get the serialized transaction either in a block on the best blockchain or in the transaction pool.
+    *
+    * @param transactionHash The hash of the transaction.
+    * @return The serialized transaction, or null if the transaction does not exist.
+    */
+  fun getRawTransaction(db : KeyValueDatabase, transactionHash : Hash) : ByteArray? {
+    return storage.getRawTransaction(db, transactionHash)
+  }
+
 
   /** Get a block header by the header hash.
     *
@@ -421,12 +534,24 @@ class Blockchain(val db : KeyValueDatabase, private val storage : BlockStorage)
   }
 
   /** Check if the transaction exists either in a block on the best blockchain or on the transaction pool.
+    *
+    * Recently found transactions are answered by the in-memory filter.
+    * Otherwise, only keys are probed on the database without reading the transaction.
     *
     * @param txHash The hash of the transaction to check the existence.
     * @return true if we have the transaction; false otherwise.
     */
   fun hasTransaction(db : KeyValueDatabase, txHash : Hash) : Boolean {
-    return storage.getTransactionDescriptor(db, txHash) != null || storage.getTransactionFromPool(db, txHash) != null
+    if (recentTransactions.mightContain(txHash)) {
+      return true
+    }
+
+    val exists = storage.hasTransaction(db, txHash)
+    // Do not add transactions found in a database transaction, which might be aborted.
+    if (exists && db !is TransactingKeyValueDatabase) {
+      recentTransactions.add(txHash)
+    }
+    return exists
   }
 
   /** Return a transaction output specified by a give out point.
@@ -29,14 +29,16 @@ class BlockLocator(private val chain : Blockchain) {
     val env = ChainEnvironment.get()
 
     val listBuf = arrayListOf<Hash>()
-    return chain.withTransaction { transactingDB ->
-      var blockHeight = chain.getBestBlockHeight() // The height of the block we are processing.
+    val blockTree = chain.blockTree
+    // Hashes on the best blockchain are read from the in-memory block tree. The read lock keeps the best blockchain unchanged while reading it.
+    return blockTree.withReadLock {
+      var blockHeight = blockTree.getBestBlockHeight() // The height of the block we are processing.
       var addedHashes = 0 // The number of hashes added to the list.
       var heightSteps = 1 // For each loop, how may heights do we jump?
 //println(s"blockHeight=${blockHeight}")
       while( blockHeight > 0 ) {
         // Step 1 : Add 10 recent block hashes on the best blockchain.
-        listBuf.add( chain.getBlockHash(transactingDB, blockHeight) )
+        listBuf.add( blockTree.getBlockHash(blockHeight)!! )
         addedHashes += 1
 
         // Step 2 : Exponentially move backwards to get a summarizing list of block hashes.
@@ -69,8 +71,10 @@ class BlockLocator(private val chain : Blockchain) {
     val env = ChainEnvironment.get()
     val listBuf = arrayListOf<Hash>()
 
-    // TODO : Optimize : Can we remove the chain.synchronized, as putBlock is atomic? ( May require using a RocksDB snapshot )
-    return chain.withTransaction { transactingDB ->
+    val blockTree = chain.blockTree
+    // The read lock keeps the best blockchain unchanged while the list of hashes is constructed.
+    return blockTree.withReadLock {
+      val bestBlockHeight = blockTree.getBestBlockHeight()
       // Step 1 : Find any matching hash from the list of locator hashes
       // Use hashes.view instead of hashes to stop calling chain.hasBlock when we hit any matching hash on the chain.
       //
@@ -82,23 +86,22 @@ class BlockLocator(private val chain : Blockchain) {
       // res9: Int = 2
 
       val matchedHashOption : Hash? = locatorHashes.hashes.asSequence().filter { hash ->
-        val blockInfoOption = chain.getBlockInfo( transactingDB, hash )
-        // The block info exists, and the block is on the best block chain(nextBlockHash is defined)
-        blockInfoOption?.nextBlockHash != null
+        val node = blockTree.getNode(hash)
+        // The block exists, and the block is on the best block chain with a next block.
+        node != null && blockTree.isOnBestChain(hash) && node.height < bestBlockHeight
       }.firstOrNull()
 
       // Step 2 : Construct a list of hashes from the matching hash until the hashStop matches, or 500 hashes are constructed.
       // If no hash matched, start from the genesis block.
       val startingHash = matchedHashOption ?: env.GenesisBlockHash
 
-      val blockInfo = chain.getBlockInfo(transactingDB, startingHash)!!
+      val startingNode = blockTree.getNode(startingHash)!!
       // The block should be on the best blockchain.
-      assert(blockInfo.nextBlockHash != null)
+      assert(blockTree.isOnBestChain(startingHash))
 
-      val bestBlockHeight = chain.getBestBlockHeight()
-      var blockHeight = blockInfo.height
+      var blockHeight = startingNode.height
       if ( blockHeight > bestBlockHeight) {
-        logger.error("Invalid block height. Block hash : ${startingHash}, info : ${blockInfo}, best height : ${bestBlockHeight}")
+        logger.error("Invalid block height. Block hash : ${startingHash}, node : ${startingNode}, best height : ${bestBlockHeight}")
         assert(false)
       }
 
@@ -107,7 +110,7 @@ class BlockLocator(private val chain : Blockchain) {
 
       do {
         // TODO : BUGBUG : Make sure that getBlockHash returns a block hash even though the blockchain has the header of the block only without any transaction data.
-        lastHash = chain.getBlockHash(transactingDB, blockHeight)
+        lastHash = blockTree.getBlockHash(blockHeight)!!
         listBuf.add( lastHash )
         addedHashes += 1
         blockHeight += 1
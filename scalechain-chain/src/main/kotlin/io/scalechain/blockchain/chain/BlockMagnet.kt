@@ -11,27 +11,60 @@ import io.scalechain.blockchain.storage.BlockStorage
 import io.scalechain.blockchain.transaction.ChainBlock
 import org.slf4j.LoggerFactory
 import io.scalechain.blockchain.script.hash
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
 
 /**
   * Created by kangmo on 6/9/16.
+  *
+  * @param blockTree The in-memory block tree to keep in sync with the block-hash-by-height index. null if no tree is kept.
   */
-class BlockMagnet(private val storage : BlockStorage, private val txPool : TransactionPool, private val txMagnet : TransactionMagnet) {
+class BlockMagnet(private val storage : BlockStorage, private val txPool : TransactionPool, private val txMagnet : TransactionMagnet, private val blockTree : BlockTree? = null) {
   private val logger = LoggerFactory.getLogger(BlockMagnet::class.java)
 
+  /**
+    * A block read while reorganizing blocks, with hashes of its transactions.
+    * Hashes are calculated by the thread which read the block.
+    */
+  class ReorganizedBlock(val blockInfo : BlockInfo, val block : Block) {
+    val txHashes : List<Hash> = block.transactions.map { it.hash() }
+  }
+
+  /**
+    * The blocks to detach and attach in a block reorganization, read before anything is written. See prepareReorganization.
+    *
+    * @param detachedBlocks The blocks to detach. Order : Oldest -> Newest
+    * @param attachedBlocks The blocks to attach. Order : Oldest -> Newest
+    */
+  class Reorganization(val detachedBlocks : List<ReorganizedBlock>, val attachedBlocks : List<ReorganizedBlock>) {
+    /** Get the out-points of outputs the reorganization marks spent or unspent, or puts or deletes.
+      * Hold their output locks until the reorganization is committed. See TransactionMagnet.withOutputLocks.
+      */
+    fun outputLockOutPoints() : List<OutPoint> =
+      (detachedBlocks + attachedBlocks).flatMap { TransactionMagnet.blockOutputLockOutPoints(it.block, it.txHashes) }
+  }
+
   /**
     * Detach a block from the best blockchain.
     *
     * @param blockInfo The BlockInfo of the block to detach.
     * @param block The block to detach.
+    * @param txHashes The hashes of transactions in the block.
+    * @param keptTxHashes The hashes of transactions that remain attached, because blocks to attach have them.
     */
-  protected fun detachBlock(db : KeyValueDatabase, blockInfo: BlockInfo, block : Block) : Unit {
+  protected fun detachBlock(db : KeyValueDatabase, blockInfo: BlockInfo, block : Block, txHashes : List<Hash>, keptTxHashes : Set<Hash>) : Unit {
     // Detach each transaction in reverse order.
-    // TODO : Optimize : Iterate a list in reverse order without reversing it.
-    block.transactions.reversed().forEach { transaction ->
-      txMagnet.detachTransaction(db, transaction)
+    for (i in block.transactions.indices.reversed()) {
+      val transactionHash = txHashes[i]
+      if (!keptTxHashes.contains(transactionHash)) {
+        txMagnet.detachTransaction(db, block.transactions[i], transactionHash)
+      }
     }
 
     storage.delBlockHashByHeight(db, blockInfo.height)
+    blockTree?.disconnect(blockInfo.blockHeader.hash())
 
     val prevBlockHash = blockInfo.blockHeader.hashPrevBlock
     assert(!prevBlockHash.isAllZero()) // The genesis block can't be detached
@@ -40,35 +73,27 @@ class BlockMagnet(private val storage : BlockStorage, private val txPool : Trans
   }
 
   /**
-    * Detach blocks from the best blockchain. Recent blocks are detached first. (Detach order : Newest -> Oldest )
+    * Attach a block to the best blockchain.
     *
-    * @param beforeFirstHeader Blocks after this block are detached from the best blockchain.
-    * @param last The last block in the best blockchain.
+    * @param block The block to attach
     */
+  fun attachBlock(db : KeyValueDatabase, blockInfo: BlockInfo, block : Block) : Unit {
+    // Check if the block is valid.
+    BlockProcessor.get().validateBlock(block)
 
-  tailrec protected fun detachBlocksAfter(db : KeyValueDatabase, beforeFirstHeader : BlockHeader, last : BlockInfo, lastBlock : Block, detachedBlocks : MutableList<Block>) : Unit {
-    if (beforeFirstHeader == last.blockHeader) {
-      // The base case.
-    } else {
-      // Construct the detachedBlocks so that it has detached blocks. Order : from oldest to newest
-      detachedBlocks.add(0, lastBlock)
-      detachBlock(db, last, lastBlock)
-
-      // Get the block before the last one, continue iteration.
-      val (beforeLastInfo, beforeLastBlock) = storage.getBlock(db, last.blockHeader.hashPrevBlock)!!
-      detachBlocksAfter(db, beforeFirstHeader, beforeLastInfo, beforeLastBlock, detachedBlocks)
-    }
+    attachValidatedBlock(db, blockInfo, block, block.transactions.map { it.hash() }, emptySet())
   }
 
   /**
-    * Attach a block to the best blockchain.
+    * Attach a block that was already validated to the best blockchain.
     *
-    * @param block The block to attach
+    * @param blockInfo The BlockInfo of the block to attach.
+    * @param block The block to attach.
+    * @param txHashes The hashes of transactions in the block.
+    * @param reattachedTxHashes The hashes of transactions that were kept attached while detaching blocks.
     */
-  fun attachBlock(db : KeyValueDatabase, blockInfo: BlockInfo, block : Block) : Unit {
+  protected fun attachValidatedBlock(db : KeyValueDatabase, blockInfo: BlockInfo, block : Block, txHashes : List<Hash>, reattachedTxHashes : Set<Hash>) : Unit {
     val blockHash = block.header.hash()
-    // Check if the block is valid.
-    BlockProcessor.get().validateBlock(block)
 
     assert(blockInfo.blockHeader == block.header)
 
@@ -87,24 +112,29 @@ class BlockMagnet(private val storage : BlockStorage, private val txPool : Trans
     }
 */
     val chainBlockOption = ChainBlock(blockInfo.height, block)
-    val blockHeightOption = blockInfo.height
     var transactionIndex = -1
     for ( ( txLocator : TransactionLocator, transaction: Transaction) in (txLocators zip block.transactions)) {
       transactionIndex += 1
 
-      val transactionHash = transaction.hash()
+      val transactionHash = txHashes[transactionIndex]
 
-      txMagnet.attachTransaction(db, transactionHash, transaction, false/*checkOnly*/, txLocator.txLocator, chainBlockOption, transactionIndex )
+      if (reattachedTxHashes.contains(transactionHash)) {
+        // The transaction was kept attached while detaching blocks. It is not in the disk pool either.
+        txMagnet.reattachTransaction(db, transactionHash, transaction, txLocator.txLocator, chainBlockOption, transactionIndex)
+      } else {
+        txMagnet.attachTransaction(db, transactionHash, transaction, false/*checkOnly*/, txLocator.txLocator, chainBlockOption, transactionIndex )
 
-      // Step 5 : Remove the transaction from the disk pool.
-      txPool.removeTransactionFromPool(db, transactionHash)
-      //logger.trace(s"<Attach Block> Removed transaction from pool : ${transactionHash}")
+        // Step 5 : Remove the transaction from the disk pool.
+        txPool.removeTransactionFromPool(db, transactionHash)
+        //logger.trace(s"<Attach Block> Removed transaction from pool : ${transactionHash}")
+      }
     }
 
     // TODO : Check if the generation transaction's output amount is less than or equal to the reward + sum of fees for all transactions in the block.
 
     // Put the index for block hash by height
     storage.putBlockHashByHeight(db, blockInfo.height, blockHash)
+    blockTree?.connect(blockHash)
 
     val prevBlockHash = blockInfo.blockHeader.hashPrevBlock
     if (prevBlockHash.isAllZero()) {
@@ -141,39 +171,135 @@ class BlockMagnet(private val storage : BlockStorage, private val txPool : Trans
   }
 
   /**
-    * Attach blocks to the best blockchain. Oldest blocks are attached first. (Attach order : Oldest -> Newest )
+    * Read a block for the block reorganization.
+    *
+    * @param blockInfo The BlockInfo of the block to read.
+    * @return The block read with hashes of its transactions.
+    */
+  protected fun readBlock(blockInfo : BlockInfo) : ReorganizedBlock {
+    val block = storage.readBlock(blockInfo)!!
+    assert(block.header == blockInfo.blockHeader)
+    return ReorganizedBlock(blockInfo, block)
+  }
+
+  /**
+    * Read and hash blocks concurrently.
+    * Blocks are read with the BlockInfos collected by the caller, so the threads do not touch the database,
+    * which may be a transacting database that only the caller's thread can use.
     *
-    * @param beforeFirstHeader Blocks after this block are attached to the best blockchain.
-    * @param last The last block in the best blockchain.
+    * @param blockInfos The BlockInfos of the blocks to read.
+    * @return The blocks read, in the order of the given BlockInfos.
     */
-  protected fun attachBlocksAfter(db : KeyValueDatabase, beforeFirstHeader : BlockHeader, last : BlockInfo) : Unit {
-    // Blocks NOT in the best blockchain does not have the BlockInfo.nextBlockHash.
-    // We need to track from the last back to beforeFirst, and reverse the list.
-    val blockInfos = arrayListOf<BlockInfo>()
-    collectBlockInfos(db, blockInfos, beforeFirstHeader, last)
-
-    var prevBlockHash = beforeFirstHeader.hash()
-    // The previous block of the first block in the list buffer should be the beforeFirst block.
-    assert(prevBlockHash == blockInfos.first().blockHeader.hashPrevBlock)
-    // The last block info in the list buffer should match the last block info passed to this method.
-    assert(last == blockInfos.last())
-
-    blockInfos.forEach { blockInfo : BlockInfo ->
-      val blockHash = blockInfo.blockHeader.hash()
-      // Get the block
-      val (readBlockInfo, readBlock) = storage.getBlock(db, blockHash)!!
-      assert(readBlockInfo == blockInfo)
-
-      attachBlock( db, readBlockInfo, readBlock )
-
-      prevBlockHash = blockHash
+  protected fun readBlocks(blockInfos : List<BlockInfo>) : List<Future<ReorganizedBlock>> {
+    return blockInfos.map { blockInfo ->
+      ReorganizationThreadPool.submit( Callable<ReorganizedBlock> {
+        readBlock(blockInfo)
+      })
     }
+  }
 
-    // The last block should not have any next block.
-    assert( last.nextBlockHash == null )
+  /**
+    * Get the result of a block read by readBlocks. An exception raised while reading the block is thrown as it is.
+    */
+  protected fun awaitBlock(future : Future<ReorganizedBlock>) : ReorganizedBlock {
+    try {
+      return future.get()
+    } catch (e : ExecutionException) {
+      throw e.cause ?: e
+    }
+  }
+
+  /**
+    * Put transactions in the detached blocks into the transaction pool.
+    * Transactions in the blocks to attach are not put, as they are already attached.
+    *
+    * Note 1 : Some transactions might not be able to put into the transaction pool, because of double spending the UTXO spent by transactions on newly attached blocks.
+    * Note 2 : Some transactions might not be able to put into the transaction pool, because it depends on the above double spending transactions.
+    *          These are skipped without probing the database, because the dropped parent transaction is known.
+    *
+    * @param detachedBlocks The detached blocks. Order : Oldest -> Newest
+    * @param attachedTxHashes The hashes of transactions in the attached blocks.
+    */
+  protected fun addDetachedTransactionsToPool(db : KeyValueDatabase, detachedBlocks : List<ReorganizedBlock>, attachedTxHashes : Set<Hash>) : Unit {
+    // The hashes of detached transactions that are neither attached nor put into the pool.
+    val droppedTxHashes = hashSetOf<Hash>()
+
+    detachedBlocks.forEach { detachedBlock ->
+      detachedBlock.block.transactions.forEachIndexed { transactionIndex, transaction ->
+        val transactionHash = detachedBlock.txHashes[transactionIndex]
+        if (attachedTxHashes.contains(transactionHash)) {
+          // The newly attached block has the same transaction. Do nothing.
+        } else if (transaction.inputs[0].isCoinBaseInput()) {
+          // Coinbase transactions are not put into the transaction pool.
+          droppedTxHashes.add(transactionHash)
+        } else if (transaction.inputs.any{ droppedTxHashes.contains(it.outputTransactionHash) }) {
+          // The transaction depends on a dropped transaction.
+          droppedTxHashes.add(transactionHash)
+        } else {
+          try {
+            txPool.addTransactionToPool(db, transactionHash, transaction)
+          } catch( e : ChainException ) {
+            when(e.code) {
+              ErrorCode.TransactionOutputAlreadySpent -> droppedTxHashes.add(transactionHash) // a double spending transaction
+              ErrorCode.ParentTransactionNotFound -> droppedTxHashes.add(transactionHash) // these transactions may depend on double spending transactions.
+              else -> throw e
+            }
+          }
+        }
+      }
+    }
   }
 
 
+  /**
+    * Find transactions that can remain attached while switching to the new best blockchain.
+    *
+    * A transaction on both sides of the fork remains attached only if each of its inputs spends an output
+    * either on the common blockchain or of another kept transaction that comes before it on the new best blockchain.
+    * Otherwise it is detached and attached again, so that a missing or misordered parent is detected as it is for other transactions.
+    * For example, a transaction whose parent is only on the detached blocks fails with ParentTransactionNotFound.
+    *
+    * @param detachedTxHashes The hashes of transactions in the blocks to detach.
+    * @param attachedTxHashes The hashes of transactions in the blocks to attach.
+    * @param attachedBlocks The blocks to attach. Order : Oldest -> Newest
+    * @return The hashes of transactions to keep attached.
+    */
+  protected fun findKeptTransactions(detachedTxHashes : Set<Hash>, attachedTxHashes : Set<Hash>, attachedBlocks : List<ReorganizedBlock>) : Set<Hash> {
+    val keptTxHashes = hashSetOf<Hash>()
+    // The hashes of transactions in the blocks to attach that were visited. Order : Oldest -> Newest
+    val visitedTxHashes = hashSetOf<Hash>()
+    // Transactions on both sides of the fork spent by a transaction that comes before them on the new best blockchain.
+    val spentBeforeTxHashes = hashSetOf<Hash>()
+
+    attachedBlocks.forEach { attachedBlock ->
+      attachedBlock.block.transactions.forEachIndexed { transactionIndex, transaction ->
+        val transactionHash = attachedBlock.txHashes[transactionIndex]
+
+        var parentsAttached = true
+        if (!transaction.inputs[0].isCoinBaseInput()) {
+          for (input in transaction.inputs) {
+            val parentHash = input.outputTransactionHash
+            if (detachedTxHashes.contains(parentHash) || attachedTxHashes.contains(parentHash)) {
+              // The parent is on a side of the fork. It should be a kept transaction that comes before this one.
+              if (!visitedTxHashes.contains(parentHash)) {
+                spentBeforeTxHashes.add(parentHash)
+              }
+              if (!keptTxHashes.contains(parentHash)) {
+                parentsAttached = false
+              }
+            }
+          }
+        }
+
+        if (parentsAttached && detachedTxHashes.contains(transactionHash) && !spentBeforeTxHashes.contains(transactionHash)) {
+          keptTxHashes.add(transactionHash)
+        }
+        visitedTxHashes.add(transactionHash)
+      }
+    }
+    return keptTxHashes
+  }
+
   /** Reorganize blocks.
     * This method is called when the new best block is not based on the original best block.
     *
@@ -181,55 +307,88 @@ class BlockMagnet(private val storage : BlockStorage, private val txPool : Trans
     * @param newBestBlock The new best block, which has greater chain work than the original best block.
     */
   fun reorganize(db : KeyValueDatabase, originalBestBlock : BlockInfo, newBestBlock : BlockInfo) : Unit {
-    // TODO : BUGBUG : Need to think about RocksDB transactions.
+    reorganize(db, prepareReorganization(db, originalBestBlock, newBestBlock))
+  }
 
+  /** Find the blocks to detach and attach, and read them concurrently. Nothing is written.
+    * The caller can lock outputs the reorganization touches before passing the result to reorganize.
+    *
+    * @param originalBestBlock The original best block before the new best one was found.
+    * @param newBestBlock The new best block, which has greater chain work than the original best block.
+    */
+  fun prepareReorganization(db : KeyValueDatabase, originalBestBlock : BlockInfo, newBestBlock : BlockInfo) : Reorganization {
     assert( originalBestBlock.chainWork < newBestBlock.chainWork)
 
-    val detachedBlocks = arrayListOf<Block>()
-
     // Step 1 : Find the common block(pfork) between the current blockchain(pindexBest) and the new longer blockchain.
-    val commonBlockHeader : BlockHeader = findCommonBlock(db, originalBestBlock, newBestBlock)
+    val commonBlockHeader : BlockHeader = findCommonBlockHeader(db, originalBestBlock, newBestBlock)
 
-    // TODO : Call chainEventListener : onNewBlock, onRemoveBlock
+    // Step 2 : Get BlockInfos of blocks to detach and attach. Order : Oldest -> Newest
+    val blockInfosToDetach = arrayListOf<BlockInfo>()
+    collectBlockInfos(db, blockInfosToDetach, commonBlockHeader, originalBestBlock)
+    val blockInfosToAttach = arrayListOf<BlockInfo>()
+    collectBlockInfos(db, blockInfosToAttach, commonBlockHeader, newBestBlock)
 
-    // Step 2 : Detach blocks after the common block to originalBestBlock, which is the tip of the current best blockchain.
-    // TODO : BUGBUG : First need to get the list of detached blocks first, and then add transactions in the detached blocks into the transaction pool.
-    val (bestBlockInfo, bestBlock ) = storage.getBlock(db, originalBestBlock.blockHeader.hash())!!
-    assert(bestBlockInfo == originalBestBlock)
-    detachBlocksAfter(db, commonBlockHeader, bestBlockInfo, bestBlock, detachedBlocks)
-
-
-    // Step 3 : Attach blocks after the common block to the newBestBlock.
-    attachBlocksAfter(db, commonBlockHeader, newBestBlock)
-
-    // Step 4 : Move the transaction from the detached blocks into the transaction pool.
-    // Note 1 : Some transactions might not be able to put into the transaction pool, because of double spending the UTXO spent by transactions on newly attached blocks.
-    // Note 2 : Some transactions might not be able to put into the transaction pool, because it depends on the above double spending transactions.
-    // TODO : Do we really need to reset the transaction record locator? How do we recover it when we attach the transaction again?
-    detachedBlocks.forEach { block : Block ->
-      block.transactions.forEach { transaction : Transaction ->
-        val transactionHash = transaction.hash()
-        if (transaction.inputs[0].isCoinBaseInput()) {
-          // Do nothing
-        } else {
-          try {
-            if (storage.hasTransaction(db, transactionHash)) {
-              // The transaction already exists.
-              // This can happen, as the newly attached block might have the same transaction. Do nothing.
-            } else {
-              txPool.addTransactionToPool(db, transactionHash, transaction)
-            }
-          } catch( e : ChainException ) {
-            when(e.code) {
-              ErrorCode.TransactionOutputAlreadySpent -> {}// do nothing. a double spending transaction
-              ErrorCode.ParentTransactionNotFound -> {} // do nothing. these transactions may depend on double spending transactions.
-              else -> throw e
-            }
-          }
-        }
+    // The last block should not have any next block.
+    assert( newBestBlock.nextBlockHash == null )
+
+    // Step 3 : Read all blocks concurrently.
+    val detachedBlockFutures = readBlocks(blockInfosToDetach)
+    val attachedBlockFutures = readBlocks(blockInfosToAttach)
+    return Reorganization(detachedBlockFutures.map { awaitBlock(it) }, attachedBlockFutures.map { awaitBlock(it) })
+  }
+
+  /** Reorganize blocks prepared by prepareReorganization.
+    *
+    * @param reorganization The blocks to detach and attach.
+    */
+  fun reorganize(db : KeyValueDatabase, reorganization : Reorganization) : Unit {
+    // Readers of the block tree should not see the best blockchain in the middle of the reorganization.
+    if (blockTree != null) {
+      blockTree.withWriteLock {
+        reorganizeInternal(db, reorganization)
       }
+    } else {
+      reorganizeInternal(db, reorganization)
+    }
+  }
+
+  /** Reorganize blocks.
+    *
+    * (1) All blocks to detach and attach were read and hashed concurrently by prepareReorganization.
+    * (2) Transactions found on both sides of the fork whose parents are still attached on the new best blockchain remain attached.
+    *     Their inputs and spent outputs are not touched, and only the transaction descriptor is moved to the attached block.
+    *     See findKeptTransactions.
+    * (3) Other transactions are detached and attached one block at a time. Each block to attach is validated as attachBlock does.
+    *     The caller should pass a transacting database, so that nothing is written if any block fails to attach.
+    * (4) Transactions only in detached blocks are put into the transaction pool.
+    */
+  private fun reorganizeInternal(db : KeyValueDatabase, reorganization : Reorganization) : Unit {
+    // TODO : Call chainEventListener : onNewBlock, onRemoveBlock
+
+    val detachedBlocks = reorganization.detachedBlocks
+    val attachedBlocks = reorganization.attachedBlocks
+
+    // Step 4 : Find transactions on both sides of the fork.
+    val detachedTxHashes = hashSetOf<Hash>()
+    detachedBlocks.forEach { detachedTxHashes.addAll(it.txHashes) }
+    val attachedTxHashes = hashSetOf<Hash>()
+    attachedBlocks.forEach { attachedTxHashes.addAll(it.txHashes) }
+    val keptTxHashes = findKeptTransactions(detachedTxHashes, attachedTxHashes, attachedBlocks)
+
+    // Step 5 : Detach blocks after the common block to originalBestBlock. (Detach order : Newest -> Oldest )
+    detachedBlocks.reversed().forEach { detachedBlock ->
+      detachBlock(db, detachedBlock.blockInfo, detachedBlock.block, detachedBlock.txHashes, keptTxHashes)
     }
 
+    // Step 6 : Attach blocks after the common block to the newBestBlock. (Attach order : Oldest -> Newest )
+    attachedBlocks.forEach { attachedBlock ->
+      BlockProcessor.get().validateBlock(attachedBlock.block)
+      attachValidatedBlock(db, attachedBlock.blockInfo, attachedBlock.block, attachedBlock.txHashes, keptTxHashes)
+    }
+
+    // Step 7 : Move the transaction from the detached blocks into the transaction pool.
+    addDetachedTransactionsToPool(db, detachedBlocks, attachedTxHashes)
+
     /*
 
 
@@ -312,6 +471,20 @@ class BlockMagnet(private val storage : BlockStorage, private val txPool : Trans
 */
   }
 
+  /** Get the header of the common ancestor of the two given blocks.
+    * Walks back parent pointers on the block tree if it is kept, reading only the BlockInfo of the common block.
+    *
+    * @param block1 The first given block.
+    * @param block2 The second given block.
+    */
+  protected fun findCommonBlockHeader(db : KeyValueDatabase, block1 : BlockInfo, block2 : BlockInfo) : BlockHeader {
+    val commonBlockHash = blockTree?.findCommonBlock(block1.blockHeader.hash(), block2.blockHeader.hash())
+    if (commonBlockHash != null) {
+      return storage.getBlockInfo(db, commonBlockHash)!!.blockHeader
+    }
+    return findCommonBlock(db, block1, block2)
+  }
+
   /** Get the descriptor of the common ancestor of the two given blocks.
     * Because all blocks are on top of the genesis block, this method should at least return the BlockInfo for the genesis block.
     *
@@ -344,4 +517,13 @@ class BlockMagnet(private val storage : BlockStorage, private val txPool : Trans
       }
     }
   }
+
+  companion object {
+    // Threads reading blocks while reorganizing blocks. Daemon threads do not block the JVM from exiting.
+    val ReorganizationThreadPool = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() ) { runnable ->
+      val thread = Thread(runnable, "block-reorganization")
+      thread.isDaemon = true
+      thread
+    }
+  }
 }
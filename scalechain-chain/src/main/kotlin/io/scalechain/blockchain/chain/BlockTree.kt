@@ -0,0 +1,261 @@
+package io.scalechain.blockchain.chain
+
+import io.scalechain.blockchain.proto.BlockInfo
+import io.scalechain.blockchain.proto.Hash
+import io.scalechain.blockchain.proto.codec.BlockHeaderCodec
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import kotlin.concurrent.read
+import kotlin.concurrent.write
+
+/**
+  * A node of the in-memory block tree.
+  *
+  * @param hash The hash of the block header.
+  * @param height The height of the block.
+  * @param chainWork The total chain work from the genesis block to this block.
+  * @param parent The node of the previous block. null for the genesis block.
+  * @param serializedHeader The 80 byte serialized block header. Kept to serve headers messages without encoding headers.
+  */
+class BlockTreeNode(val hash : Hash, val height : Long, val chainWork : Long, val parent : BlockTreeNode?, val serializedHeader : ByteArray) {
+  override fun toString() : String = "BlockTreeNode(hash=$hash, height=$height, chainWork=$chainWork)"
+}
+
+/**
+  * The in-memory tree of all blocks that have BlockInfo on the block database.
+  *
+  * Each node has a pointer to the node of the previous block, so walking back the blockchain does not need to read BlockInfo from the database.
+  * The best blockchain is kept in an array indexed by the block height.
+  *
+  * The block database remains the source of truth. The tree is loaded from it at startup, and
+  * updated at the same time the database is updated :
+  * (1) putBlock adds a node after the BlockInfo is put.
+  * (2) connect/disconnect update the best blockchain whenever the block-hash-by-height index is updated by BlockMagnet.
+  */
+class BlockTree {
+  private val lock = ReentrantReadWriteLock()
+
+  // block hash -> node
+  private val nodes = hashMapOf<Hash, BlockTreeNode>()
+
+  // The best blockchain. The index is the block height.
+  private val bestChain = arrayListOf<BlockTreeNode>()
+
+  /** Run a function while holding the read lock, so that the tree is not updated while the function runs.
+    */
+  fun<T> withReadLock(block : () -> T) : T {
+    return lock.read(block)
+  }
+
+  /** Run a function while holding the write lock, so that readers do not see the tree in the middle of updates made by the function.
+    * The write lock is reentrant, so the function may call connect and disconnect.
+    */
+  fun<T> withWriteLock(block : () -> T) : T {
+    return lock.write(block)
+  }
+
+  /** Load the tree from BlockInfos on the block database.
+    *
+    * @param blockInfos The sequence of (block hash, block info) pairs in any order.
+    * @param bestBlockHash The hash of the best block, or null if no block was put yet.
+    */
+  fun load(blockInfos : Sequence<Pair<Hash, BlockInfo>>, bestBlockHash : Hash?) : Unit {
+    lock.write {
+      nodes.clear()
+      bestChain.clear()
+
+      // Parents might come after their children, so keep all block infos first.
+      val infoByHash = hashMapOf<Hash, BlockInfo>()
+      blockInfos.forEach { (hash, blockInfo) ->
+        infoByHash.put(hash, blockInfo)
+      }
+
+      // Sort by height so that a parent node is always created before its children.
+      infoByHash.entries.sortedBy { it.value.height }.forEach { entry ->
+        putNode(entry.key, entry.value)
+      }
+
+      if (bestBlockHash != null) {
+        setBestChain(nodes[bestBlockHash]!!)
+      }
+    }
+  }
+
+  /** Add the node for a block whose BlockInfo was put on the block database.
+    *
+    * @param blockHash The hash of the block.
+    * @param blockInfo The block info of the block.
+    */
+  fun putBlock(blockHash : Hash, blockInfo : BlockInfo) : Unit {
+    lock.write {
+      putNode(blockHash, blockInfo)
+    }
+  }
+
+  private fun putNode(blockHash : Hash, blockInfo : BlockInfo) : BlockTreeNode {
+    val existingNode = nodes[blockHash]
+    if (existingNode != null) {
+      return existingNode
+    }
+
+    val prevBlockHash = blockInfo.blockHeader.hashPrevBlock
+    val parent =
+      if (prevBlockHash.isAllZero()) {
+        null
+      } else {
+        val parentNode = nodes[prevBlockHash]
+        // Blocks are put only if the previous block exists.
+        assert(parentNode != null)
+        parentNode
+      }
+
+    val node = BlockTreeNode(blockHash, blockInfo.height, blockInfo.chainWork, parent, BlockHeaderCodec.encode(blockInfo.blockHeader))
+    nodes.put(blockHash, node)
+    return node
+  }
+
+  /** Connect a block on the tip of the best blockchain.
+    *
+    * @param blockHash The hash of the block. The block should have been put by putBlock.
+    */
+  fun connect(blockHash : Hash) : Unit {
+    lock.write {
+      val node = nodes[blockHash]!!
+      assert(node.height == bestChain.size.toLong())
+      assert(node.parent == bestChain.lastOrNull())
+      bestChain.add(node)
+    }
+  }
+
+  /** Disconnect the block on the tip of the best blockchain.
+    *
+    * @param blockHash The hash of the block, which should be the tip of the best blockchain.
+    */
+  fun disconnect(blockHash : Hash) : Unit {
+    lock.write {
+      assert(bestChain.isNotEmpty())
+      assert(bestChain.last().hash == blockHash)
+      bestChain.removeAt(bestChain.size - 1)
+    }
+  }
+
+  /** Set the best blockchain to the chain ending with a block.
+    * Used to restore the best blockchain after the database transaction that connected and disconnected blocks was aborted.
+    *
+    * @param blockHash The hash of the tip block. The block should have been put by putBlock.
+    */
+  fun setBestBlock(blockHash : Hash) : Unit {
+    lock.write {
+      setBestChain(nodes[blockHash]!!)
+    }
+  }
+
+  /** Set the best blockchain to the chain ending with the given node.
+    * Only the part of the best blockchain after the fork point is replaced.
+    */
+  private fun setBestChain(tip : BlockTreeNode) : Unit {
+    var node : BlockTreeNode? = tip
+    val newNodes = arrayListOf<BlockTreeNode>()
+    while (node != null && !isOnBestChain(node)) {
+      newNodes.add(node)
+      node = node.parent
+    }
+    val forkHeight = if (node == null) -1 else node.height.toInt()
+
+    while (bestChain.size > forkHeight + 1) {
+      bestChain.removeAt(bestChain.size - 1)
+    }
+    newNodes.reversed().forEach { bestChain.add(it) }
+  }
+
+  private fun isOnBestChain(node : BlockTreeNode) : Boolean {
+    val height = node.height
+    return height < bestChain.size && bestChain[height.toInt()] === node
+  }
+
+  /** Get the node of a block.
+    *
+    * @param blockHash The hash of the block.
+    * @return The node, or null if the block does not exist.
+    */
+  fun getNode(blockHash : Hash) : BlockTreeNode? {
+    return lock.read { nodes[blockHash] }
+  }
+
+  /** Check if a block is on the best blockchain.
+    *
+    * @param blockHash The hash of the block.
+    * @return true if the block is on the best blockchain; false otherwise.
+    */
+  fun isOnBestChain(blockHash : Hash) : Boolean {
+    return lock.read {
+      val node = nodes[blockHash]
+      node != null && isOnBestChain(node)
+    }
+  }
+
+  /** Get the hash of the block at the given height on the best blockchain.
+    *
+    * @param height The height of the block.
+    * @return The hash of the block, or null if the best blockchain does not have the height.
+    */
+  fun getBlockHash(height : Long) : Hash? {
+    return lock.read {
+      if (height < 0 || height >= bestChain.size) null else bestChain[height.toInt()].hash
+    }
+  }
+
+  /** Get serialized headers of blocks on the best blockchain, starting from the given height.
+    *
+    * @param startHeight The height of the first block.
+    * @param maxCount The maximum number of headers to get.
+    * @param hashStop Stop after the header of the block with this hash.
+    * @return The 80 byte serialized headers in the order of the height.
+    */
+  fun getSerializedHeaders(startHeight : Long, maxCount : Int, hashStop : Hash) : List<ByteArray> {
+    return lock.read {
+      val headers = arrayListOf<ByteArray>()
+      var height = startHeight
+      while (height >= 0 && height < bestChain.size && headers.size < maxCount) {
+        val node = bestChain[height.toInt()]
+        headers.add(node.serializedHeader)
+        if (node.hash == hashStop) {
+          break
+        }
+        height += 1
+      }
+      headers
+    }
+  }
+
+  /** Get the height of the best block.
+    *
+    * @return The height of the best block, or -1 if the best blockchain is empty.
+    */
+  fun getBestBlockHeight() : Long {
+    return lock.read { (bestChain.size - 1).toLong() }
+  }
+
+  /** Find the common ancestor of two blocks by walking back parent pointers.
+    *
+    * @param blockHash1 The hash of the first block.
+    * @param blockHash2 The hash of the second block.
+    * @return The hash of the common ancestor, or null if any of the blocks is not on the tree.
+    */
+  fun findCommonBlock(blockHash1 : Hash, blockHash2 : Hash) : Hash? {
+    return lock.read {
+      var node1 = nodes[blockHash1]
+      var node2 = nodes[blockHash2]
+      while (node1 != null && node2 != null && node1 !== node2) {
+        if (node1.height < node2.height) {
+          node2 = node2.parent
+        } else if (node1.height > node2.height) {
+          node1 = node1.parent
+        } else {
+          node1 = node1.parent
+          node2 = node2.parent
+        }
+      }
+      if (node1 == null || node2 == null) null else node1.hash
+    }
+  }
+}
@@ -0,0 +1,146 @@
+package io.scalechain.blockchain.chain
+
+import io.scalechain.blockchain.proto.Hash
+import java.util.*
+
+/**
+  * A rolling bloom filter of hashes of transactions that were recently found to exist.
+  *
+  * Peers announce the same transaction many times with inv messages.
+  * Once a transaction was found on disk, the following announcements are answered from the filter instead of probing the database.
+  *
+  * The filter keeps two generations of bloom filters. When the current generation has GenerationCapacity hashes,
+  * the previous generation is dropped and the current one becomes the previous one.
+  *
+  * A bloom filter can not remove a hash. When a transaction is detached by a block reorganization or removed from the transaction pool,
+  * the hash is kept in a removed set which is checked before the bloom filters. The removed set is cleared
+  * when both generations that might have the hash are dropped.
+  *
+  * Hashes of transactions are already uniformly distributed, so bit positions are taken from the hash value instead of hashing it again.
+  *
+  * A false positive means that an announced transaction is not downloaded. The false positive rate is set to 1e-6.
+  */
+class RecentTransactionFilter(private val generationCapacity : Int = GenerationCapacity) {
+  private val bitCount = bitCount(generationCapacity)
+
+  private var currentGeneration = BitSet(bitCount)
+  private var previousGeneration = BitSet(bitCount)
+  private var currentCount = 0
+
+  // The generation number of the current generation. Increases whenever generations are rolled.
+  private var generationNumber = 0L
+
+  // The removed transaction hash -> the generation number when it was removed.
+  private val removedHashes = HashMap<Hash, Long>()
+
+  /** Check if a transaction was recently found.
+    *
+    * @param txHash The hash of the transaction.
+    * @return true if the transaction might exist; false if it was not found recently.
+    */
+  @Synchronized
+  fun mightContain(txHash : Hash) : Boolean {
+    if (removedHashes.containsKey(txHash)) {
+      return false
+    }
+    val array = txHash.value.array
+    return contains(currentGeneration, array) || contains(previousGeneration, array)
+  }
+
+  /** Add a transaction that was found on the database.
+    *
+    * @param txHash The hash of the transaction.
+    */
+  @Synchronized
+  fun add(txHash : Hash) : Unit {
+    // Do not add a removed transaction.
+    // A transaction which was read before it is removed might be added after it is removed.
+    if (removedHashes.containsKey(txHash)) {
+      return
+    }
+
+    if (currentCount >= generationCapacity) {
+      roll()
+    }
+
+    val array = txHash.value.array
+    val h1 = hash1(array)
+    val h2 = hash2(array)
+    for (i in 0 until HashFunctionCount) {
+      currentGeneration.set(bitIndex(h1, h2, i))
+    }
+    currentCount += 1
+  }
+
+  /** Mark a transaction removed.
+    * Called when a transaction is detached from the best blockchain or removed from the transaction pool.
+    *
+    * @param txHash The hash of the transaction.
+    */
+  @Synchronized
+  fun remove(txHash : Hash) : Unit {
+    // Roll generations to keep the removed set bounded even when few transactions are added.
+    if (removedHashes.size >= generationCapacity) {
+      roll()
+    }
+    removedHashes.put(txHash, generationNumber)
+  }
+
+  private fun roll() : Unit {
+    previousGeneration = currentGeneration
+    currentGeneration = BitSet(bitCount)
+    currentCount = 0
+    generationNumber += 1
+
+    // A hash removed in generation N might have been added in generation N or N-1.
+    // Both are dropped when the generation number reaches N+2.
+    val iterator = removedHashes.entries.iterator()
+    while (iterator.hasNext()) {
+      if (iterator.next().value + 2 <= generationNumber) {
+        iterator.remove()
+      }
+    }
+  }
+
+  private fun contains(generation : BitSet, array : ByteArray) : Boolean {
+    val h1 = hash1(array)
+    val h2 = hash2(array)
+    for (i in 0 until HashFunctionCount) {
+      if (!generation.get(bitIndex(h1, h2, i))) {
+        return false
+      }
+    }
+    return true
+  }
+
+  // Double hashing : bit index i = h1 + i * h2
+  private fun bitIndex(h1 : Long, h2 : Long, i : Int) : Int {
+    val combined = h1 + i * h2
+    return ((combined and Long.MAX_VALUE) % bitCount).toInt()
+  }
+
+  private fun hash1(array : ByteArray) : Long =
+    if (array.size >= 16) readLong(array, 0) else Arrays.hashCode(array).toLong()
+
+  private fun hash2(array : ByteArray) : Long =
+    (if (array.size >= 16) readLong(array, 8) else hash1(array) * 31) or 1L
+
+  private fun readLong(array : ByteArray, offset : Int) : Long {
+    var value = 0L
+    for (i in 0 until 8) {
+      value = (value shl 8) or (array[offset + i].toLong() and 0xFF)
+    }
+    return value
+  }
+
+  companion object {
+    // The number of transaction hashes kept in a generation.
+    val GenerationCapacity = 100000
+
+    // The number of bits to set for each hash. Optimal for the false positive rate 1e-6.
+    val HashFunctionCount = 20
+
+    // m = -n * ln(p) / (ln 2)^2 with p = 1e-6
+    fun bitCount(capacity : Int) : Int = Math.ceil( capacity * 28.76 ).toInt()
+  }
+}
@@ -1,9 +1,12 @@
 package io.scalechain.blockchain.chain
 
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.locks.Lock
 
 import com.google.common.util.concurrent.Striped
+import io.scalechain.blockchain.storage.Storage
 import io.scalechain.blockchain.storage.index.KeyValueDatabase
+import io.scalechain.blockchain.storage.index.SpentOutputIndex
 import io.scalechain.blockchain.storage.index.TransactionDescriptorIndex
 import io.scalechain.blockchain.transaction.ChainBlock
 import io.scalechain.blockchain.ErrorCode
@@ -13,7 +16,6 @@ import io.scalechain.blockchain.storage.index.TransactionTimeIndex
 import io.scalechain.blockchain.storage.index.TransactionPoolIndex
 import io.scalechain.blockchain.script.hash
 import io.scalechain.util.HexUtil
-import io.scalechain.util.ListExt
 import org.slf4j.LoggerFactory
 
 
@@ -24,8 +26,9 @@ import org.slf4j.LoggerFactory
   * @param txPoolIndex The storage for transaction pool. If not given, set to storage.
   *                      During mining, txPoolStorage is a separate transaction pool for testing dependency of each transaction.
   *                      Otherwise, txPoolStorage is the 'storage' parameter.
+  * @param recentTransactions The filter of recently found transactions. Detached transactions are removed from it.
   */
-class TransactionMagnet(private val txDescIndex : TransactionDescriptorIndex, private val txPoolIndex: TransactionPoolIndex, private val txTimeIndex : TransactionTimeIndex) {
+class TransactionMagnet(private val txDescIndex : TransactionDescriptorIndex, private val txPoolIndex: TransactionPoolIndex, private val txTimeIndex : TransactionTimeIndex, private val recentTransactions : RecentTransactionFilter? = null) {
   private val logger = LoggerFactory.getLogger(TransactionMagnet::class.java)
 
   protected var chainEventListener : ChainEventListener? = null
@@ -38,50 +41,75 @@ class TransactionMagnet(private val txDescIndex : TransactionDescriptorIndex, pr
     chainEventListener = listener
   }
 
-  /**
-    * Get the list of in-points that are spending the outputs of a transaction
+  // Events of transactions attached or detached on a transacting database, kept until the database transaction is committed.
+  private val deferredEvents = ConcurrentHashMap<KeyValueDatabase, MutableList<(KeyValueDatabase) -> Unit>>()
+
+  /** Run a function on a transacting database, keeping events for the chain event listener instead of delivering them.
     *
-    * @param txHash The hash of the transaction.
-    * @return The list of in-points that are spending the outputs of the transaction
+    * The listener writes its own records. Written on the transacting database, they would be lost if the transaction is aborted,
+    * and would overwrite records other threads changed on the database before the transaction is committed.
+    * So the caller delivers the returned events with the committed database after committing the transaction.
+    *
+    * @param transactingDB The transacting database the function attaches or detaches transactions on.
+    * @param block The function to run.
+    * @return The events in the order they happened. Each of them calls the listener with the given database.
     */
-  protected fun getOutputsSpentBy(db : KeyValueDatabase, txHash : Hash) : List<InPoint?>? {
-    //println("desc (${txHash})${txDescIndex.getTransactionDescriptor(db, txHash)}")
-    //println("pool (${txHash})${txPoolIndex.getTransactionFromPool(db, txHash)}")
+  fun collectEvents(transactingDB : KeyValueDatabase, block : () -> Unit) : List<(KeyValueDatabase) -> Unit> {
+    val events = arrayListOf<(KeyValueDatabase) -> Unit>()
+    deferredEvents.put(transactingDB, events)
+    try {
+      block()
+    } finally {
+      deferredEvents.remove(transactingDB)
+    }
+    return events
+  }
 
-    return txDescIndex.getTransactionDescriptor(db, txHash)?.outputsSpentBy ?:
-              txPoolIndex.getTransactionFromPool(db, txHash)?.outputsSpentBy
+  /** Call the chain event listener, or keep the call if events on the database are being collected.
+    */
+  protected fun notifyListener(db : KeyValueDatabase, event : (ChainEventListener, KeyValueDatabase) -> Unit) : Unit {
+    val listener = chainEventListener
+    if (listener != null) {
+      val events = deferredEvents.get(db)
+      if (events == null) {
+        event(listener, db)
+      } else {
+        events.add { committedDB -> event(listener, committedDB) }
+      }
+    }
   }
 
   /**
-    * Put the list of in-points that are spending the outputs of a transaction
+    * Get the index keeping spent outputs of a transaction.
+    *
+    * If the transaction is stored in a block on the best blockchain, the index for transaction descriptors is returned.
+    * Otherwise, if the transaction is in the transaction pool, the index for the transaction pool is returned.
+    *
+    * Note that a transaction can be both in a block and in the pool,
+    * because the same transaction can be attached at the same time while (1) attaching a block by putBlock (2) attaching a transaction by putTransaction
     *
     * @param txHash The hash of the transaction.
-    * @param outputsSpentBy The list of in-points that are spending the outputs of the transaction
+    * @param foldDeltas If true, put the bitmap again with the deltas merged into it applied, if there are many of them
+    *                   and output locks of all outputs of the transaction can be taken. See tryLockAllOutputs.
+    *                   Pass true only within withOutputLocks. See SpentOutputIndex.getSpentOutputs.
+    * @return The pair of the index and the bitmap of spent outputs of the transaction, or null if the transaction does not exist.
     */
-  protected fun putOutputsSpentBy(db : KeyValueDatabase, txHash : Hash, outputsSpentBy : List<InPoint?>) {
-    val txDescOption = txDescIndex.getTransactionDescriptor(db, txHash)
-    val txPoolEntryOption = txPoolIndex.getTransactionFromPool(db, txHash)
-    if ( txDescOption != null ) {
-      txDescIndex.putTransactionDescriptor(
-        db,
-        txHash,
-        txDescOption.copy(
-          outputsSpentBy = outputsSpentBy
-        )
-      )
-      // Note that txPoolEntryOption can be defined,
-      // because the same transaction can be attached at the same time while (1) attaching a block by putBlock (2) attaching a transaction by putTransaction
-    } else {
-      if (txPoolEntryOption == null) throw AssertionError()
-
-      txPoolIndex.putTransactionToPool(
-        db,
-        txHash,
-        txPoolEntryOption.copy(
-          outputsSpentBy = outputsSpentBy
-        )
-      )
+  protected fun getSpentOutputs(db : KeyValueDatabase, txHash : Hash, foldDeltas : Boolean = false) : Pair<SpentOutputIndex, SpentOutputBitmap>? {
+    val foldWriterOf = { spentOutputs : SpentOutputBitmap ->
+      if (foldDeltas && tryLockAllOutputs(txHash, spentOutputs.outputCount)) db else null
     }
+    val txDescSpentOutputIndex = txDescIndex.getTxDescSpentOutputIndex()
+    val txDescSpentOutputs = txDescSpentOutputIndex.getSpentOutputs(db, txHash, foldWriterOf)
+    if (txDescSpentOutputs != null) {
+      return Pair(txDescSpentOutputIndex, txDescSpentOutputs)
+    }
+
+    val txPoolSpentOutputIndex = txPoolIndex.getTxPoolSpentOutputIndex()
+    val txPoolSpentOutputs = txPoolSpentOutputIndex.getSpentOutputs(db, txHash, foldWriterOf)
+    if (txPoolSpentOutputs != null) {
+      return Pair(txPoolSpentOutputIndex, txPoolSpentOutputs)
+    }
+    return null
   }
 
   /**
@@ -92,16 +120,17 @@ class TransactionMagnet(private val txDescIndex : TransactionDescriptorIndex, pr
     * @param checkOnly If true, do not update the spending in-point, just check if the output is a valid UTXO.
     */
   protected fun markOutputSpent(db : KeyValueDatabase, outPoint : OutPoint, inPoint : InPoint, checkOnly : Boolean): Unit {
-    val outputsSpentBy : List<InPoint?>? = getOutputsSpentBy(db, outPoint.transactionHash)
-    if (outputsSpentBy == null) {
+    // The output lock of the out-point is held by attachTransactionInputs.
+    val spentOutputsOption = getSpentOutputs(db, outPoint.transactionHash, foldDeltas = !checkOnly)
+    if (spentOutputsOption == null) {
       val message = "An output pointed by an out-point(${outPoint}) spent by the in-point(${inPoint}) points to a transaction that does not exist yet."
       if (!checkOnly)
         logger.warn(message)
       throw ChainException(ErrorCode.ParentTransactionNotFound, message)
     }
+    val (spentOutputIndex, spentOutputs) = spentOutputsOption
 
-    // TODO : BUGBUG : indexing into a list is slow. Optimize the code.
-    if ( outPoint.outputIndex < 0 || outputsSpentBy.size <= outPoint.outputIndex ) {
+    if ( outPoint.outputIndex < 0 || spentOutputs.outputCount <= outPoint.outputIndex ) {
       // TODO : Add DoS score. The outpoint in a transaction input was invalid.
       val message = "An output pointed by an out-point(${outPoint}) spent by the in-point(${inPoint}) has invalid transaction output index."
       if (!checkOnly)
@@ -109,14 +138,14 @@ class TransactionMagnet(private val txDescIndex : TransactionDescriptorIndex, pr
       throw ChainException(ErrorCode.InvalidTransactionOutPoint, message)
     }
 
-    val spendingInPointOption = outputsSpentBy[outPoint.outputIndex]
-    if( spendingInPointOption != null ) { // The transaction output was already spent.
-      if ( spendingInPointOption == inPoint ) {
+    if( spentOutputs.isSpent(outPoint.outputIndex) ) { // The transaction output was already spent.
+      val spendingInPoint = spentOutputIndex.getOutputSpentBy(db, outPoint)
+      if ( spendingInPoint == inPoint ) {
         // Already marked as spent by the given in-point.
         // This can happen when a transaction is already attached while it was put into the transaction pool,
         // But tried to attach again while accepting a block that has the (already attached) transaction.
       } else {
-        val message = "An output pointed by an out-point(${outPoint}) has already been spent by ${spendingInPointOption}. The in-point(${inPoint}) tried to spend it again."
+        val message = "An output pointed by an out-point(${outPoint}) has already been spent by ${spendingInPoint}. The in-point(${inPoint}) tried to spend it again."
         if (!checkOnly)
           logger.warn(message);
         throw ChainException(ErrorCode.TransactionOutputAlreadySpent, message)
@@ -125,13 +154,7 @@ class TransactionMagnet(private val txDescIndex : TransactionDescriptorIndex, pr
       if (checkOnly) {
         // Do not update, just check if the output can be marked as spent.
       } else {
-        putOutputsSpentBy(
-          db,
-          outPoint.transactionHash,
-          outputsSpentBy.mapIndexed { i, originalInPoint ->
-            if (i == outPoint.outputIndex) inPoint else originalInPoint
-          }
-        )
+        spentOutputIndex.markOutputSpent(db, outPoint, inPoint)
       }
     }
   }
@@ -143,37 +166,36 @@ class TransactionMagnet(private val txDescIndex : TransactionDescriptorIndex, pr
     * @param inPoint The in-point that points to a transaction input that should have spent the output.
     */
   protected fun markOutputUnspent(db : KeyValueDatabase, outPoint : OutPoint, inPoint : InPoint) : Unit {
-    val outputsSpentBy : List<InPoint?>? = getOutputsSpentBy(db, outPoint.transactionHash)
-    if (outputsSpentBy == null) {
+    // The output lock of the out-point is held by detachTransactionInputs.
+    val spentOutputsOption = getSpentOutputs(db, outPoint.transactionHash, foldDeltas = true)
+    if (spentOutputsOption == null) {
       val message = "An output pointed by an out-point(${outPoint}) spent by the in-point(${inPoint}) points to a transaction that does not exist."
       logger.warn(message)
       throw ChainException(ErrorCode.ParentTransactionNotFound, message)
     }
+    val (spentOutputIndex, spentOutputs) = spentOutputsOption
 
-    // TODO : BUGBUG : indexing into a list is slow. Optimize the code.
-    if ( outPoint.outputIndex < 0 || outputsSpentBy.size <= outPoint.outputIndex ) {
+    if ( outPoint.outputIndex < 0 || spentOutputs.outputCount <= outPoint.outputIndex ) {
       // TODO : Add DoS score. The outpoint in a transaction input was invalid.
       val message = "An output pointed by an out-point(${outPoint}) has invalid transaction output index. The output should have been spent by ${inPoint}"
       logger.warn(message)
       throw ChainException(ErrorCode.InvalidTransactionOutPoint, message)
     }
 
-    val spendingInPointOption = outputsSpentBy[outPoint.outputIndex]
     // The output pointed by the out-point should have been spent by the transaction input poined by the given in-point.
-
-    if( spendingInPointOption!! != inPoint ) { // The transaction output was NOT spent by the transaction input poined by the given in-point.
-    val message = "An output pointed by an out-point(${outPoint}) was not spent by the expected transaction input pointed by the in-point(${inPoint}), but spent by ${spendingInPointOption}."
+    val spendingInPoint =
+      if (spentOutputs.isSpent(outPoint.outputIndex))
+        spentOutputIndex.getOutputSpentBy(db, outPoint)
+      else
+        null
+
+    if( spendingInPoint != inPoint ) { // The transaction output was NOT spent by the transaction input poined by the given in-point.
+      val message = "An output pointed by an out-point(${outPoint}) was not spent by the expected transaction input pointed by the in-point(${inPoint}), but spent by ${spendingInPoint}."
       logger.warn(message)
       throw ChainException(ErrorCode.TransactionOutputSpentByUnexpectedInput, message)
     }
 
-    putOutputsSpentBy(
-      db,
-      outPoint.transactionHash,
-      outputsSpentBy.mapIndexed { i, originalInPoint ->
-        if (i == outPoint.outputIndex) null else originalInPoint
-      }
-    )
+    spentOutputIndex.markOutputUnspent(db, outPoint)
   }
 
   /**
@@ -197,14 +219,16 @@ class TransactionMagnet(private val txDescIndex : TransactionDescriptorIndex, pr
     * @param transaction The transaction that has the inputs.
     */
   protected fun detachTransactionInputs(db : KeyValueDatabase, transactionHash : Hash, transaction : Transaction) : Unit {
-    var inputIndex = -1
-    transaction.inputs.forEach{ transactionInput ->
-      inputIndex += 1
+    withOutputLocks(transaction.inputs.map{ it.getOutPoint() }) {
+      var inputIndex = -1
+      transaction.inputs.forEach{ transactionInput ->
+        inputIndex += 1
 
-      // Make sure that the transaction input is not a coinbase input. detachBlock already checked if the input was NOT coinbase.
-      assert(!transactionInput.isCoinBaseInput())
+        // Make sure that the transaction input is not a coinbase input. detachBlock already checked if the input was NOT coinbase.
+        assert(!transactionInput.isCoinBaseInput())
 
-      detachTransactionInput(db, InPoint(transactionHash, inputIndex), transactionInput)
+        detachTransactionInput(db, InPoint(transactionHash, inputIndex), transactionInput)
+      }
     }
   }
 
@@ -214,9 +238,9 @@ class TransactionMagnet(private val txDescIndex : TransactionDescriptorIndex, pr
     * For outputs, all outputs spent by the transaction is marked as unspent.
     *
     * @param transaction The transaction to detach.
+    * @param transactionHash The hash of the transaction, if it was already calculated.
     */
-  fun detachTransaction(db : KeyValueDatabase, transaction : Transaction) : Unit {
-    val transactionHash = transaction.hash()
+  fun detachTransaction(db : KeyValueDatabase, transaction : Transaction, transactionHash : Hash = transaction.hash()) : Unit {
 
     // Step 1 : Detach each transaction input
     if (transaction.inputs[0].isCoinBaseInput()) {
@@ -227,16 +251,54 @@ class TransactionMagnet(private val txDescIndex : TransactionDescriptorIndex, pr
 
     // Remove the transaction descriptor otherwise other transactions can spend the UTXO from the detached transaction.
     // The transaction might not be stored in a block on the best blockchain yet. Remove the transaction from the pool too.
-    txDescIndex.delTransactionDescriptor(db, transactionHash)
+    // Hold the output locks so that a transaction spending outputs of this transaction is not attached while they are deleted.
+    withOutputLocks(outputOutPoints(transactionHash, transaction.outputs.size)) {
+      txDescIndex.delTransactionDescriptor(db, transactionHash)
+      txDescIndex.getTxDescSpentOutputIndex().delSpentOutputs(db, transactionHash, transaction.outputs.size)
+
+      val txOption : TransactionPoolEntry? = txPoolIndex.getTransactionFromPool(db, transactionHash)
+      if (txOption != null) {
+        // BUGBUG : Need to remove these two records atomically
+        txTimeIndex.delTransactionTime( db, txOption.createdAtNanos, transactionHash)
+        txPoolIndex.delTransactionFromPool(db, transactionHash)
+        txPoolIndex.getTxPoolSpentOutputIndex().delSpentOutputs(db, transactionHash, transaction.outputs.size)
+      }
+    }
+
+    recentTransactions?.remove(transactionHash)
+
+    notifyListener(db) { listener, listenerDB -> listener.onRemoveTransaction(listenerDB, transactionHash, transaction) }
+  }
 
-    val txOption : TransactionPoolEntry? = txPoolIndex.getTransactionFromPool(db, transactionHash)
-    if (txOption != null) {
-      // BUGBUG : Need to remove these two records atomically
-      txTimeIndex.delTransactionTime( db, txOption.createdAtNanos, transactionHash)
-      txPoolIndex.delTransactionFromPool(db, transactionHash)
+  /**
+    * Move a transaction from a block detached by a block reorganization to a block being attached.
+    *
+    * Inputs of the transaction remain attached, and outputs spent by other transactions remain spent,
+    * so only the transaction descriptor is updated to point to the transaction in the attached block.
+    *
+    * @param transactionHash The hash of the transaction to move.
+    * @param transaction The transaction to move.
+    * @param txLocator The locator of the transaction in the attached block.
+    * @param chainBlock The attached block which has the transaction.
+    * @param transactionIndex The index of the transaction in the attached block.
+    */
+  fun reattachTransaction(db : KeyValueDatabase, transactionHash : Hash, transaction : Transaction, txLocator : FileRecordLocator, chainBlock : ChainBlock, transactionIndex : Int) : Unit {
+    // The transaction descriptor was kept while the transaction was detached.
+    if (Storage.validateWrites) {
+      assert( txDescIndex.hasTransactionDescriptor(db, transactionHash) )
     }
 
-    chainEventListener?.onRemoveTransaction(db, transactionHash, transaction)
+    txDescIndex.putTransactionDescriptor(
+      db,
+      transactionHash,
+      TransactionDescriptor(
+        transactionLocator = txLocator,
+        blockHeight = chainBlock.height,
+        outputCount = transaction.outputs.size
+      )
+    )
+
+    notifyListener(db) { listener, listenerDB -> listener.onNewTransaction(listenerDB, transactionHash, transaction, chainBlock, transactionIndex) }
   }
 
   /**
@@ -264,20 +326,101 @@ class TransactionMagnet(private val txDescIndex : TransactionDescriptorIndex, pr
   /** Attach the transaction inputs to the outputs spent by them.
     * Mark outputs spent by the transaction inputs.
     *
+    * Output locks of all outputs spent by the inputs are held while the inputs are attached.
+    * Transactions put into the pool while a block is being attached conflict only if they spend the same outputs.
+    * If any input can not be attached, no input is attached.
+    *
     * @param transactionHash The hash of the tranasction that has the inputs.
     * @param transaction The transaction that has the inputs.
     * @param checkOnly If true, do not attach the transaction inputs, but just check if the transaction inputs can be attached.
     *
     */
   protected fun attachTransactionInputs(db : KeyValueDatabase, transactionHash : Hash, transaction : Transaction, checkOnly : Boolean) : Unit {
-    var inputIndex = -1
-    transaction.inputs.forEach{ transactionInput ->
-      // Make sure that the transaction input is not a coinbase input. attachBlock already checked if the input was NOT coinbase.
-      assert(!transactionInput.isCoinBaseInput())
-      inputIndex += 1
+    fun attachInputs(checkInputsOnly : Boolean) {
+      var inputIndex = -1
+      transaction.inputs.forEach{ transactionInput ->
+        // Make sure that the transaction input is not a coinbase input. attachBlock already checked if the input was NOT coinbase.
+        assert(!transactionInput.isCoinBaseInput())
+        inputIndex += 1
+
+        attachTransactionInput(db, InPoint(transactionHash, inputIndex), transactionInput, checkInputsOnly)
+      }
+    }
+
+    withOutputLocks(transaction.inputs.map{ it.getOutPoint() }) {
+      if (!checkOnly && transaction.inputs.size > 1) {
+        // Check all inputs first not to leave some of inputs attached when an input can not be attached.
+        attachInputs(checkInputsOnly = true)
+      }
+      attachInputs(checkOnly)
+    }
+  }
 
-      attachTransactionInput(db, InPoint(transactionHash, inputIndex), transactionInput, checkOnly)
+  /** Run a function while holding output locks of the given outputs.
+    * Locks are acquired in the order of stripes, so two threads locking overlapping sets of outputs do not dead-lock.
+    * A function run within another withOutputLocks should only lock outputs already locked by the outer one.
+    *
+    * Locks taken by tryLockAllOutputs while the function runs are released when the outermost withOutputLocks of the thread returns.
+    *
+    * @param outPoints The out-points of outputs marked spent or unspent by the function, or of a transaction put or deleted by the function.
+    * @param block The function to run.
+    */
+  fun<T> withOutputLocks(outPoints : List<OutPoint>, block : () -> T) : T {
+    val locks = TransactionMagnet.outputLock.bulkGet(outPoints)
+    val outermost = foldLocks.get() == null
+    if (outermost) {
+      foldLocks.set(arrayListOf())
+    }
+    locks.forEach { it.lock() }
+    try {
+      return block()
+    } finally {
+      locks.reversed().forEach { it.unlock() }
+      if (outermost) {
+        foldLocks.get()!!.reversed().forEach { it.unlock() }
+        foldLocks.remove()
+      }
+    }
+  }
+
+  /** Try to take output locks of all outputs of a transaction, so that its bitmap of spent outputs can be put again with the deltas applied.
+    * Outputs of a transaction share the bitmap. A delta merged by another thread between reading and putting the bitmap would be lost,
+    * so the bitmap is folded only while no other thread holds a lock of any output of the transaction.
+    *
+    * Locks are only tried, so this thread does not wait for other threads while holding locks out of the order of stripes.
+    * They are kept until the outermost withOutputLocks returns, after the caller committed the folded bitmap.
+    *
+    * @param txHash The hash of the transaction.
+    * @param outputCount The number of outputs of the transaction.
+    * @return true if the locks were taken; false if another thread holds any of them, or no withOutputLocks is running.
+    */
+  private fun tryLockAllOutputs(txHash : Hash, outputCount : Int) : Boolean {
+    val heldLocks = foldLocks.get() ?: return false
+    val takenLocks = arrayListOf<Lock>()
+    for (lock in TransactionMagnet.outputLock.bulkGet(outputOutPoints(txHash, outputCount)).distinct()) {
+      if (lock.tryLock()) {
+        takenLocks.add(lock)
+      } else {
+        takenLocks.reversed().forEach { it.unlock() }
+        return false
+      }
     }
+    heldLocks.addAll(takenLocks)
+    return true
+  }
+
+  /** Run a function while holding output locks of outputs of transactions in a block and outputs they spend.
+    *
+    * A block connected on a transacting database is not visible to other threads until the transaction is committed.
+    * Holding the locks until then keeps transactions put into the disk-pool concurrently from spending outputs the block spends,
+    * or outputs of transactions in the block, before the changes of the block are visible.
+    * Transactions spending other outputs are put into the disk-pool without waiting for the block.
+    *
+    * @param block The block being connected.
+    * @param fn The function to run.
+    */
+  fun<T> withBlockOutputLocks(block : Block, fn : () -> T) : T {
+    return withOutputLocks(blockOutputLockOutPoints(block), fn)
   }
 
   /**
@@ -307,15 +450,26 @@ class TransactionMagnet(private val txDescIndex : TransactionDescriptorIndex, pr
         //logger.trace(s"<Attach Transaction> Put transaction descriptor : ${transactionHash}")
         // If the txLocator is defined, the block height should also be defined.
 
-        txDescIndex.putTransactionDescriptor(
-          db,
-          transactionHash,
-          TransactionDescriptor(
-            transactionLocator = txLocatorOption,
-            blockHeight = chainBlock!!.height,
-            outputsSpentBy = ListExt.fill<InPoint?>( transaction.outputs.size, null)
+        // Write the descriptor and the spent outputs with a single write.
+        // They are written before the next transaction in the block is attached, as it may spend outputs of this transaction.
+        // When the block is connected in a database transaction, the write goes to the transaction, which is committed once for the block.
+        db.writeBatch().use { batch ->
+          txDescIndex.putTransactionDescriptor(
+            batch,
+            transactionHash,
+            TransactionDescriptor(
+              transactionLocator = txLocatorOption,
+              blockHeight = chainBlock!!.height,
+              outputCount = transaction.outputs.size
+            )
+          )
+          txDescIndex.getTxDescSpentOutputIndex().putSpentOutputs(
+            batch,
+            transactionHash,
+            SpentOutputBitmap.unspent( transaction.outputs.size )
           )
-        )
+          batch.write()
+        }
       } else {
         // Use fine grained lock for the concurrency control of adding a transaction.
         // To fix Issue : #105 Remove duplicate transactions in blocks
@@ -337,11 +491,14 @@ class TransactionMagnet(private val txDescIndex : TransactionDescriptorIndex, pr
               transactionHash,
               TransactionPoolEntry(
                 transaction,
-                ListExt.fill<InPoint?>(transaction.outputs.size, null),
                 txCreatedAt
               )
             )
-            assert( txPoolIndex.getTransactionFromPool(db, transactionHash) != null)
+            txPoolIndex.getTxPoolSpentOutputIndex().putSpentOutputs(
+              db,
+              transactionHash,
+              SpentOutputBitmap.unspent( transaction.outputs.size )
+            )
 
             txTimeIndex.putTransactionTime(db, txCreatedAt, transactionHash)
           }
@@ -350,7 +507,7 @@ class TransactionMagnet(private val txDescIndex : TransactionDescriptorIndex, pr
         }
       }
 
-      chainEventListener?.onNewTransaction(db, transactionHash, transaction, chainBlock, transactionIndex)
+      notifyListener(db) { listener, listenerDB -> listener.onNewTransaction(listenerDB, transactionHash, transaction, chainBlock, transactionIndex) }
     }
 
     // TODO : Step 2 : check if the sum of input values is greater than or equal to the sum of outputs.
@@ -359,7 +516,36 @@ class TransactionMagnet(private val txDescIndex : TransactionDescriptorIndex, pr
   }
 
   companion object {
+    /** Get the out-points of outputs whose output locks are held while a block is connected or disconnected.
+      * These are the outputs of transactions in the block and the outputs spent by them.
+      *
+      * @param block The block.
+      * @param txHashes The hashes of transactions in the block, if they were already calculated.
+      */
+    fun blockOutputLockOutPoints(block : Block, txHashes : List<Hash> = block.transactions.map { it.hash() }) : List<OutPoint> {
+      return block.transactions.indices.flatMap { i ->
+        val transaction = block.transactions[i]
+        val outputs = outputOutPoints(txHashes[i], transaction.outputs.size)
+        if (transaction.inputs[0].isCoinBaseInput()) {
+          outputs
+        } else {
+          outputs + transaction.inputs.map { it.getOutPoint() }
+        }
+      }
+    }
+
+    /** Get the out-points of all outputs of a transaction.
+      */
+    fun outputOutPoints(txHash : Hash, outputCount : Int) : List<OutPoint> = (0 until outputCount).map { OutPoint(txHash, it) }
+
     val TxLockCount = 1024
     val txLock : Striped<Lock> = Striped.lock(TxLockCount);
+
+    // Locks for marking outputs spent or unspent. The key is the out-point of the output.
+    val OutputLockCount = 1024
+    val outputLock : Striped<Lock> = Striped.lock(OutputLockCount)
+
+    // Locks taken by tryLockAllOutputs, released when the outermost withOutputLocks of the thread returns. null outside withOutputLocks.
+    private val foldLocks = ThreadLocal<MutableList<Lock>>()
   }
 }
@@ -58,8 +58,7 @@ class TransactionOrphanage(private val storage : BlockStorage) {
     * @return true if it exists; false otherwise.
     */
   fun hasOrphan(db : KeyValueDatabase, txHash : Hash) : Boolean {
-    // TODO : OPTIMIZE : Just check if the orphan exists without decoding the block data.
-    return storage.getOrphanTransaction(db, txHash) != null
+    return storage.hasOrphanTransaction(db, txHash)
   }
 
 
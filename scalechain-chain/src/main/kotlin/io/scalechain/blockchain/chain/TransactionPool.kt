@@ -10,7 +10,7 @@ import org.slf4j.LoggerFactory
 /**
   * Created by kangmo on 6/9/16.
   */
-class TransactionPool(private val storage : BlockStorage, private val txMagnet : TransactionMagnet) {
+class TransactionPool(private val storage : BlockStorage, private val txMagnet : TransactionMagnet, private val recentTransactions : RecentTransactionFilter? = null) {
   private val logger = LoggerFactory.getLogger(TransactionPool::class.java)
 
   fun getOldestTransactions(db : KeyValueDatabase, count:Int) : List<Pair<Hash, Transaction>> {
@@ -29,11 +29,30 @@ class TransactionPool(private val storage : BlockStorage, private val txMagnet :
       }
     }.filterNotNull()
   }
+  /** Get the hashes of the oldest transactions in the pool without reading the transactions.
+    * The hashes are read from the time index, which has no values.
+    *
+    * @param count The maximum number of hashes to get.
+    * @return The hashes of transactions, from the oldest one.
+    */
+  fun getOldestTransactionHashes(db : KeyValueDatabase, count : Int) : List<Hash> {
+    return storage.getOldestTransactionHashes(db, count).map { it.data }
+  }
+
+  /** Get a transaction in the pool.
+    *
+    * @param txHash The hash of the transaction.
+    * @return The transaction, or null if it is not in the pool.
+    */
+  fun getTransaction(db : KeyValueDatabase, txHash : Hash) : Transaction? {
+    return storage.getTransactionFromPool(db, txHash)?.transaction
+  }
+
   /**
     * Add a transaction to disk pool.
     *
     * Assumption : The transaction was pointing to a transaction record location, which points to a transaction written while the block was put into disk.
-    * Caution : This method should be called with Blockchain.get.synchronized, because this method updates the spending in-points of transactions.
+    * Spending in-points of transactions are updated under the output locks of TransactionMagnet, so this method can run while a block is being connected.
     *
     * @param txHash The hash of the transaction to add.
     * @param transaction The transaction to add to the disk-pool.
@@ -83,9 +102,18 @@ class TransactionPool(private val storage : BlockStorage, private val txMagnet :
     // Note : We should not touch the TransactionDescriptor.
     val txOption : TransactionPoolEntry? = storage.getTransactionFromPool(db, txHash)
     if (txOption != null ) {
-      // BUGBUG : Need to remove these two records atomically
-      storage.delTransactionTime(db, txOption.createdAtNanos, txHash)
-      storage.delTransactionFromPool(db, txHash)
+      // Remove the records of the transaction atomically with a single write.
+      db.writeBatch().use { batch ->
+        storage.delTransactionTime(batch, txOption.createdAtNanos, txHash)
+        storage.delTransactionFromPool(batch, txHash)
+        storage.getTxPoolSpentOutputIndex().delSpentOutputs(batch, txHash, txOption.transaction.outputs.size)
+        batch.write()
+      }
+
+      // The transaction is evicted unless it is kept in a block on the best blockchain.
+      if (!storage.hasTransactionDescriptor(db, txHash)) {
+        recentTransactions?.remove(txHash)
+      }
     }
   }
 
@@ -13,6 +13,7 @@ import io.scalechain.blockchain.storage.index.TransactionTimeIndex
 import io.scalechain.blockchain.storage.index.TransactionPoolIndex
 import io.scalechain.blockchain.storage.index.KeyValueDatabase
 import io.scalechain.blockchain.storage.index.TransactionDescriptorIndex
+import io.scalechain.blockchain.storage.index.SpentOutputIndex
 import io.scalechain.blockchain.transaction.CoinsView
 import io.scalechain.blockchain.transaction.CoinAddress
 import io.scalechain.util.StopWatch
@@ -20,6 +21,7 @@ import org.slf4j.LoggerFactory
 
 interface TemporaryTransactionPoolIndex : TransactionPoolIndex {
   override fun getTxPoolPrefix() : Byte = DB.TEMP_TRANSACTION_POOL
+  override fun getTxPoolSpentOutputIndex() : SpentOutputIndex = SpentOutputIndex.TEMP_TRANSACTION_POOL
 }
 
 interface TemporaryTransactionTimeIndex : TransactionTimeIndex {
@@ -3,6 +3,10 @@ package io.scalechain.blockchain.chain
 import io.kotlintest.KTestJUnitRunner
 import java.io.File
 
+import io.scalechain.blockchain.ChainException
+import io.scalechain.blockchain.ErrorCode
+import io.scalechain.blockchain.script.hash
+import io.scalechain.blockchain.transaction.CoinAmount
 import io.scalechain.blockchain.transaction.TransactionTestInterface
 import io.kotlintest.matchers.Matchers
 import org.junit.runner.RunWith
@@ -59,7 +63,114 @@ class BlockMagnetSpec : BlockchainTestTrait(), TransactionTestInterface, Matcher
     "attachBlocksAfter" should "" {
     }
 
-    "reorganize" should "" {
+    "reorganize" should "switch to the fork with more chain work, keeping transactions on both forks attached" {
+      val data = BlockSampleData(db)
+      val B = data.Block
+      val T = data.Tx
+
+      chain.putBlock(db, B.BLK01.header.hash(), B.BLK01)
+      chain.putBlock(db, B.BLK02.header.hash(), B.BLK02)
+      chain.putBlock(db, B.BLK03a.header.hash(), B.BLK03a)
+      chain.putBlock(db, B.BLK03b.header.hash(), B.BLK03b) shouldBe false
+      chain.putBlock(db, B.BLK04b.header.hash(), B.BLK04b) shouldBe true
+
+      chain.getBestBlockHash(db) shouldBe B.BLK04b.header.hash()
+      chain.theBestBlock!!.blockHeader shouldBe B.BLK04b.header
+      chain.getBlockHash(db, 3) shouldBe B.BLK03b.header.hash()
+      chain.blockTree.getBlockHash(3) shouldBe B.BLK03b.header.hash()
+      chain.blockTree.isOnBestChain(B.BLK03a.header.hash()) shouldBe false
+
+      // TX03 and TX04 are on both forks. They are moved to the blocks on the new best blockchain.
+      chain.getTransactionBlockInfo(db, T.TX03.transaction.hash())!!.blockHeader shouldBe B.BLK03b.header
+      chain.getTransactionBlockInfo(db, T.TX04.transaction.hash())!!.blockHeader shouldBe B.BLK04b.header
+      chain.getTransactionBlockInfo(db, T.TX03b.transaction.hash())!!.blockHeader shouldBe B.BLK03b.header
+      // TX03a double spends with TX03b.
+      chain.getTransactionBlockInfo(db, T.TX03a.transaction.hash()) shouldBe null
+      chain.getTransactionBlockInfo(db, T.GEN03a.transaction.hash()) shouldBe null
+    }
+
+    "reorganize" should "not keep a transaction on both forks whose parent is only on the detached blocks" {
+      val data = BlockSampleData(db)
+      val B = data.Block
+      val T = data.Tx
+
+      val GEN03c = data.generationTransaction("GenTx.BLK03c", CoinAmount(50), data.Addr1.address)
+      val GEN03d = data.generationTransaction("GenTx.BLK03d", CoinAmount(50), data.Addr1.address)
+      val GEN04d = data.generationTransaction("GenTx.BLK04d", CoinAmount(50), data.Addr1.address)
+      val PARENT = data.normalTransaction(
+        "PARENT",
+        spendingOutputs = listOf( data.getOutput(T.TX02, 1) ),
+        newOutputs = listOf( NewOutput(CoinAmount(17), data.Addr2.address) )
+      )
+      val CHILD = data.normalTransaction(
+        "CHILD",
+        spendingOutputs = listOf( data.getOutput(PARENT, 0) ),
+        newOutputs = listOf( NewOutput(CoinAmount(16), data.Addr2.address) )
+      )
+      val BLK03c = data.doMining( data.newBlock(B.BLK02.header.hash(), listOf(GEN03c, PARENT, CHILD)), 4)
+      // CHILD is on both forks, but PARENT is not on the new fork.
+      val BLK03d = data.doMining( data.newBlock(B.BLK02.header.hash(), listOf(GEN03d, CHILD)), 4)
+      val BLK04d = data.doMining( data.newBlock(BLK03d.header.hash(), listOf(GEN04d)), 4)
+
+      chain.putBlock(db, B.BLK01.header.hash(), B.BLK01)
+      chain.putBlock(db, B.BLK02.header.hash(), B.BLK02)
+      chain.putBlock(db, BLK03c.header.hash(), BLK03c)
+      chain.putBlock(db, BLK03d.header.hash(), BLK03d) shouldBe false
+
+      val thrown = shouldThrow<ChainException> {
+        chain.putBlock(db, BLK04d.header.hash(), BLK04d)
+      }
+      thrown.code shouldBe ErrorCode.ParentTransactionNotFound
+
+      // Nothing was changed.
+      chain.getBestBlockHash(db) shouldBe BLK03c.header.hash()
+      chain.theBestBlock!!.blockHeader shouldBe BLK03c.header
+      chain.getBlockHash(db, 3) shouldBe BLK03c.header.hash()
+      chain.blockTree.getBlockHash(3) shouldBe BLK03c.header.hash()
+      chain.blockTree.getBestBlockHeight() shouldBe 3L
+      chain.getTransactionBlockInfo(db, PARENT.transaction.hash())!!.blockHeader shouldBe BLK03c.header
+      chain.getTransactionBlockInfo(db, CHILD.transaction.hash())!!.blockHeader shouldBe BLK03c.header
+      chain.getTransactionBlockInfo(db, GEN03d.transaction.hash()) shouldBe null
+    }
+
+    "reorganize" should "write nothing if a block fails to attach after other blocks were attached" {
+      val data = BlockSampleData(db)
+      val B = data.Block
+      val T = data.Tx
+
+      val GEN04e = data.generationTransaction("GenTx.BLK04e", CoinAmount(50), data.Addr1.address)
+      // Spends the output TX03b spent.
+      val TX04e = data.normalTransaction(
+        "TX04e",
+        spendingOutputs = listOf( data.getOutput(T.TX02, 1) ),
+        newOutputs = listOf( NewOutput(CoinAmount(16), data.Addr2.address) )
+      )
+      val BLK04e = data.doMining( data.newBlock(B.BLK03b.header.hash(), listOf(GEN04e, TX04e)), 8)
+
+      chain.putBlock(db, B.BLK01.header.hash(), B.BLK01)
+      chain.putBlock(db, B.BLK02.header.hash(), B.BLK02)
+      chain.putBlock(db, B.BLK03a.header.hash(), B.BLK03a)
+      chain.putBlock(db, B.BLK03b.header.hash(), B.BLK03b) shouldBe false
+
+      // BLK03b is attached, and BLK04e fails to attach.
+      val thrown = shouldThrow<ChainException> {
+        chain.putBlock(db, BLK04e.header.hash(), BLK04e)
+      }
+      thrown.code shouldBe ErrorCode.TransactionOutputAlreadySpent
+
+      chain.getBestBlockHash(db) shouldBe B.BLK03a.header.hash()
+      chain.theBestBlock!!.blockHeader shouldBe B.BLK03a.header
+      chain.getBlockHash(db, 3) shouldBe B.BLK03a.header.hash()
+      chain.blockTree.getBlockHash(3) shouldBe B.BLK03a.header.hash()
+      chain.blockTree.getBestBlockHeight() shouldBe 3L
+      chain.getTransactionBlockInfo(db, T.TX03.transaction.hash())!!.blockHeader shouldBe B.BLK03a.header
+      chain.getTransactionBlockInfo(db, T.TX03a.transaction.hash())!!.blockHeader shouldBe B.BLK03a.header
+      chain.getTransactionBlockInfo(db, T.TX03b.transaction.hash()) shouldBe null
+      chain.getTransactionBlockInfo(db, T.GEN03b.transaction.hash()) shouldBe null
+
+      // The original best blockchain can still be extended.
+      chain.putBlock(db, B.BLK04a.header.hash(), B.BLK04a) shouldBe true
+      chain.blockTree.getBlockHash(4) shouldBe B.BLK04a.header.hash()
     }
 
     "findCommonBlock" should "" {
@@ -0,0 +1,122 @@
+package io.scalechain.blockchain.chain
+
+import io.kotlintest.KTestJUnitRunner
+import io.kotlintest.matchers.Matchers
+import io.kotlintest.specs.FlatSpec
+import io.scalechain.blockchain.proto.BlockHeader
+import io.scalechain.blockchain.proto.BlockInfo
+import io.scalechain.blockchain.proto.Hash
+import io.scalechain.blockchain.proto.codec.BlockHeaderCodec
+import io.scalechain.blockchain.script.hash
+import org.junit.runner.RunWith
+
+@RunWith(KTestJUnitRunner::class)
+class BlockTreeSpec : FlatSpec(), Matchers {
+  /** Create a block info whose parent is the given block info. The nonce makes blocks on different forks have different hashes.
+    */
+  fun blockInfo(parent : BlockInfo?, nonce : Long) : BlockInfo {
+    val header = BlockHeader(4, if (parent == null) Hash.ALL_ZERO else parent.blockHeader.hash(), Hash.ALL_ZERO, 0L, 0L, nonce)
+    return BlockInfo(
+      height = if (parent == null) 0L else parent.height + 1,
+      chainWork = if (parent == null) 1L else parent.chainWork + 1,
+      nextBlockHash = null,
+      transactionCount = 0,
+      status = 0,
+      blockHeader = header,
+      blockLocatorOption = null
+    )
+  }
+
+  fun BlockInfo.hash() : Hash = blockHeader.hash()
+
+  init {
+    // B0 → B1 → B2
+    //         ↘ B2' → B3'
+    val b0 = blockInfo(null, 0)
+    val b1 = blockInfo(b0, 1)
+    val b2 = blockInfo(b1, 2)
+    val b2f = blockInfo(b1, 102)
+    val b3f = blockInfo(b2f, 103)
+
+    fun putAll(tree : BlockTree) {
+      listOf(b0, b1, b2, b2f, b3f).forEach { tree.putBlock(it.hash(), it) }
+    }
+
+    "getBestBlockHeight" should "return -1 for an empty tree" {
+      BlockTree().getBestBlockHeight() shouldBe -1L
+    }
+
+    "connect" should "add blocks on the best blockchain" {
+      val tree = BlockTree()
+      putAll(tree)
+      tree.connect(b0.hash())
+      tree.connect(b1.hash())
+      tree.connect(b2.hash())
+
+      tree.getBestBlockHeight() shouldBe 2L
+      tree.getBlockHash(0) shouldBe b0.hash()
+      tree.getBlockHash(2) shouldBe b2.hash()
+      tree.getBlockHash(3) shouldBe null
+      tree.isOnBestChain(b2.hash()) shouldBe true
+      tree.isOnBestChain(b2f.hash()) shouldBe false
+    }
+
+    "disconnect" should "remove the tip of the best blockchain" {
+      val tree = BlockTree()
+      putAll(tree)
+      tree.connect(b0.hash())
+      tree.connect(b1.hash())
+      tree.connect(b2.hash())
+
+      tree.disconnect(b2.hash())
+      tree.connect(b2f.hash())
+      tree.connect(b3f.hash())
+
+      tree.getBestBlockHeight() shouldBe 3L
+      tree.getBlockHash(2) shouldBe b2f.hash()
+      tree.isOnBestChain(b2.hash()) shouldBe false
+    }
+
+    "getSerializedHeaders" should "return serialized headers on the best blockchain" {
+      val tree = BlockTree()
+      putAll(tree)
+      tree.connect(b0.hash())
+      tree.connect(b1.hash())
+      tree.connect(b2.hash())
+
+      fun headers(vararg blockInfos : BlockInfo) = blockInfos.map { BlockHeaderCodec.encode(it.blockHeader).toList() }
+
+      tree.getSerializedHeaders(1, 10, Hash.ALL_ZERO).map { it.toList() } shouldBe headers(b1, b2)
+      tree.getSerializedHeaders(0, 2, Hash.ALL_ZERO).map { it.toList() } shouldBe headers(b0, b1)
+      tree.getSerializedHeaders(0, 10, b1.hash()).map { it.toList() } shouldBe headers(b0, b1)
+      tree.getSerializedHeaders(3, 10, Hash.ALL_ZERO) shouldBe listOf<ByteArray>()
+    }
+
+    "findCommonBlock" should "return the fork point" {
+      val tree = BlockTree()
+      putAll(tree)
+      tree.findCommonBlock(b2.hash(), b3f.hash()) shouldBe b1.hash()
+      tree.findCommonBlock(b3f.hash(), b0.hash()) shouldBe b0.hash()
+      tree.findCommonBlock(b2.hash(), b2.hash()) shouldBe b2.hash()
+    }
+
+    "findCommonBlock" should "return null if a block is not on the tree" {
+      val tree = BlockTree()
+      putAll(tree)
+      tree.findCommonBlock(b2.hash(), Hash.ALL_ZERO) shouldBe null
+    }
+
+    "load" should "build the tree and the best blockchain from block infos in any order" {
+      val tree = BlockTree()
+      val blockInfos = listOf(b3f, b2, b0, b2f, b1).map { Pair(it.hash(), it) }
+      tree.load(blockInfos.asSequence(), b3f.hash())
+
+      tree.getBestBlockHeight() shouldBe 3L
+      tree.getBlockHash(0) shouldBe b0.hash()
+      tree.getBlockHash(1) shouldBe b1.hash()
+      tree.getBlockHash(2) shouldBe b2f.hash()
+      tree.getBlockHash(3) shouldBe b3f.hash()
+      tree.getNode(b2.hash())!!.parent!!.hash shouldBe b1.hash()
+    }
+  }
+}
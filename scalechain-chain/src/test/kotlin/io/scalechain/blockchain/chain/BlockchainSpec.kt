@@ -4,9 +4,22 @@ import io.kotlintest.KTestJUnitRunner
 import io.kotlintest.matchers.Matchers
 import java.io.File
 
+import io.scalechain.blockchain.ChainException
+import io.scalechain.blockchain.ErrorCode
 import io.scalechain.blockchain.proto.Hash
+import io.scalechain.blockchain.proto.OutPoint
+import io.scalechain.blockchain.proto.Transaction
+import io.scalechain.blockchain.script.hash
+import io.scalechain.blockchain.storage.index.KeyValueDatabase
+import io.scalechain.blockchain.transaction.ChainBlock
+import io.scalechain.blockchain.transaction.CoinAmount
 import io.scalechain.blockchain.transaction.TransactionTestInterface
 import org.junit.runner.RunWith
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
 
 
 // Remove the ignore annotation after creating the "by block height" index
@@ -45,13 +58,125 @@ class BlockchainSpec : BlockchainTestTrait(), TransactionTestInterface, Matchers
     "setBestBlock" should "" {
     }
 
-    "putBlock" should "" {
+    "putBlock" should "write nothing of a block whose transaction fails to attach" {
+      chain.putBlock(db, env().GenesisBlockHash, env().GenesisBlock)
+
+      val data = BlockSampleData(db)
+      val B = data.Block
+      val T = data.Tx
+
+      chain.putBlock(db, B.BLK01.header.hash(), B.BLK01)
+      chain.putBlock(db, B.BLK02.header.hash(), B.BLK02)
+      chain.putBlock(db, B.BLK03a.header.hash(), B.BLK03a)
+
+      val GEN04x = data.generationTransaction( "GenTx.BLK04x", CoinAmount(50), data.Addr1.address )
+      // Spends (TX03,0), which is not spent yet.
+      val TX04x = data.normalTransaction(
+        "TX04x",
+        spendingOutputs = listOf( data.getOutput(T.TX03, 0) ),
+        newOutputs = listOf( NewOutput(CoinAmount(9), data.Addr2.address) )
+      )
+      // Spends (TX02,0), which TX03 in BLK03a already spent.
+      val TX04y = data.normalTransaction(
+        "TX04y",
+        spendingOutputs = listOf( data.getOutput(T.TX02, 0) ),
+        newOutputs = listOf( NewOutput(CoinAmount(9), data.Addr3.address) )
+      )
+      val BLK04x = data.doMining( data.newBlock(B.BLK03a.header.hash(), listOf(GEN04x, TX04x, TX04y)), 4)
+
+      val thrown = shouldThrow<ChainException> {
+        chain.putBlock(db, BLK04x.header.hash(), BLK04x)
+      }
+      thrown.code shouldBe ErrorCode.TransactionOutputAlreadySpent
+
+      // None of the transactions attached before the failure were written.
+      chain.getBestBlockHash(db) shouldBe B.BLK03a.header.hash()
+      chain.getTransactionBlockInfo(db, GEN04x.transaction.hash()) shouldBe null
+      chain.getTransactionBlockInfo(db, TX04x.transaction.hash()) shouldBe null
+
+      // (TX03,0) is still unspent, so a block spending it extends the best blockchain.
+      chain.putBlock(db, B.BLK04a.header.hash(), B.BLK04a) shouldBe true
+      chain.getBestBlockHash(db) shouldBe B.BLK04a.header.hash()
     }
 
     "putBlockHeader" should "" {
     }
 
-    "putTransaction" should "" {
+    "putTransaction" should "not wait for a block being connected, and not double spend an output spent by the block" {
+      chain.putBlock(db, env().GenesisBlockHash, env().GenesisBlock)
+
+      // A transaction spending (GEN02,0) should not take any output lock held while BLK03a is connected.
+      fun isLockedByBLK03a(data : BlockSampleData) : Boolean {
+        val gen02Lock = TransactionMagnet.outputLock.get(OutPoint(data.Tx.GEN02.transaction.hash(), 0))
+        return TransactionMagnet.blockOutputLockOutPoints(data.Block.BLK03a).any { TransactionMagnet.outputLock.get(it) === gen02Lock }
+      }
+      var data = BlockSampleData(db)
+      while (isLockedByBLK03a(data)) {
+        data = BlockSampleData(db)
+      }
+      val B = data.Block
+      val T = data.Tx
+
+      chain.putBlock(db, B.BLK01.header.hash(), B.BLK01)
+      chain.putBlock(db, B.BLK02.header.hash(), B.BLK02)
+
+      val blockConnecting = CountDownLatch(1)
+      val transactionsPut = CountDownLatch(1)
+      chain.setEventListener( object : ChainEventListener {
+        override fun onNewTransaction(db : KeyValueDatabase, transactionHash : Hash, transaction : Transaction, chainBlock : ChainBlock?, transactionIndex : Int?) {
+          // Pause connecting BLK03a while the event of TX03, which spends (TX02,0), is delivered.
+          // The output locks of the block are held until all events are delivered.
+          if (chainBlock != null && transactionHash == T.TX03.transaction.hash()) {
+            blockConnecting.countDown()
+            transactionsPut.await(10, TimeUnit.SECONDS)
+          }
+        }
+        override fun onRemoveTransaction(db : KeyValueDatabase, transactionHash : Hash, transaction : Transaction) {
+        }
+      })
+
+      val executor = Executors.newFixedThreadPool(2)
+      try {
+        val blockPut = executor.submit( Callable<Boolean> {
+          chain.putBlock(db, B.BLK03a.header.hash(), B.BLK03a)
+        })
+        blockConnecting.await(10, TimeUnit.SECONDS) shouldBe true
+
+        // The block does not spend outputs of GEN02, so the transaction is put without waiting for the block.
+        val TX_GEN02 = data.normalTransaction(
+          "TX_GEN02",
+          spendingOutputs = listOf( data.getOutput(T.GEN02, 0) ),
+          newOutputs = listOf( NewOutput(CoinAmount(49), data.Addr2.address) )
+        )
+        chain.putTransaction(db, TX_GEN02.transaction.hash(), TX_GEN02.transaction)
+        (storage.getTransactionFromPool(db, TX_GEN02.transaction.hash()) != null) shouldBe true
+
+        // Spends (TX02,0), which TX03 in the block spent.
+        val TX_DOUBLE_SPEND = data.normalTransaction(
+          "TX_DOUBLE_SPEND",
+          spendingOutputs = listOf( data.getOutput(T.TX02, 0) ),
+          newOutputs = listOf( NewOutput(CoinAmount(9), data.Addr3.address) )
+        )
+        val doubleSpendPut = executor.submit( Callable<Unit> {
+          chain.putTransaction(db, TX_DOUBLE_SPEND.transaction.hash(), TX_DOUBLE_SPEND.transaction)
+        })
+
+        transactionsPut.countDown()
+
+        blockPut.get(10, TimeUnit.SECONDS) shouldBe true
+        val thrown = shouldThrow<ExecutionException> {
+          doubleSpendPut.get(10, TimeUnit.SECONDS)
+        }
+        (thrown.cause as ChainException).code shouldBe ErrorCode.TransactionOutputAlreadySpent
+
+        chain.getBestBlockHash(db) shouldBe B.BLK03a.header.hash()
+        chain.getTransactionBlockInfo(db, T.TX03.transaction.hash())!!.blockHeader shouldBe B.BLK03a.header
+        chain.getTransactionBlockInfo(db, T.TX03a.transaction.hash())!!.blockHeader shouldBe B.BLK03a.header
+        storage.getTransactionFromPool(db, TX_DOUBLE_SPEND.transaction.hash()) shouldBe null
+      } finally {
+        transactionsPut.countDown()
+        executor.shutdown()
+      }
     }
 
     "getIterator" should "" {
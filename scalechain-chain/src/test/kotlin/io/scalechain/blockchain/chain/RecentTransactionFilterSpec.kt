@@ -0,0 +1,72 @@
+package io.scalechain.blockchain.chain
+
+import io.kotlintest.KTestJUnitRunner
+import io.kotlintest.matchers.Matchers
+import io.kotlintest.specs.FlatSpec
+import io.scalechain.blockchain.proto.Hash
+import io.scalechain.crypto.HashFunctions
+import org.junit.runner.RunWith
+
+@RunWith(KTestJUnitRunner::class)
+class RecentTransactionFilterSpec : FlatSpec(), Matchers {
+  fun txHash(num : Int) : Hash {
+    val bytes = byteArrayOf( (num shr 24).toByte(), (num shr 16).toByte(), (num shr 8).toByte(), num.toByte() )
+    return Hash(HashFunctions.hash256(bytes).value)
+  }
+
+  init {
+    "mightContain" should "return false for transactions not added" {
+      val filter = RecentTransactionFilter()
+      filter.mightContain(txHash(1)) shouldBe false
+    }
+
+    "mightContain" should "return true for added transactions" {
+      val filter = RecentTransactionFilter()
+      filter.add(txHash(1))
+      filter.add(txHash(2))
+      filter.mightContain(txHash(1)) shouldBe true
+      filter.mightContain(txHash(2)) shouldBe true
+      filter.mightContain(txHash(3)) shouldBe false
+    }
+
+    "mightContain" should "return false for removed transactions" {
+      val filter = RecentTransactionFilter()
+      filter.add(txHash(1))
+      filter.remove(txHash(1))
+      filter.mightContain(txHash(1)) shouldBe false
+
+      // A transaction read before it was removed should not be added again.
+      filter.add(txHash(1))
+      filter.mightContain(txHash(1)) shouldBe false
+    }
+
+    "add" should "keep transactions of the previous generation" {
+      val filter = RecentTransactionFilter(generationCapacity = 10)
+      (0 until 10).forEach { filter.add(txHash(it)) }
+      // Rolls the generation.
+      filter.add(txHash(10))
+
+      (0 until 11).forEach { filter.mightContain(txHash(it)) shouldBe true }
+    }
+
+    "add" should "drop transactions after two generations" {
+      val filter = RecentTransactionFilter(generationCapacity = 10)
+      filter.add(txHash(0))
+      // Fill the first generation, and roll twice.
+      (1 until 21).forEach { filter.add(txHash(1000 + it)) }
+      filter.add(txHash(2000))
+
+      filter.mightContain(txHash(0)) shouldBe false
+    }
+
+    "remove" should "allow adding the transaction again after two generations" {
+      val filter = RecentTransactionFilter(generationCapacity = 10)
+      filter.add(txHash(0))
+      filter.remove(txHash(0))
+      (1 until 22).forEach { filter.add(txHash(1000 + it)) }
+
+      filter.add(txHash(0))
+      filter.mightContain(txHash(0)) shouldBe true
+    }
+  }
+}
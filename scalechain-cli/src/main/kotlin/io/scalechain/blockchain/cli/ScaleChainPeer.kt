@@ -211,6 +211,8 @@ object ScaleChainPeer {
     // Currently Wallet is a singleton, no need to initialize it.
     //val walletPath = File("./build/wallet-${params.p2pInboundPort}")
     val wallet = Wallet.create()
+    // Wallets written before the wallet indexes were kept need them to be rebuilt before transactions are registered.
+    wallet.migrate(db)
     chain.setEventListener(wallet)
 
     // Step 7 : Net Layer : Initialize peer to peer communication system, and
@@ -0,0 +1,78 @@
+package io.scalechain.blockchain.cli.http
+
+import com.google.gson.JsonParser
+import io.kotlintest.KTestJUnitRunner
+import io.netty.buffer.UnpooledByteBufAllocator
+import io.netty.handler.codec.http.HttpResponseStatus
+import io.netty.util.CharsetUtil
+import io.scalechain.blockchain.api.http.RestRequestHandler
+import io.scalechain.blockchain.api.http.RestResponse
+import io.scalechain.blockchain.cli.APITestSuite
+import io.scalechain.util.HexUtil
+import org.junit.runner.RunWith
+
+@RunWith(KTestJUnitRunner::class)
+class RestRequestHandlerSpec : APITestSuite() {
+
+  val GENESIS_BLOCK_HEX = "0100000000000000000000000000000000000000000000000000000000000000000000003ba3edfd7a7b12b27ac72c3e67768f617fc81bc3888a51323a9fb8aa4b1e5e4adae5494dffff001d1aa4ae180101000000010000000000000000000000000000000000000000000000000000000000000000ffffffff4d04ffff001d0104455468652054696d65732030332f4a616e2f32303039204368616e63656c6c6f72206f6e206272696e6b206f66207365636f6e64206261696c6f757420666f722062616e6b73ffffffff0100f2052a01000000434104678afdb0fe5548271967f1a67130b7105cd6a828e03909a67962e0ea1f61deb649f6bc3f4cef38c4f35504e51ec112de5c384df7ba0b8d578a4c702b6bf11d5fac00000000"
+  // The block header(80 bytes) and the transaction count(1 byte) come before the generation transaction.
+  val GENESIS_TRANSACTION_HEX = GENESIS_BLOCK_HEX.substring(162)
+  val GENESIS_TRANSACTION_HASH = "4a5e1e4baab89f3a32518a88c31bc87f618f76673e2cc77ab2127b7afdeda33b"
+  val NON_EXISTENT_HASH = GENESIS_BLOCK_HASH.replace('a', 'f')
+
+  fun handle(uri : String) : Pair<RestResponse, ByteArray> {
+    val response = RestRequestHandler.handle(uri, UnpooledByteBufAllocator.DEFAULT)
+    try {
+      val content = ByteArray(response.content.readableBytes())
+      response.content.readBytes(content)
+      return Pair(response, content)
+    } finally {
+      response.content.release()
+    }
+  }
+
+  init {
+    "handle" should "return a raw block in the bin and hex formats" {
+      val (binResponse, binContent) = handle("/rest/block/${GENESIS_BLOCK_HASH}.bin")
+      binResponse.status shouldBe HttpResponseStatus.OK
+      binResponse.contentType shouldBe "application/octet-stream"
+      HexUtil.hex(binContent) shouldBe GENESIS_BLOCK_HEX
+
+      val (hexResponse, hexContent) = handle("/rest/block/${GENESIS_BLOCK_HASH}.hex")
+      hexResponse.status shouldBe HttpResponseStatus.OK
+      String(hexContent, CharsetUtil.US_ASCII) shouldBe GENESIS_BLOCK_HEX
+    }
+
+    "handle" should "return a block in the json format" {
+      val (response, content) = handle("/rest/block/${GENESIS_BLOCK_HASH}.json")
+      response.status shouldBe HttpResponseStatus.OK
+      val json = JsonParser().parse(String(content, CharsetUtil.UTF_8)).asJsonObject
+      json.get("hash").asString shouldBe GENESIS_BLOCK_HASH
+    }
+
+    "handle" should "return a raw transaction in the bin and hex formats" {
+      val (binResponse, binContent) = handle("/rest/tx/${GENESIS_TRANSACTION_HASH}.bin")
+      binResponse.status shouldBe HttpResponseStatus.OK
+      HexUtil.hex(binContent) shouldBe GENESIS_TRANSACTION_HEX
+
+      val (hexResponse, hexContent) = handle("/rest/tx/${GENESIS_TRANSACTION_HASH}.hex")
+      hexResponse.status shouldBe HttpResponseStatus.OK
+      String(hexContent, CharsetUtil.US_ASCII) shouldBe GENESIS_TRANSACTION_HEX
+    }
+
+    "handle" should "return 404 for a block or a transaction not found" {
+      handle("/rest/block/${NON_EXISTENT_HASH}.bin").first.status shouldBe HttpResponseStatus.NOT_FOUND
+      handle("/rest/block/${NON_EXISTENT_HASH}.json").first.status shouldBe HttpResponseStatus.NOT_FOUND
+      handle("/rest/tx/${NON_EXISTENT_HASH}.hex").first.status shouldBe HttpResponseStatus.NOT_FOUND
+      handle("/rest/tx/${NON_EXISTENT_HASH}.json").first.status shouldBe HttpResponseStatus.NOT_FOUND
+    }
+
+    "handle" should "return 400 for a malformed hash or format" {
+      handle("/rest/block/a.bin").first.status shouldBe HttpResponseStatus.BAD_REQUEST
+      // 64 characters, but not hexadecimal.
+      handle("/rest/tx/${"z".repeat(64)}.hex").first.status shouldBe HttpResponseStatus.BAD_REQUEST
+      handle("/rest/block/${GENESIS_BLOCK_HASH}").first.status shouldBe HttpResponseStatus.BAD_REQUEST
+      handle("/rest/block/${GENESIS_BLOCK_HASH}.xml").first.status shouldBe HttpResponseStatus.BAD_REQUEST
+    }
+  }
+}
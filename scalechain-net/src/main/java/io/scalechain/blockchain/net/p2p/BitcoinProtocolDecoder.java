@@ -17,9 +17,8 @@ package io.scalechain.blockchain.net.p2p;
 
 
 import io.netty.buffer.ByteBuf;
-import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.MessageToMessageDecoder;
+import io.netty.handler.codec.ByteToMessageDecoder;
 import io.scalechain.blockchain.proto.ProtocolMessage;
 import io.scalechain.blockchain.proto.codec.BitcoinProtocol;
 import io.scalechain.blockchain.proto.codec.BitcoinProtocolCodec;
@@ -29,9 +28,11 @@ import java.util.Vector;
 
 /**
  * Decodes a received {@link ByteBuf} into a case class that represents Bitcoin protocol message.
+ *
+ * A message can arrive in several reads. The bytes of an incomplete message are kept by ByteToMessageDecoder
+ * until the rest of the message is received, so a decoder is created for each channel.
  */
-@Sharable
-public class BitcoinProtocolDecoder extends MessageToMessageDecoder<ByteBuf> {
+public class BitcoinProtocolDecoder extends ByteToMessageDecoder {
 
     /**
      * An incomplete message, which needs to receive more data to construct a complete message.
@@ -52,11 +53,7 @@ public class BitcoinProtocolDecoder extends MessageToMessageDecoder<ByteBuf> {
 
     @Override
     protected void decode(ChannelHandlerContext ctx, ByteBuf msg, List<Object> out) throws Exception {
+        // Decodes complete messages only. The remaining bytes stay in msg until more data is received.
         codec.decode(msg, out);
-        if (out.size() > 0) {
-            System.out.println("decoded : " + out.size());
-        } else {
-            System.out.println("nothing decoded.");
-        }
     }
 }
@@ -0,0 +1,361 @@
+package io.scalechain.blockchain.net
+
+import java.math.BigInteger
+import java.util.Random
+import java.util.Timer
+import java.util.TimerTask
+
+import io.scalechain.blockchain.net.message.GetDataFactory
+import io.scalechain.blockchain.proto.Hash
+import io.scalechain.blockchain.proto.InvType
+import io.scalechain.blockchain.proto.InvVector
+import io.scalechain.blockchain.proto.Ping
+import io.scalechain.util.Config
+import org.slf4j.LoggerFactory
+
+/**
+  * Schedules block downloads to the fastest peers.
+  *
+  * (1) requestBlocks queues blocks to download.
+  * (2) schedule assigns queued blocks to peers in the order of PeerPerformance.score, up to maxBlocksInFlightPerPeer blocks for each peer.
+  *     A block is assigned only to a peer that announced it, so a peer behind us is never asked for blocks it does not have.
+  *     Peers much slower than the best peer do not get blocks, so the download follows the best peers.
+  * (3) blockReceived completes a request, and measures the throughput of the peer while it had blocks in flight.
+  * (4) checkStalls takes back requests not completed within stallTimeoutMillis, and counts them as stalls of the peer.
+  *     The blocks are assigned to other peers that announced them. During the initial block download, a peer that stalled too many times is disconnected.
+  *     Only peers that announced a block get it, so a stall is counted only against a peer that had the block.
+  *     A peer that stalled on a block gets it again after stallBackoffMillis, or right away if no other live peer can get it,
+  *     because the stall may have been a pause of a slow peer.
+  *     Queued blocks that no live peer announced within unannouncedBlockTimeoutMillis are dropped.
+  *     They are requested again when a peer announces them.
+  *
+  * A timer calls checkStalls, and sends pings to measure the RTT of peers.
+  *
+  * @param peerSet The peers to download blocks from.
+  * @param isInitialBlockDownload Returns true while the initial block download is in progress.
+  * @param stallTimeoutMillis A block request not completed within this time is a stall.
+  * @param maxBlocksInFlightPerPeer The maximum number of blocks requested from a peer at a time.
+  * @param maxStallsBeforeDisconnect During the initial block download, a peer is disconnected once it stalls this many times.
+  * @param stallBackoffMillis A peer that stalled on a block is not asked for the block again within this time, unless no other live peer announced it.
+  * @param unannouncedBlockTimeoutMillis A queued block that no live peer announced within this time is dropped.
+  */
+class BlockDownloadScheduler(private val peerSet : PeerSet,
+                             private val isInitialBlockDownload : () -> Boolean = { false },
+                             private val stallTimeoutMillis : Long = DefaultStallTimeoutMillis,
+                             private val maxBlocksInFlightPerPeer : Int = DefaultMaxBlocksInFlightPerPeer,
+                             private val maxStallsBeforeDisconnect : Int = DefaultMaxStallsBeforeDisconnect,
+                             private val stallBackoffMillis : Long = DefaultStallBackoffMillis,
+                             private val unannouncedBlockTimeoutMillis : Long = DefaultUnannouncedBlockTimeoutMillis) {
+  private val logger = LoggerFactory.getLogger(BlockDownloadScheduler::class.java)
+
+  private val random = Random()
+
+  private var timer : Timer? = null
+
+  /** A block requested from a peer. */
+  private class Request(val peer : Peer, val requestedAt : Long)
+
+  // The fields below are guarded by this object.
+
+  // block hash -> the time the block was queued. Blocks waiting to be assigned to a peer, in the order they were requested.
+  private val queue = LinkedHashMap<Hash, Long>()
+
+  // block hash -> the request of the block in flight.
+  private val inFlight = LinkedHashMap<Hash, Request>()
+
+  // peer -> (time, bytes received from the peer) when the current throughput measurement of the peer started.
+  // A peer has a mark only while it has blocks in flight.
+  private val throughputMarks = hashMapOf<Peer, Pair<Long, Long>>()
+
+  // block hash -> (peer -> the time the peer stalled on the block).
+  // The block is not assigned to the peers again until stallBackoffMillis passes. See isExcluded.
+  private val stalledPeers = hashMapOf<Hash, MutableMap<Peer, Long>>()
+
+  /** Queue blocks to download, and assign them to peers.
+    *
+    * @param blockHashes The hashes of the blocks.
+    * @param now The current System.nanoTime().
+    */
+  fun requestBlocks(blockHashes : List<Hash>, now : Long = System.nanoTime()) : Unit {
+    synchronized(this) {
+      blockHashes.forEach { blockHash ->
+        if (!inFlight.containsKey(blockHash) && !queue.containsKey(blockHash)) {
+          queue.put(blockHash, now)
+        }
+      }
+    }
+    schedule(now)
+  }
+
+  /** Complete the request of a block received from a peer, and assign more blocks to peers.
+    *
+    * @param peer The peer that sent the block.
+    * @param blockHash The hash of the block.
+    * @param now The current System.nanoTime().
+    * @return true if the block was requested from the peer; false otherwise.
+    */
+  fun blockReceived(peer : Peer, blockHash : Hash, now : Long = System.nanoTime()) : Boolean {
+    val requested = synchronized(this) {
+      // The block is not needed any more, even if another peer sent it.
+      queue.remove(blockHash)
+      stalledPeers.remove(blockHash)
+      val request = inFlight.get(blockHash)
+      if (request == null || request.peer != peer) {
+        false
+      } else {
+        inFlight.remove(blockHash)
+
+        val mark = throughputMarks.get(peer)
+        if (mark != null) {
+          val receivedBytes = peer.receivedBytes()
+          peer.performance.recordThroughput(receivedBytes - mark.second, now - mark.first)
+          if (inFlight.values.any { it.peer == peer }) {
+            throughputMarks.put(peer, Pair(now, receivedBytes))
+          } else {
+            throughputMarks.remove(peer)
+          }
+        }
+        true
+      }
+    }
+    schedule(now)
+    return requested
+  }
+
+  /** Check if a block should not be assigned to a peer, because the peer stalled on the block recently.
+    * The peer is not excluded if no other live peer that announced the block can get it.
+    * Called while holding the lock of this object.
+    *
+    * @param blockHash The hash of the block.
+    * @param peer The peer to check.
+    * @param livePeers The live peers.
+    * @param now The current System.nanoTime().
+    * @return true if the block should not be assigned to the peer.
+    */
+  private fun isExcluded(blockHash : Hash, peer : Peer, livePeers : List<Peer>, now : Long) : Boolean {
+    val stalls = stalledPeers.get(blockHash) ?: return false
+    val stalledAt = stalls.get(peer) ?: return false
+    if (now - stalledAt > stallBackoffMillis * 1000000) {
+      return false
+    }
+    // Keep the peer excluded only while another live peer that announced the block did not stall on it recently.
+    return livePeers.any { otherPeer ->
+      otherPeer != peer && otherPeer.hasKnownInventory(blockHash) &&
+        (stalls.get(otherPeer)?.let { now - it > stallBackoffMillis * 1000000 } ?: true)
+    }
+  }
+
+  /** Assign queued blocks to peers with free slots, in the order of their scores.
+    *
+    * @param now The current System.nanoTime().
+    * @return The number of blocks requested.
+    */
+  fun schedule(now : Long = System.nanoTime()) : Int {
+    val livePeers = peerSet.all().filter { it.isLive() }
+    val peers = livePeers.filter { !it.isPaused() }.sortedByDescending { it.performance.score() }
+    if (peers.isEmpty()) {
+      return 0
+    }
+    val bestScore = peers.first().performance.score()
+
+    val assignments = arrayListOf<Pair<Peer, List<Hash>>>()
+    synchronized(this) {
+      if (queue.isEmpty()) {
+        return 0
+      }
+      val inFlightCounts = hashMapOf<Peer, Int>()
+      inFlight.values.forEach { request ->
+        inFlightCounts.put(request.peer, (inFlightCounts.get(request.peer) ?: 0) + 1)
+      }
+
+      peers.forEach { peer ->
+        // Keep peers much slower than the best peer idle, unless the best peer was not measured yet.
+        val isSlow = bestScore != Double.MAX_VALUE && peer.performance.score() * SlowPeerRatio < bestScore
+        val freeSlots = maxBlocksInFlightPerPeer - (inFlightCounts.get(peer) ?: 0)
+        if (!isSlow && freeSlots > 0 && queue.isNotEmpty()) {
+          val blockHashes = queue.keys.filter { blockHash ->
+            peer.hasKnownInventory(blockHash) && !isExcluded(blockHash, peer, livePeers, now)
+          }.take(freeSlots)
+
+          if (blockHashes.isNotEmpty()) {
+            if (!throughputMarks.containsKey(peer)) {
+              throughputMarks.put(peer, Pair(now, peer.receivedBytes()))
+            }
+            blockHashes.forEach { blockHash ->
+              queue.remove(blockHash)
+              inFlight.put(blockHash, Request(peer, now))
+            }
+            assignments.add(Pair(peer, blockHashes))
+          }
+        }
+      }
+    }
+
+    // Send getdata messages without holding the lock.
+    var requestCount = 0
+    assignments.forEach { (peer, blockHashes) ->
+      val getDataMessage = GetDataFactory.create(blockHashes.map { InvVector(InvType.MSG_BLOCK, it) })
+      peer.send(getDataMessage)
+      requestCount += blockHashes.size
+      logger.trace("Requested ${blockHashes.size} blocks from a peer. ${peer.performance}")
+    }
+    return requestCount
+  }
+
+  /** Take back requests not completed in time, and assign the blocks to other peers.
+    * Requests to disconnected peers are taken back without counting stalls.
+    * Queued blocks that no live peer announced within unannouncedBlockTimeoutMillis are dropped.
+    *
+    * @param now The current System.nanoTime().
+    * @return The number of requests taken back.
+    */
+  fun checkStalls(now : Long = System.nanoTime()) : Int {
+    val stallTimeoutNanos = stallTimeoutMillis * 1000000
+    val livePeers = peerSet.all().filter { it.isLive() }
+    val peersToDisconnect = arrayListOf<Peer>()
+    var takenBack = 0
+    synchronized(this) {
+      val stalledRequests = inFlight.entries.filter { (_, request) ->
+        !request.peer.isLive() || now - request.requestedAt > stallTimeoutNanos
+      }
+      val stalledPeerSet = hashSetOf<Peer>()
+      stalledRequests.forEach { (blockHash, request) ->
+        inFlight.remove(blockHash)
+        takenBack += 1
+        if (request.peer.isLive()) {
+          stalledPeerSet.add(request.peer)
+          stalledPeers.getOrPut(blockHash) { hashMapOf() }.put(request.peer, now)
+        }
+      }
+      // Stalled blocks were requested earlier than queued ones, so put them in front.
+      if (stalledRequests.isNotEmpty()) {
+        val remaining = LinkedHashMap(queue)
+        queue.clear()
+        stalledRequests.forEach { queue.put(it.key, now) }
+        queue.putAll(remaining)
+      }
+
+      // Drop blocks that no live peer announced in time. No peer would get them.
+      val unannouncedTimeoutNanos = unannouncedBlockTimeoutMillis * 1000000
+      val unannouncedBlocks = queue.entries.filter { (blockHash, queuedAt) ->
+        now - queuedAt > unannouncedTimeoutNanos && livePeers.none { it.hasKnownInventory(blockHash) }
+      }.map { it.key }
+      unannouncedBlocks.forEach { blockHash ->
+        queue.remove(blockHash)
+        stalledPeers.remove(blockHash)
+      }
+      if (unannouncedBlocks.isNotEmpty()) {
+        logger.debug("Dropped ${unannouncedBlocks.size} queued blocks that no peer announced.")
+      }
+
+      stalledPeerSet.forEach { peer ->
+        throughputMarks.remove(peer)
+        val stallCount = peer.performance.recordStall()
+        logger.debug("A peer stalled on block requests. ${peer.performance}")
+        if (stallCount >= maxStallsBeforeDisconnect && isInitialBlockDownload() && peerSet.all().count { it.isLive() } > 1) {
+          peersToDisconnect.add(peer)
+        }
+      }
+      // Forget peers that are gone.
+      throughputMarks.keys.retainAll { it.isLive() }
+      stalledPeers.values.forEach { stalls -> stalls.keys.retainAll { it.isLive() } }
+      stalledPeers.values.removeAll { it.isEmpty() }
+    }
+
+    peersToDisconnect.forEach { peer ->
+      logger.info("Disconnecting a peer that kept stalling during the initial block download. ${peer.performance}")
+      peer.disconnect()
+    }
+
+    // Also assign queued blocks whose stalled peers are not excluded any more.
+    if (takenBack > 0 || synchronized(this) { queue.isNotEmpty() }) {
+      schedule(now)
+    }
+    return takenBack
+  }
+
+  /** Send a ping to each live peer to measure its RTT. PongMessageHandler updates the RTT.
+    *
+    * @param now The current System.nanoTime().
+    */
+  fun sendPings(now : Long = System.nanoTime()) : Unit {
+    peerSet.all().forEach { peer ->
+      val nonce = BigInteger.valueOf(random.nextLong() and Long.MAX_VALUE)
+      peer.performance.pingSent(nonce, now)
+      peer.send(Ping(nonce))
+    }
+  }
+
+  /** The number of blocks waiting to be assigned or in flight. */
+  fun pendingBlockCount() : Int = synchronized(this) { queue.size + inFlight.size }
+
+  /** Start checking stalls and sending pings on a timer thread.
+    *
+    * @param tickMillis The interval between stall checks.
+    * @param pingIntervalMillis The interval between pings to each peer.
+    */
+  fun start(tickMillis : Long = DefaultTickMillis, pingIntervalMillis : Long = DefaultPingIntervalMillis) : Unit {
+    synchronized(this) {
+      if (timer == null) {
+        val newTimer = Timer("block-download-scheduler", true)
+        newTimer.schedule(object : TimerTask() {
+          override fun run() : Unit {
+            try {
+              checkStalls()
+            } catch (e : Exception) {
+              logger.error("Failed to check stalled block requests. Exception : ${e}")
+            }
+          }
+        }, tickMillis, tickMillis)
+        newTimer.schedule(object : TimerTask() {
+          override fun run() : Unit {
+            try {
+              sendPings()
+            } catch (e : Exception) {
+              logger.error("Failed to send pings. Exception : ${e}")
+            }
+          }
+        }, 0L, pingIntervalMillis)
+        timer = newTimer
+      }
+    }
+  }
+
+  fun stop() : Unit {
+    synchronized(this) {
+      timer?.cancel()
+      timer = null
+    }
+  }
+
+  companion object {
+    val DefaultStallTimeoutMillis = 5000L
+    val DefaultMaxBlocksInFlightPerPeer = 16
+    val DefaultTickMillis = 500L
+    val DefaultPingIntervalMillis = 30000L
+
+    // A peer with a score less than 1/SlowPeerRatio of the best score does not get blocks.
+    val SlowPeerRatio = 10.0
+
+    val DefaultMaxStallsBeforeDisconnect = 3
+
+    val DefaultStallBackoffMillis = 30000L
+    val DefaultUnannouncedBlockTimeoutMillis = 60000L
+
+    /** Create a block download scheduler with settings from scalechain.p2p in the configuration file.
+      *
+      * scalechain.p2p.block_stall_timeout_millis : A block request not completed within this time is a stall.
+      * scalechain.p2p.max_blocks_in_flight_per_peer : The maximum number of blocks requested from a peer at a time.
+      */
+    fun create(peerSet : PeerSet, isInitialBlockDownload : () -> Boolean) : BlockDownloadScheduler {
+      val config = Config.get()
+      val stallTimeoutMillis =
+        if (config.hasPath("scalechain.p2p.block_stall_timeout_millis")) config.getInt("scalechain.p2p.block_stall_timeout_millis").toLong()
+        else DefaultStallTimeoutMillis
+      val maxBlocksInFlightPerPeer =
+        if (config.hasPath("scalechain.p2p.max_blocks_in_flight_per_peer")) config.getInt("scalechain.p2p.max_blocks_in_flight_per_peer")
+        else DefaultMaxBlocksInFlightPerPeer
+      return BlockDownloadScheduler(peerSet, isInitialBlockDownload, stallTimeoutMillis, maxBlocksInFlightPerPeer)
+    }
+  }
+}
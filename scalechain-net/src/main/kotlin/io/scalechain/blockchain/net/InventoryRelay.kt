@@ -0,0 +1,151 @@
+package io.scalechain.blockchain.net
+
+import java.util.Random
+import java.util.Timer
+import java.util.TimerTask
+
+import io.scalechain.blockchain.net.message.InvFactory
+import io.scalechain.blockchain.proto.Hash
+import io.scalechain.util.Config
+import org.slf4j.LoggerFactory
+
+/**
+  * Relays transactions to peers by announcing them in batched inv messages.
+  *
+  * (1) relayTransactions queues the hashes of transactions for each live peer, except for peers that already have them.
+  *     A peer has a transaction if it announced the transaction to us, or if we announced the transaction to it.
+  * (2) A timer flushes the queue of each peer on a randomized interval, whose average is averageIntervalMillis.
+  *     Each flush sends an inv message with at most maxInventoriesPerMessage transactions. The rest waits for the next flush.
+  *
+  * So the number of inv messages to a peer depends on the number of flushes, not on the number of relayed transactions.
+  * Randomizing the interval for each peer makes it harder to find the origin of a transaction from the timing of announcements.
+  *
+  * @param peerSet The peers to relay transactions to.
+  * @param averageIntervalMillis The average interval between flushes to a peer.
+  * @param maxInventoriesPerMessage The maximum number of transactions in an inv message.
+  */
+class InventoryRelay(private val peerSet : PeerSet,
+                     private val averageIntervalMillis : Long = DefaultAverageIntervalMillis,
+                     private val maxInventoriesPerMessage : Int = DefaultMaxInventoriesPerMessage) {
+  private val logger = LoggerFactory.getLogger(InventoryRelay::class.java)
+
+  private val random = Random()
+
+  private var timer : Timer? = null
+
+  // peer -> the time to flush the queue of the peer next. Accessed only by flush.
+  private val nextFlushTimes = hashMapOf<Peer, Long>()
+
+  /** Queue transactions to announce to live peers that do not have them yet.
+    *
+    * @param transactionHashes The hashes of the transactions to relay.
+    */
+  fun relayTransactions(transactionHashes : List<Hash>) : Unit {
+    peerSet.all().forEach { peer ->
+      transactionHashes.forEach { transactionHash ->
+        peer.queueTransactionInventory(transactionHash)
+      }
+    }
+  }
+
+  /** Start flushing queues of peers on a timer thread.
+    */
+  fun start() : Unit {
+    synchronized(this) {
+      if (timer == null) {
+        val tickMillis = Math.max(1L, averageIntervalMillis / 10)
+        val newTimer = Timer("inventory-relay", true)
+        newTimer.schedule(object : TimerTask() {
+          override fun run() : Unit {
+            try {
+              flush(System.currentTimeMillis())
+            } catch (e : Exception) {
+              logger.error("Failed to flush inventories to relay. Exception : ${e}")
+            }
+          }
+        }, tickMillis, tickMillis)
+        timer = newTimer
+      }
+    }
+  }
+
+  fun stop() : Unit {
+    synchronized(this) {
+      timer?.cancel()
+      timer = null
+    }
+  }
+
+  /** Flush queues of peers whose flush time has come. Called periodically by the timer.
+    * A peer seen for the first time is scheduled, but not flushed.
+    *
+    * @param now The current time in milliseconds.
+    * @return The number of inv messages sent.
+    */
+  fun flush(now : Long) : Int {
+    synchronized(nextFlushTimes) {
+      val livePeers = peerSet.all().toList()
+      nextFlushTimes.keys.retainAll(livePeers)
+
+      var messageCount = 0
+      livePeers.forEach { peer ->
+        val nextFlushTime = nextFlushTimes.get(peer)
+        if (nextFlushTime == null || now >= nextFlushTime) {
+          nextFlushTimes.put(peer, now + nextInterval())
+          if (nextFlushTime != null && flushPeer(peer)) {
+            messageCount += 1
+          }
+        }
+      }
+      return messageCount
+    }
+  }
+
+  /** Send an inv message with transactions queued for a peer.
+    *
+    * @param peer The peer to flush.
+    * @return true if an inv message was sent; false if nothing was queued or the peer is paused.
+    */
+  fun flushPeer(peer : Peer) : Boolean {
+    // Keep inventories queued for a paused peer until it reads what we sent.
+    if (peer.isPaused()) {
+      return false
+    }
+    val transactionHashes = peer.takeTransactionInventories(maxInventoriesPerMessage)
+    if (transactionHashes.isEmpty()) {
+      return false
+    }
+    val invMessage = InvFactory.createTransactionInventories(transactionHashes)
+    peer.send(invMessage)
+    logger.trace("Relayed transaction inventories. Message : ${MessageSummarizer.summarize(invMessage)}")
+    return true
+  }
+
+  /** Get an exponentially distributed interval whose average is averageIntervalMillis.
+    */
+  private fun nextInterval() : Long {
+    return (-Math.log(1.0 - random.nextDouble()) * averageIntervalMillis).toLong()
+  }
+
+  companion object {
+    val DefaultAverageIntervalMillis = 2000L
+    // Bitcoin Core allows up to 50,000 inventories in an inv message. Keep messages small enough to send quickly.
+    val DefaultMaxInventoriesPerMessage = 1000
+
+    /** Create an inventory relay with settings from scalechain.p2p in the configuration file.
+      *
+      * scalechain.p2p.inv_interval_millis : The average interval between inv messages to a peer.
+      * scalechain.p2p.max_inv_per_message : The maximum number of transactions in an inv message.
+      */
+    fun create(peerSet : PeerSet) : InventoryRelay {
+      val config = Config.get()
+      val averageIntervalMillis =
+        if (config.hasPath("scalechain.p2p.inv_interval_millis")) config.getInt("scalechain.p2p.inv_interval_millis").toLong()
+        else DefaultAverageIntervalMillis
+      val maxInventoriesPerMessage =
+        if (config.hasPath("scalechain.p2p.max_inv_per_message")) config.getInt("scalechain.p2p.max_inv_per_message")
+        else DefaultMaxInventoriesPerMessage
+      return InventoryRelay(peerSet, averageIntervalMillis, maxInventoriesPerMessage)
+    }
+  }
+}
@@ -0,0 +1,137 @@
+package io.scalechain.blockchain.net
+
+import io.scalechain.blockchain.proto.Addr
+import io.scalechain.blockchain.proto.GetBlocks
+import io.scalechain.blockchain.proto.GetHeaders
+import io.scalechain.blockchain.proto.Inv
+import io.scalechain.blockchain.proto.InvType
+import io.scalechain.blockchain.proto.Ping
+import io.scalechain.blockchain.proto.ProtocolMessage
+import io.scalechain.blockchain.proto.Transaction
+import io.scalechain.util.Config
+import org.slf4j.LoggerFactory
+
+/** The rate a peer can send messages of a command.
+  *
+  * @param perSecond The number of messages per second the peer can keep sending.
+  * @param burst The number of messages the peer can send at once after being idle.
+  */
+data class RateLimit(val perSecond : Double, val burst : Double)
+
+/**
+  * A token bucket. A token is added at the rate of the limit up to the burst, and each message takes a token.
+  * Times are System.nanoTime() values passed by callers.
+  */
+class TokenBucket(private val limit : RateLimit, now : Long) {
+  private var tokens = limit.burst
+  private var refilledAt = now
+
+  /** Take a token if there is one.
+    *
+    * @param now The current time.
+    * @return true if a token was taken; false if the bucket was empty.
+    */
+  fun tryTake(now : Long) : Boolean {
+    if (now > refilledAt) {
+      tokens = Math.min(limit.burst, tokens + limit.perSecond * (now - refilledAt) / 1000000000)
+      refilledAt = now
+    }
+    if (tokens < 1.0) {
+      return false
+    }
+    tokens -= 1.0
+    return true
+  }
+}
+
+/**
+  * Rate limits of messages a peer can send, by command. Messages of commands without a limit are not limited.
+  *
+  * Only messages a peer can send whenever it wants are limited, such as transactions, inventories of transactions, addresses and pings.
+  * Blocks, headers and transactions are never limited if we asked for them. See PriorityMessageDispatcher.
+  * Inventories with blocks are not limited either, so that a flood of transaction inventories does not take the tokens block announcements need.
+  */
+class MessageRateLimits(val limits : Map<String, RateLimit>) {
+  companion object {
+    private val logger = LoggerFactory.getLogger(MessageRateLimits::class.java)
+
+    val DefaultLimits = mapOf(
+      "tx" to RateLimit(200.0, 1000.0),
+      "inv" to RateLimit(100.0, 1000.0),
+      "addr" to RateLimit(1.0, 10.0),
+      "ping" to RateLimit(1.0, 10.0),
+      "getblocks" to RateLimit(20.0, 100.0),
+      "getheaders" to RateLimit(20.0, 100.0)
+    )
+
+    private var theLimits : MessageRateLimits? = null
+
+    /** Create rate limits with settings from scalechain.p2p.rate_limits in the configuration file. Commands not configured keep the default limits.
+      *
+      * scalechain.p2p.rate_limits.<command>.per_second : The number of messages per second a peer can keep sending. ex> scalechain.p2p.rate_limits.tx.per_second
+      * scalechain.p2p.rate_limits.<command>.burst : The number of messages a peer can send at once.
+      */
+    fun create(config : Config = Config.get()) : MessageRateLimits {
+      val limits = DefaultLimits.mapValues { entry ->
+        val path = "scalechain.p2p.rate_limits.${entry.key}"
+        RateLimit(
+          if (config.hasPath("${path}.per_second")) config.getInt("${path}.per_second").toDouble() else entry.value.perSecond,
+          if (config.hasPath("${path}.burst")) config.getInt("${path}.burst").toDouble() else entry.value.burst
+        )
+      }
+      return MessageRateLimits(limits)
+    }
+
+    /** Get the rate limits shared by all peers. Created from the configuration file on the first call.
+      */
+    fun get() : MessageRateLimits {
+      synchronized(this) {
+        if (theLimits == null) {
+          val limits = create()
+          logger.info("Message rate limits per peer : ${limits.limits}")
+          theLimits = limits
+        }
+        return theLimits!!
+      }
+    }
+  }
+}
+
+/**
+  * Limits the rate of messages received from a peer, with a token bucket for each command.
+  * Called only on the event loop of the peer's channel, so it is not thread-safe.
+  *
+  * @param limits The rate limits by command.
+  * @param nanoTime Returns the current time. Replaced by tests.
+  */
+class MessageRateLimiter(private val limits : MessageRateLimits,
+                         private val nanoTime : () -> Long = { System.nanoTime() }) {
+  private val buckets = hashMapOf<String, TokenBucket>()
+
+  /** Check if a message is within the rate limit of its command, taking a token if it is.
+    *
+    * @return true if the message can be processed; false if the peer exceeded the rate limit.
+    */
+  fun tryAcquire(message : ProtocolMessage) : Boolean {
+    val command = commandOf(message) ?: return true
+    val limit = limits.limits[command] ?: return true
+    val now = nanoTime()
+    val bucket = buckets.getOrPut(command) { TokenBucket(limit, now) }
+    return bucket.tryTake(now)
+  }
+
+  companion object {
+    /** The command of a message that can be rate limited, or null for other messages.
+      */
+    fun commandOf(message : ProtocolMessage) : String? =
+      when(message) {
+        is Transaction -> "tx"
+        is Inv -> if (message.inventories.all { it.invType == InvType.MSG_TX }) "inv" else null
+        is Addr -> "addr"
+        is Ping -> "ping"
+        is GetBlocks -> "getblocks"
+        is GetHeaders -> "getheaders"
+        else -> null
+      }
+  }
+}
@@ -2,6 +2,8 @@ package io.scalechain.blockchain.net
 
 import io.scalechain.blockchain.proto.Transaction
 import io.scalechain.blockchain.proto.Block
+import io.scalechain.blockchain.proto.BlockTxn
+import io.scalechain.blockchain.proto.CmpctBlock
 import io.scalechain.blockchain.proto.ProtocolMessage
 import io.scalechain.util.StringUtil
 import io.scalechain.blockchain.script.hash
@@ -18,6 +20,12 @@ object MessageSummarizer {
       message is Transaction -> {
         return "Transaction. Hash : ${message.hash()}"
       }
+      message is CmpctBlock -> {
+        return "CmpctBlock. Hash : ${message.header.hash()}, Short IDs : ${message.shortIds.size}, Prefilled : ${message.prefilledTransactions.size}"
+      }
+      message is BlockTxn -> {
+        return "BlockTxn. Hash : ${message.blockHash}, Transactions : ${message.transactions.size}"
+      }
       else -> {
         return StringUtil.getBrief(message.toString(), 256)
       }
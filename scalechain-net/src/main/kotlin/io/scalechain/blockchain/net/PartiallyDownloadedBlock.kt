@@ -0,0 +1,125 @@
+package io.scalechain.blockchain.net
+
+import io.scalechain.blockchain.chain.MerkleRootCalculator
+import io.scalechain.blockchain.net.message.CompactBlockFactory
+import io.scalechain.blockchain.proto.*
+import io.scalechain.blockchain.script.hash
+
+/**
+  * A block being reconstructed from a cmpctblock message.
+  *
+  * (1) Prefilled transactions are put at their indexes.
+  * (2) fillFromPool finds the other transactions by their short IDs among the hashes of transactions in the pool.
+  * (3) Transactions not found in the pool are requested with getblocktxn, and filled by fillMissing.
+  * (4) toBlock returns the block if the merkle root of the transactions matches the block header.
+  *     If it does not match, a short ID matched a wrong transaction, and the full block should be requested.
+  *
+  * @param cmpctBlock The cmpctblock message.
+  * @param transactions The transactions of the block. A slot is null until the transaction is found.
+  * @param indexByShortId short ID -> the index of the transaction in the block.
+  */
+class PartiallyDownloadedBlock private constructor(val cmpctBlock : CmpctBlock,
+                                                   private val transactions : Array<Transaction?>,
+                                                   private val indexByShortId : Map<Long, Int>) {
+  val blockHash : Hash = cmpctBlock.header.hash()
+
+  /** Fill transactions whose short IDs match transactions in the pool.
+    * Short IDs are calculated from the hashes of pool transactions, and only the transactions that matched are read.
+    * If more than one pool transaction matches the same short ID, the transaction is left missing.
+    *
+    * @param poolTransactionHashes The hashes of transactions in the transaction pool.
+    * @param getTransaction Read a pool transaction by its hash. Returns null if the transaction is no longer in the pool.
+    */
+  fun fillFromPool(poolTransactionHashes : List<Hash>, getTransaction : (Hash) -> Transaction?) : Unit {
+    val hasher = CompactBlockFactory.shortIdHasher(cmpctBlock.header, cmpctBlock.nonce)
+    // The index of a transaction in the block -> the hash of the pool transaction that matched it.
+    val matchedHashes = hashMapOf<Int, Hash>()
+    val collidedIndexes = hashSetOf<Int>()
+    poolTransactionHashes.forEach { transactionHash ->
+      val index = indexByShortId.get(CompactBlockFactory.shortId(hasher, transactionHash))
+      if (index != null && transactions[index] == null) {
+        if (matchedHashes.put(index, transactionHash) != null) {
+          collidedIndexes.add(index)
+        }
+      }
+    }
+    matchedHashes.forEach { (index, transactionHash) ->
+      if (!collidedIndexes.contains(index)) {
+        transactions[index] = getTransaction(transactionHash)
+      }
+    }
+  }
+
+  /** Get the indexes of transactions not found yet, in ascending order.
+    */
+  fun missingIndexes() : List<Int> {
+    return transactions.indices.filter { transactions[it] == null }
+  }
+
+  /** Fill the missing transactions with the transactions received in a blocktxn message.
+    *
+    * @param missingTransactions The transactions in the order of missingIndexes.
+    * @return true if all missing transactions were filled; false if the number of transactions does not match.
+    */
+  fun fillMissing(missingTransactions : List<Transaction>) : Boolean {
+    val indexes = missingIndexes()
+    if (indexes.size != missingTransactions.size) {
+      return false
+    }
+    indexes.forEachIndexed { i, index ->
+      transactions[index] = missingTransactions[i]
+    }
+    return true
+  }
+
+  /** Get the reconstructed block.
+    *
+    * @return The block, or null if any transaction is missing or the merkle root does not match the block header.
+    */
+  fun toBlock() : Block? {
+    if (transactions.any { it == null }) {
+      return null
+    }
+    val blockTransactions = transactions.map { it!! }
+    if (MerkleRootCalculator.calculate(blockTransactions) != cmpctBlock.header.hashMerkleRoot) {
+      return null
+    }
+    return Block(cmpctBlock.header, blockTransactions)
+  }
+
+  companion object {
+    // The maximum number of transactions in a cmpctblock message we reconstruct.
+    val MaxTransactionCount = 100000
+
+    /** Start reconstructing a block from a cmpctblock message.
+      *
+      * @param cmpctBlock The cmpctblock message.
+      * @return The partially downloaded block, or null if the message is invalid or two transactions have the same short ID.
+      *         The full block should be requested if null is returned.
+      */
+    fun create(cmpctBlock : CmpctBlock) : PartiallyDownloadedBlock? {
+      val transactionCount = cmpctBlock.shortIds.size + cmpctBlock.prefilledTransactions.size
+      if (transactionCount == 0 || transactionCount > MaxTransactionCount) {
+        return null
+      }
+
+      val transactions = arrayOfNulls<Transaction>(transactionCount)
+      val prefilledIndexes = CompactBlockFactory.decodeIndexes(cmpctBlock.prefilledTransactions.map { it.index }, transactionCount) ?: return null
+      prefilledIndexes.forEachIndexed { i, index ->
+        transactions[index] = cmpctBlock.prefilledTransactions[i].transaction
+      }
+
+      val indexByShortId = hashMapOf<Long, Int>()
+      var shortIdPosition = 0
+      transactions.indices.forEach { index ->
+        if (transactions[index] == null) {
+          if (indexByShortId.put(cmpctBlock.shortIds[shortIdPosition], index) != null) {
+            return null
+          }
+          shortIdPosition += 1
+        }
+      }
+      return PartiallyDownloadedBlock(cmpctBlock, transactions, indexByShortId)
+    }
+  }
+}
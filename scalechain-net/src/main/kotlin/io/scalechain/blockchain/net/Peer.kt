@@ -1,11 +1,24 @@
 package io.scalechain.blockchain.net
 
 import java.net.InetSocketAddress
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import io.netty.buffer.ByteBuf
 import io.netty.channel.ChannelFuture
 import io.netty.channel.ChannelFutureListener
 import io.netty.channel.Channel
+import io.netty.channel.WriteBufferWaterMark
+import io.scalechain.blockchain.proto.Hash
 import io.scalechain.blockchain.proto.ProtocolMessage
 import io.scalechain.blockchain.proto.Version
+import io.scalechain.blockchain.proto.codec.BitcoinMessageEnvelopeCodec
+import io.scalechain.blockchain.proto.codec.BitcoinProtocol
+import io.scalechain.blockchain.proto.codec.BitcoinProtocolCodec
+import io.scalechain.blockchain.net.message.InvFactory
+import io.scalechain.blockchain.net.p2p.NodeThrottle
+import io.scalechain.blockchain.net.p2p.ReceivedBytesCounter
 import io.scalechain.util.StackUtil
 import org.slf4j.LoggerFactory
 
@@ -23,6 +36,21 @@ data class Peer(private val channel : Channel) {
   var versionOption : Version? = null
   var pongReceived : Int? = null
 
+  /**
+    * True if the peer asked us to announce new blocks with cmpctblock messages. Set when we receive a sendcmpct message.
+    */
+  @Volatile var announceCompactBlocks : Boolean = false
+
+  /**
+    * The RTT, throughput and stalls of the peer measured by BlockDownloadScheduler.
+    */
+  val performance = PeerPerformance()
+
+  /**
+    * The sum of scores of misbehaviors of the peer, such as sending invalid transactions. See misbehave.
+    */
+  private val banScore = AtomicInteger()
+
   /**
     * Update version received from the peer.
     *
@@ -45,9 +73,213 @@ data class Peer(private val channel : Channel) {
 //    true
   }
 
+  /** Close the connection to the peer. The peer is removed from the peer set when the channel is closed.
+    */
+  fun disconnect() : Unit {
+    channel.close()
+  }
+
+  /** Increase the ban score of the peer for a misbehavior. Disconnect the peer once the ban score reaches BanThreshold.
+    *
+    * @param score The score of the misbehavior.
+    * @param reason The description of the misbehavior.
+    * @return true if the peer was disconnected; false otherwise.
+    */
+  fun misbehave(score : Int, reason : String) : Boolean {
+    val newBanScore = banScore.addAndGet(score)
+    logger.info("A peer misbehaved. Ban score : ${newBanScore}, Reason : ${reason}, Peer : ${channel.remoteAddress()}")
+    if (newBanScore >= BanThreshold) {
+      logger.warn("Disconnecting a peer that reached the ban threshold. Ban score : ${newBanScore}, Peer : ${channel.remoteAddress()}")
+      disconnect()
+      return true
+    }
+    return false
+  }
+
+  fun banScore() : Int = banScore.get()
+
+  /** The bytes received from the peer. Counted by ReceivedBytesCounter on the pipeline of the channel.
+    */
+  fun receivedBytes() : Long = ReceivedBytesCounter.receivedBytesOf(channel).get()
+
   fun send(message : ProtocolMessage) {
     val messageString = MessageSummarizer.summarize(message)
-    channel.writeAndFlush(message).addListener(object : ChannelFutureListener {
+    channel.writeAndFlush(message).addListener(sendResultLogger(messageString))
+  }
+
+  /** Send a message whose payload is already serialized, such as a block read from the record storage.
+    * Only the envelope is encoded, so the payload is not decoded and encoded again.
+    *
+    * @param command The command of the message, such as "block".
+    * @param payload The serialized message.
+    */
+  fun sendRaw(command : String, payload : ByteArray) {
+    val encoded = channel.alloc().ioBuffer(BitcoinMessageEnvelopeCodec.envelopSize(payload.size.toLong()).toInt())
+    try {
+      RawCodec.encodeRaw(command, payload, encoded)
+    } catch (e : Exception) {
+      encoded.release()
+      throw e
+    }
+    channel.writeAndFlush(encoded).addListener(sendResultLogger("${command}(${payload.size} bytes)"))
+  }
+
+  /** The number of broadcast messages skipped because the peer was paused. */
+  private val skippedMessageCount = AtomicLong()
+
+  fun skippedMessageCount() : Long = skippedMessageCount.get()
+
+  /** The bytes queued on the outbound buffer of the channel, not flushed to the socket yet.
+    */
+  fun pendingOutboundBytes() : Long {
+    val outboundBuffer = channel.unsafe().outboundBuffer()
+    return if (outboundBuffer == null) 0L else outboundBuffer.totalPendingWriteBytes()
+  }
+
+  fun isWritable() : Boolean = channel.isWritable
+
+  // Guards pausedSince and pausedNanos.
+  private val pauseLock = Any()
+  // The System.nanoTime() when the peer was paused, or null if the peer is not paused.
+  private var pausedSince : Long? = null
+  private var pausedNanos = 0L
+
+  /** Check if we should stop sending data the peer asked for, such as blocks for getdata and inv messages.
+    *
+    * The peer is paused if the outbound buffer of the channel is above the high water mark,
+    * or if the bytes queued for all peers exceed the budget of NodeThrottle while the peer has more than the low water mark queued.
+    * A peer that reads what we send has little queued, so it is not paused even while the budget is exhausted.
+    *
+    * @return true if the peer is paused.
+    */
+  fun isPaused() : Boolean {
+    val paused = !channel.isWritable || (NodeThrottle.isOverBudget() && pendingOutboundBytes() >= OutboundLowWaterMark)
+    synchronized(pauseLock) {
+      val since = pausedSince
+      if (paused && since == null) {
+        pausedSince = System.nanoTime()
+        logger.debug("Paused sending to a slow peer : ${channel.remoteAddress()}, queued bytes : ${pendingOutboundBytes()}")
+      } else if (!paused && since != null) {
+        val nanos = System.nanoTime() - since
+        pausedSince = null
+        pausedNanos += nanos
+        NodeThrottle.recordPause(nanos)
+        logger.debug("Resumed sending to a peer paused for ${nanos / 1000000} ms : ${channel.remoteAddress()}")
+      }
+    }
+    return paused
+  }
+
+  /** The total time the peer was paused in milliseconds, including the current pause.
+    */
+  fun pausedMillis() : Long {
+    synchronized(pauseLock) {
+      val since = pausedSince
+      return (pausedNanos + (if (since == null) 0L else System.nanoTime() - since)) / 1000000
+    }
+  }
+
+  /** Run a task on the event loop of the channel after a delay.
+    */
+  fun schedule(delayMillis : Long, task : () -> Unit) : Unit {
+    channel.eventLoop().schedule(Runnable { task() }, delayMillis, TimeUnit.MILLISECONDS)
+  }
+
+  /** Run a task on the event loop of the channel after the tasks and I/O events already pending.
+    */
+  fun execute(task : () -> Unit) : Unit {
+    channel.eventLoop().execute(Runnable { task() })
+  }
+
+  /** Send a message already encoded by the caller. Used for broadcasting a message encoded once for all peers.
+    *
+    * If the peer is paused (See isPaused), the message is skipped.
+    * A slow peer should not make us queue every broadcast message for it in memory.
+    * Blocks are sent with sendEncodedBlock, so that skipped blocks are announced later.
+    *
+    * @param encoded The encoded message. A retained duplicate is written, so the caller still owns the buffer.
+    * @param messageString The summary of the message for logging.
+    * @return true if the message was written; false if it was skipped.
+    */
+  fun sendEncoded(encoded : ByteBuf, messageString : String) : Boolean {
+    if (isPaused()) {
+      skippedMessageCount.incrementAndGet()
+      logger.debug("Skipped sending to a paused peer : ${channel.remoteAddress()}, ${messageString}")
+      return false
+    }
+    channel.writeAndFlush(encoded.retainedDuplicate()).addListener(sendResultLogger(messageString))
+    return true
+  }
+
+  /** Hashes of blocks whose block or cmpctblock message was skipped because the peer was paused.
+    * They are announced with an inv message once the peer is not paused, so the peer can ask for them with getdata.
+    * Only the latest MaxDeferredBlockAnnouncements hashes are kept. A peer that missed more blocks catches up with getheaders.
+    */
+  private val deferredBlockAnnouncements = object : LinkedHashMap<Hash, Unit>() {
+    override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Hash, Unit>?): Boolean = size > MaxDeferredBlockAnnouncements
+  }
+
+  // Whether announceDeferredBlocks is scheduled to run on the event loop.
+  private val blockAnnouncementRetryScheduled = AtomicBoolean(false)
+
+  /** Send a block message already encoded by the caller, such as a block or cmpctblock message of a newly mined block.
+    *
+    * Unlike other broadcast messages, a block is not dropped if the peer is paused. It is announced with an inv message once the peer is not paused.
+    *
+    * @param encoded The encoded message. A retained duplicate is written, so the caller still owns the buffer.
+    * @param messageString The summary of the message for logging.
+    * @param blockHash The hash of the block in the message.
+    * @return true if the message was written; false if the block announcement was deferred.
+    */
+  fun sendEncodedBlock(encoded : ByteBuf, messageString : String, blockHash : Hash) : Boolean {
+    if (sendEncoded(encoded, messageString)) {
+      return true
+    }
+    synchronized(inventoryLock) {
+      deferredBlockAnnouncements.put(blockHash, Unit)
+    }
+    scheduleDeferredBlockAnnouncements()
+    return false
+  }
+
+  /** Announce blocks deferred while the peer was paused. See sendEncodedBlock.
+    * Called when the channel of the peer becomes writable again, and periodically while the peer is paused but writable.
+    *
+    * @return true if an inv message was sent.
+    */
+  fun announceDeferredBlocks() : Boolean {
+    if (isPaused()) {
+      scheduleDeferredBlockAnnouncements()
+      return false
+    }
+    val blockHashes = synchronized(inventoryLock) {
+      val hashes = deferredBlockAnnouncements.keys.filterNot { knownInventories.containsKey(it) }
+      deferredBlockAnnouncements.clear()
+      hashes.forEach { knownInventories.put(it, Unit) }
+      hashes
+    }
+    if (blockHashes.isEmpty()) {
+      return false
+    }
+    send(InvFactory.createBlockInventories(blockHashes))
+    return true
+  }
+
+  /** Retry announcing deferred blocks after a while, if the peer is paused only by the budget of NodeThrottle.
+    * If the channel is not writable, channelWritabilityChanged announces them. See ProtocolMessageHandler.resume.
+    */
+  private fun scheduleDeferredBlockAnnouncements() : Unit {
+    val hasDeferredBlocks = synchronized(inventoryLock) { deferredBlockAnnouncements.isNotEmpty() }
+    if (hasDeferredBlocks && channel.isWritable && channel.isActive && blockAnnouncementRetryScheduled.compareAndSet(false, true)) {
+      schedule(BlockAnnouncementRetryMillis) {
+        blockAnnouncementRetryScheduled.set(false)
+        announceDeferredBlocks()
+      }
+    }
+  }
+
+  private fun sendResultLogger(messageString : String) : ChannelFutureListener {
+    return object : ChannelFutureListener {
       override fun operationComplete(future:ChannelFuture) {
         assert( future.isDone )
         if (future.isSuccess) { // completed successfully
@@ -62,10 +294,149 @@ data class Peer(private val channel : Channel) {
           logger.debug("Canceled to send to peer : ${channel.remoteAddress()}, ${messageString}")
         }
       }
-    })
+    }
+  }
+
+  // Guards knownInventories, pendingTransactionInventories, requestedTransactions and deferredBlockAnnouncements.
+  private val inventoryLock = Any()
+
+  /** Hashes of inventories the peer already has, because the peer announced them to us or we announced them to the peer.
+    * Only the latest MaxKnownInventories hashes are kept.
+    */
+  private val knownInventories = object : LinkedHashMap<Hash, Unit>() {
+    override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Hash, Unit>?): Boolean = size > MaxKnownInventories
+  }
+
+  /** Hashes of transactions to announce to the peer at the next flush of InventoryRelay.
+    * Flushes are skipped while the peer is paused, so only the latest MaxPendingTransactionInventories hashes are kept.
+    */
+  private val pendingTransactionInventories = object : LinkedHashMap<Hash, Unit>() {
+    override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Hash, Unit>?): Boolean = size > MaxPendingTransactionInventories
+  }
+
+  /** Hashes of transactions we asked the peer for with getdata messages, and did not receive yet.
+    * Only the latest MaxRequestedTransactions hashes are kept.
+    */
+  private val requestedTransactions = object : LinkedHashMap<Hash, Unit>() {
+    override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Hash, Unit>?): Boolean = size > MaxRequestedTransactions
+  }
+
+  /** Remember that the peer has an inventory, so that we do not announce it to the peer.
+    *
+    * @param hash The hash of the block or transaction.
+    */
+  fun addKnownInventory(hash : Hash) : Unit {
+    synchronized(inventoryLock) {
+      knownInventories.put(hash, Unit)
+    }
+  }
+
+  /** Check if the peer has an inventory, because the peer announced it to us or we announced it to the peer.
+    *
+    * @param hash The hash of the block or transaction.
+    */
+  fun hasKnownInventory(hash : Hash) : Boolean {
+    synchronized(inventoryLock) {
+      return knownInventories.containsKey(hash)
+    }
+  }
+
+  /** Queue a transaction to announce to the peer, unless the peer already has it.
+    *
+    * @param transactionHash The hash of the transaction to announce.
+    * @return true if the transaction was queued; false if the peer has it or it was queued already.
+    */
+  fun queueTransactionInventory(transactionHash : Hash) : Boolean {
+    synchronized(inventoryLock) {
+      if (knownInventories.containsKey(transactionHash)) {
+        return false
+      }
+      return pendingTransactionInventories.put(transactionHash, Unit) == null
+    }
+  }
+
+  /** Take transactions queued to announce to the peer in the order they were queued. They become known to the peer.
+    *
+    * @param maxCount The maximum number of transactions to take.
+    * @return The hashes of the transactions.
+    */
+  fun takeTransactionInventories(maxCount : Int) : List<Hash> {
+    synchronized(inventoryLock) {
+      val transactionHashes = arrayListOf<Hash>()
+      val iterator = pendingTransactionInventories.keys.iterator()
+      while (iterator.hasNext() && transactionHashes.size < maxCount) {
+        val transactionHash = iterator.next()
+        iterator.remove()
+        knownInventories.put(transactionHash, Unit)
+        transactionHashes.add(transactionHash)
+      }
+      return transactionHashes
+    }
+  }
+
+  /** Remember transactions we asked the peer for, so that they are not dropped when the peer sends them. See PriorityMessageDispatcher.
+    *
+    * @param transactionHashes The hashes of the transactions requested with a getdata message.
+    */
+  fun addRequestedTransactions(transactionHashes : List<Hash>) : Unit {
+    synchronized(inventoryLock) {
+      transactionHashes.forEach { requestedTransactions.put(it, Unit) }
+    }
+  }
+
+  /** Check if we are waiting for any transaction we asked the peer for.
+    */
+  fun hasRequestedTransactions() : Boolean {
+    synchronized(inventoryLock) {
+      return !requestedTransactions.isEmpty()
+    }
   }
-}
 
+  /** Complete the request of a transaction received from the peer.
+    *
+    * @param transactionHash The hash of the transaction.
+    * @return true if we asked the peer for the transaction; false otherwise.
+    */
+  fun takeRequestedTransaction(transactionHash : Hash) : Boolean {
+    synchronized(inventoryLock) {
+      return requestedTransactions.remove(transactionHash) != null
+    }
+  }
+
+  companion object {
+    // Encodes envelopes of serialized payloads for sendRaw.
+    private val RawCodec = BitcoinProtocolCodec(BitcoinProtocol())
+
+    // The maximum number of inventories remembered as known to a peer.
+    val MaxKnownInventories = 50000
+
+    // The maximum number of transactions queued to announce to a peer. The oldest ones are dropped first.
+    val MaxPendingTransactionInventories = 50000
+
+    // The maximum number of blocks to announce to a peer once it is not paused.
+    val MaxDeferredBlockAnnouncements = 16
+
+    // The interval to retry announcing deferred blocks to a peer paused only by the budget of NodeThrottle.
+    val BlockAnnouncementRetryMillis = 100L
+
+    // The maximum number of transactions remembered as requested from a peer.
+    val MaxRequestedTransactions = 10000
+
+    // A peer is disconnected once its ban score reaches this threshold. Same as the default -banscore of the reference implementation.
+    val BanThreshold = 100
+
+    // The outbound buffer limits of a peer channel. Once the buffered bytes exceed the high water mark,
+    // the channel becomes unwritable until they drop below the low water mark.
+    val OutboundLowWaterMark = 1024 * 1024
+    val OutboundHighWaterMark = 4 * 1024 * 1024
+
+    /** Set the outbound buffer limits on a channel to a peer. Called while initializing the channel.
+      */
+    fun configureOutboundBuffer(channel : Channel) : Unit {
+      channel.config().writeBufferWaterMark = WriteBufferWaterMark(OutboundLowWaterMark, OutboundHighWaterMark)
+    }
+  }
+}
 
 data class PeerInfo(
                      // (Since : 0.10.0) The node’s index number in the local node address database.
@@ -1,12 +1,16 @@
 package io.scalechain.blockchain.net
 
+import io.scalechain.blockchain.net.message.CompactBlockFactory
 import io.scalechain.blockchain.proto.*
+import io.scalechain.blockchain.script.hash
 import org.slf4j.LoggerFactory
 
 /**
   * Created by kangmo on 5/22/16.
   */
-class PeerCommunicator(private val peerSet : PeerSet) {
+class PeerCommunicator(private val peerSet : PeerSet,
+                       val inventoryRelay : InventoryRelay = InventoryRelay(peerSet),
+                       val blockDownloader : BlockDownloadScheduler = BlockDownloadScheduler(peerSet)) {
   private val logger = LoggerFactory.getLogger(PeerCommunicator::class.java)
 
   /*
@@ -26,7 +30,16 @@ class PeerCommunicator(private val peerSet : PeerSet) {
     */
   fun propagateBlock(block : Block) : Unit {
     // Propagating a block is an urgent job to do. Without broadcasting the inventories, send the block itself to the network.
-    sendToAll(block)
+    // Peers that asked for compact blocks get a cmpctblock message, and reconstruct the block from their transaction pools.
+    // Paused peers get an inv message of the block once they are not paused.
+    val blockHash = block.header.hash()
+    val (compactPeers, fullPeers) = peerSet.all().partition { it.announceCompactBlocks }
+    if (compactPeers.isNotEmpty()) {
+      peerSet.sendTo(compactPeers, CompactBlockFactory.create(block), blockHash)
+    }
+    if (fullPeers.isNotEmpty()) {
+      peerSet.sendTo(fullPeers, block, blockHash)
+    }
   }
 
   /** Propagate a newly received transaction to the peers.
@@ -37,6 +50,15 @@ class PeerCommunicator(private val peerSet : PeerSet) {
     sendToAll(transaction)
   }
 
+  /** Relay transactions accepted from a peer to the other peers.
+    * The transactions are announced with inv messages batched by the inventory relay.
+    *
+    * @param transactionHashes The hashes of the accepted transactions.
+    */
+  fun relayTransactions(transactionHashes : List<Hash>) : Unit {
+    inventoryRelay.relayTransactions(transactionHashes)
+  }
+
   /** Get the list of information on each peer.
     *
     * Used by : getpeerinfo RPC.
@@ -0,0 +1,107 @@
+package io.scalechain.blockchain.net
+
+import java.math.BigInteger
+
+/**
+  * Measures how fast a peer responds and sends data. BlockDownloadScheduler requests blocks from peers with the best scores first.
+  *
+  * (1) RTT : The time between a ping we sent and the pong with the same nonce.
+  * (2) Bytes per second : The bytes received from the peer while it had blocks in flight, divided by the time it took.
+  * (3) Stall count : The number of block requests the peer did not respond to in time.
+  *
+  * RTT and bytes per second are exponential moving averages, so that recent samples count more.
+  * Times are System.nanoTime() values passed by callers.
+  */
+class PeerPerformance {
+  // The nonce of the ping waiting for a pong, and the time it was sent.
+  private var pingNonce : BigInteger? = null
+  private var pingSentAt : Long = 0L
+
+  private var rttMillis : Double? = null
+  private var bytesPerSecond : Double? = null
+  private var stallCount : Int = 0
+
+  /** Remember a ping sent to the peer. A ping sent before is forgotten.
+    *
+    * @param nonce The nonce of the ping.
+    * @param now The time the ping was sent.
+    */
+  fun pingSent(nonce : BigInteger, now : Long) : Unit {
+    synchronized(this) {
+      pingNonce = nonce
+      pingSentAt = now
+    }
+  }
+
+  /** Update the RTT with a pong received from the peer.
+    *
+    * @param nonce The nonce of the pong.
+    * @param now The time the pong was received.
+    * @return true if the pong matched the ping we sent; false otherwise.
+    */
+  fun pongReceived(nonce : BigInteger, now : Long) : Boolean {
+    synchronized(this) {
+      if (pingNonce != nonce) {
+        return false
+      }
+      pingNonce = null
+      rttMillis = average(rttMillis, (now - pingSentAt).toDouble() / 1000000)
+      return true
+    }
+  }
+
+  /** Update the throughput with bytes received from the peer.
+    *
+    * @param bytes The bytes received.
+    * @param nanos The time it took to receive the bytes.
+    */
+  fun recordThroughput(bytes : Long, nanos : Long) : Unit {
+    if (nanos <= 0) {
+      return
+    }
+    synchronized(this) {
+      bytesPerSecond = average(bytesPerSecond, bytes.toDouble() * 1000000000 / nanos)
+    }
+  }
+
+  /** Count a block request the peer did not respond to in time.
+    *
+    * @return The stall count including this stall.
+    */
+  fun recordStall() : Int {
+    synchronized(this) {
+      stallCount += 1
+      return stallCount
+    }
+  }
+
+  /** The average RTT in milliseconds, or null if no pong was received. */
+  fun rttMillis() : Double? = synchronized(this) { rttMillis }
+
+  /** The average bytes per second, or null if nothing was measured. */
+  fun bytesPerSecond() : Double? = synchronized(this) { bytesPerSecond }
+
+  fun stallCount() : Int = synchronized(this) { stallCount }
+
+  /** The score of the peer. Higher is better.
+    * Peers not measured yet get the highest score, so that they get requests and get measured.
+    * Peers that stalled before sending anything get the lowest score.
+    */
+  fun score() : Double {
+    synchronized(this) {
+      val measured = bytesPerSecond ?: return if (stallCount == 0) Double.MAX_VALUE else 0.0
+      return measured / (1 + stallCount)
+    }
+  }
+
+  private fun average(current : Double?, sample : Double) : Double {
+    return if (current == null) sample else current + (sample - current) * Smoothing
+  }
+
+  override fun toString() : String = synchronized(this) { "PeerPerformance(rttMillis=$rttMillis, bytesPerSecond=$bytesPerSecond, stallCount=$stallCount)" }
+
+  companion object {
+    // The weight of a new sample in the moving averages.
+    val Smoothing = 0.3
+  }
+}
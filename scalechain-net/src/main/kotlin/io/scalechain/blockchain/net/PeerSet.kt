@@ -2,16 +2,15 @@ package io.scalechain.blockchain.net
 
 import java.net.SocketAddress
 import java.net.InetSocketAddress
+import java.util.concurrent.ConcurrentHashMap
+import io.netty.buffer.ByteBufAllocator
 import io.netty.channel.Channel
-import io.netty.channel.group.ChannelGroupFuture
-import io.netty.channel.group.ChannelGroupFutureListener
-import io.netty.channel.group.ChannelGroup
-import io.netty.channel.group.DefaultChannelGroup
-import io.netty.util.concurrent.ImmediateEventExecutor
 import io.scalechain.blockchain.ErrorCode
 import io.scalechain.blockchain.ChainException
+import io.scalechain.blockchain.proto.Hash
 import io.scalechain.blockchain.proto.ProtocolMessage
-import io.scalechain.util.StackUtil
+import io.scalechain.blockchain.proto.codec.BitcoinProtocol
+import io.scalechain.blockchain.proto.codec.BitcoinProtocolCodec
 import org.slf4j.LoggerFactory
 
 
@@ -21,21 +20,28 @@ import org.slf4j.LoggerFactory
   * Also, we need to remove a peer from the peer set if the peer was disconnected.
   *
   * This class should be thread-safe.
-  * Why? We have a stream running for each TCP connection to a peer.
-  * Each stream needs to access the peer set to register a new peer, send messages to all peers, etc.
-  * As a stream is materialized using Akka actors, multiple threads can run at the same time trying to access the peer set.
+  * Why? Each TCP connection to a peer runs its handlers on an event loop thread,
+  * and each of them needs to access the peer set to register a new peer, send messages to all peers, etc.
+  *
+  * No method holds a lock while it talks to the network.
+  * Peers are kept in a concurrent map, and a copy of the peers is replaced whenever a peer is added or removed.
+  * Broadcasts and queries iterate the copy without any lock, so a broadcast to many peers does not block connects and disconnects.
   */
 class PeerSet {
   private val logger = LoggerFactory.getLogger(PeerSet::class.java)
 
-  /**
-    * A channel group that has all connected channels.
-    * Assumption : When the connection closes, the channel is removed from the channel group.
+  private val peerByAddress = ConcurrentHashMap<InetSocketAddress, Peer>()
+
+  /** The (address, peer) pairs in peerByAddress, replaced as a whole whenever a peer is added or removed.
     */
-  //val channels : ChannelGroup = DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
-  val channels : ChannelGroup = DefaultChannelGroup(ImmediateEventExecutor.INSTANCE);
+  @Volatile
+  private var peerSnapshot : List<Pair<InetSocketAddress, Peer>> = listOf()
 
-  val peerByAddress = mutableMapOf<InetSocketAddress, Peer>()
+  // Serializes updates of peerByAddress and peerSnapshot. Readers do not take it.
+  private val updateLock = Any()
+
+  // Encodes a message once for all peers in sendToAll.
+  private val codec = BitcoinProtocolCodec(BitcoinProtocol())
 
 /*
   fun getPeerByAddress(connectedPeer:Peer, remotePeerAddress : InetSocketAddress) : Peer {
@@ -51,93 +57,103 @@ class PeerSet {
     }
   }
 */
-  /** Add a peer connected via the given channel.
+
+  /** Get the key of a peer in peerByAddress from the remote address of its channel.
     *
-    * @param channel The connected channel.
-    * @return
+    * @param remoteAddress The remote address of the channel.
+    * @param action The action on the peer, used for error messages.
     */
-  fun add(channel : Channel) : Peer {
-    synchronized(this) {
-      val remoteAddress = channel.remoteAddress()
-      when {
-        remoteAddress is InetSocketAddress -> {
-          val peer = Peer(channel)
-          peerByAddress.put(remoteAddress, peer )
-          channels.add(channel)
-          logger.trace("Added a peer to channel group. ${peer}")
-          return peer
-        }
-        // For unit tests. We need to accept a socket whose toString method returns "embedded"
-        remoteAddress is SocketAddress -> {
-          if ( remoteAddress.toString() == "embedded") {
-            val peer = Peer(channel)
-            // Put the peer as a peer on the localhost using port 1000.
-            peerByAddress.put(InetSocketAddress(1000), peer )
-            channels.add(channel)
-            logger.trace("Added a peer to channel group. ${peer}")
-            return peer
-          } else {
-            val message = "The remote address of the channel to add was not the type EmbeddedSocketAddress. Remote Address : ${channel.remoteAddress()}"
-            logger.error(message)
-            throw ChainException(ErrorCode.InternalError, message )
-          }
-        }
-        else -> {
-          val message = "The remote address of the channel to add was not the type InetSocketAddress. Remote Address : ${channel.remoteAddress()}"
+  private fun peerAddress(remoteAddress : SocketAddress?, action : String) : InetSocketAddress {
+    when {
+      remoteAddress is InetSocketAddress -> {
+        return remoteAddress
+      }
+      // For unit tests. We need to accept a socket whose toString method returns "embedded"
+      remoteAddress is SocketAddress -> {
+        if ( remoteAddress.toString() == "embedded") {
+          // Put the peer as a peer on the localhost using port 1000.
+          return InetSocketAddress(1000)
+        } else {
+          val message = "The remote address of the channel to ${action} was not the type EmbeddedSocketAddress. Remote Address : ${remoteAddress}"
           logger.error(message)
           throw ChainException(ErrorCode.InternalError, message )
         }
       }
+      else -> {
+        val message = "The remote address of the channel to ${action} was not the type InetSocketAddress. Remote Address : ${remoteAddress}"
+        logger.error(message)
+        throw ChainException(ErrorCode.InternalError, message )
+      }
+    }
+  }
+
+  private fun updateSnapshot() : Unit {
+    peerSnapshot = peerByAddress.entries.map { Pair(it.key, it.value) }
+  }
+
+  /** Add a peer connected via the given channel.
+    *
+    * @param channel The connected channel.
+    * @return
+    */
+  fun add(channel : Channel) : Peer {
+    val address = peerAddress(channel.remoteAddress(), "add")
+    val peer = Peer(channel)
+    synchronized(updateLock) {
+      peerByAddress.put(address, peer)
+      updateSnapshot()
     }
+    logger.trace("Added a peer. ${peer}")
+    return peer
   }
 
   /**
     * Send a message to all connected peers.
- *
+    *
+    * The message is encoded once into a buffer shared by all peers. Each peer writes a retained duplicate of it.
+    * A peer whose outbound buffer is above the high water mark skips the message. See Peer.sendEncoded.
+    *
     * @param message The message to send.
     */
   fun sendToAll(message : ProtocolMessage): Unit {
-    synchronized(this) {
-      val messageString = MessageSummarizer.summarize(message)
-
-      if (channels.size > 0) {
-        logger.trace("Sending to all peers : ${messageString}")
-
-        channels.writeAndFlush(message).addListener(object : ChannelGroupFutureListener {
-          override fun operationComplete(future: ChannelGroupFuture) {
-            assert(future.isDone)
-            val remoteAddresses = channels.iterator().asSequence().map{it.remoteAddress()}.joinToString(",");
-            if (future.isSuccess) {
-              // completed successfully
-              logger.debug("Successfully sent to peers : ${remoteAddresses}, ${messageString}")
-            }
-
-            if (future.cause() != null) {
-              // completed with failure
-              val failureDescriptions =
-                future.cause().iterator().asSequence().map { entry ->
-                  val channel: Channel = entry.key
-                  val throwable: Throwable = entry.value
-                  val causeDescription =
-                    if (throwable.cause == null)
-                      ""
-                    else
-                      "Cause : { exception : ${throwable.cause!!}, stack : ${StackUtil.getStackTrace(throwable.cause!!)} }"
-                  "An exception happened for remote address : ${channel.remoteAddress()}, Exception : ${throwable}, Stack Trace : ${StackUtil.getStackTrace(throwable)}. ${causeDescription}}"
-                }.joinToString("\n")
-
-              logger.debug("Failed to send to (some of) peers : ${remoteAddresses}, detail : ${failureDescriptions}")
-            }
-
-            if (future.isCancelled) {
-              // completed by cancellation
-              logger.debug("Canceled to send to peers : ${remoteAddresses}, ${messageString}")
-            }
-          }
-        })
-      } else {
-        logger.warn("No connected peer to send the message : ${messageString}")
+    val livePeers = all().toList()
+    if (livePeers.isEmpty()) {
+      logger.warn("No connected peer to send the message : ${MessageSummarizer.summarize(message)}")
+      return
+    }
+
+    sendTo(livePeers, message)
+  }
+
+  /**
+    * Send a message to the given peers. The message is encoded once as sendToAll does.
+    *
+    * @param peers The peers to send the message to.
+    * @param message The message to send.
+    * @param blockHash The hash of the block if the message is a block or cmpctblock message.
+    *                  Paused peers get an inv message of the block later instead of skipping it. See Peer.sendEncodedBlock.
+    */
+  fun sendTo(peers : List<Peer>, message : ProtocolMessage, blockHash : Hash? = null): Unit {
+    if (peers.isEmpty()) {
+      return
+    }
+
+    val messageString = MessageSummarizer.summarize(message)
+    logger.trace("Sending to ${peers.size} peers : ${messageString}")
+
+    val encoded = ByteBufAllocator.DEFAULT.ioBuffer(1024)
+    try {
+      codec.encode(message, encoded)
+      peers.forEach { peer ->
+        if (blockHash != null) {
+          peer.sendEncodedBlock(encoded, messageString, blockHash)
+        } else {
+          peer.sendEncoded(encoded, messageString)
+        }
       }
+    } finally {
+      // Each peer holds its own reference to the buffer until its write completes.
+      encoded.release()
     }
   }
 
@@ -145,34 +161,14 @@ class PeerSet {
   /**
     * Remove a peer that matches the remote address.
     * Called when the connection to the peer closes.
- *
+    *
     * @param remoteAddress The remote address of the peer to remove.
     */
   fun remove(remoteAddress : SocketAddress): Unit {
-    synchronized(this) {
-      // Note : nothing to do for the channels.
-      // when a channel is disconnected, the channel is removed from channels group.
-
-      when {
-        remoteAddress is InetSocketAddress -> {
-          peerByAddress.remove(remoteAddress)
-        }
-        // For unit tests. We need to accept a socket whose toString method returns "embedded"
-        remoteAddress is SocketAddress -> {
-          if ( remoteAddress.toString() == "embedded") {
-            peerByAddress.remove(InetSocketAddress(1000) )
-          } else {
-            val message = "The remote address of the channel to remove was not the type EmbeddedSocketAddress. Remote Address : ${remoteAddress}"
-            logger.error(message)
-            throw ChainException(ErrorCode.InternalError, message )
-          }
-        }
-        else -> {
-          val message = "The remote address of the channel to remove was not the type InetSocketAddress or EmbeddedSocketAddress. Remote Address : ${remoteAddress}"
-          logger.error(message)
-          throw ChainException(ErrorCode.InternalError, message )
-        }
-      }
+    val address = peerAddress(remoteAddress, "remove")
+    synchronized(updateLock) {
+      peerByAddress.remove(address)
+      updateSnapshot()
     }
   }
 /*
@@ -189,23 +185,11 @@ class PeerSet {
   }
 */
   fun all() : Iterable<Peer> {
-    synchronized(this) {
-      // BUGBUG : Make sure if it is safe to return an iterable from the synchronized block.
-      return peerByAddress.values.filter{it.isLive()}
-    }
+    return peerSnapshot.map { it.second }.filter { it.isLive() }
   }
 
   fun peers() : Iterable<Pair<InetSocketAddress, Peer>> {
-    synchronized(this) {
-      return peerByAddress.map { entry ->
-        val address = entry.key
-        val peer = entry.value
-        if (peer.isLive())
-          Pair(address,peer)
-        else
-          null
-      }.filterNotNull()
-    }
+    return peerSnapshot.filter { it.second.isLive() }
   }
 
   /** See if a peer from the given address exists. This method does not check the port.
@@ -1,6 +1,7 @@
 package io.scalechain.blockchain.net
 
 import io.netty.channel.ChannelFuture
+import io.scalechain.blockchain.net.p2p.NodeThrottle
 import io.scalechain.blockchain.net.p2p.RetryingConnector
 import io.scalechain.util.PeerAddress
 
@@ -12,6 +13,18 @@ object PeerToPeerNetworking {
     // The peer set that keeps multiple PeerNode(s).
     val peerSet = PeerSet.create()
 
+    NodeThrottle.configure()
+
+    val inventoryRelay = InventoryRelay.create(peerSet)
+    inventoryRelay.start()
+
+    // Blocks are downloaded from the fastest peers. During the initial block download, any peer can be asked for blocks.
+    val blockDownloader = BlockDownloadScheduler.create(peerSet) { Node.theNode?.isInitialBlockDownload() ?: false }
+    blockDownloader.start()
+
+    // Create the communicator before accepting connections. Message handlers of all peers share it.
+    thePeerCommunicator = PeerCommunicator(peerSet, inventoryRelay, blockDownloader)
+
     // TODO : BUGBUG : Need to call nodeServer.shutdown before the process finishes ?
     val nodeServer = NodeServer(peerSet)
     val bindChannelFuture : ChannelFuture = nodeServer.listen(inboundPort)
@@ -22,7 +35,6 @@ object PeerToPeerNetworking {
       RetryingConnector(peerSet, retryIntervalSeconds=1).connect(peer.address, peer.port)
     }
 
-    thePeerCommunicator = PeerCommunicator(peerSet)
     return thePeerCommunicator
   }
 
@@ -0,0 +1,141 @@
+package io.scalechain.blockchain.net
+
+import io.scalechain.blockchain.proto.Addr
+import io.scalechain.blockchain.proto.GetData
+import io.scalechain.blockchain.proto.Inv
+import io.scalechain.blockchain.proto.InvType
+import io.scalechain.blockchain.proto.ProtocolMessage
+import io.scalechain.blockchain.proto.Transaction
+import io.scalechain.util.ExceptionUtil
+import io.scalechain.util.StackUtil
+import org.slf4j.LoggerFactory
+import java.util.ArrayDeque
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+  * Dispatches messages received from a peer so that block and header traffic is served ahead of transaction gossip.
+  *
+  * (1) A message exceeding the rate limit of its command is dropped. See MessageRateLimiter.
+  *     Transactions we asked for with getdata messages are never dropped, because they are not requested again.
+  * (2) Priority messages, such as version, ping, headers and blocks, and inventories or requests of blocks are processed as soon as they arrive.
+  * (3) Other messages, such as transactions and inventories of transactions, are deferred until the channel read everything available.
+  *     Deferred messages are processed in the order they arrived, drainBatchSize messages at a time.
+  *     The rest is processed on a task scheduled on the event loop, so that other channels on the loop and new priority messages go first.
+  *     Once maxDeferredMessages messages are waiting, new ones are dropped, except transactions we asked for.
+  *     A dropped inventory of transactions is not requested, so the transactions can be requested again when another peer announces them.
+  *
+  * Called only on the event loop of the peer's channel.
+  *
+  * @param rateLimiter The rate limiter of the peer.
+  * @param execute Runs a task on the event loop of the peer's channel after pending tasks and I/O events.
+  * @param process Processes a message.
+  * @param isRequested Returns true for a transaction we asked the peer for. Called once for each message.
+  */
+class PriorityMessageDispatcher(private val rateLimiter : MessageRateLimiter,
+                                private val execute : (() -> Unit) -> Unit,
+                                private val process : (ProtocolMessage) -> Unit,
+                                private val maxDeferredMessages : Int = DefaultMaxDeferredMessages,
+                                private val drainBatchSize : Int = DefaultDrainBatchSize,
+                                private val isRequested : (ProtocolMessage) -> Boolean = { false }) {
+  private val logger = LoggerFactory.getLogger(PriorityMessageDispatcher::class.java)
+
+  private val deferredMessages = ArrayDeque<ProtocolMessage>()
+  // Whether a task to drain deferred messages is scheduled on the event loop.
+  private var drainScheduled = false
+
+  private val rateLimitedCount = AtomicLong()
+  private val deferredCount = AtomicLong()
+  private val droppedCount = AtomicLong()
+
+  /** The number of messages dropped because the peer exceeded the rate limit. */
+  fun rateLimitedCount() : Long = rateLimitedCount.get()
+
+  /** The number of messages deferred behind priority messages. */
+  fun deferredCount() : Long = deferredCount.get()
+
+  /** The number of messages dropped because too many messages were deferred. */
+  fun droppedCount() : Long = droppedCount.get()
+
+  /** The number of deferred messages not processed yet. */
+  fun pendingCount() : Int = deferredMessages.size
+
+  /** Dispatch a message received from the peer.
+    */
+  fun dispatch(message : ProtocolMessage) : Unit {
+    val requested = isRequested(message)
+    if (!requested && !rateLimiter.tryAcquire(message)) {
+      rateLimitedCount.incrementAndGet()
+      TotalRateLimitedCount.incrementAndGet()
+      logger.debug("Dropped a message exceeding the rate limit : ${MessageRateLimiter.commandOf(message)}")
+      return
+    }
+
+    if (isPriority(message)) {
+      process(message)
+    } else if (!requested && deferredMessages.size >= maxDeferredMessages) {
+      droppedCount.incrementAndGet()
+      TotalDroppedCount.incrementAndGet()
+      logger.debug("Dropped a message. Too many messages are deferred : ${maxDeferredMessages}")
+    } else {
+      deferredMessages.add(message)
+      deferredCount.incrementAndGet()
+      TotalDeferredCount.incrementAndGet()
+    }
+  }
+
+  /** Process up to drainBatchSize deferred messages, and schedule processing the rest.
+    * Called when the channel read everything available.
+    */
+  fun drain() : Unit {
+    var processedCount = 0
+    while (processedCount < drainBatchSize && !deferredMessages.isEmpty()) {
+      val message = deferredMessages.poll()
+      try {
+        process(message)
+      } catch (e : Exception) {
+        val causeDescription = ExceptionUtil.describe( e.cause )
+        logger.error("Failed to process a deferred message : ${MessageSummarizer.summarize(message)}. ${e}. Stack : ${StackUtil.getStackTrace(e)} ${causeDescription}")
+      }
+      processedCount += 1
+    }
+
+    if (!deferredMessages.isEmpty() && !drainScheduled) {
+      drainScheduled = true
+      execute {
+        drainScheduled = false
+        drain()
+      }
+    }
+  }
+
+  companion object {
+    val DefaultMaxDeferredMessages = 10000
+    val DefaultDrainBatchSize = 64
+
+    // Counters of all peers.
+    private val TotalRateLimitedCount = AtomicLong()
+    private val TotalDeferredCount = AtomicLong()
+    private val TotalDroppedCount = AtomicLong()
+
+    /** The number of messages dropped because peers exceeded rate limits, for all peers. */
+    fun totalRateLimitedCount() : Long = TotalRateLimitedCount.get()
+
+    /** The number of messages deferred behind priority messages, for all peers. */
+    fun totalDeferredCount() : Long = TotalDeferredCount.get()
+
+    /** The number of messages dropped because too many messages were deferred, for all peers. */
+    fun totalDroppedCount() : Long = TotalDroppedCount.get()
+
+    /** Check if a message should be processed ahead of transaction gossip.
+      * Inventories and requests are priority messages if they have any block.
+      */
+    fun isPriority(message : ProtocolMessage) : Boolean =
+      when(message) {
+        is Transaction -> false
+        is Addr -> false
+        is Inv -> message.inventories.any { it.invType != InvType.MSG_TX }
+        is GetData -> message.inventories.any { it.invType != InvType.MSG_TX }
+        else -> true
+      }
+  }
+}
@@ -2,25 +2,58 @@ package io.scalechain.blockchain.net
 
 import io.scalechain.blockchain.net.handler.*
 import io.scalechain.blockchain.proto.*
+import io.scalechain.blockchain.script.hash
 import org.slf4j.LoggerFactory
 
 /** Handle protocol messages after getting connected to a peer.
   * The protocol message handler has the message handing context, which has the connected peer, and peer communicator that can communicate with all connected peers.
   *
+  * Messages go through the priority message dispatcher, which drops messages exceeding per-peer rate limits,
+  * and defers transaction gossip until block and header traffic received together is processed.
+  *
   * @param peer The peer that this node is handler is communicating.
   * @param communicator The peer communicator that can communicate with any of peers connected to this node.
+  * @param rateLimits The rate limits of messages the peer can send.
   */
-class ProtocolMessageHandler(peer : Peer, communicator : PeerCommunicator)  {
+class ProtocolMessageHandler(peer : Peer, communicator : PeerCommunicator, rateLimits : MessageRateLimits = MessageRateLimits.get())  {
   private val logger = LoggerFactory.getLogger(ProtocolMessageHandler::class.java)
 
   val context = MessageHandlerContext(peer, communicator)
 
+  val dispatcher = PriorityMessageDispatcher(
+    MessageRateLimiter(rateLimits),
+    { task -> peer.execute(task) },
+    { message -> process(message) },
+    // Hash a transaction only while we wait for a transaction from the peer, so a flood of transactions is not hashed before it is limited.
+    isRequested = { message -> message is Transaction && peer.hasRequestedTransactions() && peer.takeRequestedTransaction(message.hash()) }
+  )
+
+  /** Resume serving requests of the peer paused while the peer could not keep up with messages we sent,
+    * and announce blocks skipped while the peer was paused.
+    * Called when the channel of the peer becomes writable again.
+    */
+  fun resume() : Unit {
+    context.peer.announceDeferredBlocks()
+    GetDataMessageHandler.resume(context)
+  }
+
   /** Handle a message coming from the TCP stream.
+    * The message is processed now if it is a priority message, or later by readComplete otherwise. See PriorityMessageDispatcher.
     *
     * @param message The messages to handle.
-    * @return The list of responses we created after handling each message in messages.
     */
   fun handle(message : ProtocolMessage): Unit {
+    dispatcher.dispatch(message)
+  }
+
+  /** Process messages deferred while reading from the channel.
+    * Called when the channel read everything available.
+    */
+  fun readComplete() : Unit {
+    dispatcher.drain()
+  }
+
+  private fun process(message : ProtocolMessage): Unit {
     when {
       message is Version -> {
         VersionMessageHandler.handle(context, message)
@@ -58,6 +91,18 @@ class ProtocolMessageHandler(peer : Peer, communicator : PeerCommunicator)  {
       message is Block -> {
         BlockMessageHandler.handle(context, message)
       }
+      message is SendCmpct -> {
+        SendCmpctMessageHandler.handle(context, message)
+      }
+      message is CmpctBlock -> {
+        CmpctBlockMessageHandler.handle(context, message)
+      }
+      message is GetBlockTxn -> {
+        GetBlockTxnMessageHandler.handle(context, message)
+      }
+      message is BlockTxn -> {
+        BlockTxnMessageHandler.handle(context, message)
+      }
       else -> {
         logger.warn("Received a message, but done nothing : ${message.javaClass.name}" )
       }
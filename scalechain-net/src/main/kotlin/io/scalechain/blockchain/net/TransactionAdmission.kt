@@ -0,0 +1,76 @@
+package io.scalechain.blockchain.net
+
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.atomic.AtomicInteger
+import io.netty.util.concurrent.DefaultThreadFactory
+import org.slf4j.LoggerFactory
+
+/**
+  * Runs checks of received transactions on parallel workers, and admits checked transactions one by one in the order they were received.
+  *
+  * (1) Checks do not need any chain or pool lock, such as the size limit, duplicate inputs and parsing scripts.
+  *     They run on checkerThreads workers, so they do not block the I/O threads nor wait for each other.
+  * (2) Admission puts a checked transaction into the transaction pool. It runs on a single thread in the order transactions were submitted,
+  *     so a child transaction received after its parent is admitted after the parent, and only the UTXO dependent part holds locks.
+  *
+  * Once MaxPendingTransactions transactions are waiting, new transactions are dropped.
+  * A dropped transaction is not requested again from the peer that sent it. We get it only if another peer announces it to us later,
+  * or when it is included in a block.
+  */
+object TransactionAdmission {
+  private val logger = LoggerFactory.getLogger(TransactionAdmission::class.java)
+
+  val MaxPendingTransactions = 10000
+
+  val checkerThreads = Math.max(1, Runtime.getRuntime().availableProcessors())
+
+  // The number of transactions submitted but not admitted yet.
+  private val pendingCount = AtomicInteger()
+
+  private val checkers : ExecutorService = Executors.newFixedThreadPool(checkerThreads, DefaultThreadFactory("tx-checker", true))
+
+  private val admitter : ExecutorService = Executors.newSingleThreadExecutor(DefaultThreadFactory("tx-admission", true))
+
+  /** Submit a transaction to check and admit.
+    *
+    * @param check Checks the transaction on a worker. Returns the result to pass to admit, or null to reject the transaction.
+    * @param admit Admits the checked transaction. Called on the admission thread in the order transactions were submitted.
+    * @return The future completing when the transaction is admitted or rejected, or null if the transaction was dropped.
+    */
+  fun <T> submit(check : () -> T?, admit : (T) -> Unit) : Future<*>? {
+    if (pendingCount.incrementAndGet() > MaxPendingTransactions) {
+      pendingCount.decrementAndGet()
+      logger.warn("Dropping a transaction. Too many transactions are waiting for admission : ${MaxPendingTransactions}")
+      return null
+    }
+
+    val checked = checkers.submit(Callable { check() })
+    return admitter.submit(Runnable {
+      try {
+        val result = checked.get()
+        if (result != null) {
+          admit(result)
+        }
+      } catch (e : ExecutionException) {
+        logger.error("Failed to check a transaction. Exception : ${e.cause}")
+      } catch (e : Exception) {
+        logger.error("Failed to admit a transaction. Exception : ${e}")
+      } finally {
+        pendingCount.decrementAndGet()
+      }
+    })
+  }
+
+  /** The number of transactions submitted but not admitted yet. */
+  fun pendingCount() : Int = pendingCount.get()
+
+  /** Wait until all transactions submitted so far are admitted or rejected.
+    */
+  fun awaitAdmitted() : Unit {
+    admitter.submit(Runnable {}).get()
+  }
+}
@@ -36,6 +36,9 @@ object BlockMessageHandler {
 
     logger.trace("<P2P> Received a block. Hash : ${blockHash}, Header : ${block.header}")
 
+    // Complete the request of the block, so that the peer gets more blocks to download.
+    context.communicator.blockDownloader.blockReceived(context.peer, blockHash)
+
     // BUGBUG ; We need to check if the block is an orphan
     // BUGBUG ; We need to ask the peer to send necessary parents if the block is an orphan.
     BlockProcessor.get().validateBlock(block)
@@ -0,0 +1,31 @@
+package io.scalechain.blockchain.net.handler
+
+import io.scalechain.blockchain.proto.BlockTxn
+import org.slf4j.LoggerFactory
+
+/**
+  * The message handler for BlockTxn message.
+  */
+object BlockTxnMessageHandler {
+  private val logger = LoggerFactory.getLogger(BlockTxnMessageHandler.javaClass)
+
+  /** Handle BlockTxn message. Complete the block being reconstructed from a cmpctblock message with the received transactions.
+    *
+    * @param context The context where handlers handling different messages for a peer can use to store state data.
+    * @param blockTxn The BlockTxn message to handle.
+    */
+  fun handle( context : MessageHandlerContext, blockTxn : BlockTxn ) : Unit {
+    val partialBlock = context.pendingCompactBlocks.remove(blockTxn.blockHash)
+    if (partialBlock == null) {
+      logger.info("Received blocktxn for a block we did not request. Hash : ${blockTxn.blockHash}")
+      return
+    }
+
+    if (partialBlock.fillMissing(blockTxn.transactions)) {
+      CmpctBlockMessageHandler.completeBlock(context, partialBlock)
+    } else {
+      logger.info("blocktxn did not have the requested transactions. Requesting the full block. Hash : ${blockTxn.blockHash}")
+      CmpctBlockMessageHandler.requestFullBlock(context, blockTxn.blockHash)
+    }
+  }
+}
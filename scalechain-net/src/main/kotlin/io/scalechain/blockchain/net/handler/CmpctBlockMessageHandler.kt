@@ -0,0 +1,85 @@
+package io.scalechain.blockchain.net.handler
+
+import io.scalechain.blockchain.chain.Blockchain
+import io.scalechain.blockchain.chain.processor.BlockProcessor
+import io.scalechain.blockchain.net.PartiallyDownloadedBlock
+import io.scalechain.blockchain.net.message.CompactBlockFactory
+import io.scalechain.blockchain.net.message.GetDataFactory
+import io.scalechain.blockchain.proto.*
+import io.scalechain.blockchain.script.hash
+import org.slf4j.LoggerFactory
+
+/**
+  * The message handler for CmpctBlock message.
+  */
+object CmpctBlockMessageHandler {
+  private val logger = LoggerFactory.getLogger(CmpctBlockMessageHandler.javaClass)
+
+  // The maximum number of pool transaction hashes to match with short IDs.
+  val MaxPoolTransactions = 100000
+
+  // The maximum number of blocks waiting for blocktxn messages from a peer.
+  val MaxPendingBlocks = 16
+
+  /** Handle CmpctBlock message.
+    *
+    * (1) Reconstruct the block from prefilled transactions and transactions in the pool.
+    * (2) If all transactions were found, handle the block as a Block message.
+    * (3) Otherwise, request the missing transactions with getblocktxn. BlockTxnMessageHandler completes the block.
+    * If the cmpctblock message can not be used, request the full block with getdata.
+    *
+    * @param context The context where handlers handling different messages for a peer can use to store state data.
+    * @param cmpctBlock The CmpctBlock message to handle.
+    */
+  fun handle( context : MessageHandlerContext, cmpctBlock : CmpctBlock ) : Unit {
+    val blockHash = cmpctBlock.header.hash()
+    if (BlockProcessor.get().exists(blockHash)) {
+      logger.trace("Duplicate cmpctblock was received. Hash : ${blockHash}")
+      return
+    }
+
+    val partialBlock = PartiallyDownloadedBlock.create(cmpctBlock)
+    if (partialBlock == null) {
+      logger.info("Failed to reconstruct a block from cmpctblock. Requesting the full block. Hash : ${blockHash}")
+      requestFullBlock(context, blockHash)
+      return
+    }
+
+    // Short IDs are matched with hashes read from the key-only time index of the pool. Only the matched transactions are decoded.
+    val chain = Blockchain.get()
+    partialBlock.fillFromPool(chain.txPool.getOldestTransactionHashes(chain.db, MaxPoolTransactions)) { transactionHash ->
+      chain.txPool.getTransaction(chain.db, transactionHash)
+    }
+
+    val missingIndexes = partialBlock.missingIndexes()
+    if (missingIndexes.isEmpty()) {
+      completeBlock(context, partialBlock)
+    } else {
+      if (context.pendingCompactBlocks.size >= MaxPendingBlocks) {
+        context.pendingCompactBlocks.clear()
+      }
+      context.pendingCompactBlocks.put(blockHash, partialBlock)
+      logger.trace("Requesting ${missingIndexes.size} transactions missing from the pool. Hash : ${blockHash}")
+      context.peer.send(CompactBlockFactory.createGetBlockTxn(blockHash, missingIndexes))
+    }
+  }
+
+  /** Handle the reconstructed block as a Block message, or request the full block if the reconstructed block does not match the header.
+    *
+    * @param context The context of the peer that sent the cmpctblock message.
+    * @param partialBlock The block with all transactions filled.
+    */
+  internal fun completeBlock( context : MessageHandlerContext, partialBlock : PartiallyDownloadedBlock ) : Unit {
+    val block = partialBlock.toBlock()
+    if (block == null) {
+      logger.info("The block reconstructed from cmpctblock did not match the merkle root. Requesting the full block. Hash : ${partialBlock.blockHash}")
+      requestFullBlock(context, partialBlock.blockHash)
+    } else {
+      BlockMessageHandler.handle(context, block)
+    }
+  }
+
+  internal fun requestFullBlock( context : MessageHandlerContext, blockHash : Hash ) : Unit {
+    context.peer.send(GetDataFactory.create(listOf(InvVector(InvType.MSG_BLOCK, blockHash))))
+  }
+}
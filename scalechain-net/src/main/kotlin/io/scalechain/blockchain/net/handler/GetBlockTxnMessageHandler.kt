@@ -0,0 +1,36 @@
+package io.scalechain.blockchain.net.handler
+
+import io.scalechain.blockchain.chain.processor.BlockProcessor
+import io.scalechain.blockchain.net.MessageSummarizer
+import io.scalechain.blockchain.net.message.CompactBlockFactory
+import io.scalechain.blockchain.proto.GetBlockTxn
+import org.slf4j.LoggerFactory
+
+/**
+  * The message handler for GetBlockTxn message.
+  */
+object GetBlockTxnMessageHandler {
+  private val logger = LoggerFactory.getLogger(GetBlockTxnMessageHandler.javaClass)
+
+  /** Handle GetBlockTxn message. Respond with the requested transactions of the block.
+    *
+    * @param context The context where handlers handling different messages for a peer can use to store state data.
+    * @param getBlockTxn The GetBlockTxn message to handle.
+    */
+  fun handle( context : MessageHandlerContext, getBlockTxn : GetBlockTxn ) : Unit {
+    val block = BlockProcessor.get().getBlock(getBlockTxn.blockHash)
+    if (block == null) {
+      logger.warn("getblocktxn requested a block we do not have. Hash : ${getBlockTxn.blockHash}")
+      return
+    }
+
+    val blockTxn = CompactBlockFactory.createBlockTxn(block, getBlockTxn)
+    if (blockTxn == null) {
+      logger.warn("getblocktxn requested transactions out of the range. Hash : ${getBlockTxn.blockHash}, Transactions : ${block.transactions.size}")
+      return
+    }
+
+    logger.trace("Responding to getblocktxn. Message : ${MessageSummarizer.summarize(blockTxn)}")
+    context.peer.send(blockTxn)
+  }
+}
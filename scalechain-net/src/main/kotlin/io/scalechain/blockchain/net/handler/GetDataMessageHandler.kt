@@ -1,60 +1,111 @@
 package io.scalechain.blockchain.net.handler
 
 import io.scalechain.blockchain.chain.Blockchain
-import io.scalechain.blockchain.chain.processor.BlockProcessor
 import io.scalechain.blockchain.chain.processor.TransactionProcessor
 import io.scalechain.blockchain.net.MessageSummarizer
 import io.scalechain.blockchain.proto.InvType
 import io.scalechain.blockchain.proto.*
+import io.scalechain.blockchain.proto.codec.BlockCodec
+import io.scalechain.blockchain.storage.index.KeyValueDatabase
 import org.slf4j.LoggerFactory
 
 /**
   * The message handler for GetData message.
+  *
+  * Requested inventories are queued on the message handler context, and served while the peer is not paused.
+  * A peer that does not read blocks we send is paused once its outbound buffer is full (See Peer.isPaused),
+  * so serving it stops instead of queuing every requested block in memory.
   */
 object GetDataMessageHandler {
   private val logger = LoggerFactory.getLogger(GetDataMessageHandler.javaClass)
 
+  // The maximum number of inventories in a getdata message, and the maximum number of inventories waiting to be served to a peer.
+  val MAX_PENDING_INVENTORIES = 50000
+
+  // If a peer is paused while its channel is writable, the outbound budget of all peers is exhausted.
+  // The channel does not notify us when the budget becomes available, so retry after this interval.
+  val RETRY_INTERVAL_MILLIS = 100L
+
   /** Handle GetData message.
     *
     * @param context The context where handlers handling different messages for a peer can use to store state data.
     * @param getData The GetData message to handle.
-    * @return Some(message) if we need to respond to the peer with the message.
     */
   fun handle( context : MessageHandlerContext, getData : GetData ) : Unit {
+    // Step 1 : Queue the inventories. Ignore the message if the peer requested too many inventories.
+    synchronized(context.pendingGetData) {
+      if (context.pendingGetData.size + getData.inventories.size > MAX_PENDING_INVENTORIES) {
+        logger.warn("Ignoring getdata with too many inventories. Pending : ${context.pendingGetData.size}, Requested : ${getData.inventories.size}")
+        return
+      }
+      context.pendingGetData.addAll(getData.inventories)
+    }
+
+    // Step 2 : Serve the queued inventories.
+    resume(context)
+  }
+
+  /** Serve inventories queued for the peer until the queue is empty or the peer is paused.
+    * Called when a getdata message is received, and when the channel of the peer becomes writable again.
+    *
+    * @param context The message handler context of the peer.
+    */
+  fun resume( context : MessageHandlerContext ) : Unit {
     val db = Blockchain.get().db
-    // TODO : Step 1 : Return an error if the number of inventories is greater than 50,000.
-    // Step 2 : For each inventory, send data for it.
-    val messagesToSend : List<ProtocolMessage> =
-      getData.inventories.map { inventory: InvVector ->
-        when(inventory.invType){
-          InvType.MSG_TX -> {
-            // Get the transaction we have. Orphan transactions are not returned.
-            // TODO : send tx message only if it is in the relay memory. A 'tx' is put into the relay memory by sendfrom, sendtoaddress, sendmany RPC.
-            // For now, send a transaction if we have it.
-            // Returns Option<Transaction>
-
-            TransactionProcessor.getTransaction(db, inventory.hash)
-          }
-          InvType.MSG_BLOCK -> {
-            // Get the block we have. Orphan blocks are not returned.
-            // Returns Option<Block>
-            BlockProcessor.get().getBlock(inventory.hash)
-          }
-          else -> {
-            logger.warn("Unknown inventory type for the inventory : ${inventory}")
-            null
+    while (true) {
+      // Nothing to serve. A getdata message received later resumes serving.
+      if (synchronized(context.pendingGetData) { context.pendingGetData.isEmpty() }) {
+        return
+      }
+
+      if (context.peer.isPaused()) {
+        // Step 3 : Stop serving the paused peer. If its channel is not writable, channelWritabilityChanged resumes serving.
+        if (context.peer.isWritable() && context.getDataRetryScheduled.compareAndSet(false, true)) {
+          context.peer.schedule(RETRY_INTERVAL_MILLIS) {
+            context.getDataRetryScheduled.set(false)
+            resume(context)
           }
         }
-      }.filterNotNull() // Filter out None values.
+        return
+      }
 
+      val inventory = synchronized(context.pendingGetData) { context.pendingGetData.pollFirst() }
+      if (inventory == null) {
+        return
+      }
+      serve(context, db, inventory)
+    }
+  }
 
-    // Step 3 : Send data messages ( either Transaction or Block )
-    messagesToSend.forEach { message : ProtocolMessage ->
-      logger.trace("Responding to getdata. Message : ${MessageSummarizer.summarize(message)}")
-      context.peer.send(message)
+  /** Send data for an inventory.
+    */
+  private fun serve( context : MessageHandlerContext, db : KeyValueDatabase, inventory : InvVector ) : Unit {
+    when(inventory.invType){
+      InvType.MSG_TX -> {
+        // Get the transaction we have. Orphan transactions are not returned.
+        // TODO : send tx message only if it is in the relay memory. A 'tx' is put into the relay memory by sendfrom, sendtoaddress, sendmany RPC.
+        // For now, send a transaction if we have it.
+        val transaction = TransactionProcessor.getTransaction(db, inventory.hash)
+        if (transaction != null) {
+          logger.trace("Responding to getdata. Message : ${MessageSummarizer.summarize(transaction)}")
+          context.peer.send(transaction)
+        }
+      }
+      InvType.MSG_BLOCK -> {
+        // Get the serialized block we have. Orphan blocks are not kept on the record storage, so they are not returned.
+        // The block is sent as read from the record storage, without decoding and encoding it again.
+        val rawBlock = Blockchain.get().getRawBlock(db, inventory.hash)
+        if (rawBlock != null) {
+          logger.trace("Responding to getdata. Block : ${inventory.hash}, ${rawBlock.size} bytes")
+          context.peer.sendRaw(BlockCodec.command, rawBlock)
+        }
+      }
+      else -> {
+        logger.warn("Unknown inventory type for the inventory : ${inventory}")
+      }
     }
 
-    // TODO : Step 4 : Need to send NotFound message for not found block or transaction.
+    // TODO : Need to send NotFound message for not found block or transaction.
     // This is necessary for the SPV clients. We will implement this feature when we support SPV clients.
   }
 }
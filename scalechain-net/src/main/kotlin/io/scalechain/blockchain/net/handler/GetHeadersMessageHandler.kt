@@ -1,6 +1,9 @@
 package io.scalechain.blockchain.net.handler
 
+import io.scalechain.blockchain.chain.Blockchain
+import io.scalechain.blockchain.net.message.HeadersFactory
 import io.scalechain.blockchain.proto.*
+import io.scalechain.blockchain.proto.codec.HeadersCodec
 import org.slf4j.LoggerFactory
 
 /**
@@ -16,57 +19,49 @@ import org.slf4j.LoggerFactory
 object GetHeadersMessageHandler {
   private val logger = LoggerFactory.getLogger(GetHeadersMessageHandler.javaClass)
 
+  // A headers message has up to 2000 headers.
+  val MAX_HEADERS_PER_REQUEST = 2000
+
   /** Handle GetHeaders message.
     *
     * @param context The context where handlers handling different messages for a peer can use to store state data.
     * @param getHeaders The GetHeaders message to handle.
-    * @return Some(message) if we need to respond to the peer with the message.
     */
   fun handle( context : MessageHandlerContext, getHeaders : GetHeaders ) : Unit {
-    // We don't support the headers first approach yet.
-    logger.warn("GetHeaders message is not supported yet.")
-
+    val blockTree = Blockchain.get().blockTree
 
-    /*
-      // TODO : Investigate : Need to request block data for headers we got?
-      // TODO : Investigate : Need to understand : GetDistanceBack
-
-      // Step 1 : Prepare the hashes of block headers to send.
-      val blockHashesToSend =
-        if (getHeaders.blockLocatorHashes.isEmpty) {
-          // Step 1.A : If no block locator hash was set, send the hash stop.
-          if (BlockProcessor.hasNonOrphan(getHeaders.hashStop)) {
-            listOf(getHeaders.hashStop)
-          } else {
-            listOf()
-          }
+    // The read lock keeps the best blockchain unchanged while headers are collected.
+    // getheaders should not see any inconsistent state of the best blockchain while block reorganization is in-progress.
+    val serializedHeaders = blockTree.withReadLock {
+      if (getHeaders.blockLocatorHashes.isEmpty()) {
+        // Step 1.A : If no block locator hash was set, send the header of the hash stop.
+        val node = blockTree.getNode(getHeaders.hashStop)
+        if (node != null && blockTree.isOnBestChain(getHeaders.hashStop)) {
+          blockTree.getSerializedHeaders(node.height, 1, getHeaders.hashStop)
         } else {
-          // Step 1.B.1 : Get the list of block hashes to send.
-          val locator = BlockLocator(Blockchain.get)
-          // Step 1.B.2 : Skip the common block, start building the list of block hashes from the next block of the common block.
-          //              Stop constructing the block hashes if we hit the count limit, 500. GetBlocks sends up to 500 block hashes.
-          //              Note : GetHeaders returns the hashStop. BlockLocator.getHashes also returns the hashStop. Nothing to do for the hashStop hash.
-          val blockHashes =
-            // During block reorganization, transactions/blocks are attached/detached.
-            // We need to synchronize with block reorganization, as getheaders message depends on a 'consistent' view of the best blockchain.
-            // getheaders message should not see any inconsistent state of the best blockchain while block reorganization is in-progress.
-            Blockchain.get.synchronized {
-              locator.getHashes(BlockLocatorHashes(getHeaders.blockLocatorHashes), getHeaders.hashStop, maxHashCount = 2000)
-            }
-          blockHashes
+          listOf<ByteArray>()
         }
-
-      // Step 2 : Pack the block hashes into an Inv message, and reply it to the requester.
-      if (blockHashesToSend.isEmpty) {
-        // Do nothing. Nothing to send.
       } else {
-        val blockHeaders : List<BlockHeader> = blockHashesToSend.map { hash : Hash =>
-          // As we get the block header hashes from getHashes, we are sure that we have the block header.
-          BlockProcessor.getBlockHeader(hash).get
-        }
-        val headersMessage = HeadersFactory.create(blockHeaders)
-        context.peer.send(headersMessage)
+        // Step 1.B : Find the first locator hash on the best blockchain. Recent hashes come first in the locator.
+        //            If no hash matched, start from the genesis block.
+        val matchedNode = getHeaders.blockLocatorHashes.asSequence().mapNotNull { hash ->
+          if (blockTree.isOnBestChain(hash)) blockTree.getNode(hash) else null
+        }.firstOrNull()
+        val matchedHeight = matchedNode?.height ?: 0L
+
+        // Step 1.C : Skip the common block, and collect headers from the next block of it.
+        //            Stop at the hash stop or if we hit the count limit, 2000.
+        blockTree.getSerializedHeaders(matchedHeight + 1, MAX_HEADERS_PER_REQUEST, getHeaders.hashStop)
       }
-    */
+    }
+
+    // Step 2 : Pack the serialized headers into a headers message, and reply it to the requester.
+    //          Headers come from the in-memory block tree, so no header is read from the database or encoded.
+    if (serializedHeaders.isEmpty()) {
+      logger.trace("Nothing to send in response to getheaders message.")
+    } else {
+      context.peer.sendRaw(HeadersCodec.command, HeadersFactory.createPayload(serializedHeaders))
+      logger.trace("Sending ${serializedHeaders.size} headers in response to getheaders message.")
+    }
   }
 }
@@ -29,7 +29,10 @@ object InvMessageHandler {
 
     // TODO : Step 1 : Return an error if the number of inventories is more than 50,000
 
-    // TODO : Step 2 : Add the inventory as a known inventory to the node that sent the "inv" message.
+    // Step 2 : Add the inventory as a known inventory to the node that sent the "inv" message.
+    inv.inventories.forEach { inventory ->
+      context.peer.addKnownInventory(inventory.hash)
+    }
     logger.trace("Handling Inventories receieved.")
 
     var blockInventories = 0
@@ -59,11 +62,20 @@ object InvMessageHandler {
         }
       }.filterNotNull() // filter out None values.
 
-    // Step 4 : Send the GetData message to get data for the missing inventories in this node.
-    if (inventoriesToGetData.isEmpty()) {
+    // Step 4 : Send the GetData message to get data for the missing transactions in this node.
+    //          Missing blocks are requested by the block download scheduler, which picks the fastest peers that have them.
+    val (blocksToGet, transactionsToGet) = inventoriesToGetData.partition { it.invType == InvType.MSG_BLOCK }
+    if (blocksToGet.isNotEmpty()) {
+      context.communicator.blockDownloader.requestBlocks(blocksToGet.map { it.hash })
+      logger.trace("Scheduled downloading ${blocksToGet.size} blocks in response to inv.")
+    }
+
+    if (transactionsToGet.isEmpty()) {
       // Nothing to request.
     } else {
-      val getDataMessage = GetDataFactory.create(inventoriesToGetData)
+      val getDataMessage = GetDataFactory.create(transactionsToGet)
+      // The transactions we ask for are not dropped by the rate limit when the peer sends them.
+      context.peer.addRequestedTransactions(transactionsToGet.map { it.hash })
       context.peer.send(getDataMessage)
 
       logger.trace("Requesting getdata in response to inv. Message : ${MessageSummarizer.summarize(getDataMessage)}")
@@ -1,7 +1,13 @@
 package io.scalechain.blockchain.net.handler
 
+import io.scalechain.blockchain.net.PartiallyDownloadedBlock
 import io.scalechain.blockchain.net.PeerCommunicator
 import io.scalechain.blockchain.net.Peer
+import io.scalechain.blockchain.proto.Hash
+import io.scalechain.blockchain.proto.InvVector
+import java.util.ArrayDeque
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicBoolean
 
 /**
   * The context for handling messages for a peer.
@@ -10,4 +16,13 @@ import io.scalechain.blockchain.net.Peer
   * @param peer The peer that this node is handler is communicating.
   * @param communicator The peer communicator that can communicate with any of peers connected to this node.
   */
-class MessageHandlerContext(val peer : Peer, val communicator : PeerCommunicator)
+class MessageHandlerContext(val peer : Peer, val communicator : PeerCommunicator) {
+  /** block hash -> the block being reconstructed from a cmpctblock message, waiting for a blocktxn message from the peer. */
+  val pendingCompactBlocks = ConcurrentHashMap<Hash, PartiallyDownloadedBlock>()
+
+  /** Inventories requested by getdata messages, waiting to be served while the peer is paused. Guarded by itself. */
+  val pendingGetData = ArrayDeque<InvVector>()
+
+  /** True if serving pendingGetData is scheduled to be retried. */
+  val getDataRetryScheduled = AtomicBoolean()
+}
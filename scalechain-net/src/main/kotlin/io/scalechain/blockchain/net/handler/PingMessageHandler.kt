@@ -1,6 +1,7 @@
 package io.scalechain.blockchain.net.handler
 
 import io.scalechain.blockchain.proto.Ping
+import io.scalechain.blockchain.proto.Pong
 import org.slf4j.LoggerFactory
 
 /**
@@ -16,6 +17,7 @@ object PingMessageHandler {
     * @return Some(message) if we need to respond to the peer with the message.
     */
   fun handle( context : MessageHandlerContext, ping : Ping ) : Unit {
-    // TODO : Implement
+    // Reply with the same nonce, so that the peer can measure the RTT.
+    context.peer.send(Pong(ping.nonce))
   }
 }
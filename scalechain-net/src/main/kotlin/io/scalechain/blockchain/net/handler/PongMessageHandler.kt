@@ -16,6 +16,9 @@ object PongMessageHandler {
     * @return Some(message) if we need to respond to the peer with the message.
     */
   fun handle( context : MessageHandlerContext, pong : Pong ) : Unit {
-    // TODO : Implement
+    // Update the RTT of the peer if the pong is for the ping BlockDownloadScheduler sent.
+    if (!context.peer.performance.pongReceived(pong.nonce, System.nanoTime())) {
+      logger.trace("Received a pong that does not match the ping we sent. ${pong}")
+    }
   }
 }
@@ -0,0 +1,27 @@
+package io.scalechain.blockchain.net.handler
+
+import io.scalechain.blockchain.net.message.CompactBlockFactory
+import io.scalechain.blockchain.proto.SendCmpct
+import org.slf4j.LoggerFactory
+
+/**
+  * The message handler for SendCmpct message.
+  */
+object SendCmpctMessageHandler {
+  private val logger = LoggerFactory.getLogger(SendCmpctMessageHandler.javaClass)
+
+  /** Handle SendCmpct message.
+    * New blocks are announced to the peer with cmpctblock messages if the peer asked for it with a version we support.
+    *
+    * @param context The context where handlers handling different messages for a peer can use to store state data.
+    * @param sendCmpct The SendCmpct message to handle.
+    */
+  fun handle( context : MessageHandlerContext, sendCmpct : SendCmpct ) : Unit {
+    if (sendCmpct.version == CompactBlockFactory.Version) {
+      context.peer.announceCompactBlocks = sendCmpct.announce
+      logger.trace("The peer asked for compact blocks. Announce : ${sendCmpct.announce}")
+    } else {
+      logger.info("Ignoring sendcmpct with an unsupported version : ${sendCmpct.version}")
+    }
+  }
+}
@@ -2,20 +2,32 @@ package io.scalechain.blockchain.net.handler
 
 import io.scalechain.blockchain.chain.processor.TransactionProcessor
 import io.scalechain.blockchain.net.Node
+import io.scalechain.blockchain.net.TransactionAdmission
 import io.scalechain.blockchain.ErrorCode
 import io.scalechain.blockchain.ChainException
+import io.scalechain.blockchain.TransactionVerificationException
 import io.scalechain.blockchain.chain.Blockchain
 import io.scalechain.blockchain.proto.Hash
 import io.scalechain.blockchain.proto.Transaction
+import io.scalechain.blockchain.transaction.TransactionChecker
 import org.slf4j.LoggerFactory
 import io.scalechain.blockchain.script.hash
 
 /**
   * The message handler for Tx message.
+  *
+  * Transactions are checked on parallel workers before they are put into the transaction pool. See TransactionAdmission.
+  * A peer sending a transaction that fails the checks gets a misbehavior score.
   */
 object TxMessageHandler {
   private val logger = LoggerFactory.getLogger(TxMessageHandler.javaClass)
 
+  // The misbehavior score for a transaction that is invalid in any block. The peer is disconnected right away.
+  val INVALID_TRANSACTION_SCORE = 100
+
+  // The misbehavior score for a transaction with an unlocking script we can not parse or a signature that is not strict DER.
+  val NONSTANDARD_TRANSACTION_SCORE = 10
+
   /** Handle Transaction message.
     *
     * @param context The context where handlers handling different messages for a peer can use to store state data.
@@ -23,43 +35,68 @@ object TxMessageHandler {
     * @return Some(message) if we need to respond to the peer with the message.
     */
   fun handle( context : MessageHandlerContext, transaction : Transaction ) : Unit {
-    val db = Blockchain.get().db
+    // BUGBUG : Do not process the message during initial block download.
+    //
+    //if ( ! Node.get().isInitialBlockDownload() ) {
+    TransactionAdmission.submit<Hash>(
+      { check(context, transaction) },
+      { transactionHash -> admit(context, transactionHash, transaction) }
+    )
+  }
 
+  /** Check a transaction without taking any chain or pool lock. Runs on a worker of TransactionAdmission.
+    *
+    * @return The hash of the transaction if it should be admitted; null otherwise.
+    */
+  fun check( context : MessageHandlerContext, transaction : Transaction ) : Hash? {
     val transactionHash = transaction.hash()
     logger.trace("<P2P> Received a transaction. Hash : ${transactionHash}")
 
-    // BUGBUG : Do not process the message during initial block download.
-    //
-    //if ( ! Node.get().isInitialBlockDownload() ) {
-    {
-      // TODO : Step 0 : Add the inventory as a known inventory to the node that sent the "tx" message.
-      try {
-        if (TransactionProcessor.exists(db, transactionHash)) {
-          logger.trace("The transaction already exists. ${transaction}")
-        } else {
-
-          // Try to put the transaction into the disk-pool
-          TransactionProcessor.putTransaction(db, transactionHash, transaction)
-
-          // Yes! the transaction was put into the disk-pool.
-          // Step 2 : Recursively check if any orphan transaction depends on this transaction.
-          // Also delete the newly accepted transactions from indexes for orphan transactions.
-          val acceptedChildren: List<Hash> = TransactionProcessor.acceptChildren(db, transactionHash)
-          /*
-                  // Step 3 : Relay the transaction as an inventory
-                  val invMessage = InvFactory.createTransactionInventories(transactionHash :: acceptedChildren)
-                  context.communicator.sendToAll(invMessage)
-                  logger.trace(s"Propagating inventories for the newly accepted transactions. ${invMessage}")
-          */
-        }
-      } catch(e: ChainException) {
-        if (e.code == ErrorCode.ParentTransactionNotFound) {
-          // A transaction pointed by an input of the transaction does not exist. add it as an orphan.
-          TransactionProcessor.putOrphan(db, transactionHash, transaction)
-          logger.info("An orphan transaction was received. Hash : ${transactionHash}, Transaction : ${transaction}")
-        } else if (e.code == ErrorCode.TransactionOutputAlreadySpent) {
-          logger.trace("A double spending transaction was received. Hash : ${transactionHash}, Transaction : ${transaction}")
-        }
+    // Step 0 : Add the inventory as a known inventory to the node that sent the "tx" message.
+    context.peer.addKnownInventory(transactionHash)
+
+    // Step 1 : Check values, sizes and scripts of the transaction.
+    //          The size is the payload length of the tx message kept by the decoder, so the transaction is not encoded again.
+    try {
+      TransactionChecker.check(transaction)
+    } catch (e : TransactionVerificationException) {
+      val score = if (e.code == ErrorCode.InvalidTransaction) INVALID_TRANSACTION_SCORE else NONSTANDARD_TRANSACTION_SCORE
+      context.peer.misbehave(score, "An invalid transaction. Hash : ${transactionHash}, Error : ${e.code}, ${e.message}")
+      return null
+    }
+
+    if (TransactionProcessor.exists(Blockchain.get().db, transactionHash)) {
+      logger.trace("The transaction already exists. ${transaction}")
+      return null
+    }
+    return transactionHash
+  }
+
+  /** Put a checked transaction into the transaction pool. Runs on the admission thread of TransactionAdmission.
+    */
+  fun admit( context : MessageHandlerContext, transactionHash : Hash, transaction : Transaction ) : Unit {
+    val db = Blockchain.get().db
+    try {
+      // Try to put the transaction into the disk-pool
+      TransactionProcessor.putTransaction(db, transactionHash, transaction)
+
+      // Yes! the transaction was put into the disk-pool.
+      // Step 2 : Recursively check if any orphan transaction depends on this transaction.
+      // Also delete the newly accepted transactions from indexes for orphan transactions.
+      val acceptedChildren: List<Hash> = TransactionProcessor.acceptChildren(db, transactionHash)
+
+      // Step 3 : Relay the transaction as an inventory. Inventories are batched for each peer, and sent by the inventory relay.
+      context.communicator.relayTransactions(listOf(transactionHash) + acceptedChildren)
+      logger.trace("Relaying inventories for the newly accepted transactions. Count : ${acceptedChildren.size + 1}")
+    } catch(e: ChainException) {
+      if (e.code == ErrorCode.ParentTransactionNotFound) {
+        // A transaction pointed by an input of the transaction does not exist. add it as an orphan.
+        TransactionProcessor.putOrphan(db, transactionHash, transaction)
+        logger.info("An orphan transaction was received. Hash : ${transactionHash}, Transaction : ${transaction}")
+      } else if (e.code == ErrorCode.TransactionOutputAlreadySpent) {
+        logger.trace("A double spending transaction was received. Hash : ${transactionHash}, Transaction : ${transaction}")
+      } else if (e.code == ErrorCode.InvalidTransactionOutPoint) {
+        context.peer.misbehave(INVALID_TRANSACTION_SCORE, "A transaction spending an output that does not exist. Hash : ${transactionHash}")
       }
     }
 
@@ -1,5 +1,6 @@
 package io.scalechain.blockchain.net.handler
 
+import io.scalechain.blockchain.net.message.CompactBlockFactory
 import io.scalechain.blockchain.proto.Verack
 import org.slf4j.LoggerFactory
 
@@ -16,6 +17,7 @@ object VerackMessageHandler {
     * @return Some(message) if we need to respond to the peer with the message.
     */
   fun handle( context : MessageHandlerContext, message : Verack ) : Unit {
-    // TODO : Implement
+    // Ask the peer to announce new blocks with cmpctblock messages (BIP 152).
+    context.peer.send(CompactBlockFactory.createSendCmpct())
   }
 }
@@ -0,0 +1,129 @@
+package io.scalechain.blockchain.net.message
+
+import com.google.common.hash.HashFunction
+import com.google.common.hash.Hashing
+import io.scalechain.blockchain.proto.*
+import io.scalechain.blockchain.proto.codec.BlockHeaderCodec
+import io.scalechain.blockchain.script.hash
+import io.scalechain.crypto.HashFunctions
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.Random
+
+/**
+  * The factory that creates messages for compact block relay specified in BIP 152.
+  *
+  * A transaction in a cmpctblock message is identified by a short ID, which is the lower 6 bytes of SipHash-2-4 of the transaction hash.
+  * The SipHash key is calculated from the block header and a random nonce, so that short IDs differ for each cmpctblock message.
+  */
+object CompactBlockFactory {
+  // The version of compact blocks we support.
+  val Version = 1L
+
+  private val random = Random()
+
+  /** Create a sendcmpct message that asks the peer to announce new blocks with cmpctblock messages.
+    */
+  fun createSendCmpct() : SendCmpct {
+    return SendCmpct(true, Version)
+  }
+
+  /** Create a cmpctblock message for a block. Only the coinbase transaction is prefilled.
+    *
+    * @param block The block to send.
+    * @param nonce The nonce for calculating short IDs.
+    * @return The cmpctblock message.
+    */
+  fun create(block : Block, nonce : Long = random.nextLong()) : CmpctBlock {
+    val hasher = shortIdHasher(block.header, nonce)
+    val shortIds = block.transactions.drop(1).map { transaction ->
+      shortId(hasher, transaction.hash())
+    }
+    return CmpctBlock(
+      block.header,
+      nonce,
+      shortIds,
+      listOf(PrefilledTransaction(0L, block.transactions[0]))
+    )
+  }
+
+  /** Create a getblocktxn message that requests transactions missing while reconstructing a block.
+    *
+    * @param blockHash The hash of the block.
+    * @param indexes The indexes of the missing transactions in the block, in ascending order.
+    */
+  fun createGetBlockTxn(blockHash : Hash, indexes : List<Int>) : GetBlockTxn {
+    return GetBlockTxn(blockHash, encodeIndexes(indexes))
+  }
+
+  /** Create a blocktxn message with the transactions requested by a getblocktxn message.
+    *
+    * @param block The block requested.
+    * @param getBlockTxn The getblocktxn message.
+    * @return The blocktxn message, or null if any of the requested indexes is out of the range.
+    */
+  fun createBlockTxn(block : Block, getBlockTxn : GetBlockTxn) : BlockTxn? {
+    val indexes = decodeIndexes(getBlockTxn.indexes, block.transactions.size) ?: return null
+    return BlockTxn(getBlockTxn.blockHash, indexes.map { block.transactions[it] })
+  }
+
+  /** Get the SipHash-2-4 function for calculating short IDs of transactions in a cmpctblock message.
+    * The two keys are the first two little endian 64 bit integers of SHA256 on the serialized header followed by the nonce.
+    *
+    * @param header The block header.
+    * @param nonce The nonce in the cmpctblock message.
+    */
+  fun shortIdHasher(header : BlockHeader, nonce : Long) : HashFunction {
+    val headerBytes = BlockHeaderCodec.encode(header)
+    val input = ByteBuffer.allocate(headerBytes.size + 8).order(ByteOrder.LITTLE_ENDIAN)
+    input.put(headerBytes)
+    input.putLong(nonce)
+
+    val keys = ByteBuffer.wrap(HashFunctions.sha256(input.array()).value.array).order(ByteOrder.LITTLE_ENDIAN)
+    return Hashing.sipHash24(keys.getLong(0), keys.getLong(8))
+  }
+
+  /** Calculate the short ID of a transaction.
+    *
+    * @param hasher The function returned by shortIdHasher.
+    * @param transactionHash The hash of the transaction.
+    * @return The lower 6 bytes of SipHash-2-4 on the transaction hash in the internal byte order.
+    */
+  fun shortId(hasher : HashFunction, transactionHash : Hash) : Long {
+    return hasher.hashBytes(transactionHash.value.array.reversedArray()).asLong() and 0xffffffffffffL
+  }
+
+  /** Differentially encode indexes in ascending order. Each index is encoded as the difference from the previous index minus one.
+    */
+  fun encodeIndexes(indexes : List<Int>) : List<Long> {
+    var lastIndex = -1
+    return indexes.map { index ->
+      val encoded = (index - lastIndex - 1).toLong()
+      lastIndex = index
+      encoded
+    }
+  }
+
+  /** Decode differentially encoded indexes.
+    *
+    * @param encodedIndexes The differentially encoded indexes.
+    * @param limit The number of transactions in the block. Every index should be less than it.
+    * @return The decoded indexes, or null if any index is out of the range.
+    */
+  fun decodeIndexes(encodedIndexes : List<Long>, limit : Int) : List<Int>? {
+    var lastIndex = -1L
+    val indexes = arrayListOf<Int>()
+    for (encoded in encodedIndexes) {
+      if (encoded < 0 || encoded >= limit) {
+        return null
+      }
+      val index = lastIndex + 1 + encoded
+      if (index >= limit) {
+        return null
+      }
+      indexes.add(index.toInt())
+      lastIndex = index
+    }
+    return indexes
+  }
+}
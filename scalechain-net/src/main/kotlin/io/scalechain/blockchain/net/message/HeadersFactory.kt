@@ -2,6 +2,7 @@ package io.scalechain.blockchain.net.message
 
 import io.scalechain.blockchain.proto.BlockHeader
 import io.scalechain.blockchain.proto.Headers
+import io.scalechain.blockchain.proto.codec.primitive.Codecs
 
 /**
   *  The factory that creates Headers messages.
@@ -10,4 +11,24 @@ object HeadersFactory {
   fun create(blockHeaders : List<BlockHeader>) : Headers {
     return Headers(blockHeaders)
   }
+
+  /** Create the payload of a headers message from serialized block headers, without decoding them.
+    * Each header is followed by a zero transaction count.
+    *
+    * @param serializedHeaders The 80 byte serialized block headers.
+    * @return The serialized headers message.
+    */
+  fun createPayload(serializedHeaders : List<ByteArray>) : ByteArray {
+    val headerCount = Codecs.VariableInt.encode(serializedHeaders.size.toLong())
+    val payload = ByteArray(headerCount.size + serializedHeaders.sumBy { it.size + 1 })
+    System.arraycopy(headerCount, 0, payload, 0, headerCount.size)
+
+    var offset = headerCount.size
+    serializedHeaders.forEach { header ->
+      System.arraycopy(header, 0, payload, offset, header.size)
+      // The transaction count, which is always zero. ByteArray is filled with zeros, so just skip it.
+      offset += header.size + 1
+    }
+    return payload
+  }
 }
@@ -2,40 +2,31 @@ package io.scalechain.blockchain.net
 
 import io.netty.bootstrap.Bootstrap
 import io.netty.channel.*
-import io.netty.channel.nio.NioEventLoopGroup
-import io.netty.channel.socket.nio.NioSocketChannel
 import io.netty.handler.logging.LogLevel
 import io.netty.handler.logging.LoggingHandler
-import io.netty.handler.ssl.SslContext
-import io.netty.handler.ssl.SslContextBuilder
-import io.netty.handler.ssl.util.InsecureTrustManagerFactory
-
+import io.scalechain.blockchain.net.p2p.NodeSecurity
 import io.scalechain.util.ExceptionUtil
+import io.scalechain.util.NettyTransport
 import org.slf4j.LoggerFactory
 
 
 /**
-  * Simple SSL chat client.
+  * Connects to a peer.
+  *
+  * All clients share an event loop group, so connecting to many peers does not create threads for each connection.
+  *
+  * @param peerSet The peer set to add connected peers.
+  * @param security Whether connections use TLS. Configured by scalechain.p2p in the configuration file by default.
+  *                 Clients share its SSL context, so reconnecting to a peer resumes the TLS session of the previous connection.
   */
-class NodeClient(private val peerSet : PeerSet) : AutoCloseable {
+class NodeClient(private val peerSet : PeerSet, private val security : NodeSecurity = NodeSecurity.get()) : AutoCloseable {
   private val logger = LoggerFactory.getLogger(NodeClient::class.java)
 
-  protected val group : EventLoopGroup = NioEventLoopGroup()
-
   fun connect(address : String, port : Int) : ChannelFuture {
-    // Configure SSL.
-    val sslCtx : SslContext = SslContextBuilder.forClient()
-      // TODO : BUGBUG : Do not use an insecure trust manager.
-      // From the comment of InsecureTrustManagerFactory :
-      //   An insecure that trusts all X.509 certificates without any verification.
-      .trustManager(InsecureTrustManagerFactory.INSTANCE).build()
-
     val b : Bootstrap = Bootstrap()
-       b.group(group)
-      .channel(NioSocketChannel::class.java)
-      .option(ChannelOption.SO_KEEPALIVE, true)
+    transport.configure(b.group(group))
       .handler(LoggingHandler(LogLevel.INFO))
-      .handler(NodeClientInitializer(sslCtx, address, port, peerSet))
+      .handler(NodeClientInitializer(security, address, port, peerSet))
 
     // Start the connection attempt.
     //val channel : Channel = b.connect(address, port).sync().channel()
@@ -62,7 +53,17 @@ class NodeClient(private val peerSet : PeerSet) : AutoCloseable {
 
   }
 
+  /** The event loop group is shared by all clients, so it is not shut down here.
+    * Connections of the client are closed by the peers that own them.
+    */
   override fun close() : Unit {
-    group.shutdownGracefully()
+  }
+
+  companion object {
+    // The transport, event loop sizes and socket options. Configured by scalechain.p2p in the configuration file.
+    private val transport : NettyTransport by lazy { NettyTransport.create("scalechain.p2p") }
+
+    // The event loop group shared by all clients.
+    private val group : EventLoopGroup by lazy { transport.workerGroup("p2p-client") }
   }
 }
@@ -18,13 +18,27 @@ class NodeClientHandler(private val peerSet : PeerSet) : SimpleChannelInboundHan
   override fun channelRead0(context : ChannelHandlerContext, message : ProtocolMessage) : Unit {
     if (messageHandler == null ) {
       val peer = peerSet.add(context.channel())
-      messageHandler = ProtocolMessageHandler(peer, PeerCommunicator(peerSet))
+      messageHandler = ProtocolMessageHandler(peer, PeerToPeerNetworking.getPeerCommunicator())
     }
 
     // Process the received message, and send message to peers if necessary.
     messageHandler!!.handle(message)
   }
 
+  override fun channelReadComplete(ctx : ChannelHandlerContext) : Unit {
+    // Process transaction gossip deferred behind block and header messages read together.
+    messageHandler?.readComplete()
+    super.channelReadComplete(ctx)
+  }
+
+  override fun channelWritabilityChanged(ctx : ChannelHandlerContext) : Unit {
+    // Serve requests paused while the outbound buffer of the channel was full.
+    if (ctx.channel().isWritable) {
+      messageHandler?.resume()
+    }
+    super.channelWritabilityChanged(ctx)
+  }
+
   override fun exceptionCaught(ctx : ChannelHandlerContext, cause : Throwable) : Unit {
     val causeDescription = ExceptionUtil.describe( cause.cause )
     logger.error("${cause}. Stack : ${StackUtil.getStackTrace(cause)} ${causeDescription}")
@@ -3,29 +3,38 @@ package io.scalechain.blockchain.net
 import io.netty.channel.ChannelInitializer
 import io.netty.channel.ChannelPipeline
 import io.netty.channel.socket.SocketChannel
-import io.netty.handler.ssl.SslContext
 import io.scalechain.blockchain.net.p2p.BitcoinProtocolEncoder
 import io.scalechain.blockchain.net.p2p.BitcoinProtocolDecoder
+import io.scalechain.blockchain.net.p2p.NodeSecurity
+import io.scalechain.blockchain.net.p2p.OutboundBudgetHandler
+import io.scalechain.blockchain.net.p2p.ReceivedBytesCounter
 
 /**
   * Creates a newly configured {@link ChannelPipeline} for a channel.
   */
-class NodeClientInitializer(private val sslCtx : SslContext, private val address : String, private val port : Int, private val peerSet : PeerSet) : ChannelInitializer<SocketChannel>() {
+class NodeClientInitializer(private val security : NodeSecurity, private val address : String, private val port : Int, private val peerSet : PeerSet) : ChannelInitializer<SocketChannel>() {
 
   override fun initChannel(ch : SocketChannel) : Unit {
     val pipeline : ChannelPipeline = ch.pipeline()
 
-    // Add SSL handler first to encrypt and decrypt everything.
-    // In this example, we use a bogus certificate in the server side
-    // and accept any invalid certificates in the client side.
-    // You will need something more complicated to identify both
-    // and server in the real world.
-    pipeline.addLast(sslCtx.newHandler(ch.alloc(), address, port))
+    // Count the bytes queued for the peer and received from it, below the SSL handler so that encrypted bytes are counted.
+    pipeline.addLast(OutboundBudgetHandler())
+    pipeline.addLast(ReceivedBytesCounter())
+
+    // Add the SSL handler to encrypt and decrypt everything, unless the connection is in plaintext mode.
+    // The address and port let a reconnection resume the TLS session of the previous connection. See NodeSecurity.
+    val sslHandler = security.newClientHandler(ch, address, port)
+    if (sslHandler != null) {
+      pipeline.addLast(sslHandler)
+    }
 
     pipeline.addLast(BitcoinProtocolDecoder())
     pipeline.addLast(BitcoinProtocolEncoder())
 
     // and then business logic.
     pipeline.addLast(NodeClientHandler(peerSet))
+
+    // Limit the bytes queued for a slow peer. Broadcasts skip the peer while its outbound buffer is full.
+    Peer.configureOutboundBuffer(ch)
   }
 }
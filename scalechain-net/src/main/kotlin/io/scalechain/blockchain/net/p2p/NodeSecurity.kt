@@ -0,0 +1,127 @@
+package io.scalechain.blockchain.net.p2p
+
+import io.netty.channel.socket.SocketChannel
+import io.netty.handler.ssl.OpenSsl
+import io.netty.handler.ssl.SslContext
+import io.netty.handler.ssl.SslContextBuilder
+import io.netty.handler.ssl.SslHandler
+import io.netty.handler.ssl.SslProvider
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory
+import io.netty.handler.ssl.util.SelfSignedCertificate
+import io.scalechain.util.Config
+import org.slf4j.LoggerFactory
+
+/**
+  * How connections between nodes are secured.
+  *
+  * PLAINTEXT : Messages are sent as they are. For nodes in a trusted network, where encryption only costs CPU and latency.
+  * TLS : Messages are encrypted with TLS.
+  */
+enum class SecurityMode {
+  PLAINTEXT, TLS
+}
+
+/**
+  * Creates handlers that secure connections between nodes.
+  *
+  * In TLS mode, SSL contexts are created once and shared by all connections, so that their session caches are shared.
+  * A client reconnecting to the same address and port resumes the cached session instead of doing a full handshake.
+  * OpenSSL engines are used if netty-tcnative is on the class path, and JDK engines otherwise.
+  *
+  * All nodes in a network should use the same mode.
+  *
+  * @param mode Whether to use TLS.
+  * @param sessionCacheSize The maximum number of TLS sessions cached for resumption.
+  * @param sessionTimeoutSeconds The time a cached TLS session can be resumed.
+  */
+class NodeSecurity(val mode : SecurityMode,
+                   private val sessionCacheSize : Long = DefaultSessionCacheSize,
+                   private val sessionTimeoutSeconds : Long = DefaultSessionTimeoutSeconds) {
+  private val provider : SslProvider = if (OpenSsl.isAvailable()) SslProvider.OPENSSL else SslProvider.JDK
+
+  /** The SSL context for accepted connections.
+    */
+  val serverContext : SslContext by lazy {
+    // TODO : BUGBUG : SelfSignedCertificate is insecure. Replace it with another one.
+    val ssc = SelfSignedCertificate()
+    SslContextBuilder.forServer(ssc.certificate(), ssc.privateKey())
+      .sslProvider(provider)
+      .sessionCacheSize(sessionCacheSize)
+      .sessionTimeout(sessionTimeoutSeconds)
+      .build()
+  }
+
+  /** The SSL context for connections to other nodes.
+    */
+  val clientContext : SslContext by lazy {
+    SslContextBuilder.forClient()
+      .sslProvider(provider)
+      // TODO : BUGBUG : Do not use an insecure trust manager.
+      // From the comment of InsecureTrustManagerFactory :
+      //   An insecure that trusts all X.509 certificates without any verification.
+      .trustManager(InsecureTrustManagerFactory.INSTANCE)
+      .sessionCacheSize(sessionCacheSize)
+      .sessionTimeout(sessionTimeoutSeconds)
+      .build()
+  }
+
+  /** Create a handler that secures an accepted connection.
+    *
+    * @return The SSL handler, or null in plaintext mode.
+    */
+  fun newServerHandler(ch : SocketChannel) : SslHandler? =
+    if (mode == SecurityMode.TLS) serverContext.newHandler(ch.alloc()) else null
+
+  /** Create a handler that secures a connection to a node.
+    * The address and port of the node are the key to find the cached session to resume.
+    *
+    * @return The SSL handler, or null in plaintext mode.
+    */
+  fun newClientHandler(ch : SocketChannel, address : String, port : Int) : SslHandler? =
+    if (mode == SecurityMode.TLS) clientContext.newHandler(ch.alloc(), address, port) else null
+
+  override fun toString() : String = "NodeSecurity(mode=$mode, provider=$provider, sessionCacheSize=$sessionCacheSize, sessionTimeoutSeconds=$sessionTimeoutSeconds)"
+
+  companion object {
+    val DefaultSessionCacheSize = 1024L
+    val DefaultSessionTimeoutSeconds = 3600L
+
+    private var theNodeSecurity : NodeSecurity? = null
+
+    /** Create a node security with settings from scalechain.p2p in the configuration file.
+      *
+      * scalechain.p2p.security : "tls", the default, or "plaintext".
+      * scalechain.p2p.tls_session_cache_size : The maximum number of TLS sessions cached for resumption.
+      * scalechain.p2p.tls_session_timeout_seconds : The time a cached TLS session can be resumed.
+      */
+    fun create(config : Config = Config.get()) : NodeSecurity {
+      val modeName = if (config.hasPath("scalechain.p2p.security")) config.getString("scalechain.p2p.security") else "tls"
+      val mode = when(modeName.toLowerCase()) {
+        "plaintext" -> SecurityMode.PLAINTEXT
+        "tls" -> SecurityMode.TLS
+        else -> throw IllegalArgumentException("Unknown scalechain.p2p.security : ${modeName}. Use tls or plaintext.")
+      }
+      val sessionCacheSize =
+        if (config.hasPath("scalechain.p2p.tls_session_cache_size")) config.getInt("scalechain.p2p.tls_session_cache_size").toLong()
+        else DefaultSessionCacheSize
+      val sessionTimeoutSeconds =
+        if (config.hasPath("scalechain.p2p.tls_session_timeout_seconds")) config.getInt("scalechain.p2p.tls_session_timeout_seconds").toLong()
+        else DefaultSessionTimeoutSeconds
+
+      return NodeSecurity(mode, sessionCacheSize, sessionTimeoutSeconds)
+    }
+
+    /** Get the node security shared by the node server and clients. Created from the configuration file on the first call.
+      */
+    fun get() : NodeSecurity {
+      synchronized(this) {
+        if (theNodeSecurity == null) {
+          val security = create()
+          LoggerFactory.getLogger(NodeSecurity::class.java).info("P2P connections : ${security}")
+          theNodeSecurity = security
+        }
+        return theNodeSecurity!!
+      }
+    }
+  }
+}
@@ -1,38 +1,36 @@
 package io.scalechain.blockchain.net
 
 import io.netty.bootstrap.ServerBootstrap
-import io.netty.channel.ChannelOption
 import io.netty.channel.ChannelFutureListener
 import io.netty.channel.ChannelFuture
 import io.netty.channel.EventLoopGroup
-import io.netty.channel.nio.NioEventLoopGroup
-import io.netty.channel.socket.nio.NioServerSocketChannel
 import io.netty.handler.logging.LogLevel
 import io.netty.handler.logging.LoggingHandler
-import io.netty.handler.ssl.SslContext
-import io.netty.handler.ssl.SslContextBuilder
-import io.netty.handler.ssl.util.SelfSignedCertificate
+import io.scalechain.blockchain.net.p2p.NodeSecurity
+import io.scalechain.util.NettyTransport
 import org.slf4j.LoggerFactory
 
-class NodeServer(private val peerSet : PeerSet) {
+/**
+  * Accepts connections from peers.
+  *
+  * @param peerSet The peer set to add connected peers.
+  * @param transport The transport, event loop sizes and socket options. Configured by scalechain.p2p in the configuration file by default.
+  * @param security Whether connections use TLS. Configured by scalechain.p2p in the configuration file by default.
+  */
+class NodeServer(private val peerSet : PeerSet,
+                 private val transport : NettyTransport = NettyTransport.create("scalechain.p2p"),
+                 private val security : NodeSecurity = NodeSecurity.get()) {
   private val logger = LoggerFactory.getLogger(NodeServer::class.java)
 
-  protected val bossGroup : EventLoopGroup = NioEventLoopGroup(1)
-  protected val workerGroup : EventLoopGroup = NioEventLoopGroup()
+  protected val bossGroup : EventLoopGroup = transport.bossGroup("p2p-server")
+  protected val workerGroup : EventLoopGroup = transport.workerGroup("p2p-server")
 
   fun listen(port : Int) : ChannelFuture {
-    // TODO : BUGBUG : SelfSignedCertificate is insecure. Replace it with another one.
-    val ssc : SelfSignedCertificate = SelfSignedCertificate()
-    val sslCtx : SslContext = SslContextBuilder.forServer(ssc.certificate(), ssc.privateKey())
-      .build()
-
     val b : ServerBootstrap = ServerBootstrap()
 
-    b.group(bossGroup, workerGroup)
-      .channel(NioServerSocketChannel::class.java)
-      .option(ChannelOption.SO_KEEPALIVE, true)
+    transport.configure(b.group(bossGroup, workerGroup))
       .handler(LoggingHandler(LogLevel.INFO))
-      .childHandler(NodeServerInitializer(sslCtx, peerSet))
+      .childHandler(NodeServerInitializer(security, peerSet))
 
     //b.bind(port).sync().channel().closeFuture().sync()
     return b.bind(port).addListener(object : ChannelFutureListener {
@@ -22,52 +22,60 @@ class NodeServerHandler(private val peerSet : PeerSet) : SimpleChannelInboundHan
   override fun channelActive(ctx : ChannelHandlerContext) : Unit {
     // Once session is secured, send a greeting and register the channel to the global channel
     // list so the channel received the messages from others.
-    ctx.pipeline().get(SslHandler::class.java).handshakeFuture().addListener(
-      object : GenericFutureListener<Future<Channel>> {
-        override fun operationComplete(future : Future<Channel>)  {
-          val remoteAddress = ctx.channel().remoteAddress()
-          logger.info("Connection accepted from ${remoteAddress}")
-          /*
-          ctx.writeAndFlush(
-            "Welcome to " + InetAddress.getLocalHost().getHostName() + " secure chat service!\n")
-          ctx.writeAndFlush(
-            "Your session is protected by " +
-              ctx.pipeline().get(classOf<SslHandler>).engine().getSession().getCipherSuite() +
-            " cipher suite.\n")
-          */
-
-          assert(messageHandler == null)
-
-          val peer = peerSet.add(ctx.channel())
-          messageHandler = ProtocolMessageHandler(peer, PeerCommunicator(peerSet))
-
-          // Upon successful connection, send the version message.
-          peer.send( VersionFactory.create() )
-
-          ctx.channel().closeFuture().addListener(object : ChannelFutureListener {
-            override fun operationComplete(future:ChannelFuture) {
-              assert( future.isDone )
-
-              peerSet.remove(remoteAddress)
-
-              if (future.isSuccess) { // completed successfully
-                logger.info("Connection closed. Remote address : ${remoteAddress}")
-              }
-
-              if (future.cause() != null) { // completed with failure
-                val causeDescription = ExceptionUtil.describe( future.cause().cause )
-                logger.warn("Failed to close connection. Remote address : ${remoteAddress}. Exception : ${future.cause().message}, Stack Trace : ${StackUtil.getStackTrace(future.cause())} ${causeDescription}")
-              }
-
-              if (future.isCancelled) { // completed by cancellation
-                logger.warn("Canceled to close connection. Remote address : ${remoteAddress}")
-              }
+    // In plaintext mode, there is no SSL handler, and the connection is ready as soon as it is accepted.
+    val sslHandler : SslHandler? = ctx.pipeline().get(SslHandler::class.java)
+    if (sslHandler == null) {
+      onConnectionReady(ctx)
+    } else {
+      sslHandler.handshakeFuture().addListener(
+        object : GenericFutureListener<Future<Channel>> {
+          override fun operationComplete(future : Future<Channel>)  {
+            if (future.isSuccess) {
+              onConnectionReady(ctx)
+            } else {
+              // The SSL handler closes the connection.
+              logger.warn("TLS handshake failed. Remote address : ${ctx.channel().remoteAddress()}. Exception : ${future.cause()?.message}")
             }
-          })
+          }
+        }
+      )
+    }
+  }
+
+  /** Add the peer to the peer set, and send the version message.
+    */
+  private fun onConnectionReady(ctx : ChannelHandlerContext) : Unit {
+    val remoteAddress = ctx.channel().remoteAddress()
+    logger.info("Connection accepted from ${remoteAddress}")
+
+    assert(messageHandler == null)
+
+    val peer = peerSet.add(ctx.channel())
+    messageHandler = ProtocolMessageHandler(peer, PeerToPeerNetworking.getPeerCommunicator())
+
+    // Upon successful connection, send the version message.
+    peer.send( VersionFactory.create() )
+
+    ctx.channel().closeFuture().addListener(object : ChannelFutureListener {
+      override fun operationComplete(future:ChannelFuture) {
+        assert( future.isDone )
+
+        peerSet.remove(remoteAddress)
 
+        if (future.isSuccess) { // completed successfully
+          logger.info("Connection closed. Remote address : ${remoteAddress}")
+        }
+
+        if (future.cause() != null) { // completed with failure
+          val causeDescription = ExceptionUtil.describe( future.cause().cause )
+          logger.warn("Failed to close connection. Remote address : ${remoteAddress}. Exception : ${future.cause().message}, Stack Trace : ${StackUtil.getStackTrace(future.cause())} ${causeDescription}")
+        }
+
+        if (future.isCancelled) { // completed by cancellation
+          logger.warn("Canceled to close connection. Remote address : ${remoteAddress}")
         }
       }
-    )
+    })
   }
 
   override fun channelRead0(context : ChannelHandlerContext, message : ProtocolMessage) : Unit {
@@ -84,6 +92,20 @@ class NodeServerHandler(private val peerSet : PeerSet) : SimpleChannelInboundHan
     */
   }
 
+  override fun channelReadComplete(ctx : ChannelHandlerContext) : Unit {
+    // Process transaction gossip deferred behind block and header messages read together.
+    messageHandler?.readComplete()
+    super.channelReadComplete(ctx)
+  }
+
+  override fun channelWritabilityChanged(ctx : ChannelHandlerContext) : Unit {
+    // Serve requests paused while the outbound buffer of the channel was full.
+    if (ctx.channel().isWritable) {
+      messageHandler?.resume()
+    }
+    super.channelWritabilityChanged(ctx)
+  }
+
   override fun exceptionCaught(ctx : ChannelHandlerContext, cause : Throwable) {
     val causeDescription = ExceptionUtil.describe( cause.cause )
     logger.error("${cause}. Stack : ${StackUtil.getStackTrace(cause)} ${causeDescription}")
@@ -3,30 +3,39 @@ package io.scalechain.blockchain.net
 import io.netty.channel.ChannelInitializer
 import io.netty.channel.ChannelPipeline
 import io.netty.channel.socket.SocketChannel
-import io.netty.handler.ssl.SslContext
 import io.scalechain.blockchain.net.p2p.BitcoinProtocolEncoder
 import io.scalechain.blockchain.net.p2p.BitcoinProtocolDecoder
+import io.scalechain.blockchain.net.p2p.NodeSecurity
+import io.scalechain.blockchain.net.p2p.OutboundBudgetHandler
+import io.scalechain.blockchain.net.p2p.ReceivedBytesCounter
 
 /**
   * Creates a newly configured {@link ChannelPipeline} for a channel.
   */
-class NodeServerInitializer(private val sslCtx : SslContext, private val peerSet : PeerSet) : ChannelInitializer<SocketChannel>() {
+class NodeServerInitializer(private val security : NodeSecurity, private val peerSet : PeerSet) : ChannelInitializer<SocketChannel>() {
 
   override fun initChannel(ch : SocketChannel) : Unit {
     val pipeline : ChannelPipeline = ch.pipeline()
 
-    // Add SSL handler first to encrypt and decrypt everything.
-    // In this example, we use a bogus certificate in the server side
-    // and accept any invalid certificates in the client side.
-    // You will need something more complicated to identify both
-    // and server in the real world.
-    pipeline.addLast(sslCtx.newHandler(ch.alloc()))
+    // Count the bytes queued for the peer and received from it, below the SSL handler so that encrypted bytes are counted.
+    pipeline.addLast(OutboundBudgetHandler())
+    pipeline.addLast(ReceivedBytesCounter())
 
-    // On top of the SSL handler, add the text line codec.
+    // Add the SSL handler to encrypt and decrypt everything, unless the connection is in plaintext mode.
+    // The server uses a self-signed certificate, and the client accepts any certificate. See NodeSecurity.
+    val sslHandler = security.newServerHandler(ch)
+    if (sslHandler != null) {
+      pipeline.addLast(sslHandler)
+    }
+
+    // On top of the SSL handler, add the bitcoin protocol codec.
     pipeline.addLast(BitcoinProtocolDecoder())
     pipeline.addLast(BitcoinProtocolEncoder())
 
     // and then business logic.
     pipeline.addLast(NodeServerHandler(peerSet))
+
+    // Limit the bytes queued for a slow peer. Broadcasts skip the peer while its outbound buffer is full.
+    Peer.configureOutboundBuffer(ch)
   }
 }
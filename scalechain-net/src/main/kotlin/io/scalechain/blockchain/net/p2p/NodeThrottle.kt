@@ -1,33 +1,111 @@
 package io.scalechain.blockchain.net.p2p
 
+import io.scalechain.util.Config
 import org.slf4j.Logger
+import java.util.concurrent.atomic.AtomicLong
 
 
 /**
   * Created by kangmo on 8/7/16.
+  *
+  * Keeps the memory used for messages bounded.
+  *
+  * Outbound : Each peer channel has water marks on its outbound buffer (See Peer.configureOutboundBuffer),
+  * and the bytes queued for all peers are limited by outboundBudgetBytes.
+  * A peer is paused if its channel is not writable, or if the budget is exhausted while the peer has more than the low water mark queued.
+  * So only peers that do not read what we send are paused. A paused peer is not served getdata, and is not sent inv messages.
   */
 object NodeThrottle {
+  // The default limit of bytes queued for all peers.
+  val DefaultOutboundBudgetBytes = 256L * 1024 * 1024
+
+  // The direct memory to keep free for receiving messages.
+  val DirectMemoryReserveBytes = 256000000L
+
+  // The maximum time throttle waits for direct memory to be freed.
+  val MaxThrottleMillis = 10000L
+
+  /** The limit of bytes queued for all peers. */
+  @Volatile var outboundBudgetBytes : Long = DefaultOutboundBudgetBytes
+
+  // The bytes written to peer channels but not flushed to sockets yet. Counted by OutboundBudgetHandler.
+  private val outboundBytes = AtomicLong()
+
+  // The number of times a peer was paused, and the total time peers were paused.
+  private val pauseCount = AtomicLong()
+  private val pausedNanos = AtomicLong()
+
+  /** Set the outbound budget from scalechain.p2p.outbound_budget_mb in the configuration file, if it is set.
+    */
+  fun configure() : Unit {
+    val config = Config.get()
+    if (config.hasPath("scalechain.p2p.outbound_budget_mb")) {
+      outboundBudgetBytes = config.getInt("scalechain.p2p.outbound_budget_mb").toLong() * 1024 * 1024
+    }
+  }
+
+  fun addOutboundBytes(bytes : Long) : Unit {
+    outboundBytes.addAndGet(bytes)
+  }
+
+  fun removeOutboundBytes(bytes : Long) : Unit {
+    outboundBytes.addAndGet(-bytes)
+  }
+
+  /** The bytes queued for all peers. */
+  fun outboundBytes() : Long = outboundBytes.get()
+
+  /** Check if the bytes queued for all peers exceed the budget, or the direct memory is almost used up.
+    */
+  fun isOverBudget() : Boolean {
+    if (outboundBytes.get() >= outboundBudgetBytes) {
+      return true
+    }
+    val maxDirectMemory = maxDirectMemory()
+    return directMemoryUsed() >= maxDirectMemory - Math.min(DirectMemoryReserveBytes, maxDirectMemory / 4)
+  }
+
+  /** Record the time a peer was paused. Called when the peer is resumed.
+    *
+    * @param nanos The time the peer was paused in nanoseconds.
+    */
+  fun recordPause(nanos : Long) : Unit {
+    pauseCount.incrementAndGet()
+    pausedNanos.addAndGet(nanos)
+  }
+
+  /** The number of times peers were paused. */
+  fun pauseCount() : Long = pauseCount.get()
+
+  /** The total time peers were paused in milliseconds. */
+  fun pausedMillis() : Long = pausedNanos.get() / 1000000
+
+  // http://stackoverflow.com/questions/20058489/is-there-a-way-to-measure-direct-memory-usage-in-java
+  private fun maxDirectMemory() : Long = sun.misc.VM.maxDirectMemory()
+
+  private fun directMemoryUsed() : Long = sun.misc.SharedSecrets.getJavaNioAccess().getDirectBufferPool().getMemoryUsed()
+
   /**
     * Netty uses direct memory for receiving messages. If peers send messages faster than this node can process,
     * The direct memory fills up. We need to wait for messages to be handled so that the direct memory is freed.
+    * Waits at most MaxThrottleMillis, so call this only on a worker thread, not on an event loop.
     *
     * @param logger The logger of the module that is calling this method.
     */
   fun throttle(logger : Logger): Unit {
-    var maxDiectMemory : Long = sun.misc.VM.maxDirectMemory()
-    var directMemoryUsed : Long = sun.misc.SharedSecrets.getJavaNioAccess().getDirectBufferPool().getMemoryUsed()
+    var maxDiectMemory : Long = maxDirectMemory()
+    var directMemoryUsed : Long = directMemoryUsed()
     logger.trace("Checking Direct Memory Usage. Max memory : ${maxDiectMemory}, Used memory : ${directMemoryUsed}")
-    // http://stackoverflow.com/questions/20058489/is-there-a-way-to-measure-direct-memory-usage-in-java
-
-    /*
-    while(directMemoryUsed >= maxDiectMemory - 256000000) {
-      Thread.sleep(1000)
 
-      logger.warn("Not enough direct memory for receiving messages. Sleeping 1 second. Max memory : ${maxDiectMemory}, Used memory : ${directMemoryUsed}")
+    var waitedMillis = 0L
+    while(directMemoryUsed >= maxDiectMemory - Math.min(DirectMemoryReserveBytes, maxDiectMemory / 4) && waitedMillis < MaxThrottleMillis) {
+      logger.warn("Not enough direct memory for receiving messages. Sleeping 100 milliseconds. Max memory : ${maxDiectMemory}, Used memory : ${directMemoryUsed}")
 
-      maxDiectMemory = sun.misc.VM.maxDirectMemory()
+      Thread.sleep(100)
+      waitedMillis += 100
 
-      directMemoryUsed = sun.misc.SharedSecrets.getJavaNioAccess().getDirectBufferPool().getMemoryUsed()
-    }*/
+      maxDiectMemory = maxDirectMemory()
+      directMemoryUsed = directMemoryUsed()
+    }
   }
 }
@@ -0,0 +1,28 @@
+package io.scalechain.blockchain.net.p2p
+
+import io.netty.buffer.ByteBuf
+import io.netty.channel.ChannelFutureListener
+import io.netty.channel.ChannelHandler
+import io.netty.channel.ChannelHandlerContext
+import io.netty.channel.ChannelOutboundHandlerAdapter
+import io.netty.channel.ChannelPromise
+
+/**
+  * Counts bytes written to a peer channel until they are flushed to the socket, so that NodeThrottle can limit the bytes queued for all peers.
+  * Added first on the pipeline, so it counts the bytes actually queued on the outbound buffer of the channel.
+  */
+@ChannelHandler.Sharable
+class OutboundBudgetHandler : ChannelOutboundHandlerAdapter() {
+  override fun write(ctx : ChannelHandlerContext, msg : Any, promise : ChannelPromise) {
+    if (msg is ByteBuf) {
+      val bytes = msg.readableBytes().toLong()
+      NodeThrottle.addOutboundBytes(bytes)
+      // A void promise does not notify listeners.
+      val countedPromise = promise.unvoid()
+      countedPromise.addListener(ChannelFutureListener { NodeThrottle.removeOutboundBytes(bytes) })
+      ctx.write(msg, countedPromise)
+    } else {
+      ctx.write(msg, promise)
+    }
+  }
+}
@@ -0,0 +1,39 @@
+package io.scalechain.blockchain.net.p2p
+
+import io.netty.buffer.ByteBuf
+import io.netty.channel.Channel
+import io.netty.channel.ChannelHandler
+import io.netty.channel.ChannelHandlerContext
+import io.netty.channel.ChannelInboundHandlerAdapter
+import io.netty.util.AttributeKey
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+  * Counts bytes received on a peer channel. The count is kept in the ReceivedBytes attribute of the channel.
+  * Added first on the pipeline, so it counts bytes as they come from the socket. Used to measure the throughput of peers.
+  */
+@ChannelHandler.Sharable
+class ReceivedBytesCounter : ChannelInboundHandlerAdapter() {
+  override fun channelRead(ctx : ChannelHandlerContext, msg : Any) {
+    if (msg is ByteBuf) {
+      receivedBytesOf(ctx.channel()).addAndGet(msg.readableBytes().toLong())
+    }
+    ctx.fireChannelRead(msg)
+  }
+
+  companion object {
+    val ReceivedBytes : AttributeKey<AtomicLong> = AttributeKey.valueOf("receivedBytes")
+
+    /** Get the counter of bytes received on a channel.
+      */
+    fun receivedBytesOf(channel : Channel) : AtomicLong {
+      val attribute = channel.attr(ReceivedBytes)
+      val counter = attribute.get()
+      if (counter != null) {
+        return counter
+      }
+      attribute.setIfAbsent(AtomicLong())
+      return attribute.get()
+    }
+  }
+}
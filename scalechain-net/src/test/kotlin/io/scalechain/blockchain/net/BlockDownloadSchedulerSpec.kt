@@ -0,0 +1,245 @@
+package io.scalechain.blockchain.net
+
+import io.kotlintest.KTestJUnitRunner
+import io.kotlintest.matchers.Matchers
+import io.kotlintest.specs.FlatSpec
+import io.netty.bootstrap.Bootstrap
+import io.netty.bootstrap.ServerBootstrap
+import io.netty.channel.Channel
+import io.netty.channel.ChannelHandlerContext
+import io.netty.channel.ChannelInboundHandlerAdapter
+import io.netty.channel.ChannelInitializer
+import io.netty.channel.embedded.EmbeddedChannel
+import io.netty.channel.nio.NioEventLoopGroup
+import io.netty.channel.socket.SocketChannel
+import io.netty.channel.socket.nio.NioServerSocketChannel
+import io.netty.channel.socket.nio.NioSocketChannel
+import io.scalechain.blockchain.net.p2p.BitcoinProtocolDecoder
+import io.scalechain.blockchain.net.p2p.BitcoinProtocolEncoder
+import io.scalechain.blockchain.net.p2p.ReceivedBytesCounter
+import io.scalechain.blockchain.proto.Block
+import io.scalechain.blockchain.proto.BlockHeader
+import io.scalechain.blockchain.proto.GetData
+import io.scalechain.blockchain.proto.Hash
+import io.scalechain.blockchain.proto.Ping
+import io.scalechain.blockchain.proto.Pong
+import io.scalechain.blockchain.proto.test.ProtoTestData
+import io.scalechain.util.Bytes
+import org.junit.runner.RunWith
+import org.slf4j.LoggerFactory
+import java.net.InetSocketAddress
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+@RunWith(KTestJUnitRunner::class)
+class BlockDownloadSchedulerSpec : FlatSpec(), Matchers, ProtoTestData {
+  private val logger = LoggerFactory.getLogger(BlockDownloadSchedulerSpec::class.java)
+
+  fun block(nonce : Long) : Block {
+    val transactions = (0 until 20).map { transaction1().copy(lockTime = it.toLong()) }
+    val header = BlockHeader(4, Hash(Bytes(ByteArray(32))), Hash(Bytes(ByteArray(32))), 1454058586L, 403253488L, nonce)
+    return Block(header, transactions)
+  }
+
+  /** A peer serving blocks. Sends each requested block and pong after delayMillis, or never if delayMillis is null.
+    */
+  class BlockServer(val blocks : Map<Hash, Block>, val delayMillis : Long?) : ChannelInboundHandlerAdapter() {
+    val servedCount = AtomicInteger()
+    val requestedCount = AtomicInteger()
+
+    override fun channelRead(ctx : ChannelHandlerContext, msg : Any) {
+      if (msg is GetData) {
+        requestedCount.addAndGet(msg.inventories.size)
+      }
+      if (delayMillis == null) {
+        return
+      }
+      if (msg is GetData) {
+        msg.inventories.forEachIndexed { i, inventory ->
+          val block = blocks.get(inventory.hash)
+          if (block != null) {
+            // Send blocks one by one, so that the throughput of the peer is bound by the delay.
+            ctx.executor().schedule(Runnable {
+              servedCount.incrementAndGet()
+              ctx.writeAndFlush(block)
+            }, delayMillis * (i + 1), TimeUnit.MILLISECONDS)
+          }
+        }
+      } else if (msg is Ping) {
+        ctx.executor().schedule(Runnable {
+          ctx.writeAndFlush(Pong(msg.nonce))
+        }, delayMillis, TimeUnit.MILLISECONDS)
+      }
+    }
+  }
+
+  init {
+    "BlockDownloadScheduler" should "download blocks mostly from the fastest peer, and drop a stalling peer during the initial block download, without asking a peer behind us" {
+      val BlockCount = 40
+      val blocks = (1 .. BlockCount).map { block(it.toLong()) }
+      val blockByHash = blocks.associateBy { it.header.hash() }
+
+      val group = NioEventLoopGroup(2)
+      val peerSet = PeerSet()
+      val scheduler = BlockDownloadScheduler(peerSet, { true }, stallTimeoutMillis = 500L, maxBlocksInFlightPerPeer = 4, maxStallsBeforeDisconnect = 1)
+      val peerByChannel = ConcurrentHashMap<Channel, Peer>()
+      val receivedHashes = ConcurrentHashMap.newKeySet<Hash>()
+      val channels = arrayListOf<Channel>()
+      try {
+        val serverChannel = ServerBootstrap()
+          .group(group)
+          .channel(NioServerSocketChannel::class.java)
+          .childHandler(object : ChannelInitializer<SocketChannel>() {
+            override fun initChannel(ch : SocketChannel) {
+              ch.pipeline().addLast(ReceivedBytesCounter())
+              ch.pipeline().addLast(BitcoinProtocolDecoder())
+              ch.pipeline().addLast(BitcoinProtocolEncoder())
+              ch.pipeline().addLast(object : ChannelInboundHandlerAdapter() {
+                override fun channelActive(ctx : ChannelHandlerContext) {
+                  peerByChannel.put(ctx.channel(), peerSet.add(ctx.channel()))
+                  super.channelActive(ctx)
+                }
+
+                override fun channelRead(ctx : ChannelHandlerContext, msg : Any) {
+                  val peer = peerByChannel.get(ctx.channel())!!
+                  if (msg is Block) {
+                    val blockHash = msg.header.hash()
+                    receivedHashes.add(blockHash)
+                    scheduler.blockReceived(peer, blockHash)
+                  } else if (msg is Pong) {
+                    peer.performance.pongReceived(msg.nonce, System.nanoTime())
+                  }
+                }
+              })
+            }
+          })
+          .bind(InetSocketAddress("127.0.0.1", 0)).sync().channel()
+        channels.add(serverChannel)
+
+        fun connect(blockServer : BlockServer) : Channel {
+          val channel = Bootstrap()
+            .group(group)
+            .channel(NioSocketChannel::class.java)
+            .handler(object : ChannelInitializer<SocketChannel>() {
+              override fun initChannel(ch : SocketChannel) {
+                ch.pipeline().addLast(BitcoinProtocolDecoder())
+                ch.pipeline().addLast(BitcoinProtocolEncoder())
+                ch.pipeline().addLast(blockServer)
+              }
+            })
+            .connect(serverChannel.localAddress()).sync().channel()
+          channels.add(channel)
+          return channel
+        }
+
+        val fast = BlockServer(blockByHash, 0L)
+        val medium = BlockServer(blockByHash, 30L)
+        val stalling = BlockServer(blockByHash, null)
+        val fastChannel = connect(fast)
+        val mediumChannel = connect(medium)
+        val stallingChannel = connect(stalling)
+        // A peer that did not announce the blocks, because it is behind us. It would stall if it were asked for them.
+        val behind = BlockServer(blockByHash, null)
+        val behindChannel = connect(behind)
+
+        var waitCount = 0
+        while (peerSet.all().count() < 4 && waitCount < 100) {
+          Thread.sleep(10)
+          waitCount += 1
+        }
+        peerSet.all().count() shouldBe 4
+
+        val fastPeer = peerSet.peers().first { it.first == fastChannel.localAddress() }.second
+        val mediumPeer = peerSet.peers().first { it.first == mediumChannel.localAddress() }.second
+        val stallingPeer = peerSet.peers().first { it.first == stallingChannel.localAddress() }.second
+        val behindPeer = peerSet.peers().first { it.first == behindChannel.localAddress() }.second
+
+        // The peers that have the blocks announced them with inv messages.
+        listOf(fastPeer, mediumPeer, stallingPeer).forEach { peer ->
+          blockByHash.keys.forEach { peer.addKnownInventory(it) }
+        }
+
+        scheduler.start(tickMillis = 100L, pingIntervalMillis = 60000L)
+        scheduler.requestBlocks(blockByHash.keys.toList())
+
+        waitCount = 0
+        while ((receivedHashes.size < BlockCount || stallingChannel.isActive) && waitCount < 1000) {
+          Thread.sleep(10)
+          waitCount += 1
+        }
+
+        logger.info("Blocks served. Fast : ${fast.servedCount.get()}, ${fastPeer.performance}. Medium : ${medium.servedCount.get()}, ${mediumPeer.performance}. Stalling : ${stallingPeer.performance}")
+
+        receivedHashes.size shouldBe BlockCount
+        scheduler.pendingBlockCount() shouldBe 0
+        (fast.servedCount.get() > medium.servedCount.get()) shouldBe true
+        stalling.servedCount.get() shouldBe 0
+        stallingPeer.performance.stallCount() shouldBe 1
+        stallingChannel.isActive shouldBe false
+        behind.requestedCount.get() shouldBe 0
+        behindPeer.performance.stallCount() shouldBe 0
+        behindChannel.isActive shouldBe true
+
+        // Measure RTT with pings.
+        scheduler.sendPings()
+        waitCount = 0
+        while ((fastPeer.performance.rttMillis() == null || mediumPeer.performance.rttMillis() == null) && waitCount < 300) {
+          Thread.sleep(10)
+          waitCount += 1
+        }
+        (fastPeer.performance.rttMillis()!! < mediumPeer.performance.rttMillis()!!) shouldBe true
+      } finally {
+        scheduler.stop()
+        channels.forEach { it.close().sync() }
+        group.shutdownGracefully().sync()
+      }
+    }
+
+    "checkStalls" should "ask the only peer that announced a block again after it stalled on the block" {
+      val peerSet = PeerSet()
+      val channel = EmbeddedChannel()
+      val scheduler = BlockDownloadScheduler(peerSet, stallTimeoutMillis = 500L)
+      try {
+        val peer = peerSet.add(channel)
+        val blockHash = block(1L).header.hash()
+        peer.addKnownInventory(blockHash)
+
+        scheduler.requestBlocks(listOf(blockHash), now = 0L)
+        val first : GetData = channel.readOutbound()
+        first.inventories.map { it.hash } shouldBe listOf(blockHash)
+
+        // No other peer announced the block, so the stalled peer gets it again right away.
+        scheduler.checkStalls(now = 1000L * 1000000) shouldBe 1
+        val second : GetData = channel.readOutbound()
+        second.inventories.map { it.hash } shouldBe listOf(blockHash)
+        peer.performance.stallCount() shouldBe 1
+        scheduler.pendingBlockCount() shouldBe 1
+      } finally {
+        channel.finishAndReleaseAll()
+      }
+    }
+
+    "checkStalls" should "drop queued blocks that no peer announced in time" {
+      val peerSet = PeerSet()
+      val channel = EmbeddedChannel()
+      val scheduler = BlockDownloadScheduler(peerSet, unannouncedBlockTimeoutMillis = 1000L)
+      try {
+        peerSet.add(channel)
+        val blockHash = block(1L).header.hash()
+
+        scheduler.requestBlocks(listOf(blockHash), now = 0L)
+        val nothing : Any? = channel.readOutbound()
+        nothing shouldBe null
+
+        scheduler.checkStalls(now = 500L * 1000000)
+        scheduler.pendingBlockCount() shouldBe 1
+
+        scheduler.checkStalls(now = 2000L * 1000000)
+        scheduler.pendingBlockCount() shouldBe 0
+      } finally {
+        channel.finishAndReleaseAll()
+      }
+    }
+  }
+}
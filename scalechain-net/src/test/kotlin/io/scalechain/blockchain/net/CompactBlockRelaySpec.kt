@@ -0,0 +1,215 @@
+package io.scalechain.blockchain.net
+
+import io.kotlintest.KTestJUnitRunner
+import io.kotlintest.matchers.Matchers
+import io.kotlintest.specs.FlatSpec
+import io.netty.bootstrap.Bootstrap
+import io.netty.bootstrap.ServerBootstrap
+import io.netty.buffer.ByteBuf
+import io.netty.channel.Channel
+import io.netty.channel.ChannelHandlerContext
+import io.netty.channel.ChannelInboundHandlerAdapter
+import io.netty.channel.ChannelInitializer
+import io.netty.channel.nio.NioEventLoopGroup
+import io.netty.channel.socket.SocketChannel
+import io.netty.channel.socket.nio.NioServerSocketChannel
+import io.netty.channel.socket.nio.NioSocketChannel
+import io.scalechain.blockchain.chain.MerkleRootCalculator
+import io.scalechain.blockchain.net.message.CompactBlockFactory
+import io.scalechain.blockchain.net.p2p.BitcoinProtocolDecoder
+import io.scalechain.blockchain.net.p2p.BitcoinProtocolEncoder
+import io.scalechain.blockchain.proto.*
+import io.scalechain.blockchain.proto.codec.BlockCodec
+import io.scalechain.blockchain.proto.test.ProtoTestData
+import io.scalechain.blockchain.script.hash
+import io.scalechain.util.Bytes
+import org.junit.runner.RunWith
+import org.slf4j.LoggerFactory
+import java.net.InetSocketAddress
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+@RunWith(KTestJUnitRunner::class)
+class CompactBlockRelaySpec : FlatSpec(), Matchers, ProtoTestData {
+  private val logger = LoggerFactory.getLogger(CompactBlockRelaySpec::class.java)
+
+  fun block(transactionCount : Int) : Block {
+    val transactions = (0 until transactionCount).map { transaction1().copy(lockTime = it.toLong()) }
+    val header = BlockHeader(4, Hash(Bytes(ByteArray(32))), MerkleRootCalculator.calculate(transactions), 1454058586L, 403253488L, 1L)
+    return Block(header, transactions)
+  }
+
+  fun pool(transactions : List<Transaction>) : Map<Hash, Transaction> = transactions.associateBy { it.hash() }
+
+  /** Counts bytes received by a node before they are decoded. */
+  class ByteCounter : ChannelInboundHandlerAdapter() {
+    val receivedBytes = AtomicLong()
+
+    override fun channelRead(ctx : ChannelHandlerContext, msg : Any) {
+      if (msg is ByteBuf) {
+        receivedBytes.addAndGet(msg.readableBytes().toLong())
+      }
+      ctx.fireChannelRead(msg)
+    }
+  }
+
+  /** A node that reconstructs blocks from cmpctblock messages with its own transaction pool. */
+  class ReceivingNode(val poolTransactions : Map<Hash, Transaction>) : ChannelInboundHandlerAdapter() {
+    val byteCounter = ByteCounter()
+    val completed = CountDownLatch(1)
+    @Volatile var receivedBlock : Block? = null
+    @Volatile var completedAt : Long = 0L
+    private var partialBlock : PartiallyDownloadedBlock? = null
+
+    override fun channelRead(ctx : ChannelHandlerContext, msg : Any) {
+      if (msg is CmpctBlock) {
+        val newPartialBlock = PartiallyDownloadedBlock.create(msg)!!
+        newPartialBlock.fillFromPool(poolTransactions.keys.toList()) { poolTransactions[it] }
+        val missingIndexes = newPartialBlock.missingIndexes()
+        if (missingIndexes.isEmpty()) {
+          complete(newPartialBlock.toBlock())
+        } else {
+          partialBlock = newPartialBlock
+          ctx.writeAndFlush(CompactBlockFactory.createGetBlockTxn(newPartialBlock.blockHash, missingIndexes))
+        }
+      } else if (msg is BlockTxn) {
+        val currentPartialBlock = partialBlock!!
+        complete(if (currentPartialBlock.fillMissing(msg.transactions)) currentPartialBlock.toBlock() else null)
+      }
+    }
+
+    fun receivedBytes() : Long = byteCounter.receivedBytes.get()
+
+    private fun complete(block : Block?) {
+      receivedBlock = block
+      completedAt = System.nanoTime()
+      completed.countDown()
+    }
+  }
+
+  init {
+    "PartiallyDownloadedBlock" should "reconstruct a block from the pool and the missing transactions" {
+      val block = block(10)
+      val partialBlock = PartiallyDownloadedBlock.create(CompactBlockFactory.create(block))!!
+      partialBlock.blockHash shouldBe block.header.hash()
+
+      // The coinbase is prefilled. The pool has transactions at 1..7, and an unrelated transaction.
+      val poolTransactions = pool(block.transactions.subList(1, 8) + transaction2())
+      val readHashes = arrayListOf<Hash>()
+      partialBlock.fillFromPool(poolTransactions.keys.toList()) { transactionHash ->
+        readHashes.add(transactionHash)
+        poolTransactions[transactionHash]
+      }
+      // Only the transactions whose short IDs matched are read.
+      readHashes.toSet() shouldBe block.transactions.subList(1, 8).map { it.hash() }.toSet()
+      partialBlock.missingIndexes() shouldBe listOf(8, 9)
+      partialBlock.toBlock() shouldBe null
+
+      partialBlock.fillMissing(listOf(block.transactions[8])) shouldBe false
+      partialBlock.fillMissing(block.transactions.subList(8, 10)) shouldBe true
+      partialBlock.toBlock() shouldBe block
+    }
+
+    "PartiallyDownloadedBlock" should "not return a block if the transactions do not match the merkle root" {
+      val block = block(3)
+      val partialBlock = PartiallyDownloadedBlock.create(CompactBlockFactory.create(block))!!
+      partialBlock.fillMissing(listOf(transaction2(), transaction3())) shouldBe true
+      partialBlock.toBlock() shouldBe null
+    }
+
+    "PartiallyDownloadedBlock" should "not be created if two transactions have the same short ID" {
+      val cmpctBlock = CompactBlockFactory.create(block(3))
+      PartiallyDownloadedBlock.create(cmpctBlock.copy(shortIds = listOf(cmpctBlock.shortIds[0], cmpctBlock.shortIds[0]))) shouldBe null
+    }
+
+    "encodeIndexes" should "differentially encode indexes" {
+      CompactBlockFactory.encodeIndexes(listOf(0, 3, 5, 6)) shouldBe listOf(0L, 2L, 1L, 0L)
+      CompactBlockFactory.decodeIndexes(listOf(0L, 2L, 1L, 0L), 7) shouldBe listOf(0, 3, 5, 6)
+      CompactBlockFactory.decodeIndexes(listOf(0L, 2L, 1L, 0L), 6) shouldBe null
+    }
+
+    "propagateBlock" should "relay a block as a small fraction of the full block to nodes on loopback" {
+      val block = block(500)
+      val fullBlockSize = BlockCodec.encode(block).size
+
+      // (1) has every transaction in the pool. (2) misses 10% of them. (3) has an empty pool.
+      val nodes = listOf(
+        ReceivingNode(pool(block.transactions.drop(1))),
+        ReceivingNode(pool(block.transactions.drop(1).filterIndexed { i, _ -> i % 10 != 0 })),
+        ReceivingNode(pool(listOf()))
+      )
+
+      val group = NioEventLoopGroup(2)
+      val peerSet = PeerSet()
+      val channels = arrayListOf<Channel>()
+      try {
+        val serverChannel = ServerBootstrap()
+          .group(group)
+          .channel(NioServerSocketChannel::class.java)
+          .childHandler(object : ChannelInitializer<SocketChannel>() {
+            override fun initChannel(ch : SocketChannel) {
+              ch.pipeline().addLast(BitcoinProtocolDecoder())
+              ch.pipeline().addLast(BitcoinProtocolEncoder())
+              ch.pipeline().addLast(object : ChannelInboundHandlerAdapter() {
+                override fun channelActive(ctx : ChannelHandlerContext) {
+                  // The receiving nodes asked for compact blocks with sendcmpct.
+                  peerSet.add(ctx.channel()).announceCompactBlocks = true
+                  super.channelActive(ctx)
+                }
+
+                override fun channelRead(ctx : ChannelHandlerContext, msg : Any) {
+                  if (msg is GetBlockTxn) {
+                    ctx.writeAndFlush(CompactBlockFactory.createBlockTxn(block, msg)!!)
+                  }
+                }
+              })
+            }
+          })
+          .bind(InetSocketAddress("127.0.0.1", 0)).sync().channel()
+        channels.add(serverChannel)
+
+        nodes.forEach { node ->
+          val clientChannel = Bootstrap()
+            .group(group)
+            .channel(NioSocketChannel::class.java)
+            .handler(object : ChannelInitializer<SocketChannel>() {
+              override fun initChannel(ch : SocketChannel) {
+                ch.pipeline().addLast(node.byteCounter)
+                ch.pipeline().addLast(BitcoinProtocolDecoder())
+                ch.pipeline().addLast(BitcoinProtocolEncoder())
+                ch.pipeline().addLast(node)
+              }
+            })
+            .connect(serverChannel.localAddress()).sync().channel()
+          channels.add(clientChannel)
+        }
+
+        var waitCount = 0
+        while (peerSet.all().count { it.announceCompactBlocks } < nodes.size && waitCount < 100) {
+          Thread.sleep(10)
+          waitCount += 1
+        }
+        peerSet.all().count { it.announceCompactBlocks } shouldBe nodes.size
+
+        val startedAt = System.nanoTime()
+        PeerCommunicator(peerSet).propagateBlock(block)
+
+        nodes.forEachIndexed { i, node ->
+          node.completed.await(10, TimeUnit.SECONDS) shouldBe true
+          node.receivedBlock shouldBe block
+          val receivedBytes = node.receivedBytes()
+          logger.info("Node ${i + 1} : received ${receivedBytes} bytes for a block of ${fullBlockSize} bytes (${receivedBytes * 100 / fullBlockSize}%) in ${(node.completedAt - startedAt) / 1000} us.")
+        }
+
+        // A node with every transaction in the pool receives only the header, short IDs and the coinbase.
+        (nodes[0].receivedBytes() * 10 < fullBlockSize) shouldBe true
+        (nodes[1].receivedBytes() * 5 < fullBlockSize) shouldBe true
+      } finally {
+        channels.forEach { it.close().sync() }
+        group.shutdownGracefully().sync()
+      }
+    }
+  }
+
+}
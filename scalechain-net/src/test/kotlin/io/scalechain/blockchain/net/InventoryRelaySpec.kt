@@ -0,0 +1,179 @@
+package io.scalechain.blockchain.net
+
+import io.kotlintest.KTestJUnitRunner
+import io.kotlintest.matchers.Matchers
+import io.kotlintest.specs.FlatSpec
+import io.netty.bootstrap.Bootstrap
+import io.netty.bootstrap.ServerBootstrap
+import io.netty.channel.Channel
+import io.netty.channel.ChannelHandlerContext
+import io.netty.channel.ChannelInboundHandlerAdapter
+import io.netty.channel.ChannelInitializer
+import io.netty.channel.embedded.EmbeddedChannel
+import io.netty.channel.nio.NioEventLoopGroup
+import io.netty.channel.socket.SocketChannel
+import io.netty.channel.socket.nio.NioServerSocketChannel
+import io.netty.channel.socket.nio.NioSocketChannel
+import io.scalechain.blockchain.net.message.InvFactory
+import io.scalechain.blockchain.net.p2p.BitcoinProtocolDecoder
+import io.scalechain.blockchain.net.p2p.BitcoinProtocolEncoder
+import io.scalechain.blockchain.proto.Hash
+import io.scalechain.blockchain.proto.Inv
+import io.scalechain.util.Bytes
+import org.junit.runner.RunWith
+import org.slf4j.LoggerFactory
+import java.net.InetSocketAddress
+import java.util.concurrent.atomic.AtomicInteger
+
+@RunWith(KTestJUnitRunner::class)
+class InventoryRelaySpec : FlatSpec(), Matchers {
+  private val logger = LoggerFactory.getLogger(InventoryRelaySpec::class.java)
+
+  fun hash(index : Int) : Hash {
+    val array = ByteArray(32)
+    array[0] = (index shr 24).toByte()
+    array[1] = (index shr 16).toByte()
+    array[2] = (index shr 8).toByte()
+    array[3] = index.toByte()
+    return Hash(Bytes(array))
+  }
+
+  /** Counts inv messages and transaction inventories received by a node. */
+  class InvCounter : ChannelInboundHandlerAdapter() {
+    val messageCount = AtomicInteger()
+    val inventoryCount = AtomicInteger()
+
+    override fun channelRead(ctx : ChannelHandlerContext, msg : Any) {
+      if (msg is Inv) {
+        messageCount.incrementAndGet()
+        inventoryCount.addAndGet(msg.inventories.size)
+      }
+    }
+  }
+
+  init {
+    "flushPeer" should "not announce inventories the peer already has" {
+      val peerSet = PeerSet()
+      val channel = EmbeddedChannel()
+      try {
+        val peer = peerSet.add(channel)
+        val relay = InventoryRelay(peerSet, 1000L, 2)
+
+        // The peer announced hash(1) to us.
+        peer.addKnownInventory(hash(1))
+        relay.relayTransactions(listOf(hash(1), hash(2), hash(3), hash(2), hash(4)))
+
+        relay.flushPeer(peer) shouldBe true
+        val first : Inv = channel.readOutbound()
+        first shouldBe InvFactory.createTransactionInventories(listOf(hash(2), hash(3)))
+
+        relay.flushPeer(peer) shouldBe true
+        val second : Inv = channel.readOutbound()
+        second shouldBe InvFactory.createTransactionInventories(listOf(hash(4)))
+
+        // Inventories announced to the peer are not announced again.
+        relay.relayTransactions(listOf(hash(2), hash(3), hash(4)))
+        relay.flushPeer(peer) shouldBe false
+        val nothing : Any? = channel.readOutbound()
+        nothing shouldBe null
+      } finally {
+        channel.finishAndReleaseAll()
+      }
+    }
+
+    "queueTransactionInventory" should "keep only the latest inventories while the peer is not flushed" {
+      val peerSet = PeerSet()
+      val channel = EmbeddedChannel()
+      try {
+        val peer = peerSet.add(channel)
+        (0..Peer.MaxPendingTransactionInventories).forEach { index ->
+          peer.queueTransactionInventory(hash(index)) shouldBe true
+        }
+
+        // The oldest inventory was dropped.
+        val transactionHashes = peer.takeTransactionInventories(Peer.MaxPendingTransactionInventories + 1)
+        (transactionHashes.size) shouldBe Peer.MaxPendingTransactionInventories
+        transactionHashes.first() shouldBe hash(1)
+        transactionHashes.last() shouldBe hash(Peer.MaxPendingTransactionInventories)
+      } finally {
+        channel.finishAndReleaseAll()
+      }
+    }
+
+    "relayTransactions" should "batch inventories relayed to nodes on loopback" {
+      val TransactionCount = 1000
+      val CallCount = 100
+
+      val group = NioEventLoopGroup(2)
+      val peerSet = PeerSet()
+      val relay = InventoryRelay(peerSet, 50L, 1000)
+      val clientChannels = arrayListOf<Channel>()
+      try {
+        val serverChannel = ServerBootstrap()
+          .group(group)
+          .channel(NioServerSocketChannel::class.java)
+          .childHandler(object : ChannelInitializer<SocketChannel>() {
+            override fun initChannel(ch : SocketChannel) {
+              ch.pipeline().addLast(BitcoinProtocolDecoder())
+              ch.pipeline().addLast(BitcoinProtocolEncoder())
+              ch.pipeline().addLast(object : ChannelInboundHandlerAdapter() {
+                override fun channelActive(ctx : ChannelHandlerContext) {
+                  peerSet.add(ctx.channel())
+                  super.channelActive(ctx)
+                }
+              })
+            }
+          })
+          .bind(InetSocketAddress("127.0.0.1", 0)).sync().channel()
+
+        val counters = listOf(InvCounter(), InvCounter())
+        counters.forEach { counter ->
+          val clientChannel = Bootstrap()
+            .group(group)
+            .channel(NioSocketChannel::class.java)
+            .handler(object : ChannelInitializer<SocketChannel>() {
+              override fun initChannel(ch : SocketChannel) {
+                ch.pipeline().addLast(BitcoinProtocolDecoder())
+                ch.pipeline().addLast(BitcoinProtocolEncoder())
+                ch.pipeline().addLast(counter)
+              }
+            })
+            .connect(serverChannel.localAddress()).sync().channel()
+          clientChannels.add(clientChannel)
+        }
+        clientChannels.add(serverChannel)
+
+        var waitCount = 0
+        while (peerSet.all().count() < counters.size && waitCount < 100) {
+          Thread.sleep(10)
+          waitCount += 1
+        }
+        peerSet.all().count() shouldBe counters.size
+
+        relay.start()
+        val transactionsPerCall = TransactionCount / CallCount
+        for (call in 0 until CallCount) {
+          relay.relayTransactions( (0 until transactionsPerCall).map { hash(call * transactionsPerCall + it) } )
+          Thread.sleep(1)
+        }
+
+        waitCount = 0
+        while (counters.any { it.inventoryCount.get() < TransactionCount } && waitCount < 1000) {
+          Thread.sleep(10)
+          waitCount += 1
+        }
+
+        counters.forEach { counter ->
+          counter.inventoryCount.get() shouldBe TransactionCount
+          logger.info("Inv messages per propagated transaction : ${counter.messageCount.get().toDouble() / TransactionCount}")
+          // Without batching, each call would send an inv message to each node.
+          (counter.messageCount.get() < CallCount) shouldBe true
+        }
+      } finally {
+        relay.stop()
+        clientChannels.forEach { it.close().sync() }
+        group.shutdownGracefully().sync()
+      }
+    }
+  }
+}
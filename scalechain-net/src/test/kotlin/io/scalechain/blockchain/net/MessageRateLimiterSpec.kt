@@ -0,0 +1,68 @@
+package io.scalechain.blockchain.net
+
+import com.typesafe.config.ConfigFactory
+import io.kotlintest.KTestJUnitRunner
+import io.kotlintest.matchers.Matchers
+import io.kotlintest.specs.FlatSpec
+import io.scalechain.blockchain.proto.Headers
+import io.scalechain.blockchain.proto.Ping
+import io.scalechain.blockchain.proto.Pong
+import io.scalechain.blockchain.proto.test.ProtoTestData
+import io.scalechain.util.Config
+import org.junit.runner.RunWith
+import java.math.BigInteger
+
+@RunWith(KTestJUnitRunner::class)
+class MessageRateLimiterSpec : FlatSpec(), Matchers, ProtoTestData {
+  init {
+    "tryTake" should "allow a burst, and refill tokens at the rate" {
+      val bucket = TokenBucket(RateLimit(10.0, 3.0), 0L)
+      bucket.tryTake(0L) shouldBe true
+      bucket.tryTake(0L) shouldBe true
+      bucket.tryTake(0L) shouldBe true
+      bucket.tryTake(0L) shouldBe false
+
+      // A token is added every 100 ms.
+      bucket.tryTake(50000000L) shouldBe false
+      bucket.tryTake(100000000L) shouldBe true
+      bucket.tryTake(100000000L) shouldBe false
+
+      // Tokens do not exceed the burst however long the bucket is idle.
+      bucket.tryTake(60000000000L) shouldBe true
+      bucket.tryTake(60000000000L) shouldBe true
+      bucket.tryTake(60000000000L) shouldBe true
+      bucket.tryTake(60000000000L) shouldBe false
+    }
+
+    "tryAcquire" should "limit each command separately, and not limit commands without a limit" {
+      var now = 0L
+      val limits = MessageRateLimits(mapOf("tx" to RateLimit(1.0, 2.0), "ping" to RateLimit(1.0, 1.0)))
+      val limiter = MessageRateLimiter(limits, { now })
+
+      limiter.tryAcquire(transaction1()) shouldBe true
+      limiter.tryAcquire(transaction1()) shouldBe true
+      limiter.tryAcquire(transaction1()) shouldBe false
+
+      limiter.tryAcquire(Ping(BigInteger.ONE)) shouldBe true
+      limiter.tryAcquire(Ping(BigInteger.ONE)) shouldBe false
+
+      for (i in 1..100) {
+        limiter.tryAcquire(Pong(BigInteger.ONE)) shouldBe true
+        limiter.tryAcquire(Headers(listOf())) shouldBe true
+      }
+
+      now = 1000000000L
+      limiter.tryAcquire(transaction1()) shouldBe true
+      limiter.tryAcquire(transaction1()) shouldBe false
+    }
+
+    "create" should "override default limits with the configuration" {
+      val limits = MessageRateLimits.create(Config(ConfigFactory.parseString(
+        "scalechain.p2p.rate_limits.tx { per_second = 5, burst = 50 }"
+      )))
+      limits.limits["tx"] shouldBe RateLimit(5.0, 50.0)
+      limits.limits["inv"] shouldBe MessageRateLimits.DefaultLimits["inv"]
+      limits.limits["block"] shouldBe null
+    }
+  }
+}
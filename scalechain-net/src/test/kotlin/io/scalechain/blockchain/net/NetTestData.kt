@@ -0,0 +1,36 @@
+package io.scalechain.blockchain.net
+
+import io.netty.channel.ChannelHandlerContext
+import io.netty.channel.ChannelInboundHandlerAdapter
+import io.scalechain.blockchain.proto.Block
+import io.scalechain.blockchain.proto.BlockHeader
+import io.scalechain.blockchain.proto.Hash
+import io.scalechain.blockchain.proto.test.ProtoTestData
+import io.scalechain.util.Bytes
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+  * Test data for tests that send blocks between nodes.
+  */
+interface NetTestData : ProtoTestData {
+  /** A block with the given number of distinct transactions. The block is not valid, but it is sent and received as a block message.
+    *
+    * @param transactionCount The number of transactions in the block.
+    */
+  fun block(transactionCount : Int) : Block {
+    val transactions = (0 until transactionCount).map { transaction1().copy(lockTime = it.toLong()) }
+    val header = BlockHeader(4, Hash(Bytes(ByteArray(32))), Hash(Bytes(ByteArray(32))), 1454058586L, 403253488L, 1L)
+    return Block(header, transactions)
+  }
+}
+
+/** Counts blocks received by a node. */
+class BlockCounter : ChannelInboundHandlerAdapter() {
+  val blockCount = AtomicInteger()
+
+  override fun channelRead(ctx : ChannelHandlerContext, msg : Any) {
+    if (msg is Block) {
+      blockCount.incrementAndGet()
+    }
+  }
+}
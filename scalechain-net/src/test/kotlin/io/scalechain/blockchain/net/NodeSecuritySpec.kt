@@ -0,0 +1,156 @@
+package io.scalechain.blockchain.net
+
+import com.typesafe.config.ConfigFactory
+import io.kotlintest.KTestJUnitRunner
+import io.kotlintest.matchers.Matchers
+import io.kotlintest.specs.FlatSpec
+import io.netty.bootstrap.Bootstrap
+import io.netty.bootstrap.ServerBootstrap
+import io.netty.channel.Channel
+import io.netty.channel.ChannelInboundHandlerAdapter
+import io.netty.channel.ChannelInitializer
+import io.netty.channel.nio.NioEventLoopGroup
+import io.netty.channel.socket.SocketChannel
+import io.netty.channel.socket.nio.NioServerSocketChannel
+import io.netty.channel.socket.nio.NioSocketChannel
+import io.netty.handler.ssl.SslHandler
+import io.scalechain.blockchain.net.p2p.BitcoinProtocolDecoder
+import io.scalechain.blockchain.net.p2p.BitcoinProtocolEncoder
+import io.scalechain.blockchain.net.p2p.NodeSecurity
+import io.scalechain.blockchain.net.p2p.SecurityMode
+import io.scalechain.util.Config
+import org.junit.runner.RunWith
+import org.slf4j.LoggerFactory
+import java.net.InetSocketAddress
+import java.util.Arrays
+import java.util.concurrent.TimeUnit
+
+@RunWith(KTestJUnitRunner::class)
+class NodeSecuritySpec : FlatSpec(), Matchers, NetTestData {
+  private val logger = LoggerFactory.getLogger(NodeSecuritySpec::class.java)
+
+  fun config(text : String) = Config(ConfigFactory.parseString(text))
+
+  /** Run a server with the given security, and call the test function with a function connecting a client to it.
+    */
+  fun withServer(security : NodeSecurity, serverHandler : () -> ChannelInboundHandlerAdapter, test : ((ChannelInboundHandlerAdapter) -> Channel) -> Unit) {
+    val group = NioEventLoopGroup(2)
+    val channels = arrayListOf<Channel>()
+    try {
+      val serverChannel = ServerBootstrap()
+        .group(group)
+        .channel(NioServerSocketChannel::class.java)
+        .childHandler(object : ChannelInitializer<SocketChannel>() {
+          override fun initChannel(ch : SocketChannel) {
+            val sslHandler = security.newServerHandler(ch)
+            if (sslHandler != null) {
+              ch.pipeline().addLast(sslHandler)
+            }
+            ch.pipeline().addLast(BitcoinProtocolDecoder())
+            ch.pipeline().addLast(BitcoinProtocolEncoder())
+            ch.pipeline().addLast(serverHandler())
+          }
+        })
+        .bind(InetSocketAddress("127.0.0.1", 0)).sync().channel()
+      channels.add(serverChannel)
+      val port = (serverChannel.localAddress() as InetSocketAddress).port
+
+      test { clientHandler ->
+        val channel = Bootstrap()
+          .group(group)
+          .channel(NioSocketChannel::class.java)
+          .handler(object : ChannelInitializer<SocketChannel>() {
+            override fun initChannel(ch : SocketChannel) {
+              val sslHandler = security.newClientHandler(ch, "127.0.0.1", port)
+              if (sslHandler != null) {
+                ch.pipeline().addLast(sslHandler)
+              }
+              ch.pipeline().addLast(BitcoinProtocolDecoder())
+              ch.pipeline().addLast(BitcoinProtocolEncoder())
+              ch.pipeline().addLast(clientHandler)
+            }
+          })
+          .connect(serverChannel.localAddress()).sync().channel()
+        channels.add(channel)
+        channel
+      }
+    } finally {
+      channels.forEach { it.close().sync() }
+      group.shutdownGracefully().sync()
+    }
+  }
+
+  init {
+    "create" should "read the security mode from the configuration" {
+      NodeSecurity.create(config("")).mode shouldBe SecurityMode.TLS
+      NodeSecurity.create(config("scalechain.p2p.security = plaintext")).mode shouldBe SecurityMode.PLAINTEXT
+      NodeSecurity.create(config("scalechain.p2p.security = TLS")).mode shouldBe SecurityMode.TLS
+      shouldThrow<IllegalArgumentException> {
+        NodeSecurity.create(config("scalechain.p2p.security = none"))
+      }
+    }
+
+    "newServerHandler" should "not add an SSL handler in plaintext mode" {
+      val security = NodeSecurity(SecurityMode.PLAINTEXT)
+      withServer(security, { ChannelInboundHandlerAdapter() }) { connect ->
+        val channel = connect(ChannelInboundHandlerAdapter())
+        channel.pipeline().get(SslHandler::class.java) shouldBe null
+      }
+    }
+
+    "newClientHandler" should "resume the TLS session when reconnecting to the same node" {
+      val security = NodeSecurity(SecurityMode.TLS)
+      withServer(security, { ChannelInboundHandlerAdapter() }) { connect ->
+        val firstChannel = connect(ChannelInboundHandlerAdapter())
+        val firstHandler = firstChannel.pipeline().get(SslHandler::class.java)
+        firstHandler.handshakeFuture().await(10, TimeUnit.SECONDS) shouldBe true
+        firstHandler.handshakeFuture().isSuccess shouldBe true
+        val firstSession = firstHandler.engine().session
+        firstChannel.close().sync()
+
+        // The client context cached the session of the first connection.
+        security.clientContext.sessionContext().ids.hasMoreElements() shouldBe true
+
+        val secondChannel = connect(ChannelInboundHandlerAdapter())
+        val secondHandler = secondChannel.pipeline().get(SslHandler::class.java)
+        secondHandler.handshakeFuture().await(10, TimeUnit.SECONDS) shouldBe true
+        secondHandler.handshakeFuture().isSuccess shouldBe true
+        val secondSession = secondHandler.engine().session
+
+        logger.info("TLS sessions. Provider : ${security}, Protocol : ${firstSession.protocol}, Cipher suite : ${firstSession.cipherSuite}")
+        if (firstSession.protocol == "TLSv1.2") {
+          // A resumed TLS 1.2 session keeps the session ID of the first connection.
+          Arrays.equals(firstSession.id, secondSession.id) shouldBe true
+        }
+      }
+    }
+
+    "plaintext mode" should "transfer blocks without TLS" {
+      val BlockCount = 200
+      val block = block(400)
+      listOf(SecurityMode.PLAINTEXT, SecurityMode.TLS).forEach { mode ->
+        val counter = BlockCounter()
+        withServer(NodeSecurity(mode), { counter }) { connect ->
+          val channel = connect(ChannelInboundHandlerAdapter())
+          val sslHandler = channel.pipeline().get(SslHandler::class.java)
+          if (sslHandler != null) {
+            sslHandler.handshakeFuture().await(10, TimeUnit.SECONDS) shouldBe true
+          }
+
+          val startNanos = System.nanoTime()
+          for (i in 1 .. BlockCount) {
+            channel.writeAndFlush(block)
+          }
+          var waitCount = 0
+          while (counter.blockCount.get() < BlockCount && waitCount < 10000) {
+            Thread.sleep(1)
+            waitCount += 1
+          }
+          val elapsedMillis = (System.nanoTime() - startNanos) / 1000000
+          logger.info("Transferred ${BlockCount} blocks in ${mode} mode in ${elapsedMillis} ms.")
+          counter.blockCount.get() shouldBe BlockCount
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,157 @@
+package io.scalechain.blockchain.net
+
+import io.kotlintest.KTestJUnitRunner
+import io.kotlintest.matchers.Matchers
+import io.kotlintest.specs.FlatSpec
+import io.netty.bootstrap.Bootstrap
+import io.netty.bootstrap.ServerBootstrap
+import io.netty.channel.Channel
+import io.netty.channel.ChannelHandlerContext
+import io.netty.channel.ChannelInboundHandlerAdapter
+import io.netty.channel.ChannelInitializer
+import io.netty.channel.ChannelOption
+import io.netty.channel.embedded.EmbeddedChannel
+import io.netty.channel.nio.NioEventLoopGroup
+import io.netty.channel.socket.SocketChannel
+import io.netty.channel.socket.nio.NioServerSocketChannel
+import io.netty.channel.socket.nio.NioSocketChannel
+import io.scalechain.blockchain.net.p2p.BitcoinProtocolDecoder
+import io.scalechain.blockchain.net.p2p.BitcoinProtocolEncoder
+import io.scalechain.blockchain.net.p2p.NodeThrottle
+import io.scalechain.blockchain.net.p2p.OutboundBudgetHandler
+import io.scalechain.blockchain.proto.codec.BlockCodec
+import org.junit.runner.RunWith
+import org.slf4j.LoggerFactory
+import java.net.InetSocketAddress
+
+@RunWith(KTestJUnitRunner::class)
+class NodeThrottleSpec : FlatSpec(), Matchers, NetTestData {
+  private val logger = LoggerFactory.getLogger(NodeThrottleSpec::class.java)
+
+  init {
+    "isPaused" should "pause a peer while its channel is not writable, and record the paused time" {
+      val channel = EmbeddedChannel()
+      try {
+        val peer = PeerSet().add(channel)
+        val pauseCount = NodeThrottle.pauseCount()
+        peer.isPaused() shouldBe false
+
+        channel.unsafe().outboundBuffer().setUserDefinedWritability(1, false)
+        peer.isPaused() shouldBe true
+        Thread.sleep(10)
+        channel.unsafe().outboundBuffer().setUserDefinedWritability(1, true)
+        peer.isPaused() shouldBe false
+
+        (peer.pausedMillis() >= 10L) shouldBe true
+        (NodeThrottle.pauseCount() > pauseCount) shouldBe true
+      } finally {
+        channel.finishAndReleaseAll()
+      }
+    }
+
+    "isPaused" should "not pause a peer without queued bytes while the outbound budget is exhausted" {
+      val budget = NodeThrottle.outboundBudgetBytes
+      val channel = EmbeddedChannel()
+      try {
+        NodeThrottle.outboundBudgetBytes = 0L
+        NodeThrottle.isOverBudget() shouldBe true
+        PeerSet().add(channel).isPaused() shouldBe false
+      } finally {
+        NodeThrottle.outboundBudgetBytes = budget
+        channel.finishAndReleaseAll()
+      }
+    }
+
+    "sendToAll" should "bound the bytes queued for a slow peer without pausing a healthy peer on loopback" {
+      val BlockCount = 200
+      val block = block(400)
+      val blockSize = BlockCodec.encode(block).size
+
+      val group = NioEventLoopGroup(2)
+      val peerSet = PeerSet()
+      val channels = arrayListOf<Channel>()
+      try {
+        val serverChannel = ServerBootstrap()
+          .group(group)
+          .channel(NioServerSocketChannel::class.java)
+          .childHandler(object : ChannelInitializer<SocketChannel>() {
+            override fun initChannel(ch : SocketChannel) {
+              ch.pipeline().addLast(OutboundBudgetHandler())
+              ch.pipeline().addLast(BitcoinProtocolDecoder())
+              ch.pipeline().addLast(BitcoinProtocolEncoder())
+              ch.pipeline().addLast(object : ChannelInboundHandlerAdapter() {
+                override fun channelActive(ctx : ChannelHandlerContext) {
+                  peerSet.add(ctx.channel())
+                  super.channelActive(ctx)
+                }
+              })
+              Peer.configureOutboundBuffer(ch)
+            }
+          })
+          .bind(InetSocketAddress("127.0.0.1", 0)).sync().channel()
+        channels.add(serverChannel)
+
+        val healthy = BlockCounter()
+        val healthyChannel = Bootstrap()
+          .group(group)
+          .channel(NioSocketChannel::class.java)
+          .handler(object : ChannelInitializer<SocketChannel>() {
+            override fun initChannel(ch : SocketChannel) {
+              ch.pipeline().addLast(BitcoinProtocolDecoder())
+              ch.pipeline().addLast(BitcoinProtocolEncoder())
+              ch.pipeline().addLast(healthy)
+            }
+          })
+          .connect(serverChannel.localAddress()).sync().channel()
+        channels.add(healthyChannel)
+
+        // The slow peer never reads from the socket.
+        val slowChannel = Bootstrap()
+          .group(group)
+          .channel(NioSocketChannel::class.java)
+          .option(ChannelOption.AUTO_READ, false)
+          .handler(object : ChannelInitializer<SocketChannel>() {
+            override fun initChannel(ch : SocketChannel) {
+              ch.pipeline().addLast(BitcoinProtocolDecoder())
+            }
+          })
+          .connect(serverChannel.localAddress()).sync().channel()
+        channels.add(slowChannel)
+
+        var waitCount = 0
+        while (peerSet.all().count() < 2 && waitCount < 100) {
+          Thread.sleep(10)
+          waitCount += 1
+        }
+        peerSet.all().count() shouldBe 2
+
+        val healthyPeer = peerSet.peers().first { it.first == healthyChannel.localAddress() }.second
+        val slowPeer = peerSet.peers().first { it.first == slowChannel.localAddress() }.second
+
+        var maxSlowPendingBytes = 0L
+        for (i in 1 .. BlockCount) {
+          peerSet.sendToAll(block)
+          maxSlowPendingBytes = Math.max(maxSlowPendingBytes, slowPeer.pendingOutboundBytes())
+
+          // The healthy peer reads each block before we send the next one.
+          waitCount = 0
+          while (healthy.blockCount.get() < i && waitCount < 1000) {
+            Thread.sleep(1)
+            waitCount += 1
+          }
+        }
+
+        logger.info("Sent ${BlockCount} blocks of ${blockSize} bytes. Slow peer : at most ${maxSlowPendingBytes} bytes queued, ${slowPeer.skippedMessageCount()} blocks skipped, paused for ${slowPeer.pausedMillis()} ms.")
+
+        healthy.blockCount.get() shouldBe BlockCount
+        healthyPeer.skippedMessageCount() shouldBe 0L
+        (slowPeer.skippedMessageCount() > 0L) shouldBe true
+        // Without the water marks, every block would be queued for the slow peer.
+        (maxSlowPendingBytes <= Peer.OutboundHighWaterMark + 2L * blockSize) shouldBe true
+      } finally {
+        channels.forEach { it.close().sync() }
+        group.shutdownGracefully().sync()
+      }
+    }
+  }
+}
@@ -0,0 +1,54 @@
+package io.scalechain.blockchain.net
+
+import io.kotlintest.KTestJUnitRunner
+import io.kotlintest.matchers.Matchers
+import io.kotlintest.specs.FlatSpec
+import org.junit.runner.RunWith
+import java.math.BigInteger
+
+@RunWith(KTestJUnitRunner::class)
+class PeerPerformanceSpec : FlatSpec(), Matchers {
+  init {
+    "pongReceived" should "measure the RTT only for the pong matching the ping" {
+      val performance = PeerPerformance()
+      performance.rttMillis() shouldBe null
+
+      performance.pingSent(BigInteger.valueOf(1), 0L)
+      performance.pongReceived(BigInteger.valueOf(2), 5000000L) shouldBe false
+      performance.pongReceived(BigInteger.valueOf(1), 20000000L) shouldBe true
+      performance.rttMillis() shouldBe 20.0
+
+      // The pong was already received.
+      performance.pongReceived(BigInteger.valueOf(1), 30000000L) shouldBe false
+      performance.rttMillis() shouldBe 20.0
+    }
+
+    "recordThroughput" should "average bytes per second giving recent samples more weight" {
+      val performance = PeerPerformance()
+      performance.recordThroughput(1000L, 1000000000L)
+      performance.bytesPerSecond() shouldBe 1000.0
+      performance.recordThroughput(2000L, 1000000000L)
+      performance.bytesPerSecond() shouldBe (1000.0 + 1000.0 * PeerPerformance.Smoothing)
+    }
+
+    "score" should "rank unmeasured peers first, and stalled peers below faster ones" {
+      val unmeasured = PeerPerformance()
+
+      val fast = PeerPerformance()
+      fast.recordThroughput(1000000L, 1000000000L)
+
+      val slow = PeerPerformance()
+      slow.recordThroughput(1000L, 1000000000L)
+
+      val stalledFast = PeerPerformance()
+      stalledFast.recordThroughput(1000000L, 1000000000L)
+      stalledFast.recordStall() shouldBe 1
+
+      val stalledUnmeasured = PeerPerformance()
+      stalledUnmeasured.recordStall()
+
+      listOf(slow, stalledUnmeasured, stalledFast, unmeasured, fast).sortedByDescending { it.score() } shouldBe
+        listOf(unmeasured, fast, stalledFast, slow, stalledUnmeasured)
+    }
+  }
+}
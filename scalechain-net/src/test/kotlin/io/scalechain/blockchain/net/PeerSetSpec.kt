@@ -3,7 +3,18 @@ package io.scalechain.blockchain.net
 import io.kotlintest.KTestJUnitRunner
 import io.kotlintest.matchers.Matchers
 import io.kotlintest.specs.FlatSpec
+import io.netty.buffer.ByteBuf
+import io.netty.channel.embedded.EmbeddedChannel
+import io.scalechain.blockchain.net.message.InvFactory
+import io.scalechain.blockchain.proto.Hash
+import io.scalechain.blockchain.proto.Inv
+import io.scalechain.blockchain.proto.Ping
+import io.scalechain.blockchain.proto.codec.BitcoinProtocol
+import io.scalechain.blockchain.proto.codec.BitcoinProtocolCodec
+import io.scalechain.util.Bytes
 import org.junit.runner.RunWith
+import java.math.BigInteger
+import java.net.InetSocketAddress
 
 
 /**
@@ -29,5 +40,68 @@ class PeerSetSpec : FlatSpec(), Matchers {
   init {
     "method" should "" {
     }
+
+    "add" should "register a peer returned by peers until it is removed" {
+      val peerSet = PeerSet()
+      val channel = EmbeddedChannel()
+      try {
+        val peer = peerSet.add(channel)
+        peerSet.peers().map { it.second } shouldBe listOf(peer)
+        peerSet.all().toList() shouldBe listOf(peer)
+
+        peerSet.remove(channel.remoteAddress())
+        peerSet.peers().toList() shouldBe listOf<Pair<InetSocketAddress, Peer>>()
+      } finally {
+        channel.finishAndReleaseAll()
+      }
+    }
+
+    "sendToAll" should "write the message encoded once to each peer" {
+      val peerSet = PeerSet()
+      val channel = EmbeddedChannel()
+      try {
+        peerSet.add(channel)
+        val ping = Ping(BigInteger.valueOf(123))
+        peerSet.sendToAll(ping)
+
+        val encoded : ByteBuf = channel.readOutbound()
+        try {
+          val messages = arrayListOf<Any>()
+          BitcoinProtocolCodec(BitcoinProtocol()).decode(encoded, messages)
+          messages shouldBe listOf<Any>(ping)
+        } finally {
+          encoded.release()
+        }
+        // The buffer shared by peers was released by sendToAll, and the duplicate by the reader.
+        encoded.refCnt() shouldBe 0
+      } finally {
+        channel.finishAndReleaseAll()
+      }
+    }
+
+    "sendTo" should "announce a block skipped while the peer was paused once the peer is writable" {
+      val peerSet = PeerSet()
+      val channel = EmbeddedChannel()
+      try {
+        val peer = peerSet.add(channel)
+        val blockHash = Hash(Bytes(ByteArray(32) { 1 }))
+
+        // Pause the peer by making its channel unwritable.
+        channel.unsafe().outboundBuffer().setUserDefinedWritability(1, false)
+        peerSet.sendTo(listOf(peer), Ping(BigInteger.valueOf(123)), blockHash)
+        val skipped : Any? = channel.readOutbound()
+        skipped shouldBe null
+        peer.announceDeferredBlocks() shouldBe false
+
+        // Once the peer is writable, the block is announced with an inv message only once.
+        channel.unsafe().outboundBuffer().setUserDefinedWritability(1, true)
+        peer.announceDeferredBlocks() shouldBe true
+        val inv : Inv = channel.readOutbound()
+        inv shouldBe InvFactory.createBlockInventories(listOf(blockHash))
+        peer.announceDeferredBlocks() shouldBe false
+      } finally {
+        channel.finishAndReleaseAll()
+      }
+    }
   }
 }
\ No newline at end of file
@@ -0,0 +1,166 @@
+package io.scalechain.blockchain.net
+
+import io.kotlintest.KTestJUnitRunner
+import io.kotlintest.matchers.Matchers
+import io.kotlintest.specs.FlatSpec
+import io.scalechain.blockchain.proto.BlockHeader
+import io.scalechain.blockchain.proto.GetData
+import io.scalechain.blockchain.proto.Hash
+import io.scalechain.blockchain.proto.Headers
+import io.scalechain.blockchain.proto.Inv
+import io.scalechain.blockchain.proto.InvType
+import io.scalechain.blockchain.proto.InvVector
+import io.scalechain.blockchain.proto.Ping
+import io.scalechain.blockchain.proto.ProtocolMessage
+import io.scalechain.blockchain.proto.Transaction
+import io.scalechain.blockchain.proto.test.ProtoTestData
+import io.scalechain.util.Bytes
+import org.junit.runner.RunWith
+import java.math.BigInteger
+
+@RunWith(KTestJUnitRunner::class)
+class PriorityMessageDispatcherSpec : FlatSpec(), Matchers, ProtoTestData {
+
+  val hash = Hash(Bytes(ByteArray(32)))
+  val headers = Headers(listOf(BlockHeader(4, hash, hash, 1454058586L, 403253488L, 1L)))
+
+  lateinit var processed : MutableList<ProtocolMessage>
+  // Tasks scheduled on the event loop, run by runTasks.
+  lateinit var tasks : MutableList<() -> Unit>
+
+  fun dispatcher(limits : Map<String, RateLimit> = mapOf(), maxDeferredMessages : Int = 100, drainBatchSize : Int = 10, requested : Set<ProtocolMessage> = setOf()) =
+    PriorityMessageDispatcher(
+      MessageRateLimiter(MessageRateLimits(limits), { 0L }),
+      { task -> tasks.add(task) },
+      { message -> processed.add(message) },
+      maxDeferredMessages,
+      drainBatchSize,
+      { message -> requested.contains(message) })
+
+  fun runTasks() {
+    while (!tasks.isEmpty()) {
+      tasks.removeAt(0)()
+    }
+  }
+
+  override fun beforeEach() {
+    processed = arrayListOf()
+    tasks = arrayListOf()
+    super.beforeEach()
+  }
+
+  init {
+    "isPriority" should "put block and header traffic ahead of transaction gossip" {
+      PriorityMessageDispatcher.isPriority(headers) shouldBe true
+      PriorityMessageDispatcher.isPriority(Ping(BigInteger.ONE)) shouldBe true
+      PriorityMessageDispatcher.isPriority(transaction1()) shouldBe false
+      PriorityMessageDispatcher.isPriority(Inv(listOf(InvVector(InvType.MSG_TX, hash)))) shouldBe false
+      PriorityMessageDispatcher.isPriority(Inv(listOf(InvVector(InvType.MSG_TX, hash), InvVector(InvType.MSG_BLOCK, hash)))) shouldBe true
+      PriorityMessageDispatcher.isPriority(GetData(listOf(InvVector(InvType.MSG_TX, hash)))) shouldBe false
+      PriorityMessageDispatcher.isPriority(GetData(listOf(InvVector(InvType.MSG_BLOCK, hash)))) shouldBe true
+    }
+
+    "dispatch" should "process priority messages ahead of transactions received before them" {
+      val dispatcher = dispatcher()
+      val transactions = (0 until 5).map { transaction1().copy(lockTime = it.toLong()) }
+      transactions.forEach { dispatcher.dispatch(it) }
+      dispatcher.dispatch(headers)
+
+      processed shouldBe listOf<ProtocolMessage>(headers)
+      dispatcher.deferredCount() shouldBe 5L
+      dispatcher.pendingCount() shouldBe 5
+
+      dispatcher.drain()
+      processed shouldBe listOf<ProtocolMessage>(headers) + transactions
+      dispatcher.pendingCount() shouldBe 0
+    }
+
+    "drain" should "process deferred messages in batches, letting priority messages received in between go first" {
+      val dispatcher = dispatcher(drainBatchSize = 10)
+      val transactions = (0 until 25).map { transaction1().copy(lockTime = it.toLong()) }
+      transactions.forEach { dispatcher.dispatch(it) }
+
+      dispatcher.drain()
+      processed.size shouldBe 10
+      tasks.size shouldBe 1
+
+      // A header arrives before the scheduled drain runs.
+      dispatcher.dispatch(headers)
+      processed.size shouldBe 11
+      processed[10] shouldBe headers
+
+      runTasks()
+      processed.size shouldBe 26
+      processed.filter { it is Transaction } shouldBe transactions
+      dispatcher.pendingCount() shouldBe 0
+    }
+
+    "dispatch" should "drop messages exceeding the rate limit or the deferred queue, and count them" {
+      val dispatcher = dispatcher(limits = mapOf("tx" to RateLimit(1.0, 1000.0)), maxDeferredMessages = 100)
+
+      // A transaction flood does not delay headers, however many transactions come first.
+      for (i in 1..5000) {
+        dispatcher.dispatch(transaction1())
+      }
+      dispatcher.dispatch(headers)
+      processed shouldBe listOf<ProtocolMessage>(headers)
+
+      dispatcher.rateLimitedCount() shouldBe 4000L
+      dispatcher.deferredCount() shouldBe 100L
+      dispatcher.droppedCount() shouldBe 900L
+      (PriorityMessageDispatcher.totalRateLimitedCount() >= 4000L) shouldBe true
+
+      dispatcher.drain()
+      runTasks()
+      processed.size shouldBe 101
+    }
+
+    "dispatch" should "process a block inventory after transaction inventories used up the inventory rate limit" {
+      val dispatcher = dispatcher(limits = mapOf("inv" to RateLimit(1.0, 10.0)))
+      val transactionInv = Inv(listOf(InvVector(InvType.MSG_TX, hash)))
+      for (i in 1..20) {
+        dispatcher.dispatch(transactionInv)
+      }
+      dispatcher.rateLimitedCount() shouldBe 10L
+      dispatcher.deferredCount() shouldBe 10L
+
+      val blockInv = Inv(listOf(InvVector(InvType.MSG_BLOCK, hash)))
+      dispatcher.dispatch(blockInv)
+      processed shouldBe listOf<ProtocolMessage>(blockInv)
+      dispatcher.rateLimitedCount() shouldBe 10L
+    }
+
+    "dispatch" should "not drop transactions we asked for, even if the rate limit and the deferred queue are exhausted" {
+      val dispatcher = dispatcher(limits = mapOf("tx" to RateLimit(1.0, 1.0)), maxDeferredMessages = 1, requested = setOf(transaction2()))
+      dispatcher.dispatch(transaction1())
+      dispatcher.dispatch(transaction1())
+      dispatcher.rateLimitedCount() shouldBe 1L
+      dispatcher.pendingCount() shouldBe 1
+
+      dispatcher.dispatch(transaction2())
+      dispatcher.rateLimitedCount() shouldBe 1L
+      dispatcher.droppedCount() shouldBe 0L
+
+      dispatcher.drain()
+      processed shouldBe listOf<ProtocolMessage>(transaction1(), transaction2())
+    }
+
+    "drain" should "keep processing deferred messages after a message fails" {
+      var failed = false
+      val dispatcher = PriorityMessageDispatcher(
+        MessageRateLimiter(MessageRateLimits(mapOf()), { 0L }),
+        { task -> tasks.add(task) },
+        { message ->
+          if (!failed) {
+            failed = true
+            throw IllegalStateException("test")
+          }
+          processed.add(message)
+        })
+      dispatcher.dispatch(transaction1())
+      dispatcher.dispatch(transaction2())
+      dispatcher.drain()
+      processed shouldBe listOf<ProtocolMessage>(transaction2())
+    }
+  }
+}
@@ -0,0 +1,44 @@
+package io.scalechain.blockchain.net.handler
+
+import io.kotlintest.KTestJUnitRunner
+import io.kotlintest.matchers.Matchers
+import io.scalechain.blockchain.chain.MerkleRootCalculator
+import io.scalechain.blockchain.net.PartiallyDownloadedBlock
+import io.scalechain.blockchain.net.message.CompactBlockFactory
+import io.scalechain.blockchain.proto.*
+import io.scalechain.blockchain.proto.test.ProtoTestData
+import io.scalechain.util.Bytes
+import org.junit.runner.RunWith
+import java.io.File
+
+@RunWith(KTestJUnitRunner::class)
+class BlockTxnMessageHandlerSpec : MessageHandlerTestTrait(), Matchers, ProtoTestData {
+
+  override val testPath = File("./build/unittests-BlockTxnMessageHandlerSpec/")
+
+  fun block() : Block {
+    val transactions = listOf(transaction1(), transaction2(), transaction3())
+    val header = BlockHeader(4, Hash(Bytes(ByteArray(32))), MerkleRootCalculator.calculate(transactions), 1454058586L, 403253488L, 1L)
+    return Block(header, transactions)
+  }
+
+  init {
+    "handle" should "ignore blocktxn for a block not requested" {
+      BlockTxnMessageHandler.handle(context, BlockTxn(Hash(Bytes(ByteArray(32))), listOf(transaction1())))
+      val sent : Any? = channel.readOutbound()
+      sent shouldBe null
+    }
+
+    "handle" should "request the full block if blocktxn does not have the requested transactions" {
+      val partialBlock = PartiallyDownloadedBlock.create(CompactBlockFactory.create(block()))!!
+      context.pendingCompactBlocks.put(partialBlock.blockHash, partialBlock)
+
+      // Two transactions are missing, but only one is sent.
+      BlockTxnMessageHandler.handle(context, BlockTxn(partialBlock.blockHash, listOf(transaction2())))
+
+      val sent : GetData = channel.readOutbound()
+      sent shouldBe GetData(listOf(InvVector(InvType.MSG_BLOCK, partialBlock.blockHash)))
+      context.pendingCompactBlocks.isEmpty() shouldBe true
+    }
+  }
+}
@@ -0,0 +1,53 @@
+package io.scalechain.blockchain.net.handler
+
+import io.kotlintest.KTestJUnitRunner
+import io.kotlintest.matchers.Matchers
+import io.scalechain.blockchain.chain.MerkleRootCalculator
+import io.scalechain.blockchain.net.message.CompactBlockFactory
+import io.scalechain.blockchain.proto.*
+import io.scalechain.blockchain.proto.test.ProtoTestData
+import io.scalechain.util.Bytes
+import org.junit.runner.RunWith
+import java.io.File
+
+@RunWith(KTestJUnitRunner::class)
+class CmpctBlockMessageHandlerSpec : MessageHandlerTestTrait(), Matchers, ProtoTestData {
+
+  override val testPath = File("./build/unittests-CmpctBlockMessageHandlerSpec/")
+
+  fun block(transactions : List<Transaction>, merkleRoot : Hash = MerkleRootCalculator.calculate(transactions)) : Block {
+    val header = BlockHeader(4, Hash(Bytes(ByteArray(32))), merkleRoot, 1454058586L, 403253488L, 1L)
+    return Block(header, transactions)
+  }
+
+  init {
+    "handle" should "request transactions missing from the pool with getblocktxn" {
+      val block = block(listOf(transaction1(), transaction2(), transaction3()))
+      CmpctBlockMessageHandler.handle(context, CompactBlockFactory.create(block))
+
+      // The coinbase is prefilled, and the pool is empty.
+      val sent : GetBlockTxn = channel.readOutbound()
+      sent shouldBe GetBlockTxn(block.header.hash(), CompactBlockFactory.encodeIndexes(listOf(1, 2)))
+      context.pendingCompactBlocks.containsKey(block.header.hash()) shouldBe true
+    }
+
+    "handle" should "request the full block if two transactions have the same short ID" {
+      val cmpctBlock = CompactBlockFactory.create(block(listOf(transaction1(), transaction2(), transaction3())))
+      CmpctBlockMessageHandler.handle(context, cmpctBlock.copy(shortIds = listOf(cmpctBlock.shortIds[0], cmpctBlock.shortIds[0])))
+
+      val sent : GetData = channel.readOutbound()
+      sent shouldBe GetData(listOf(InvVector(InvType.MSG_BLOCK, cmpctBlock.header.hash())))
+      context.pendingCompactBlocks.isEmpty() shouldBe true
+    }
+
+    "handle" should "request the full block if the reconstructed block does not match the merkle root" {
+      // The only transaction is the prefilled coinbase, so the block is reconstructed without the pool.
+      val block = block(listOf(transaction1()), merkleRoot = Hash(Bytes(ByteArray(32))))
+      CmpctBlockMessageHandler.handle(context, CompactBlockFactory.create(block))
+
+      val sent : GetData = channel.readOutbound()
+      sent shouldBe GetData(listOf(InvVector(InvType.MSG_BLOCK, block.header.hash())))
+      context.pendingCompactBlocks.isEmpty() shouldBe true
+    }
+  }
+}
@@ -0,0 +1,52 @@
+package io.scalechain.blockchain.net.handler
+
+import io.kotlintest.KTestJUnitRunner
+import io.kotlintest.matchers.Matchers
+import io.scalechain.blockchain.proto.BlockTxn
+import io.scalechain.blockchain.proto.GetBlockTxn
+import io.scalechain.blockchain.proto.Hash
+import io.scalechain.blockchain.transaction.TransactionTestInterface
+import org.junit.runner.RunWith
+import java.io.File
+
+@RunWith(KTestJUnitRunner::class)
+class GetBlockTxnMessageHandlerSpec : MessageHandlerTestTrait(), TransactionTestInterface, Matchers {
+
+  override val testPath = File("./build/unittests-GetBlockTxnMessageHandlerSpec/")
+
+  override fun beforeEach() {
+    super.beforeEach()
+
+    chain.putBlock(
+      db,
+      env().GenesisBlockHash,
+      env().GenesisBlock
+    )
+  }
+
+  init {
+    "handle" should "respond with the requested transactions of the block" {
+      GetBlockTxnMessageHandler.handle(context, GetBlockTxn(env().GenesisBlockHash, listOf(0L)))
+
+      val sent : BlockTxn = channel.readOutbound()
+      sent shouldBe BlockTxn(env().GenesisBlockHash, env().GenesisBlock.transactions)
+    }
+
+    "handle" should "not respond if a requested index is out of the range" {
+      // The genesis block has one transaction.
+      GetBlockTxnMessageHandler.handle(context, GetBlockTxn(env().GenesisBlockHash, listOf(1L)))
+      // Differentially encoded, the second index is 1.
+      GetBlockTxnMessageHandler.handle(context, GetBlockTxn(env().GenesisBlockHash, listOf(0L, 0L)))
+
+      val sent : Any? = channel.readOutbound()
+      sent shouldBe null
+    }
+
+    "handle" should "not respond for a block we do not have" {
+      GetBlockTxnMessageHandler.handle(context, GetBlockTxn(Hash.ALL_ZERO, listOf(0L)))
+
+      val sent : Any? = channel.readOutbound()
+      sent shouldBe null
+    }
+  }
+}
@@ -2,16 +2,74 @@ package io.scalechain.blockchain.net.handler
 
 import io.kotlintest.KTestJUnitRunner
 import io.kotlintest.matchers.Matchers
+import io.netty.buffer.ByteBuf
+import io.scalechain.blockchain.proto.GetData
+import io.scalechain.blockchain.proto.Hash
+import io.scalechain.blockchain.proto.InvType
+import io.scalechain.blockchain.proto.InvVector
+import io.scalechain.blockchain.proto.codec.BitcoinProtocol
+import io.scalechain.blockchain.proto.codec.BitcoinProtocolCodec
+import io.scalechain.blockchain.transaction.TransactionTestInterface
 import org.junit.runner.RunWith
 import java.io.File
 
 @RunWith(KTestJUnitRunner::class)
-class GetDataMessageHandlerSpec : MessageHandlerTestTrait(), Matchers {
+class GetDataMessageHandlerSpec : MessageHandlerTestTrait(), TransactionTestInterface, Matchers {
 
   override val testPath = File("./build/unittests-GetDataMessageHandlerSpec/")
 
+  val codec = BitcoinProtocolCodec(BitcoinProtocol())
+
+  override fun beforeEach() {
+    super.beforeEach()
+
+    chain.putBlock(
+      db,
+      env().GenesisBlockHash,
+      env().GenesisBlock
+    )
+    putBlocks(2)
+  }
+
+  /** Decode messages the handler sent to the peer. */
+  fun receivedMessages() : List<Any> {
+    val messages = mutableListOf<Any>()
+    var encoded : ByteBuf? = channel.readOutbound()
+    while (encoded != null) {
+      codec.decode(encoded, messages)
+      encoded.release()
+      encoded = channel.readOutbound()
+    }
+    return messages
+  }
+
   init {
-    "handle" should "" {
+    "handle" should "send blocks read from the record storage" {
+      GetDataMessageHandler.handle(context, GetData(listOf(
+        InvVector(InvType.MSG_BLOCK, numberToHash(2)),
+        InvVector(InvType.MSG_BLOCK, Hash.ALL_ZERO),
+        InvVector(InvType.MSG_BLOCK, numberToHash(1))
+      )))
+
+      // The block we do not have is skipped.
+      receivedMessages() shouldBe listOf<Any>(createBlock(2), createBlock(1))
+    }
+
+    "handle" should "not serve a paused peer until resumed" {
+      // The outbound buffer of the peer is full.
+      channel.unsafe().outboundBuffer().setUserDefinedWritability(1, false)
+      GetDataMessageHandler.handle(context, GetData(listOf(
+        InvVector(InvType.MSG_BLOCK, numberToHash(1)),
+        InvVector(InvType.MSG_BLOCK, numberToHash(2))
+      )))
+      receivedMessages() shouldBe listOf<Any>()
+      context.pendingGetData.size shouldBe 2
+
+      // The channel became writable. channelWritabilityChanged calls resume.
+      channel.unsafe().outboundBuffer().setUserDefinedWritability(1, true)
+      GetDataMessageHandler.resume(context)
+      receivedMessages() shouldBe listOf<Any>(createBlock(1), createBlock(2))
+      context.pendingGetData.size shouldBe 0
     }
   }
-}
\ No newline at end of file
+}
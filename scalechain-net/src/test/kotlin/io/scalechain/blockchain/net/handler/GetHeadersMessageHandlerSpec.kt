@@ -2,16 +2,72 @@ package io.scalechain.blockchain.net.handler
 
 import io.kotlintest.KTestJUnitRunner
 import io.kotlintest.matchers.Matchers
+import io.netty.buffer.ByteBuf
+import io.scalechain.blockchain.proto.GetHeaders
+import io.scalechain.blockchain.proto.Hash
+import io.scalechain.blockchain.proto.Headers
+import io.scalechain.blockchain.proto.codec.BitcoinProtocol
+import io.scalechain.blockchain.proto.codec.BitcoinProtocolCodec
+import io.scalechain.blockchain.transaction.TransactionTestInterface
 import org.junit.runner.RunWith
 import java.io.File
 
 @RunWith(KTestJUnitRunner::class)
-class GetHeadersMessageHandlerSpec : MessageHandlerTestTrait(), Matchers {
+class GetHeadersMessageHandlerSpec : MessageHandlerTestTrait(), TransactionTestInterface, Matchers {
 
   override val testPath = File("./build/unittests-GetHeadersMessageHandlerSpec/")
 
+  val codec = BitcoinProtocolCodec(BitcoinProtocol())
+
+  override fun beforeEach() {
+    super.beforeEach()
+
+    chain.putBlock(
+      db,
+      env().GenesisBlockHash,
+      env().GenesisBlock
+    )
+    putBlocks(5)
+  }
+
+  /** Decode the headers message the handler sent to the peer. */
+  fun receivedHeaders() : Headers? {
+    val encoded : ByteBuf? = channel.readOutbound()
+    if (encoded == null) {
+      return null
+    }
+    val messages = mutableListOf<Any>()
+    codec.decode(encoded, messages)
+    encoded.release()
+    return messages.single() as Headers
+  }
+
+  fun headers(vararg heights : Int) = Headers(heights.map { createBlock(it.toLong()).header })
+
   init {
-    "handle" should "" {
+    "handle" should "send headers after the first locator hash on the best blockchain" {
+      GetHeadersMessageHandler.handle(context, GetHeaders(70002L, listOf(Hash.ALL_ZERO, numberToHash(2), numberToHash(1)), Hash.ALL_ZERO))
+      receivedHeaders() shouldBe headers(3, 4, 5)
+    }
+
+    "handle" should "stop at the hash stop" {
+      GetHeadersMessageHandler.handle(context, GetHeaders(70002L, listOf(numberToHash(1)), numberToHash(3)))
+      receivedHeaders() shouldBe headers(2, 3)
+    }
+
+    "handle" should "send headers after the genesis block if no locator hash matches" {
+      GetHeadersMessageHandler.handle(context, GetHeaders(70002L, listOf(Hash.ALL_ZERO), Hash.ALL_ZERO))
+      receivedHeaders() shouldBe headers(1, 2, 3, 4, 5)
+    }
+
+    "handle" should "send the header of the hash stop if no locator hash is given" {
+      GetHeadersMessageHandler.handle(context, GetHeaders(70002L, listOf(), numberToHash(4)))
+      receivedHeaders() shouldBe headers(4)
+    }
+
+    "handle" should "send nothing if the locator hash is the best block" {
+      GetHeadersMessageHandler.handle(context, GetHeaders(70002L, listOf(numberToHash(5)), Hash.ALL_ZERO))
+      receivedHeaders() shouldBe null
     }
   }
-}
\ No newline at end of file
+}
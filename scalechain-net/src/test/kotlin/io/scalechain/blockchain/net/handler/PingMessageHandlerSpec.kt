@@ -2,8 +2,11 @@ package io.scalechain.blockchain.net.handler
 
 import io.kotlintest.KTestJUnitRunner
 import io.kotlintest.matchers.Matchers
+import io.scalechain.blockchain.proto.Ping
+import io.scalechain.blockchain.proto.Pong
 import org.junit.runner.RunWith
 import java.io.File
+import java.math.BigInteger
 
 @RunWith(KTestJUnitRunner::class)
 class PingMessageHandlerSpec : MessageHandlerTestTrait(), Matchers {
@@ -11,7 +14,10 @@ class PingMessageHandlerSpec : MessageHandlerTestTrait(), Matchers {
   override val testPath = File("./build/unittests-PingMessageHandlerSpec/")
 
   init {
-    "handle" should "" {
+    "handle" should "reply with a pong having the nonce of the ping" {
+      PingMessageHandler.handle(context, Ping(BigInteger.valueOf(12345)))
+      val pong : Pong? = channel.readOutbound()
+      pong shouldBe Pong(BigInteger.valueOf(12345))
     }
   }
 }
\ No newline at end of file
@@ -2,8 +2,10 @@ package io.scalechain.blockchain.net.handler
 
 import io.kotlintest.KTestJUnitRunner
 import io.kotlintest.matchers.Matchers
+import io.scalechain.blockchain.proto.Pong
 import org.junit.runner.RunWith
 import java.io.File
+import java.math.BigInteger
 
 @RunWith(KTestJUnitRunner::class)
 class PongMessageHandlerSpec : MessageHandlerTestTrait(), Matchers {
@@ -11,7 +13,13 @@ class PongMessageHandlerSpec : MessageHandlerTestTrait(), Matchers {
   override val testPath = File("./build/unittests-PongMessageHandlerSpec/")
 
   init {
-    "handle" should "" {
+    "handle" should "update the RTT of the peer for the pong of the ping we sent" {
+      context.peer.performance.pingSent(BigInteger.valueOf(12345), System.nanoTime())
+      PongMessageHandler.handle(context, Pong(BigInteger.valueOf(1)))
+      context.peer.performance.rttMillis() shouldBe null
+
+      PongMessageHandler.handle(context, Pong(BigInteger.valueOf(12345)))
+      (context.peer.performance.rttMillis() != null) shouldBe true
     }
   }
 }
\ No newline at end of file
@@ -0,0 +1,28 @@
+package io.scalechain.blockchain.net.handler
+
+import io.kotlintest.KTestJUnitRunner
+import io.kotlintest.matchers.Matchers
+import io.scalechain.blockchain.proto.SendCmpct
+import org.junit.runner.RunWith
+import java.io.File
+
+@RunWith(KTestJUnitRunner::class)
+class SendCmpctMessageHandlerSpec : MessageHandlerTestTrait(), Matchers {
+
+  override val testPath = File("./build/unittests-SendCmpctMessageHandlerSpec/")
+
+  init {
+    "handle" should "announce blocks to the peer with cmpctblock if the peer asked for it" {
+      context.peer.announceCompactBlocks shouldBe false
+      SendCmpctMessageHandler.handle(context, SendCmpct(true, 1L))
+      context.peer.announceCompactBlocks shouldBe true
+      SendCmpctMessageHandler.handle(context, SendCmpct(false, 1L))
+      context.peer.announceCompactBlocks shouldBe false
+    }
+
+    "handle" should "ignore an unsupported version" {
+      SendCmpctMessageHandler.handle(context, SendCmpct(true, 2L))
+      context.peer.announceCompactBlocks shouldBe false
+    }
+  }
+}
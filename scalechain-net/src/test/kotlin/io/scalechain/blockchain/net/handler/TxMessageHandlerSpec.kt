@@ -5,12 +5,16 @@ import io.kotlintest.matchers.Matchers
 import java.io.File
 import io.scalechain.blockchain.chain.Blockchain
 import io.scalechain.blockchain.chain.TransactionSampleData
+import io.scalechain.blockchain.net.TransactionAdmission
+import io.scalechain.blockchain.proto.LockingScript
+import io.scalechain.blockchain.proto.test.ProtoTestData
 import io.scalechain.blockchain.script.hash
 import io.scalechain.blockchain.transaction.ChainEnvironment
+import io.scalechain.util.Bytes
 import org.junit.runner.RunWith
 
 @RunWith(KTestJUnitRunner::class)
-class TxMessageHandlerSpec : MessageHandlerTestTrait(), Matchers {
+class TxMessageHandlerSpec : MessageHandlerTestTrait(), Matchers, ProtoTestData {
 
   override val testPath = File("./build/unittests-TransactionMessageHandlerSpec/")
 
@@ -33,6 +37,25 @@ class TxMessageHandlerSpec : MessageHandlerTestTrait(), Matchers {
   }
 
   init {
+    "transaction message handler" should "disconnect a peer sending an invalid transaction" {
+      // A transaction without any output is invalid in any block.
+      TxMessageHandler.handle(context, transaction1().copy(outputs = listOf()))
+      TransactionAdmission.awaitAdmitted()
+
+      context.peer.banScore() shouldBe TxMessageHandler.INVALID_TRANSACTION_SCORE
+      channel.isOpen shouldBe false
+    }
+
+    "transaction message handler" should "keep a peer sending a transaction with a script that can not be parsed" {
+      // OP_PUSHDATA1 without the byte count.
+      val output = transaction1().outputs[0].copy(lockingScript = LockingScript(Bytes(byteArrayOf(0x4c))))
+      TxMessageHandler.handle(context, transaction1().copy(outputs = listOf(output)))
+      TransactionAdmission.awaitAdmitted()
+
+      context.peer.banScore() shouldBe TxMessageHandler.NONSTANDARD_TRANSACTION_SCORE
+      channel.isOpen shouldBe true
+    }
+
     // TODO : Block Mining : Rewrite test case
     // BUGBUG : ignored option does not work.
 /*
@@ -67,6 +67,21 @@ data class BitcoinMessageEnvelope(
         )
       }
 
+      /** Build an envelope for a payload that is already serialized, such as a block read from the record storage.
+        *
+        * @param command The command of the message in the payload.
+        * @param payload The serialized message.
+        */
+      fun buildRaw(command : String, payload : ByteArray) : BitcoinMessageEnvelope {
+        return BitcoinMessageEnvelope(
+          BitcoinConfiguration.config.magic,
+          command,
+          payload.size,
+          checksum(payload, 0, payload.size),
+          Unpooled.wrappedBuffer(payload)
+        )
+      }
+
       fun isMagicValid(magic : Magic) = magic == BitcoinConfiguration.config.magic
 
       fun verify(envelope : BitcoinMessageEnvelope) : Unit {
@@ -7,6 +7,7 @@ import io.scalechain.blockchain.ProtocolCodecException
 import io.scalechain.blockchain.proto.Hash
 import io.scalechain.blockchain.proto.Block
 import io.scalechain.blockchain.proto.ProtocolMessage
+import io.scalechain.blockchain.proto.Transaction
 import io.scalechain.util.HexUtil
 
 class BitcoinProtocolCodec( private val protocol : NetworkProtocol ) {
@@ -17,6 +18,19 @@ class BitcoinProtocolCodec( private val protocol : NetworkProtocol ) {
     BitcoinMessageEnvelopeCodec.transcode(io, envelope)
   }
 
+  /** Encode a message whose payload is already serialized. The payload is copied into the envelope without being decoded.
+    *
+    * @param command The command of the message, such as "block".
+    * @param payload The serialized message.
+    * @param byteBuf The buffer to write the envelope to.
+    */
+  fun encodeRaw(command : String, payload : ByteArray, byteBuf : ByteBuf) {
+    val envelope = BitcoinMessageEnvelope.buildRaw(command, payload)
+
+    val io = CodecInputOutputStream(byteBuf, isInput = false)
+    BitcoinMessageEnvelopeCodec.transcode(io, envelope)
+  }
+
   /** Decode bits and add decoded messages to the given vector.
     *
     * @param bitVector The data to decode.
@@ -30,6 +44,10 @@ class BitcoinProtocolCodec( private val protocol : NetworkProtocol ) {
 
       BitcoinMessageEnvelope.verify(envelope)
       val protocolMessage = protocol.decode( envelope.payload, envelope.command )
+      // Keep the payload length, so that checks on the size of the transaction do not encode it again.
+      if (protocolMessage is Transaction) {
+        protocolMessage.serializedSize = envelope.length
+      }
 
       messages.add( protocolMessage )
     }
@@ -40,7 +40,11 @@ class BitcoinProtocol : NetworkProtocol {
     PingCodec,
     PongCodec,
     RejectCodec,
-    SendHeadersCodec
+    SendHeadersCodec,
+    SendCmpctCodec,
+    CmpctBlockCodec,
+    GetBlockTxnCodec,
+    BlockTxnCodec
     /*,
     FilterLoadCodec,
     FilterAddCodec,
@@ -2,6 +2,8 @@ package io.scalechain.blockchain.proto.codec
 
 import io.scalechain.blockchain.proto.*
 import io.scalechain.blockchain.proto.codec.primitive.Codecs
+import io.scalechain.blockchain.proto.codec.primitive.FixedByteArrayCodec
+import io.scalechain.util.Bytes
 import io.scalechain.util.Option
 
 object RecordLocatorCodec : Codec<RecordLocator> {
@@ -152,22 +154,34 @@ object BlockHeightCodec : Codec<BlockHeight> {
   }
 }
 
-internal val OptionalInPointListCodec =
-  Codecs.variableListOf(
-    valueCodec = Codecs.optional(valueCodec = InPointCodec)
-  )
-
 object TransactionDescriptorCodec : Codec<TransactionDescriptor> {
   override fun transcode(io : CodecInputOutputStream, obj : TransactionDescriptor? ) : TransactionDescriptor? {
     val transactionLocator = FileRecordLocatorCodec.transcode( io, obj?.transactionLocator )
     val blockHeight        = Codecs.Int64.transcode( io, obj?.blockHeight )
-    val outputsSpentBy     = OptionalInPointListCodec.transcode( io, obj?.outputsSpentBy?.map{ Option.from(it) } )
+    val outputCount        = Codecs.Int32L.transcode( io, obj?.outputCount )
 
     if (io.isInput) {
       return TransactionDescriptor(
         transactionLocator!!,
         blockHeight!!,
-        outputsSpentBy!!.map{ it.toNullable() }
+        outputCount!!
+      )
+    }
+    return null
+  }
+}
+
+object SpentOutputBitmapCodec : Codec<SpentOutputBitmap> {
+  override fun transcode(io : CodecInputOutputStream, obj : SpentOutputBitmap? ) : SpentOutputBitmap? {
+    val outputCount = Codecs.Int32L.transcode( io, obj?.outputCount )
+    // On output, the codec returns null, so get the output count from the object.
+    val byteCount   = SpentOutputBitmap.byteCount( outputCount ?: obj!!.outputCount )
+    val bitmap      = FixedByteArrayCodec( byteCount ).transcode( io, obj?.bitmap?.array )
+
+    if (io.isInput) {
+      return SpentOutputBitmap(
+        outputCount!!,
+        Bytes(bitmap!!)
       )
     }
     return null
@@ -202,13 +216,11 @@ object TransactionPoolEntryCodec : Codec<TransactionPoolEntry> {
 
   override fun transcode(io : CodecInputOutputStream, obj : TransactionPoolEntry? ) : TransactionPoolEntry? {
     val transaction    = TransactionCodec.transcode(io, obj?.transaction)
-    val outputsSpentBy = OptionalInPointListCodec.transcode(io, obj?.outputsSpentBy?.map{ Option.from(it) })
     val createdAtNanos = Codecs.Int64.transcode(io, obj?.createdAtNanos)
 
     if (io.isInput) {
       return TransactionPoolEntry(
         transaction!!,
-        outputsSpentBy!!.map{ it.toNullable() },
         createdAtNanos!!
       )
     }
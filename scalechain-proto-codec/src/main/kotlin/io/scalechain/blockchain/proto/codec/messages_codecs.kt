@@ -533,8 +533,6 @@ object TransactionCodec : ProtocolMessageCodec<Transaction> {
   }
 }
 
-internal val BlockHeaderListCodec : Codec<List<BlockHeader>> =
-  Codecs.variableListOf(BlockHeaderCodec)
 /**
   * <Description>
   * The headers message sends one or more block headers to a node
@@ -565,12 +563,23 @@ object HeadersCodec : ProtocolMessageCodec<Headers> {
   override val command = "headers"
   override val clazz = Headers::class.java
   val TransactionCountCodec = VariableIntCodec()
+
+  /** A block header followed by its transaction count, which is always zero in a headers message. */
+  private val HeaderEntryCodec = object : Codec<BlockHeader> {
+    override fun transcode(io : CodecInputOutputStream, obj : BlockHeader? ) : BlockHeader? {
+      val header = BlockHeaderCodec.transcode(io, obj)
+      // BUGBUG : Check if transactionCount is zero.
+      TransactionCountCodec.transcode(io, if (io.isInput) null else 0L)
+      return header
+    }
+  }
+
+  private val HeaderEntryListCodec = Codecs.variableListOf(HeaderEntryCodec)
+
   override fun transcode(io : CodecInputOutputStream, obj : Headers? ) : Headers? {
-    val headers = BlockHeaderListCodec.transcode(io, obj?.headers)
-    val transactionCount = TransactionCountCodec.transcode(io, 0)
+    val headers = HeaderEntryListCodec.transcode(io, obj?.headers)
 
     if (io.isInput) {
-      // BUGBUG : Check if transactionCount is zero.
       return Headers(
           headers!!
       )
@@ -1020,3 +1029,157 @@ object SendHeadersCodec : ProtocolMessageCodec<SendHeaders> {
   }
 }
 
+
+/**
+  * <Description>
+  * The sendcmpct message tells the receiving peer that we can handle compact blocks (BIP 152).
+  *
+  * <Protocol>
+  *  01 ................................. Announce: true
+  *  0100000000000000 ................... Version: 1
+  */
+object SendCmpctCodec : ProtocolMessageCodec<SendCmpct> {
+  override val command = "sendcmpct"
+  override val clazz = SendCmpct::class.java
+
+  override fun transcode(io : CodecInputOutputStream, obj : SendCmpct? ) : SendCmpct? {
+    val announce = Codecs.Boolean.transcode(io, obj?.announce)
+    val version  = Codecs.Int64L.transcode(io, obj?.version)
+
+    if (io.isInput) {
+      return SendCmpct(
+        announce!!,
+        version!!
+      )
+    }
+    return null
+  }
+}
+
+/** A short transaction ID ; The lower 6 bytes of SipHash-2-4 of a transaction hash, in little endian.
+  */
+internal object ShortTransactionIdCodec : Codec<Long> {
+  override fun transcode(io : CodecInputOutputStream, obj : Long? ) : Long? {
+    if (io.isInput) {
+      val low = io.byteBuf.readUnsignedIntLE()
+      val high = io.byteBuf.readUnsignedShortLE().toLong()
+      return (high shl 32) or low
+    } else {
+      io.byteBuf.writeIntLE(obj!!.toInt())
+      io.byteBuf.writeShortLE((obj ushr 32).toInt())
+      return null
+    }
+  }
+}
+
+internal object PrefilledTransactionCodec : Codec<PrefilledTransaction> {
+  override fun transcode(io : CodecInputOutputStream, obj : PrefilledTransaction? ) : PrefilledTransaction? {
+    val index       = Codecs.VariableInt.transcode(io, obj?.index)
+    val transaction = TransactionCodec.transcode(io, obj?.transaction)
+
+    if (io.isInput) {
+      return PrefilledTransaction(
+        index!!,
+        transaction!!
+      )
+    }
+    return null
+  }
+}
+
+/**
+  * <Description>
+  * The cmpctblock message sends a block header with short IDs of transactions and a few prefilled transactions (BIP 152).
+  *
+  * <Protocol>
+  *  (80 bytes) ......................... Block header
+  *  0807060504030201 ................... Nonce for short IDs
+  *  02 ................................. Number of short IDs
+  *  060504030201 ....................... Short ID
+  *  ...
+  *  01 ................................. Number of prefilled transactions
+  *  00 ................................. Differential index of the prefilled transaction
+  *  (transaction) ...................... The prefilled transaction
+  */
+object CmpctBlockCodec : ProtocolMessageCodec<CmpctBlock> {
+  override val command = "cmpctblock"
+  override val clazz = CmpctBlock::class.java
+
+  private val ShortIdListCodec = Codecs.variableListOf( ShortTransactionIdCodec )
+  private val PrefilledTransactionListCodec = Codecs.variableListOf( PrefilledTransactionCodec )
+
+  override fun transcode(io : CodecInputOutputStream, obj : CmpctBlock? ) : CmpctBlock? {
+    val header                = BlockHeaderCodec.transcode(io, obj?.header)
+    val nonce                 = Codecs.Int64L.transcode(io, obj?.nonce)
+    val shortIds              = ShortIdListCodec.transcode(io, obj?.shortIds)
+    val prefilledTransactions = PrefilledTransactionListCodec.transcode(io, obj?.prefilledTransactions)
+
+    if (io.isInput) {
+      return CmpctBlock(
+        header!!,
+        nonce!!,
+        shortIds!!,
+        prefilledTransactions!!
+      )
+    }
+    return null
+  }
+}
+
+/**
+  * <Description>
+  * The getblocktxn message requests transactions of a block by their differentially encoded indexes (BIP 152).
+  *
+  * <Protocol>
+  *  (32 bytes) ......................... Block hash
+  *  03 ................................. Number of indexes
+  *  00 02 01 ........................... Indexes 0, 3, 5
+  */
+object GetBlockTxnCodec : ProtocolMessageCodec<GetBlockTxn> {
+  override val command = "getblocktxn"
+  override val clazz = GetBlockTxn::class.java
+
+  private val IndexListCodec = Codecs.variableListOf( Codecs.VariableInt )
+
+  override fun transcode(io : CodecInputOutputStream, obj : GetBlockTxn? ) : GetBlockTxn? {
+    val blockHash = HashCodec.transcode(io, obj?.blockHash)
+    val indexes   = IndexListCodec.transcode(io, obj?.indexes)
+
+    if (io.isInput) {
+      return GetBlockTxn(
+        blockHash!!,
+        indexes!!
+      )
+    }
+    return null
+  }
+}
+
+/**
+  * <Description>
+  * The blocktxn message sends the transactions requested by getblocktxn (BIP 152).
+  *
+  * <Protocol>
+  *  (32 bytes) ......................... Block hash
+  *  01 ................................. Number of transactions
+  *  (transaction) ...................... Transactions in the order of the requested indexes
+  */
+object BlockTxnCodec : ProtocolMessageCodec<BlockTxn> {
+  override val command = "blocktxn"
+  override val clazz = BlockTxn::class.java
+
+  private val TransactionListCodec = Codecs.variableListOf( TransactionCodec )
+
+  override fun transcode(io : CodecInputOutputStream, obj : BlockTxn? ) : BlockTxn? {
+    val blockHash    = HashCodec.transcode(io, obj?.blockHash)
+    val transactions = TransactionListCodec.transcode(io, obj?.transactions)
+
+    if (io.isInput) {
+      return BlockTxn(
+        blockHash!!,
+        transactions!!
+      )
+    }
+    return null
+  }
+}
@@ -130,3 +130,62 @@ object WalletOutputCodec : Codec<WalletOutput> {
   }
 }
 
+
+
+/** Encodes a WalletTransactionOrder so that the more recent transaction comes first in the ascending order of keys.
+  *
+  * 1. Transactions in the mempool come before the ones in blocks.
+  * 2. Transactions in the mempool are sorted by the added time in descending order.
+  * 3. Transactions in blocks are sorted by (block height, transaction index) in descending order.
+  *
+  * The time and the transaction index are subtracted from the maximum value and written in big endian,
+  * as the key value database compares keys byte by byte.
+  */
+object WalletTransactionOrderCodec : Codec<WalletTransactionOrder> {
+  override fun transcode(io : CodecInputOutputStream, obj : WalletTransactionOrder? ) : WalletTransactionOrder? {
+    val inBlock = Codecs.Boolean.transcode(io, obj?.inBlock)
+    val reversedTime = Codecs.Int64.transcode(io, if (obj == null) null else Long.MAX_VALUE - obj.time)
+    val reversedTransactionIndex = Codecs.Int32.transcode(io, if (obj == null) null else Int.MAX_VALUE - obj.transactionIndex)
+    val transactionHash = HashCodec.transcode(io, obj?.transactionHash)
+
+    if (io.isInput) {
+      return WalletTransactionOrder(
+        inBlock!!,
+        Long.MAX_VALUE - reversedTime!!,
+        Int.MAX_VALUE - reversedTransactionIndex!!,
+        transactionHash!!
+      )
+    }
+    return null
+  }
+}
+
+object WalletTransactionSummaryCodec : Codec<WalletTransactionSummary> {
+  private val OptionalInt64Codec = Codecs.optional(Codecs.Int64)
+
+  override fun transcode(io : CodecInputOutputStream, obj : WalletTransactionSummary? ) : WalletTransactionSummary? {
+    val fee = OptionalInt64Codec.transcode(io, Option.from(obj?.fee))
+
+    if (io.isInput) {
+      return WalletTransactionSummary(
+        fee!!.toNullable()
+      )
+    }
+    return null
+  }
+}
+
+object WalletBalanceCodec : Codec<WalletBalance> {
+  override fun transcode(io : CodecInputOutputStream, obj : WalletBalance? ) : WalletBalance? {
+    val received = Codecs.Int64.transcode(io, obj?.received)
+    val unspent  = Codecs.Int64.transcode(io, obj?.unspent)
+
+    if (io.isInput) {
+      return WalletBalance(
+        received!!,
+        unspent!!
+      )
+    }
+    return null
+  }
+}
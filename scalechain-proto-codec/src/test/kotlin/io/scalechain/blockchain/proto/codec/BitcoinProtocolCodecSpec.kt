@@ -5,17 +5,21 @@ import io.kotlintest.matchers.Matchers
 import io.kotlintest.specs.FlatSpec
 import io.netty.buffer.ByteBuf
 import io.netty.buffer.Unpooled
+import io.scalechain.blockchain.proto.Headers
 import io.scalechain.blockchain.proto.ProtocolMessage
 import io.scalechain.blockchain.proto.SendHeaders
+import io.scalechain.blockchain.proto.Transaction
 import io.scalechain.blockchain.proto.Verack
 import io.scalechain.blockchain.proto.Version
+import io.scalechain.blockchain.proto.test.ProtoTestData
+import io.scalechain.util.toByteArray
 import org.junit.runner.RunWith
 
 /**
   * Created by kangmo on 11/2/15.
   */
 @RunWith(KTestJUnitRunner::class)
-class BitcoinProtocolCodecSpec : FlatSpec(), Matchers {
+class BitcoinProtocolCodecSpec : FlatSpec(), Matchers, ProtoTestData {
   val codec = BitcoinProtocolCodec(BitcoinProtocol())
 
   init {
@@ -34,6 +38,20 @@ class BitcoinProtocolCodecSpec : FlatSpec(), Matchers {
       messageList shouldBe listOf(Verack(), SendHeaders())
     }
 
+    "encodeRaw" should "encode a serialized payload into the same bytes as encode" {
+      val messageList = mutableListOf<Any>()
+      val encoded = Unpooled.buffer()
+      val rawEncoded = Unpooled.buffer()
+      val headers = Headers(listOf())
+
+      codec.encode(headers, encoded)
+      codec.encodeRaw(HeadersCodec.command, HeadersCodec.encode(headers), rawEncoded)
+      rawEncoded.toByteArray().toList() shouldBe encoded.toByteArray().toList()
+
+      codec.decode(rawEncoded, messageList)
+      messageList shouldBe listOf<Any>(headers)
+    }
+
     "decode" should "return a message without leaving any input bytes" {
       val messageList = mutableListOf<Any>()
       val buffer = Unpooled.buffer()
@@ -82,5 +100,15 @@ class BitcoinProtocolCodecSpec : FlatSpec(), Matchers {
       buffer.readableBytes() shouldBe 1
       buffer.readByte()      shouldBe 100.toByte()
     }
+
+    "decode" should "keep the payload length of a transaction as its serialized size" {
+      val messageList = mutableListOf<Any>()
+      val buffer = Unpooled.buffer()
+
+      codec.encode(transaction1(), buffer)
+      codec.decode(buffer, messageList)
+      messageList shouldBe listOf<Any>(transaction1())
+      (messageList[0] as Transaction).serializedSize shouldBe TransactionCodec.encode(transaction1()).size
+    }
   }
 }
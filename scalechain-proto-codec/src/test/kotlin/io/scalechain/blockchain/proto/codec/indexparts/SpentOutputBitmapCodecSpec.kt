@@ -0,0 +1,21 @@
+package io.scalechain.blockchain.proto.codec.indexparts
+
+import io.kotlintest.KTestJUnitRunner
+import io.scalechain.blockchain.proto.SpentOutputBitmap
+import io.scalechain.blockchain.proto.codec.PayloadTestSuite
+import io.scalechain.blockchain.proto.codec.SpentOutputBitmapCodec
+import io.scalechain.util.HexUtil.bytes
+import org.junit.runner.RunWith
+
+@RunWith(KTestJUnitRunner::class)
+class SpentOutputBitmapCodecSpec : PayloadTestSuite<SpentOutputBitmap>()  {
+
+  override val codec = SpentOutputBitmapCodec
+
+  override val payload = bytes(
+    """ 0a 00 00 00 02 02
+    """)
+
+  // Outputs 1 and 9 out of 10 outputs are spent.
+  override val message = SpentOutputBitmap.unspent(10).mark(1, true).mark(9, true)
+}
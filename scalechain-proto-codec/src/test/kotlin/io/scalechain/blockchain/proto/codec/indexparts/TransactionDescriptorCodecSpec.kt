@@ -18,16 +18,13 @@ class TransactionDescriptorCodecSpec : PayloadTestSuite<TransactionDescriptor>()
   override val codec = TransactionDescriptorCodec
 
   override val payload = bytes(
-      // BUGBUG : The test will fail.
-      """0100000002000000000000000300000000000000000004d203000111111111111111111111111111111111111111111111111111111111111111110100000000
+      """0100000002000000000000000300000000000000000004d203000000
       """)
 
-  val DUMMY_HASH1 = Hash ( Bytes.from( filledString(64, '1'.toByte() )) )
-
   override val message = TransactionDescriptor(
       transactionLocator = FileRecordLocator( 1, RecordLocator(2,3)  ),
       blockHeight = 1234L,
-      outputsSpentBy = listOf( null, InPoint(DUMMY_HASH1, 1), null )
+      outputCount = 3
   )
 }
 
@@ -0,0 +1,29 @@
+package io.scalechain.blockchain.proto.codec.messages
+
+import io.kotlintest.KTestJUnitRunner
+import io.scalechain.blockchain.proto.BlockTxn
+import io.scalechain.blockchain.proto.Hash
+import io.scalechain.blockchain.proto.codec.BlockTxnCodec
+import io.scalechain.blockchain.proto.codec.PayloadTestSuite
+import io.scalechain.blockchain.proto.codec.TransactionCodec
+import io.scalechain.util.Bytes
+import io.scalechain.util.HexUtil.bytes
+import org.junit.runner.RunWith
+
+@RunWith(KTestJUnitRunner::class)
+class BlockTxnSpec : PayloadTestSuite<BlockTxn>() {
+
+  override val codec = BlockTxnCodec
+
+  override val payload = bytes(
+    """
+      63 54 17 3f cc 4b 38 c2  d4 59 48 b1 9d 2a 52 7c
+      4f 10 ad a6 83 47 00 06  00 00 00 00 00 00 00 00
+      02
+    """) + TransactionCodec.encode(TransactionSpec.SampleTransaction1) + TransactionCodec.encode(TransactionSpec.SampleTransaction2)
+
+  override val message = BlockTxn(
+    Hash(Bytes.from("000000000000000006004783a6ad104f7c522a9db14859d4c2384bcc3f175463")),
+    listOf(TransactionSpec.SampleTransaction1, TransactionSpec.SampleTransaction2)
+  )
+}
@@ -0,0 +1,34 @@
+package io.scalechain.blockchain.proto.codec.messages
+
+import io.kotlintest.KTestJUnitRunner
+import io.scalechain.blockchain.proto.*
+import io.scalechain.blockchain.proto.codec.CmpctBlockCodec
+import io.scalechain.blockchain.proto.codec.PayloadTestSuite
+import io.scalechain.blockchain.proto.codec.TransactionCodec
+import io.scalechain.util.Bytes
+import io.scalechain.util.HexUtil.bytes
+import org.junit.runner.RunWith
+
+@RunWith(KTestJUnitRunner::class)
+class CmpctBlockSpec : PayloadTestSuite<CmpctBlock>() {
+
+  override val codec = CmpctBlockCodec
+
+  override val payload = bytes(
+    """
+      04 00 00 00 63 54 17 3f  cc 4b 38 c2 d4 59 48 b1
+      9d 2a 52 7c 4f 10 ad a6  83 47 00 06 00 00 00 00
+      00 00 00 00 66 1e dc 92  f8 62 78 de 6b 38 ab 55
+      b5 60 cc a3 f6 38 9c 17  c4 44 e4 61 10 87 be 12
+      51 bd c8 db 5a 2c ab 56  f0 28 09 18 f0 09 a5 d0
+      08 07 06 05 04 03 02 01  02 06 05 04 03 02 01 f0
+      e0 d0 c0 b0 a0 01 00
+    """) + TransactionCodec.encode(TransactionSpec.SampleTransaction1)
+
+  override val message = CmpctBlock(
+    BlockHeader(version=4, hashPrevBlock=Hash(Bytes.from("000000000000000006004783a6ad104f7c522a9db14859d4c2384bcc3f175463")), hashMerkleRoot=Hash(Bytes.from("dbc8bd5112be871061e444c4179c38f6a3cc60b555ab386bde7862f892dc1e66")), timestamp=1454058586L, target=403253488L, nonce=3500476912L),
+    0x0102030405060708L,
+    listOf(0x010203040506L, 0xa0b0c0d0e0f0L),
+    listOf(PrefilledTransaction(0L, TransactionSpec.SampleTransaction1))
+  )
+}
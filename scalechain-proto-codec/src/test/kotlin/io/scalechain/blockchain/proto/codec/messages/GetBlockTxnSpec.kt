@@ -0,0 +1,26 @@
+package io.scalechain.blockchain.proto.codec.messages
+
+import io.kotlintest.KTestJUnitRunner
+import io.scalechain.blockchain.proto.GetBlockTxn
+import io.scalechain.blockchain.proto.Hash
+import io.scalechain.blockchain.proto.codec.GetBlockTxnCodec
+import io.scalechain.blockchain.proto.codec.PayloadTestSuite
+import io.scalechain.util.Bytes
+import io.scalechain.util.HexUtil.bytes
+import org.junit.runner.RunWith
+
+@RunWith(KTestJUnitRunner::class)
+class GetBlockTxnSpec : PayloadTestSuite<GetBlockTxn>() {
+
+  override val codec = GetBlockTxnCodec
+
+  override val payload = bytes(
+    """
+      63 54 17 3f cc 4b 38 c2  d4 59 48 b1 9d 2a 52 7c
+      4f 10 ad a6 83 47 00 06  00 00 00 00 00 00 00 00
+      03 00 02 01
+    """)
+
+  // Indexes 0, 3 and 5, differentially encoded.
+  override val message = GetBlockTxn(Hash(Bytes.from("000000000000000006004783a6ad104f7c522a9db14859d4c2384bcc3f175463")), listOf(0L, 2L, 1L))
+}
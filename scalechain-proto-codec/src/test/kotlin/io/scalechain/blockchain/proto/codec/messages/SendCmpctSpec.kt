@@ -0,0 +1,21 @@
+package io.scalechain.blockchain.proto.codec.messages
+
+import io.kotlintest.KTestJUnitRunner
+import io.scalechain.blockchain.proto.SendCmpct
+import io.scalechain.blockchain.proto.codec.PayloadTestSuite
+import io.scalechain.blockchain.proto.codec.SendCmpctCodec
+import io.scalechain.util.HexUtil.bytes
+import org.junit.runner.RunWith
+
+@RunWith(KTestJUnitRunner::class)
+class SendCmpctSpec : PayloadTestSuite<SendCmpct>() {
+
+  override val codec = SendCmpctCodec
+
+  override val payload = bytes(
+    """
+      01 01 00 00 00 00 00 00  00
+    """)
+
+  override val message = SendCmpct(true, 1L)
+}
@@ -0,0 +1,48 @@
+package io.scalechain.blockchain.proto.codec.walletparts
+
+import io.kotlintest.KTestJUnitRunner
+import io.kotlintest.matchers.Matchers
+import io.kotlintest.specs.FlatSpec
+import io.scalechain.blockchain.proto.codec.WalletTransactionOrderCodec
+import io.scalechain.blockchain.proto.*
+import io.scalechain.blockchain.proto.codec.CodecTestUtil
+import io.scalechain.util.Bytes
+import org.junit.runner.RunWith
+
+@RunWith(KTestJUnitRunner::class)
+class WalletTransactionOrderCodecSpec : FlatSpec(), Matchers, CodecTestUtil {
+
+  val hash = Hash(Bytes.from("00000000bd0ed80435fc9fe3269da69bb0730ebb454d0a29128a870ea1a37929"))
+
+  // Compare byte arrays in the same way as the key value database compares keys.
+  fun compareKeys(a : ByteArray, b : ByteArray) : Int {
+    for (i in 0 until Math.min(a.size, b.size)) {
+      val diff = (a[i].toInt() and 0xFF) - (b[i].toInt() and 0xFF)
+      if (diff != 0) return diff
+    }
+    return a.size - b.size
+  }
+
+  init {
+    "WalletTransactionOrderCodec" should "roundtrip" {
+      roundTrip(WalletTransactionOrderCodec, WalletTransactionOrder(true, 11L, 3, hash)) shouldBe true
+      roundTrip(WalletTransactionOrderCodec, WalletTransactionOrder(false, 1418695703L, 0, hash)) shouldBe true
+    }
+
+    "WalletTransactionOrderCodec" should "encode more recent transactions into smaller keys" {
+      // Listed from the most recent one to the oldest one.
+      val orders = listOf(
+        WalletTransactionOrder(false, 2000L, 0, hash),
+        WalletTransactionOrder(false, 1000L, 0, hash),
+        WalletTransactionOrder(true, 11L, 300, hash),
+        WalletTransactionOrder(true, 11L, 2, hash),
+        WalletTransactionOrder(true, 10L, 5, hash),
+        WalletTransactionOrder(true, 0L, 0, hash)
+      )
+      val keys = orders.map { WalletTransactionOrderCodec.encode(it) }
+      for (i in 0 until keys.size - 1) {
+        (compareKeys(keys[i], keys[i+1]) < 0) shouldBe true
+      }
+    }
+  }
+}
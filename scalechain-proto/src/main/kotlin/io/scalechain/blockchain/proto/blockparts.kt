@@ -208,6 +208,11 @@ data class Transaction(val version : Int,
                        val outputs : List<TransactionOutput>,
                        val lockTime : Long) : ProtocolMessage {
 
+  /** The size of the transaction on the wire, if it was decoded from a tx message. Set by BitcoinProtocolCodec.
+    * Declared in the body, so it is not a part of equals, hashCode and copy.
+    */
+  var serializedSize : Int? = null
+
   override fun toString() : String {
     if (TransactionPrinter.printer != null)
         return TransactionPrinter.printer!!.toString(this)
@@ -1,5 +1,7 @@
 package io.scalechain.blockchain.proto
 
+import io.scalechain.util.Bytes
+
 /** data classes that are used for keys or values of the block storage index.
   */
 data class CStringPrefixed<T>(val prefix : String, val data : T) : Transcodable
@@ -62,12 +64,78 @@ data class BlockHeight( val height : Long ) : Transcodable
 /** The transaction descriptor kept for each transaction stored in a block.
   * Transactions in the transaction pool don't store transaction descriptors, but they are kept in the transaction pool.
   *
+  * The spent state of outputs is not kept in the descriptor, but in a SpentOutputBitmap and in-points stored under separate keys.
+  * This keeps the descriptor unchanged while outputs of the transaction are spent.
+  *
   * @param transactionLocator The file record locator pointing to an on-disk serialized transaction
   * @param blockHeight The height of the block where the transaction belongs to. Whenever blocks are reorganized, transaction descriptors are completely removed and reconstructed, so we can depend on the block height(8 bytes) instead of the block hash(32 bytes).
-  * @param outputsSpentBy List of transaction inputs that spends outputs of the transaction.
-  *                       For each element of the list, it is Some(inPoint) if an output was spent, None otherwise.
+  * @param outputCount The number of outputs of the transaction.
+  */
+data class TransactionDescriptor( val transactionLocator : FileRecordLocator, val blockHeight : Long, val outputCount : Int ) : Transcodable
+
+/** A bitmap that marks which outputs of a transaction are spent.
+  * The N-th bit(from the least significant bit of the first byte) is set if the N-th output is spent.
+  *
+  * The in-point spending each output is kept under a separate key(the out-point of the output),
+  * so that spending an output of a transaction with many outputs does not rewrite all spending in-points of the transaction.
+  *
+  * @param outputCount The number of outputs of the transaction.
+  * @param bitmap (outputCount + 7) / 8 bytes. Bits for the outputs beyond outputCount are always zero.
   */
-data class TransactionDescriptor( val transactionLocator : FileRecordLocator, val blockHeight : Long, val outputsSpentBy : List<InPoint?> ) : Transcodable
+data class SpentOutputBitmap( val outputCount : Int, val bitmap : Bytes ) : Transcodable {
+  init {
+    assert( bitmap.array.size == byteCount(outputCount) )
+  }
+
+  /** Check if an output is spent.
+    *
+    * @param outputIndex The index of the output to check.
+    * @return true if the output was spent; false otherwise.
+    */
+  fun isSpent(outputIndex : Int) : Boolean {
+    assert( outputIndex >= 0 && outputIndex < outputCount )
+    return (bitmap.array[outputIndex shr 3].toInt() and (1 shl (outputIndex and 7))) != 0
+  }
+
+  /** Get a copy of this bitmap with the spent bit of an output changed.
+    *
+    * @param outputIndex The index of the output to mark.
+    * @param spent true to mark the output spent; false to mark it unspent.
+    * @return The new bitmap.
+    */
+  fun mark(outputIndex : Int, spent : Boolean) : SpentOutputBitmap {
+    assert( outputIndex >= 0 && outputIndex < outputCount )
+    val newBitmap = bitmap.array.copyOf()
+    val mask = 1 shl (outputIndex and 7)
+    val byteIndex = outputIndex shr 3
+    newBitmap[byteIndex] =
+      if (spent)
+        (newBitmap[byteIndex].toInt() or mask).toByte()
+      else
+        (newBitmap[byteIndex].toInt() and mask.inv()).toByte()
+    return SpentOutputBitmap(outputCount, Bytes(newBitmap))
+  }
+
+  /** Get the indexes of all spent outputs.
+    *
+    * @return The list of output indexes whose spent bit is set.
+    */
+  fun spentOutputIndexes() : List<Int> {
+    return (0 until outputCount).filter { isSpent(it) }
+  }
+
+  companion object {
+    fun byteCount(outputCount : Int) : Int = (outputCount + 7) / 8
+
+    /** Create a bitmap whose outputs are all unspent.
+      *
+      * @param outputCount The number of outputs of the transaction.
+      */
+    fun unspent(outputCount : Int) : SpentOutputBitmap {
+      return SpentOutputBitmap(outputCount, Bytes(ByteArray(byteCount(outputCount))))
+    }
+  }
+}
 
 
 /** A descriptor for an orphan block. Used as the value of the (key:block hash, value:orphan block) index.
@@ -87,13 +155,12 @@ data class OrphanTransactionDescriptor(
 
 /**
   * An entry in the transaction pool. Transactions that are not kept in any block on the best blockchain are kept in the transaction pool.
+  * Like TransactionDescriptor, the spent state of outputs is kept in a SpentOutputBitmap stored under a separate key.
   *
   * @param transaction The transaction in the transaction pool.
-  * @param outputsSpentBy List of transaction inputs that spends outputs of the transaction.
-  *                       For each element of the list, it is Some(inPoint) if an output was spent, None otherwise.
+  * @param createdAtNanos The time when the transaction was put into the pool.
   */
 data class TransactionPoolEntry(
   val transaction : Transaction,
-  val outputsSpentBy : List<InPoint?>,
   val createdAtNanos : Long
 ) : Transcodable
\ No newline at end of file
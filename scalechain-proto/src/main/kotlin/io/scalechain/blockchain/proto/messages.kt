@@ -236,3 +236,61 @@ data class SendHeaders(private val dummy : Int = 1) : ProtocolMessage {
   override fun toString() = "SendHeaders()"
 }
 
+
+
+/** SendCmpct ; The sendcmpct message tells the receiving peer that we can handle compact blocks. Specified in BIP 152.
+  * If announce is true, the receiving peer should announce new blocks by sending cmpctblock messages
+  * rather than inv or headers messages.
+  *
+  * Field Size,  Description,  Data type,  Comments
+  * ================================================
+  *          1,     announce,       bool,  true to receive new blocks as cmpctblock messages
+  *          8,      version,   uint64_t,  the version of compact blocks. Only 1 is supported.
+  */
+data class SendCmpct(val announce : Boolean, val version : Long) : ProtocolMessage {
+  override fun toString() = "SendCmpct($announce, ${version}L)"
+}
+
+/** A transaction sent as it is in a cmpctblock message. The coinbase transaction is always prefilled.
+  *
+  * @param index The index of the transaction in the block, differentially encoded since the last prefilled transaction.
+  * @param transaction The transaction.
+  */
+data class PrefilledTransaction(val index : Long, val transaction : Transaction) {
+  override fun toString() = "PrefilledTransaction(${index}L, $transaction)"
+}
+
+/** CmpctBlock ; The cmpctblock message sends a block with transactions replaced by short transaction IDs. Specified in BIP 152.
+  * The receiving peer reconstructs the block from transactions in its transaction pool,
+  * and requests only the transactions it does not have with getblocktxn.
+  *
+  * Field Size,  Description,  Data type,  Comments
+  * ================================================
+  *         80,       header,     header,  the header of the block
+  *          8,        nonce,   uint64_t,  the nonce for calculating short transaction IDs
+  *          ?,     shortids, 6 bytes[],  short transaction IDs of transactions not prefilled
+  *          ?, prefilledtxn, prefilled[], transactions sent as they are
+  */
+data class CmpctBlock(val header : BlockHeader,
+                      val nonce : Long,
+                      val shortIds : List<Long>,
+                      val prefilledTransactions : List<PrefilledTransaction>) : ProtocolMessage {
+  override fun toString() = "CmpctBlock($header, ${nonce}L, listOf(${shortIds.joinToString(",") { "${it}L" }}), listOf(${prefilledTransactions.joinToString(",")}))"
+}
+
+/** GetBlockTxn ; The getblocktxn message requests transactions of a block that the peer could not find while reconstructing a cmpctblock.
+  * Specified in BIP 152.
+  *
+  * @param blockHash The hash of the block.
+  * @param indexes The indexes of the requested transactions in the block, differentially encoded.
+  */
+data class GetBlockTxn(val blockHash : Hash, val indexes : List<Long>) : ProtocolMessage {
+  override fun toString() = "GetBlockTxn($blockHash, listOf(${indexes.joinToString(",") { "${it}L" }}))"
+}
+
+/** BlockTxn ; The blocktxn message responds to a getblocktxn message with the requested transactions in the order of the requested indexes.
+  * Specified in BIP 152.
+  */
+data class BlockTxn(val blockHash : Hash, val transactions : List<Transaction>) : ProtocolMessage {
+  override fun toString() = "BlockTxn($blockHash, listOf(${transactions.joinToString(",")}))"
+}
@@ -120,3 +120,35 @@ data class WalletOutput(
     // The transaction output
     val transactionOutput : TransactionOutput
 ) : Transcodable
+
+
+/** The position of a wallet transaction in the list of wallet transactions sorted by recency.
+  * Used as the key of the wallet transaction indexes, so that listtransactions can iterate the most recent transactions first.
+  *
+  * @param inBlock true if the transaction is in a block on the best blockchain; false if it is in the mempool.
+  * @param time The height of the block if the transaction is in a block; the time when the transaction was added to the wallet otherwise.
+  * @param transactionIndex The index of the transaction in the block. 0 for a transaction in the mempool.
+  * @param transactionHash The hash of the transaction.
+  */
+data class WalletTransactionOrder(val inBlock : Boolean, val time : Long, val transactionIndex : Int, val transactionHash : Hash) : Transcodable
+
+/** Values of a wallet transaction cached on the wallet transaction indexes.
+  *
+  * @param fee The fee paid by the transaction in satoshi. null if it is not calculated yet.
+  */
+data class WalletTransactionSummary(val fee : Long?) : Transcodable
+
+/** The sum of amounts of outputs owned by an account or an output ownership.
+  *
+  * @param received The sum of amounts of all outputs, whether they are spent or not.
+  * @param unspent The sum of amounts of outputs that are not spent yet.
+  */
+data class WalletBalance(val received : Long, val unspent : Long) : Transcodable {
+  operator fun plus(other : WalletBalance) = WalletBalance(received + other.received, unspent + other.unspent)
+  operator fun minus(other : WalletBalance) = WalletBalance(received - other.received, unspent - other.unspent)
+  fun isZero() = received == 0L && unspent == 0L
+
+  companion object {
+    val ZERO = WalletBalance(0L, 0L)
+  }
+}
@@ -1,6 +1,8 @@
 package io.scalechain.blockchain.storage
 
 import io.scalechain.blockchain.proto.*
+import io.scalechain.blockchain.proto.codec.BlockCodec
+import io.scalechain.blockchain.proto.codec.TransactionCodec
 import io.scalechain.blockchain.script.*
 import io.scalechain.blockchain.storage.index.*
 import org.slf4j.LoggerFactory
@@ -24,6 +26,35 @@ interface BlockStorage : BlockDatabase, BlockIndex, TransactionDescriptorIndex,
     return getBlockInfo(db, hash)?.nextBlockHash
   }
 
+  /** Read a block with the BlockInfo the caller already has, without reading the key-value database.
+    * Safe to call from multiple threads, while a transaction on the key-value database is in progress on another thread.
+    *
+    * @param blockInfo The BlockInfo of the block.
+    * @return The block, or null if the block is not stored.
+    */
+  fun readBlock(blockInfo : BlockInfo) : Block?
+
+  /** Get the serialized bytes of a block.
+    * Storages that keep serialized blocks override this method to return the bytes without decoding the block.
+    *
+    * @param blockHash The hash of the block.
+    * @return The serialized block, or null if the block does not exist.
+    */
+  fun getRawBlock(db : KeyValueDatabase, blockHash : Hash) : ByteArray? {
+    val blockOption = getBlock(db, blockHash)
+    return if (blockOption == null) null else BlockCodec.encode(blockOption.second)
+  }
+
+  /** Get the serialized bytes of a transaction either in a block on the best blockchain or in the transaction pool.
+    *
+    * @param transactionHash The hash of the transaction.
+    * @return The serialized transaction, or null if the transaction does not exist.
+    */
+  fun getRawTransaction(db : KeyValueDatabase, transactionHash : Hash) : ByteArray? {
+    val transactionOption = getTransaction(db, transactionHash)
+    return if (transactionOption == null) null else TransactionCodec.encode(transactionOption)
+  }
+
   fun putBlock(db : KeyValueDatabase, block : Block) : Unit {
     putBlock(db, block.header.hash(), block)
   }
@@ -37,9 +68,14 @@ interface BlockStorage : BlockDatabase, BlockIndex, TransactionDescriptorIndex,
     return blockInfo?.blockLocatorOption != null
   }
 
+  /** Check if a transaction exists either in a block on the best blockchain or in the transaction pool.
+    * Only keys are probed. The transaction is not read from the record file nor decoded.
+    *
+    * @param transactionHash The hash of the transaction to check.
+    * @return true if the transaction exists; false otherwise.
+    */
   fun hasTransaction(db : KeyValueDatabase, transactionHash : Hash) : Boolean {
-    // TODO : Optimize : We don't need to deserialize a transaction to see if it exists on our database.
-    return getTransaction(db, transactionHash) != null
+    return hasTransactionDescriptor(db, transactionHash) || hasTransactionInPool(db, transactionHash)
   }
 
   fun hasBlockHeader(db : KeyValueDatabase, blockHash : Hash) : Boolean {
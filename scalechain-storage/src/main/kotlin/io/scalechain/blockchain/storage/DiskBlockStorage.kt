@@ -113,7 +113,7 @@ class DiskBlockStorage(private val db : KeyValueDatabase, private val directoryP
           transactionCount = block.transactions.size,
           blockLocatorOption = appendResult.blockLocator
         )
-        putBlockInfo(db, blockHash, newBlockInfo)
+        putBlockInfo(db, blockHash, newBlockInfo, blockInfo)
         val fileSize = blockRecordStorage.files[appendResult.headerLocator.fileIndex].size()
         updateFileInfo(appendResult.headerLocator, fileSize, newBlockInfo.height, block.header.timestamp)
         //logger.info("The block locator was updated. block hash : {}", blockHash)
@@ -201,6 +201,37 @@ class DiskBlockStorage(private val db : KeyValueDatabase, private val directoryP
     }
   }
 
+  override fun readBlock(blockInfo : BlockInfo) : Block? {
+    val blockLocator = blockInfo.blockLocatorOption
+    return if (blockLocator == null) null else blockRecordStorage.readRecord(BlockCodec, blockLocator)
+  }
+
+  /** Read the serialized block from the record file without decoding it.
+    *
+    * @param blockHash The hash of the block.
+    * @return The serialized block, or null if the block does not exist.
+    */
+  override fun getRawBlock(db : KeyValueDatabase, blockHash : Hash) : ByteArray? {
+    val blockLocator = getBlockInfo(db, blockHash)?.blockLocatorOption
+    return if (blockLocator == null) null else blockRecordStorage.readRecordBytes(blockLocator)
+  }
+
+  /** Read the serialized transaction from the record file without decoding it.
+    * A transaction in the transaction pool is encoded from the pool.
+    *
+    * @param transactionHash The hash of the transaction.
+    * @return The serialized transaction, or null if the transaction does not exist.
+    */
+  override fun getRawTransaction(db : KeyValueDatabase, transactionHash : Hash) : ByteArray? {
+    val txDescriptorOption = getTransactionDescriptor(db, transactionHash)
+    if (txDescriptorOption != null) {
+      return blockRecordStorage.readRecordBytes(txDescriptorOption.transactionLocator)
+    } else {
+      val poolTransaction = getTransactionFromPool(db, transactionHash)?.transaction
+      return if (poolTransaction == null) null else TransactionCodec.encode(poolTransaction)
+    }
+  }
+
   override fun close() : Unit {
 
     blockRecordStorage.close()
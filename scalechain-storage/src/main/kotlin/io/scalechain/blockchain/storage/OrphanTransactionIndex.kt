@@ -38,6 +38,15 @@ interface OrphanTransactionIndex {
     return db.getObject(HashCodec, OrphanTransactionDescriptorCodec, DB.ORPHAN_TRANSACTION, hash)
   }
 
+  /** Check if an orphan transaction exists without decoding it.
+    *
+    * @param hash The hash of the orphan transaction.
+    * @return true if the orphan transaction exists; false otherwise.
+    */
+  fun hasOrphanTransaction(db : KeyValueDatabase, hash : Hash) : Boolean {
+    return db.existsObject(HashCodec, DB.ORPHAN_TRANSACTION, hash)
+  }
+
   /** Delete a specific orphan transaction.
     *
     * @param hash The hash of the orphan transaction.
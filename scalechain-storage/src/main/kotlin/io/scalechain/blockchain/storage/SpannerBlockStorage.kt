@@ -76,7 +76,7 @@ class SpannerBlockStorage(private val db : KeyValueDatabase, private val instanc
         // block locator - Need to put a dummy so that BlockStorage.hasBlock returns true.
         putBlockInfo(db, blockHash, blockInfo.copy(
           blockLocatorOption = dummyLocator
-        ))
+        ), blockInfo)
 
         //logger.info("The block data was updated. block hash : {}", blockHash)
       } else {
@@ -145,6 +145,16 @@ class SpannerBlockStorage(private val db : KeyValueDatabase, private val instanc
     }
   }
 
+  /** Check if a transaction exists either in the transaction table or in the transaction pool.
+    * The transaction is not decoded.
+    *
+    * @param transactionHash The hash of the transaction to check.
+    * @return true if the transaction exists; false otherwise.
+    */
+  override fun hasTransaction(db : KeyValueDatabase, transactionHash : Hash) : Boolean {
+    return transactionTable.exists(transactionHash.value.array) || hasTransactionInPool(db, transactionHash)
+  }
+
   /** Get a block searching by the header hash.
    *
    * Used by : getblock RPC.
@@ -152,6 +162,11 @@ class SpannerBlockStorage(private val db : KeyValueDatabase, private val instanc
    * @param blockHash The header hash of the block to search.
    * @return The searched block.
    */
+  override fun readBlock(blockInfo : BlockInfo) : Block? {
+    val serializedBlockOption = blockTable.get(blockInfo.blockHeader.hash().value.array)
+    return if (serializedBlockOption == null) null else BlockCodec.decode(serializedBlockOption)!!
+  }
+
   override fun getBlock(db : KeyValueDatabase, blockHash : Hash) : Pair<BlockInfo, Block>? {
     val blockInfoOption = getBlockInfo(db, blockHash)
     if (blockInfoOption != null) {
@@ -169,6 +184,20 @@ class SpannerBlockStorage(private val db : KeyValueDatabase, private val instanc
     }
   }
 
+  override fun getRawBlock(db : KeyValueDatabase, blockHash : Hash) : ByteArray? {
+    return if (getBlockInfo(db, blockHash) == null) null else blockTable.get(blockHash.value.array)
+  }
+
+  override fun getRawTransaction(db : KeyValueDatabase, transactionHash : Hash) : ByteArray? {
+    val serializedTransactionOption = transactionTable.get(transactionHash.value.array)
+    if (serializedTransactionOption != null) {
+      return serializedTransactionOption
+    } else {
+      val poolTransaction = getTransactionFromPool(db, transactionHash)?.transaction
+      return if (poolTransaction == null) null else TransactionCodec.encode(poolTransaction)
+    }
+  }
+
   override fun close() : Unit {
     blockTable.close()
     transactionTable.close()
@@ -7,6 +7,12 @@ import org.rocksdb.RocksDB
   */
 object Storage {
   var isInitialized : Boolean = false
+
+  /** If true, write paths read the current records to check the records being written against them.
+    * This costs a random read for each write, so it is on only when JVM assertions are enabled, as the checks are assertions.
+    */
+  var validateWrites : Boolean = Storage::class.java.desiredAssertionStatus()
+
   fun initialized() = isInitialized
   fun initialize() : Unit {
     RocksDB.loadLibrary()
@@ -2,6 +2,7 @@ package io.scalechain.blockchain.storage.index
 
 import io.scalechain.blockchain.proto.*
 import io.scalechain.blockchain.proto.codec.*
+import io.scalechain.blockchain.storage.Storage
 import io.scalechain.util.ByteArrayExt
 
 object DB {
@@ -22,6 +23,22 @@ object DB {
   // A temporary transaction time index for checking transaction attach-ability while creating blocks.
   val TEMP_TRANSACTION_TIME = 'z'.toByte()
 
+  // The bitmap of spent outputs of transactions in blocks on the best blockchain.
+  val TRANSACTION_SPENT_OUTPUTS = 'u'.toByte()
+  // The in-point spending an output of a transaction in blocks on the best blockchain.
+  val TRANSACTION_OUTPUT_SPENT_BY = 's'.toByte()
+  // The bitmap of spent outputs of transactions in the disk-pool.
+  val TRANSACTION_POOL_SPENT_OUTPUTS = 'p'.toByte()
+  // The in-point spending an output of a transaction in the disk-pool.
+  val TRANSACTION_POOL_OUTPUT_SPENT_BY = 'q'.toByte()
+  // The bitmap of spent outputs of transactions in the temporary transaction pool.
+  val TEMP_TRANSACTION_POOL_SPENT_OUTPUTS = 'w'.toByte()
+  // The in-point spending an output of a transaction in the temporary transaction pool.
+  val TEMP_TRANSACTION_POOL_OUTPUT_SPENT_BY = 'x'.toByte()
+
+  // The version of the on-disk format of the index.
+  val SCHEMA_VERSION = 'v'.toByte()
+
   val ORPHAN_BLOCK = '1'.toByte()
   val ORPHAN_TRANSACTION = '2'.toByte()
   val ORPHAN_BLOCKS_BY_PARENT = '3'.toByte()
@@ -40,6 +57,15 @@ interface BlockDatabase {
     return db.getObject(HashCodec, BlockInfoCodec, DB.BLOCK_INFO, hash)
   }
 
+  /** Iterate all (block hash, block info) pairs in the order of the block hash.
+    * The caller should close the iterator.
+    *
+    * @return The iterator of (block hash, block info) pairs.
+    */
+  fun seekBlockInfos(db : KeyValueDatabase) : ClosableIterator<Pair<Hash, BlockInfo>> {
+    return db.seekObject(HashCodec, BlockInfoCodec, DB.BLOCK_INFO)
+  }
+
   /** Get the block hash at the given height on the best blockchain.
     *
     * @param height The height of the block.
@@ -54,7 +80,7 @@ interface BlockDatabase {
     * @param height The height of the block hash. The block should be on the best blockchain.
     * @param hash The hash of the block.
     */
-  fun putBlockHashByHeight(db : KeyValueDatabase, height : Long, hash : Hash) : Unit {
+  fun putBlockHashByHeight(db : KeyValueWriter, height : Long, hash : Hash) : Unit {
     db.putObject(BlockHeightCodec, HashCodec, DB.BLOCK_HEIGHT, BlockHeight(height), hash)
   }
 
@@ -71,21 +97,36 @@ interface BlockDatabase {
     *
     * @param hash The block to update the next block hash.
     * @param nextBlockHash Some(nextBlockHash) if the block is on the best blockchain, None otherwise.
+    * @param writer The writer of the block info. Either the database or a write batch on it.
     */
-  fun updateNextBlockHash(db : KeyValueDatabase, hash : Hash, nextBlockHash : Hash?) {
+  fun updateNextBlockHash(db : KeyValueDatabase, hash : Hash, nextBlockHash : Hash?, writer : KeyValueWriter = db) {
     val blockInfoOption : BlockInfo? = getBlockInfo(db, hash)
     assert(blockInfoOption != null)
     putBlockInfo(db, hash, blockInfoOption!!.copy(
       nextBlockHash = nextBlockHash
-    ))
+    ), blockInfoOption, writer)
   }
 
   fun getBlockHeight(db : KeyValueDatabase, hash : Hash) : Long? {
     return getBlockInfo(db, hash)?.height
   }
 
-  fun putBlockInfo(db : KeyValueDatabase, hash : Hash, info : BlockInfo) : Unit {
-    val blockInfoOption = getBlockInfo(db, hash)
+  /** Put a block info.
+    *
+    * The block info is written without reading the current one from the database.
+    * The new block info is checked against the current one only if the caller passes it as previousInfo,
+    * or if Storage.validateWrites is on, in which case the current one is read.
+    *
+    * @param hash The hash of the block.
+    * @param info The block info to put.
+    * @param previousInfo The current block info the caller already read, if any.
+    * @param writer The writer of the block info. Either the database or a write batch on it.
+    */
+  fun putBlockInfo(db : KeyValueDatabase, hash : Hash, info : BlockInfo, previousInfo : BlockInfo? = null, writer : KeyValueWriter = db) : Unit {
+    val blockInfoOption =
+      if (previousInfo != null) previousInfo
+      else if (Storage.validateWrites) getBlockInfo(db, hash)
+      else null
     if (blockInfoOption != null) {
       val currentBlockInfo = blockInfoOption
       // hit an assertion : put a block info with different height
@@ -102,10 +143,10 @@ interface BlockDatabase {
       assert(currentBlockInfo.blockHeader == info.blockHeader)
     }
 
-    db.putObject(HashCodec, BlockInfoCodec, DB.BLOCK_INFO, hash, info)
+    writer.putObject(HashCodec, BlockInfoCodec, DB.BLOCK_INFO, hash, info)
   }
 
-  fun putBestBlockHash(db : KeyValueDatabase, hash : Hash) : Unit {
+  fun putBestBlockHash(db : KeyValueWriter, hash : Hash) : Unit {
     db.putObject(HashCodec, ByteArrayExt.from(DB.BEST_BLOCK_HASH), hash)
   }
 
@@ -123,7 +164,7 @@ interface BlockDatabase {
 interface BlockDatabaseForRecordStorage : BlockDatabase {
   fun putBlockFileInfo(db : KeyValueDatabase, fileNumber : FileNumber, blockFileInfo : BlockFileInfo) : Unit {
     // Input validation for the block file info.
-    val currentInfoOption = getBlockFileInfo(db, fileNumber)
+    val currentInfoOption = if (Storage.validateWrites) getBlockFileInfo(db, fileNumber) else null
     if (currentInfoOption != null) {
       val currentInfo = currentInfoOption
       // Can't put the same block info twice.
@@ -1,22 +1,214 @@
 package io.scalechain.blockchain.storage.index
 
+import io.netty.buffer.Unpooled
+import io.scalechain.blockchain.ErrorCode
+import io.scalechain.blockchain.StorageException
 import io.scalechain.blockchain.proto.CStringPrefixed
 import io.scalechain.blockchain.proto.codec.Codec
 import io.scalechain.blockchain.proto.codec.primitive.CStringPrefixedCodec
 import io.scalechain.blockchain.proto.codec.primitive.Codecs
 import java.io.Closeable
 
-import java.util.Arrays
 
 
 interface ClosableIterator<T> : Iterator<T>, Closeable {
   override fun close() : Unit
 }
 
+/**
+  * Iterates (key, value) pairs of an iterator while keys start with a prefix.
+  *
+  * Prefixes are compared in place without copying keys.
+  * The underlying iterator is closed as soon as a key without the prefix is found, not to hold it until the caller closes this iterator.
+  *
+  * @param iterator The iterator positioned at the first key to check.
+  * @param prefix The prefix of keys to iterate.
+  */
+class PrefixIterator(private val iterator : ClosableIterator<Pair<ByteArray,ByteArray>>, private val prefix : ByteArray) : ClosableIterator<Pair<ByteArray,ByteArray>> {
+  private var elementToReturn : Pair<ByteArray,ByteArray>? = null
+  private var isFinished = false
+
+  override fun next() : Pair<ByteArray,ByteArray> {
+    if (!hasNext()) {
+      throw StorageException(ErrorCode.NoMoreKeys)
+    }
+    val element = elementToReturn!!
+    elementToReturn = null
+    return element
+  }
+
+  override fun hasNext() : Boolean {
+    if (elementToReturn != null) {
+      return true
+    }
+    if (isFinished) {
+      return false
+    }
+    if (iterator.hasNext()) {
+      val element = iterator.next()
+      if (hasPrefix(element.first, prefix)) {
+        elementToReturn = element
+        return true
+      }
+    }
+    // We passed the last key with the prefix.
+    finish()
+    return false
+  }
+
+  private fun finish() : Unit {
+    if (!isFinished) {
+      isFinished = true
+      iterator.close()
+    }
+  }
+
+  override fun close() : Unit = finish()
+
+  companion object {
+    /** Check if a key starts with a prefix without copying the key.
+      */
+    fun hasPrefix(key : ByteArray, prefix : ByteArray) : Boolean {
+      if (key.size < prefix.size) {
+        return false
+      }
+      for (i in 0 until prefix.size) {
+        if (key[i] != prefix[i]) {
+          return false
+        }
+      }
+      return true
+    }
+  }
+}
+
+/**
+  * A read-only, point-in-time view of a KeyValueDatabase. See KeyValueDatabase.snapshot.
+  */
+interface KeyValueSnapshot : KeyValueDatabase, Closeable {
+  override fun put(key : ByteArray, value : ByteArray ) : Unit {
+    // A snapshot is read-only.
+    throw AssertionError()
+  }
+
+  override fun del(key : ByteArray) : Unit {
+    // A snapshot is read-only.
+    throw AssertionError()
+  }
+
+  override fun merge(key : ByteArray, operand : ByteArray) : Unit {
+    // A snapshot is read-only.
+    throw AssertionError()
+  }
+
+  override fun transacting() : TransactingKeyValueDatabase {
+    // A snapshot is read-only.
+    throw AssertionError()
+  }
+
+  override fun writeBatch() : KeyValueWriteBatch {
+    // A snapshot is read-only.
+    throw AssertionError()
+  }
+
+  override fun snapshot() : KeyValueSnapshot {
+    // A snapshot never changes. Share it, so that closing the returned view does not release this snapshot.
+    return LiveKeyValueSnapshot(this)
+  }
+
+  /** Release the snapshot. */
+  override fun close() : Unit
+}
+
+/**
+  * A read-only view on a database that does not support snapshots. Reads see the latest data of the database.
+  */
+class LiveKeyValueSnapshot(private val db : KeyValueDatabase) : KeyValueSnapshot {
+  override fun seek(keyOption : ByteArray? ) : ClosableIterator<Pair<ByteArray, ByteArray>> = db.seek(keyOption)
+  override fun seekPrefix(prefix : ByteArray, startKeyOption : ByteArray?) : ClosableIterator<Pair<ByteArray, ByteArray>> = db.seekPrefix(prefix, startKeyOption)
+  override fun get(key : ByteArray ) : ByteArray? = db.get(key)
+  override fun exists(key : ByteArray ) : Boolean = db.exists(key)
+  override fun close() : Unit {
+    // Nothing to release. The database is not closed.
+  }
+}
+
+/**
+  * Writes (key, value) pairs. Implemented by KeyValueDatabase and KeyValueWriteBatch,
+  * so that index updates can be written either to a database directly or to a write batch.
+  */
+interface KeyValueWriter {
+  fun put(key : ByteArray, value : ByteArray ) : Unit
+  fun del(key : ByteArray) : Unit
+
+  /** Merge an operand into the value of a key without reading the value.
+    * The value becomes the current value, MERGE_DELIMITER and the operand, or just the operand if the key does not exist.
+    * This is the semantics of the string append merge operator of RocksDB, which folds operands lazily on reads and compactions.
+    *
+    * @param key The key to merge the operand into.
+    * @param operand The bytes to append to the value.
+    */
+  fun merge(key : ByteArray, operand : ByteArray) : Unit
+
+  private fun prefixedKey(prefix: Byte, key:ByteArray) = ByteArray(1, {prefix}) + key
+
+  fun<V> putObject(valueCodec : Codec<V>, rawKey : ByteArray, value : V) : Unit {
+    val rawValue = valueCodec.encode(value)
+
+    put(rawKey, rawValue)
+  }
+
+  fun<K,V> putObject(keyCodec : Codec<K>, valueCodec : Codec<V>, prefix : Byte, key : K, value : V) : Unit {
+    val rawKey = prefixedKey(prefix, keyCodec.encode(key))
+
+    putObject(valueCodec, rawKey, value)
+  }
+
+  fun<K,V> putPrefixedObject(keyCodec : Codec<K>, valueCodec : Codec<V>, prefix : Byte, keyPrefix : String, key : K, value : V) : Unit {
+    val rawKey = prefixedKey(prefix, CStringPrefixedCodec<K>(keyCodec).encode(CStringPrefixed(keyPrefix, key)) )
+
+    putObject(valueCodec, rawKey, value)
+  }
+
+
+  fun<K> delObject(keyCodec : Codec<K>, prefix : Byte, key : K) : Unit {
+    val rawKey = prefixedKey(prefix, keyCodec.encode(key))
+    del(rawKey)
+  }
+
+  fun<K> delPrefixedObject(keyCodec : Codec<K>, prefix : Byte, keyPrefix : String, key : K) : Unit {
+    delPrefixedObject( keyCodec, prefix, CStringPrefixed(keyPrefix, key))
+  }
+
+  fun<K> delPrefixedObject(keyCodec : Codec<K>, prefix : Byte, key : CStringPrefixed<K>) : Unit {
+    val rawKey = prefixedKey(prefix, CStringPrefixedCodec<K>(keyCodec).encode(key) )
+    del(rawKey)
+  }
+
+  fun<K> mergeObject(keyCodec : Codec<K>, prefix : Byte, key : K, operand : ByteArray) : Unit {
+    val rawKey = prefixedKey(prefix, keyCodec.encode(key))
+    merge(rawKey, operand)
+  }
+
+  companion object {
+    // The byte between a value and each operand merged into it. The default delimiter of the string append operator of RocksDB.
+    val MERGE_DELIMITER = ','.toByte()
+
+    /** Get the value after merging an operand into a value.
+      *
+      * @param value The current value, or null if the key does not exist.
+      * @param operand The operand to merge.
+      */
+    fun mergedValue(value : ByteArray?, operand : ByteArray) : ByteArray {
+      return if (value == null) operand else value + MERGE_DELIMITER + operand
+    }
+  }
+}
+
 /**
   * Created by kangmo on 3/11/16.
   */
-interface KeyValueDatabase {
+interface KeyValueDatabase : KeyValueWriter {
 
   /** Seek a key greater than or equal to the given key.
     * Return an iterator which iterates each (key, value) pair from the seek position.
@@ -25,9 +217,41 @@ interface KeyValueDatabase {
     * @return An Iterator to iterate (key, value) pairs.
     */
   fun seek(keyOption : ByteArray? ) : ClosableIterator<Pair<ByteArray, ByteArray>>
+
+  /** Iterate (key, value) pairs whose keys start with the given prefix.
+    * The iteration stops at the first key without the prefix, and resources of the iteration are released as soon as it stops.
+    * Implementations can override this method to stop the iteration within the storage engine.
+    *
+    * @param prefix The prefix of keys to iterate.
+    * @param startKeyOption Some(key) to start from a key greater than or equal to the key. The key should start with the prefix.
+    *                       None to start from the first key with the prefix.
+    * @return An Iterator to iterate (key, value) pairs.
+    */
+  fun seekPrefix(prefix : ByteArray, startKeyOption : ByteArray? = null) : ClosableIterator<Pair<ByteArray, ByteArray>> {
+    return PrefixIterator(seek(startKeyOption ?: prefix), prefix)
+  }
+
   fun get(key : ByteArray ) : ByteArray?
-  fun put(key : ByteArray, value : ByteArray ) : Unit
-  fun del(key : ByteArray) : Unit
+
+  /** Check if a key exists without decoding the value.
+    * Implementations can override this method to avoid reading the value.
+    *
+    * @param key The key to check.
+    * @return true if the key exists; false otherwise.
+    */
+  fun exists(key : ByteArray ) : Boolean = get(key) != null
+  override fun put(key : ByteArray, value : ByteArray ) : Unit
+  override fun del(key : ByteArray) : Unit
+
+  /** Merge an operand into the value of a key. See KeyValueWriter.merge.
+    *
+    * The default implementation reads the value and puts the merged value, so it does not save the read.
+    * Implementations should override this method to merge natively, or at least atomically.
+    */
+  override fun merge(key : ByteArray, operand : ByteArray) : Unit {
+    put(key, KeyValueWriter.mergedValue(get(key), operand))
+  }
+
   fun close() : Unit
 
   /**
@@ -35,6 +259,25 @@ interface KeyValueDatabase {
    */
   fun transacting() : TransactingKeyValueDatabase
 
+  /** Get a read-only view of the database at this point in time.
+    * Keys put or deleted after the snapshot was taken are not visible on the snapshot,
+    * and reading the snapshot neither takes nor waits for any lock of writers.
+    *
+    * The snapshot should be closed to release resources held for it. Closing it does not close this database.
+    *
+    * The default implementation is for databases that do not support snapshots.
+    * It returns a read-only view on the live database without the point-in-time guarantee.
+    */
+  fun snapshot() : KeyValueSnapshot = LiveKeyValueSnapshot(this)
+
+  /** Get a new write batch, which writes puts and deletes to this database at once.
+    * Changes on the write batch are not visible to readers until the batch is written.
+    *
+    * The default implementation keeps changes in memory, and writes them with put and del.
+    * Implementations should override this method to write a batch natively.
+    */
+  fun writeBatch() : KeyValueWriteBatch = InMemoryWriteBatch(this)
+
   private fun prefixedKey(prefix: Byte, key:ByteArray) = ByteArray(1, {prefix}) + key
   private fun prefixedKey(prefix: ByteArray, key:ByteArray) = prefix + key
 
@@ -55,6 +298,10 @@ interface KeyValueDatabase {
     return seekObjectInternal(keyCodec, valueCodec, ByteArray(1, {prefix}), key)
   }
 
+  fun<K,V> seekObject(keyCodec : Codec<K>, valueCodec : Codec<V>, prefix: Byte) : ClosableIterator<Pair<K,V>> {
+    return seekObjectInternal(keyCodec, valueCodec, ByteArray(1, {prefix}), null)
+  }
+
   fun<K,V> seekPrefixedObject(keyCodec : Codec<K>, valueCodec : Codec<V>, prefix: Byte, keyPrefix:String) : ClosableIterator<Pair<CStringPrefixed<K>, V>> {
     val key = prefixedKey(prefix, Codecs.CString.encode(keyPrefix))
 
@@ -68,77 +315,30 @@ interface KeyValueDatabase {
 
 
   private fun<K,V> seekObjectInternal(keyCodec : Codec<K>, valueCodec : Codec<V>, prefix: ByteArray, keyOption : K?) : ClosableIterator<Pair<K,V>> {
-    /** We should stop the iteration if the prefix of the key changes.
-      * So, hasNext first gets the next key and checks if the prefix remains unchanged.
-      * next will return the element we got from hasNext.
-      *
-      * If the prefix is changed, we stop the iteration.
+    /** Decode keys and values of (key, value) pairs whose keys start with the prefix.
+      * seekPrefix stops the iteration if the prefix of the key changes.
       *
-      * @param iterator
+      * @param iterator The iterator of raw (key, value) pairs with the prefix.
       */
-    class PrefetchingIterator(private val iterator:ClosableIterator<Pair<ByteArray,ByteArray>>) : ClosableIterator<Pair<K, V>> {
-      var elementToReturn : Pair<ByteArray,ByteArray>? = null
-
-      // BUGBUG : Optimize : Can we implement this method without toByteArray?
+    class DecodingIterator(private val iterator:ClosableIterator<Pair<ByteArray,ByteArray>>) : ClosableIterator<Pair<K, V>> {
       override fun next() : Pair<K, V> {
-        assert(elementToReturn != null)
-
-        val rawKey = elementToReturn!!.first
-        val rawValue = elementToReturn!!.second
-        elementToReturn = null
-
-        val readPrefix = rawKey.take(prefix.size).toByteArray()
-        // hasNext should return false if the prefix of the next key does not match the prefix.
-        assert( Arrays.equals(readPrefix,prefix) )
-        // We need to drop the prefix byte for the rawKey.
-        return Pair(keyCodec.decode(rawKey.drop(1).toByteArray())!!, valueCodec.decode(rawValue)!!)
+        val (rawKey, rawValue) = iterator.next()
+        // We need to drop the prefix byte for the rawKey. Decode from a view on the key without copying it.
+        return Pair(keyCodec.decode(Unpooled.wrappedBuffer(rawKey, 1, rawKey.size - 1))!!, valueCodec.decode(rawValue)!!)
       }
 
-      /** Prefetch next key, and check if the prefix matches with the one privided by the first parameter of the seekObject method.
-        *
-        * @return true if the next key matches the prefix.
-        */
-      override fun hasNext() : Boolean {
-        // We already have a prefetched key.
-        if (elementToReturn != null) {
-          val rawKey = elementToReturn!!.first
-          val readPrefix = rawKey.take(prefix.size).toByteArray()
-          if(Arrays.equals(readPrefix, prefix)) {
-            return true
-          } else {
-            return false
-          }
-        } else {
-          // We don't have a prefetched key. Prefetch one.
-          if ( iterator.hasNext() ) {
-            val (rawKey, rawValue) = iterator.next()
-            assert(rawKey.size > 0)
-            val readPrefix = rawKey.take(prefix.size).toByteArray()
-            elementToReturn = Pair(rawKey, rawValue)
-
-            // Continue the iteration only if the prefix remains unchanged.
-            if(Arrays.equals(readPrefix, prefix)) {
-              return true
-            } else {
-              return false
-            }
-          } else {
-            return false
-          }
-        }
-      }
+      override fun hasNext() : Boolean = iterator.hasNext()
+
       override fun close() = iterator.close()
     }
 
-    val seekKey =
+    val startKeyOption =
       if (keyOption != null)
         prefixedKey(prefix, keyCodec.encode(keyOption))
       else
-        prefix
-
-    val rawIterator = seek(seekKey)
+        null
 
-    return PrefetchingIterator(rawIterator)
+    return DecodingIterator(seekPrefix(prefix, startKeyOption))
   }
 
 
@@ -162,37 +362,13 @@ interface KeyValueDatabase {
     return getObject(valueCodec, rawKey)
   }
 
-  fun<V> putObject(valueCodec : Codec<V>, rawKey : ByteArray, value : V) : Unit {
-    val rawValue = valueCodec.encode(value)
-
-    put(rawKey, rawValue)
-  }
-
-  fun<K,V> putObject(keyCodec : Codec<K>, valueCodec : Codec<V>, prefix : Byte, key : K, value : V) : Unit {
+  fun<K> existsObject(keyCodec : Codec<K>, prefix : Byte, key : K) : Boolean {
     val rawKey = prefixedKey(prefix, keyCodec.encode(key))
-
-    putObject(valueCodec, rawKey, value)
+    return exists(rawKey)
   }
 
-  fun<K,V> putPrefixedObject(keyCodec : Codec<K>, valueCodec : Codec<V>, prefix : Byte, keyPrefix : String, key : K, value : V) : Unit {
+  fun<K> existsPrefixedObject(keyCodec : Codec<K>, prefix : Byte, keyPrefix : String, key : K) : Boolean {
     val rawKey = prefixedKey(prefix, CStringPrefixedCodec<K>(keyCodec).encode(CStringPrefixed(keyPrefix, key)) )
-
-    putObject(valueCodec, rawKey, value)
-  }
-
-
-  fun<K> delObject(keyCodec : Codec<K>, prefix : Byte, key : K) : Unit {
-    val rawKey = prefixedKey(prefix, keyCodec.encode(key))
-    del(rawKey)
-  }
-
-  fun<K> delPrefixedObject(keyCodec : Codec<K>, prefix : Byte, keyPrefix : String, key : K) : Unit {
-    delPrefixedObject( keyCodec, prefix, CStringPrefixed(keyPrefix, key))
-  }
-
-  fun<K> delPrefixedObject(keyCodec : Codec<K>, prefix : Byte, key : CStringPrefixed<K>) : Unit {
-    val rawKey = prefixedKey(prefix, CStringPrefixedCodec<K>(keyCodec).encode(key) )
-    del(rawKey)
+    return exists(rawKey)
   }
 }
-
@@ -0,0 +1,90 @@
+package io.scalechain.blockchain.storage.index
+
+import io.scalechain.util.Bytes
+import java.io.Closeable
+
+/**
+  * A batch of puts, deletes and merges written to a KeyValueDatabase at once. Get one with KeyValueDatabase.writeBatch.
+  *
+  * Changes on the batch are not visible until write is called, even to the thread that made them.
+  * So a function that reads keys it has changed should read them before putting them into the batch.
+  *
+  * A write batch is not thread-safe.
+  *
+  * A write batch may hold native resources, so close it after it is written, usually with use :
+  *   db.writeBatch().use { batch -> ... ; batch.write() }
+  * Changes not written are discarded when the batch is closed.
+  */
+interface KeyValueWriteBatch : KeyValueWriter, Closeable {
+  /** The number of changes in the batch. */
+  fun size() : Int
+
+  /** Write all changes in the batch to the database, and clear the batch.
+    */
+  fun write() : Unit
+
+  /** Discard changes not written, and release resources of the batch. The batch can't be used after it is closed.
+    */
+  override fun close() : Unit
+}
+
+/**
+  * A write batch that keeps changes in a map from the key to the value, or null for a deleted key.
+  * Only the last change of a key is written.
+  *
+  * Operands merged into a key that was put or deleted in the batch are merged into the value in the batch.
+  * Operands merged into other keys are kept in merges, and merged into the database after the changes are written.
+  *
+  * @param db The database to write changes.
+  */
+open class InMemoryWriteBatch(private val db : KeyValueDatabase) : KeyValueWriteBatch {
+  // key -> value, or null if the key is deleted. Kept in the order of the first change of each key.
+  protected val changes = LinkedHashMap<Bytes, ByteArray?>()
+  // key -> operands to merge into the value in the database, in the order they were merged. No key is in both changes and merges.
+  protected val merges = LinkedHashMap<Bytes, MutableList<ByteArray>>()
+
+  override fun put(key : ByteArray, value : ByteArray) : Unit {
+    val batchKey = Bytes(key)
+    merges.remove(batchKey)
+    changes.put(batchKey, value)
+  }
+
+  override fun del(key : ByteArray) : Unit {
+    val batchKey = Bytes(key)
+    merges.remove(batchKey)
+    changes.put(batchKey, null)
+  }
+
+  override fun merge(key : ByteArray, operand : ByteArray) : Unit {
+    val batchKey = Bytes(key)
+    if (changes.containsKey(batchKey)) {
+      changes.put(batchKey, KeyValueWriter.mergedValue(changes.get(batchKey), operand))
+    } else {
+      merges.getOrPut(batchKey) { arrayListOf<ByteArray>() }.add(operand)
+    }
+  }
+
+  override fun size() : Int = changes.size + merges.size
+
+  override fun write() : Unit {
+    changes.forEach { (key, value) ->
+      if (value == null) {
+        db.del(key.array)
+      } else {
+        db.put(key.array, value)
+      }
+    }
+    merges.forEach { (key, operands) ->
+      operands.forEach { operand ->
+        db.merge(key.array, operand)
+      }
+    }
+    changes.clear()
+    merges.clear()
+  }
+
+  override fun close() : Unit {
+    changes.clear()
+    merges.clear()
+  }
+}
@@ -5,6 +5,8 @@ import io.scalechain.blockchain.GeneralException
 import org.mapdb.*
 import org.mapdb.DB
 import java.io.File
+import java.util.concurrent.ConcurrentSkipListMap
+import java.util.concurrent.CopyOnWriteArraySet
 
 class MapDatabaseIterator(private val mapDbIterator : MutableIterator<MutableMap.MutableEntry<ByteArray, ByteArray?>>) : ClosableIterator<Pair<ByteArray,ByteArray>> {
   private var isClosed = false
@@ -33,12 +35,184 @@ class MapDatabaseIterator(private val mapDbIterator : MutableIterator<MutableMap
   }
 }
 
+/**
+  * A point-in-time view of a MapDatabase.
+  * MapDB does not support snapshots. Instead of copying the tree map, the snapshot reads the live tree map,
+  * and the database preserves the value a key had when the snapshot was taken before the key is changed while the snapshot is open.
+  * Taking a snapshot costs O(1), and the preserved values cost O(number of keys changed while the snapshot is open).
+  *
+  * Uncommitted changes of a transaction on the database are already in the tree map, so they are visible on a snapshot taken after them.
+  *
+  * @param database The database to read.
+  * @param treeMap The tree map of the database.
+  */
+class MapDatabaseSnapshot(private val database : MapDatabase, private val treeMap : BTreeMap<ByteArray, ByteArray>) : KeyValueSnapshot {
+  /** The value a key had when the snapshot was taken. The value is null if the key did not exist. */
+  private class PreservedValue(val value : ByteArray?)
+
+  // key -> the value when the snapshot was taken. A key is preserved before it is changed in the tree map, and never removed until the snapshot is closed.
+  private val preserved = ConcurrentSkipListMap<ByteArray, PreservedValue>(treeMap.comparator())
+
+  /** Preserve the current value of a key before it is changed. Only the first change of a key is preserved.
+    * Called by the database before it changes the key in the tree map.
+    */
+  fun preserve(key : ByteArray, currentValue : ByteArray?) : Unit {
+    preserved.putIfAbsent(key, PreservedValue(currentValue))
+  }
+
+  /** Get the value of a key on the snapshot, given the value read from the tree map.
+    * The preserved value is checked after reading the tree map, because a key is preserved before the tree map is changed.
+    */
+  private fun valueOnSnapshot(key : ByteArray, liveValue : ByteArray?) : ByteArray? {
+    val preservedValue = preserved.get(key)
+    return if (preservedValue != null) preservedValue.value else liveValue
+  }
+
+  override fun seek(keyOption: ByteArray?): ClosableIterator<Pair<ByteArray, ByteArray>> {
+    val liveIterator = if (keyOption != null) {
+      treeMap.tailMap(keyOption).iterator()
+    } else {
+      treeMap.iterator()
+    }
+    return MapDatabaseSnapshotIterator(keyOption, liveIterator)
+  }
+
+  override fun get(key: ByteArray): ByteArray? {
+    return valueOnSnapshot(key, treeMap.get(key))
+  }
+
+  override fun close() {
+    database.closeSnapshot(this)
+    preserved.clear()
+  }
+
+  /**
+    * Iterates the live tree map, replacing the values of changed keys with the preserved ones.
+    * Keys removed from the tree map after the snapshot was taken are iterated from the preserved values.
+    * Before a key is returned from the tree map, the preserved keys between the last returned key and the key are returned first.
+    * The preserved keys are looked up after the tree map iterator reached the key,
+    * so a key removed before the tree map iterator passed it is always found in the preserved values.
+    *
+    * @param keyOption The key to start from, inclusive. Iterate from the first key if null.
+    * @param liveIterator The iterator on the tree map starting from keyOption.
+    */
+  private inner class MapDatabaseSnapshotIterator(
+    keyOption : ByteArray?,
+    private val liveIterator : MutableIterator<MutableMap.MutableEntry<ByteArray, ByteArray?>>
+  ) : ClosableIterator<Pair<ByteArray,ByteArray>> {
+    private var isClosed = false
+    // The last key returned or checked from the tree map, or the key to start from. Null to iterate from the first key.
+    private var lastKey : ByteArray? = keyOption
+    // Whether lastKey itself is iterated. Only the key to start from is.
+    private var lastKeyInclusive = keyOption != null
+    // The next entry of the tree map that is not returned yet.
+    private var liveEntry : Pair<ByteArray, ByteArray?>? = null
+    // The next pair to return.
+    private var nextPair : Pair<ByteArray, ByteArray>? = null
+
+    private fun preservedBetween(toKey : ByteArray?) : Map.Entry<ByteArray, PreservedValue>? {
+      val fromKey = lastKey
+      val range = if (fromKey == null) {
+        if (toKey == null) preserved else preserved.headMap(toKey, false)
+      } else {
+        if (toKey == null) preserved.tailMap(fromKey, lastKeyInclusive) else preserved.subMap(fromKey, lastKeyInclusive, toKey, false)
+      }
+      // Keys that did not exist when the snapshot was taken are skipped.
+      return range.entries.firstOrNull { it.value.value != null }
+    }
+
+    private fun findNext() : Pair<ByteArray, ByteArray>? {
+      while (true) {
+        if (liveEntry == null && liveIterator.hasNext()) {
+          val (liveKey, liveValue) = liveIterator.next()
+          liveEntry = Pair(liveKey, liveValue)
+        }
+        val currentLiveEntry = liveEntry
+
+        val preservedEntry = preservedBetween(currentLiveEntry?.first)
+        if (preservedEntry != null) {
+          lastKey = preservedEntry.key
+          lastKeyInclusive = false
+          return Pair(preservedEntry.key, preservedEntry.value.value!!)
+        }
+
+        if (currentLiveEntry == null) {
+          return null
+        }
+        liveEntry = null
+        lastKey = currentLiveEntry.first
+        lastKeyInclusive = false
+        val value = valueOnSnapshot(currentLiveEntry.first, currentLiveEntry.second)
+        if (value != null) {
+          return Pair(currentLiveEntry.first, value)
+        }
+        // The key did not exist when the snapshot was taken. Check the next key.
+      }
+    }
+
+    override fun next() : Pair<ByteArray,ByteArray> {
+      assert( !isClosed )
+
+      if (!hasNext()) {
+        throw GeneralException(ErrorCode.NoMoreKeys)
+      }
+      val pair = nextPair!!
+      nextPair = null
+      return pair
+    }
+
+    override fun hasNext() : Boolean {
+      if (isClosed) {
+        return false
+      }
+      if (nextPair == null) {
+        nextPair = findNext()
+      }
+      return nextPair != null
+    }
+
+    override fun close() : Unit {
+      isClosed = true
+    }
+  }
+}
+
+/**
+  * A write batch on a MapDatabase. Changes are put into the tree map, and committed to MapDB once for the whole batch.
+  *
+  * @param database The database to write the batch.
+  */
+class MapWriteBatch(private val database : MapDatabase) : InMemoryWriteBatch(database) {
+  override fun write() : Unit {
+    if (changes.isEmpty() && merges.isEmpty()) {
+      return
+    }
+    changes.forEach { (key, value) ->
+      if (value == null) {
+        database.removeFromTreeMap(key.array)
+      } else {
+        database.putIntoTreeMap(key.array, value)
+      }
+    }
+    merges.forEach { (key, operands) ->
+      operands.forEach { operand ->
+        database.mergeIntoTreeMap(key.array, operand)
+      }
+    }
+    database.getDb().commit()
+    changes.clear()
+    merges.clear()
+  }
+}
+
 /**
  * Created by kangmo on 18/12/2016.
  */
 class MapDatabase(path : File) : KeyValueDatabase {
   private var db : DB
   private var treeMap : BTreeMap<ByteArray, ByteArray>
+  // Snapshots not closed yet. Taking a snapshot is rare, but every change iterates them.
+  private val openSnapshots = CopyOnWriteArraySet<MapDatabaseSnapshot>()
   fun getDb() = db
   fun getTreeMap() = treeMap
   init {
@@ -61,8 +235,37 @@ class MapDatabase(path : File) : KeyValueDatabase {
                 .createOrOpen()
   }
 
-  override fun put(key: ByteArray, value: ByteArray) {
+  /** Preserve the current value of a key on the open snapshots before the key is changed.
+    */
+  private fun preserveOnSnapshots(key : ByteArray) : Unit {
+    if (openSnapshots.isEmpty()) {
+      return
+    }
+    val currentValue = treeMap.get(key)
+    openSnapshots.forEach { it.preserve(key, currentValue) }
+  }
+
+  fun closeSnapshot(snapshot : MapDatabaseSnapshot) : Unit {
+    openSnapshots.remove(snapshot)
+  }
+
+  /** Put a value into the tree map, without committing it.
+    * All changes on the tree map go through putIntoTreeMap, removeFromTreeMap and mergeIntoTreeMap to keep open snapshots unchanged.
+    */
+  fun putIntoTreeMap(key : ByteArray, value : ByteArray) : Unit {
+    preserveOnSnapshots(key)
     treeMap.put(key, value)
+  }
+
+  /** Remove a key from the tree map, without committing it.
+    */
+  fun removeFromTreeMap(key : ByteArray) : Unit {
+    preserveOnSnapshots(key)
+    treeMap.remove(key)
+  }
+
+  override fun put(key: ByteArray, value: ByteArray) {
+    putIntoTreeMap(key, value)
     db.commit()
   }
 
@@ -72,7 +275,21 @@ class MapDatabase(path : File) : KeyValueDatabase {
   }
 
   override fun del(key: ByteArray) {
-    treeMap.remove(key)
+    removeFromTreeMap(key)
+    db.commit()
+  }
+
+  /** Merge an operand into the value in the tree map atomically, without committing it.
+    */
+  fun mergeIntoTreeMap(key : ByteArray, operand : ByteArray) : Unit {
+    preserveOnSnapshots(key)
+    treeMap.merge(key, operand) { value, newOperand -> KeyValueWriter.mergedValue(value, newOperand) }
+  }
+
+  /** MapDB has no merge operator. Merge atomically on the tree map instead of reading and putting the value.
+    */
+  override fun merge(key : ByteArray, operand : ByteArray) : Unit {
+    mergeIntoTreeMap(key, operand)
     db.commit()
   }
 
@@ -90,6 +307,16 @@ class MapDatabase(path : File) : KeyValueDatabase {
     return TransactingMapDatabase(this)
   }
 
+  override fun snapshot(): KeyValueSnapshot {
+    val snapshot = MapDatabaseSnapshot(this, treeMap)
+    openSnapshots.add(snapshot)
+    return snapshot
+  }
+
+  override fun writeBatch(): KeyValueWriteBatch {
+    return MapWriteBatch(this)
+  }
+
   override fun close() {
     assert(!treeMap.isClosed())
     assert(!db.isClosed())
@@ -41,6 +41,123 @@ class RocksDatabaseIterator(private val rocksIterator : RocksIterator) : Closabl
   }
 }
 
+/**
+  * Iterates (key, value) pairs of a RocksDB iterator while keys start with a prefix.
+  * The value of a key is read only if the key has the prefix,
+  * and the RocksDB iterator is closed as soon as a key without the prefix is found.
+  *
+  * @param rocksIterator The RocksDB iterator positioned at the first key to check.
+  * @param prefix The prefix of keys to iterate.
+  */
+class RocksPrefixIterator(private val rocksIterator : RocksIterator, private val prefix : ByteArray) : ClosableIterator<Pair<ByteArray,ByteArray>> {
+  private var elementToReturn : Pair<ByteArray,ByteArray>? = null
+  private var isClosed = false
+
+  override fun next() : Pair<ByteArray,ByteArray> {
+    if (!hasNext()) {
+      throw StorageException(ErrorCode.NoMoreKeys)
+    }
+    val element = elementToReturn!!
+    elementToReturn = null
+    return element
+  }
+
+  override fun hasNext() : Boolean {
+    if (elementToReturn != null) {
+      return true
+    }
+    if (isClosed) {
+      return false
+    }
+    if (rocksIterator.isValid) {
+      val rawKey = rocksIterator.key()
+      if (PrefixIterator.hasPrefix(rawKey, prefix)) {
+        elementToReturn = Pair(rawKey, rocksIterator.value())
+        rocksIterator.next()
+        return true
+      }
+    }
+    // We passed the last key with the prefix.
+    close()
+    return false
+  }
+
+  override fun close() : Unit {
+    if (!isClosed) {
+      rocksIterator.close()
+      isClosed = true
+    }
+  }
+}
+
+/**
+  * A write batch on RocksDB. All puts, deletes and merges in the batch are written atomically with a single write.
+  *
+  * @param database The database to write the batch.
+  */
+class RocksWriteBatch(private val database : RocksDatabase) : KeyValueWriteBatch {
+  private val writeBatch = WriteBatch()
+
+  override fun put(key : ByteArray, value : ByteArray) : Unit {
+    writeBatch.put(key, value)
+  }
+
+  override fun del(key : ByteArray) : Unit {
+    writeBatch.remove(key)
+  }
+
+  override fun merge(key : ByteArray, operand : ByteArray) : Unit {
+    writeBatch.merge(key, operand)
+  }
+
+  override fun size() : Int = writeBatch.count()
+
+  override fun write() : Unit {
+    if (writeBatch.count() > 0) {
+      val writeOptions = WriteOptions()
+      try {
+        database.getDb().write(writeOptions, writeBatch)
+      } finally {
+        writeOptions.close()
+      }
+      writeBatch.clear()
+    }
+  }
+
+  override fun close() : Unit {
+    // Release the native WriteBatch.
+    writeBatch.close()
+  }
+}
+
+/**
+  * A point-in-time view of a RocksDatabase using a RocksDB snapshot.
+  * RocksDB keeps the versions of keys visible to the snapshot until it is released, so readers don't need any lock.
+  *
+  * @param database The database to take the snapshot.
+  */
+class RocksDatabaseSnapshot(private val database : RocksDatabase) : KeyValueSnapshot {
+  private val snapshot : Snapshot = database.getDb().getSnapshot()
+  private val readOptions : ReadOptions = ReadOptions().setSnapshot(snapshot)
+
+  override fun seek(keyOption : ByteArray? ) : ClosableIterator<Pair<ByteArray, ByteArray>> {
+    return database.seek(database.getDb().newIterator(readOptions), keyOption)
+  }
+
+  override fun seekPrefix(prefix : ByteArray, startKeyOption : ByteArray?) : ClosableIterator<Pair<ByteArray, ByteArray>> {
+    return database.seekPrefix(database.getDb().newIterator(readOptions), prefix, startKeyOption)
+  }
+
+  override fun get(key : ByteArray ) : ByteArray? {
+    return database.getDb().get(readOptions, key)
+  }
+
+  override fun close() : Unit {
+    database.getDb().releaseSnapshot(snapshot)
+    readOptions.close()
+  }
+}
+
 /**
   * A KeyValueDatabase implementation using RocksDB.
   */
@@ -90,8 +207,18 @@ open class RocksDatabase(path : File) : KeyValueDatabase {
 
   //      .setTargetFileSizeBase(options.maxBytesForLevelBase() / 10)
 
+  // Bloom filters on SST files let exists(keyMayExist) answer for absent keys without reading data blocks.
+  private val tableOptions =
+    BlockBasedTableConfig()
+      .setFilter(BloomFilter(10, false))
+
+  // Operands of merge are appended to the value with the delimiter, and folded by the reader. See KeyValueWriter.merge.
+  private val mergeOperator = StringAppendOperator()
+
   init {
     assert( Storage.initialized() )
+    options.setTableFormatConfig(tableOptions)
+    options.setMergeOperator(mergeOperator)
     options.getEnv().setBackgroundThreads(3, Env.COMPACTION_POOL)
         .setBackgroundThreads(1, Env.FLUSH_POOL)
   }
@@ -135,11 +262,38 @@ open class RocksDatabase(path : File) : KeyValueDatabase {
     return seek(rocksIterator, keyOption)
   }
 
+  /** Seek the first key with the given prefix, and iterate (key, value) pairs while keys start with the prefix.
+    *
+    * @param rocksIterator The iterator to use for seeking a key.
+    * @param prefix The prefix of keys to iterate.
+    * @param startKeyOption Some(key) to start from a key greater than or equal to the key. None to start from the prefix.
+    * @return An Iterator to iterate (key, value) pairs.
+    */
+  fun seekPrefix(rocksIterator : RocksIterator, prefix : ByteArray, startKeyOption : ByteArray? ) : ClosableIterator<Pair<ByteArray, ByteArray>> {
+    rocksIterator.seek(startKeyOption ?: prefix)
+    return RocksPrefixIterator(rocksIterator, prefix)
+  }
+
+  override fun seekPrefix(prefix : ByteArray, startKeyOption : ByteArray? ) : ClosableIterator<Pair<ByteArray, ByteArray>> {
+    return seekPrefix(db!!.newIterator(), prefix, startKeyOption)
+  }
+
 
   override fun get(key : ByteArray ) : ByteArray? {
     return db!!.get(key)
   }
 
+  /** Check if a key exists.
+    * keyMayExist checks the memtable, block cache and bloom filters of SST files without reading data blocks.
+    * Only if it says the key may exist, we read the key to see if it really exists.
+    */
+  override fun exists(key : ByteArray ) : Boolean {
+    if (!db!!.keyMayExist(key, StringBuilder())) {
+      return false
+    }
+    return db!!.get(key) != null
+  }
+
   override fun put(key : ByteArray, value : ByteArray ) : Unit {
     db!!.put(key, value)
   }
@@ -148,6 +302,12 @@ open class RocksDatabase(path : File) : KeyValueDatabase {
     db!!.remove(key)
   }
 
+  /** Merge an operand with the merge operator of RocksDB. The write does not read the value.
+    */
+  override fun merge(key : ByteArray, operand : ByteArray) : Unit {
+    db!!.merge(key, operand)
+  }
+
   /**
    * Create a new transacting db that supports transaction commit/abort operations.
    */
@@ -155,6 +315,14 @@ open class RocksDatabase(path : File) : KeyValueDatabase {
     return TransactingRocksDatabase(this)
   }
 
+  override fun snapshot() : KeyValueSnapshot {
+    return RocksDatabaseSnapshot(this)
+  }
+
+  override fun writeBatch() : KeyValueWriteBatch {
+    return RocksWriteBatch(this)
+  }
+
   override fun close() : Unit {
 //    logger.info("Closing RocksDB.")
 /*
@@ -174,6 +342,7 @@ open class RocksDatabase(path : File) : KeyValueDatabase {
 
       db!!.close()
       options.close()
+      mergeOperator.close()
       //      bloomFilter.close
     }
 
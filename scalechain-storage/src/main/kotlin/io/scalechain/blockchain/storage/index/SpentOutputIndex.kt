@@ -0,0 +1,210 @@
+package io.scalechain.blockchain.storage.index
+
+import io.scalechain.blockchain.proto.Hash
+import io.scalechain.blockchain.proto.InPoint
+import io.scalechain.blockchain.proto.OutPoint
+import io.scalechain.blockchain.proto.SpentOutputBitmap
+import io.scalechain.blockchain.proto.codec.HashCodec
+import io.scalechain.blockchain.proto.codec.InPointCodec
+import io.scalechain.blockchain.proto.codec.OutPointCodec
+import io.scalechain.blockchain.proto.codec.SpentOutputBitmapCodec
+import io.scalechain.util.Bytes
+
+/**
+  * Keeps the spent state of outputs of transactions.
+  *
+  * For each transaction, a SpentOutputBitmap is kept with the transaction hash as the key.
+  * For each spent output, the in-point spending the output is kept with the out-point as the key.
+  *
+  * Spending an output writes the bitmap and a fixed size record for the output,
+  * instead of rewriting the spending in-points of all outputs of the transaction.
+  *
+  * Marking an output spent or unspent does not rewrite the bitmap either. It merges a delta into the bitmap with KeyValueWriter.merge,
+  * so the write does not need the current bitmap. The stored value is the encoded bitmap followed by the deltas merged after it was put,
+  * each of them preceded by KeyValueWriter.MERGE_DELIMITER. Deltas are applied to the bitmap when it is read.
+  * RocksDB does not fold the deltas, so the bitmap is put again with the deltas applied once FoldThreshold deltas were merged into it.
+  * See getSpentOutputs.
+  *
+  * Outputs should be marked only while the bitmap exists. A delta merged into a bitmap that does not exist is stored without a bitmap,
+  * and such a value is read as a missing bitmap.
+  *
+  * @param bitmapPrefix The prefix of keys for the bitmap of spent outputs.
+  * @param spentByPrefix The prefix of keys for the in-point spending an output.
+  */
+class SpentOutputIndex(private val bitmapPrefix : Byte, private val spentByPrefix : Byte) {
+
+  /** Get the bitmap of spent outputs of a transaction.
+    *
+    * If a writer to fold deltas is given, and FoldThreshold or more deltas were merged into the bitmap,
+    * the bitmap is put on the writer with the deltas applied, so that the value does not grow with every mark.
+    * Pass the writer only while holding the output locks of all outputs of the transaction, as a delta merged between the read and the put is lost.
+    *
+    * @param txHash The hash of the transaction.
+    * @param foldWriter The writer to put the bitmap with the deltas applied, or null not to fold deltas.
+    * @return The bitmap if the transaction exists; null otherwise.
+    */
+  fun getSpentOutputs(db : KeyValueDatabase, txHash : Hash, foldWriter : KeyValueWriter? = null) : SpentOutputBitmap? {
+    return getSpentOutputs(db, txHash) { _ -> foldWriter }
+  }
+
+  /** Get the bitmap of spent outputs of a transaction, deciding whether to fold deltas only when there are FoldThreshold or more of them.
+    *
+    * @param txHash The hash of the transaction.
+    * @param foldWriterOf Returns the writer to put the bitmap with the deltas applied, or null not to fold deltas. Called with the bitmap.
+    * @return The bitmap if the transaction exists; null otherwise.
+    */
+  fun getSpentOutputs(db : KeyValueDatabase, txHash : Hash, foldWriterOf : (SpentOutputBitmap) -> KeyValueWriter?) : SpentOutputBitmap? {
+    val rawValue = db.get(ByteArray(1, {bitmapPrefix}) + HashCodec.encode(txHash))
+    if (rawValue == null) {
+      return null
+    }
+    val spentOutputs = decodeSpentOutputs(rawValue)
+    if (spentOutputs != null && deltaCount(rawValue) >= FoldThreshold) {
+      val foldWriter = foldWriterOf(spentOutputs)
+      if (foldWriter != null) {
+        putSpentOutputs(foldWriter, txHash, spentOutputs)
+      }
+    }
+    return spentOutputs
+  }
+
+  /** Put the bitmap of spent outputs of a transaction.
+    *
+    * @param txHash The hash of the transaction.
+    * @param spentOutputs The bitmap of spent outputs.
+    */
+  fun putSpentOutputs(db : KeyValueWriter, txHash : Hash, spentOutputs : SpentOutputBitmap) : Unit {
+    db.putObject(HashCodec, SpentOutputBitmapCodec, bitmapPrefix, txHash, spentOutputs)
+  }
+
+  /** Get the in-point spending an output.
+    *
+    * @param outPoint The out-point pointing to the output.
+    * @return The in-point spending the output if the output was spent; null otherwise.
+    */
+  fun getOutputSpentBy(db : KeyValueDatabase, outPoint : OutPoint) : InPoint? {
+    return db.getObject(OutPointCodec, InPointCodec, spentByPrefix, outPoint)
+  }
+
+  /** Mark an output spent by an in-point.
+    *
+    * @param outPoint The out-point pointing to the output.
+    * @param inPoint The in-point spending the output.
+    */
+  fun markOutputSpent(db : KeyValueWriter, outPoint : OutPoint, inPoint : InPoint) : Unit {
+    db.putObject(OutPointCodec, InPointCodec, spentByPrefix, outPoint, inPoint)
+    db.mergeObject(HashCodec, bitmapPrefix, outPoint.transactionHash, delta(outPoint.outputIndex, true))
+  }
+
+  /** Mark an output unspent.
+    *
+    * @param outPoint The out-point pointing to the output.
+    */
+  fun markOutputUnspent(db : KeyValueWriter, outPoint : OutPoint) : Unit {
+    db.delObject(OutPointCodec, spentByPrefix, outPoint)
+    db.mergeObject(HashCodec, bitmapPrefix, outPoint.transactionHash, delta(outPoint.outputIndex, false))
+  }
+
+  /** Del the bitmap of spent outputs of a transaction as well as the in-points spending the outputs.
+    * The in-points of all outputs are deleted without reading which outputs were spent, so the deletes can be put into a write batch.
+    *
+    * @param db The database or a write batch on it.
+    * @param txHash The hash of the transaction.
+    * @param outputCount The number of outputs of the transaction.
+    */
+  fun delSpentOutputs(db : KeyValueWriter, txHash : Hash, outputCount : Int) : Unit {
+    for (outputIndex in 0 until outputCount) {
+      db.delObject(OutPointCodec, spentByPrefix, OutPoint(txHash, outputIndex))
+    }
+    db.delObject(HashCodec, bitmapPrefix, txHash)
+  }
+
+  companion object {
+    // The size of a delta : 4 bytes for the complement of the output index, 1 byte for the spent flag.
+    private val DeltaSize = 5
+
+    // The number of deltas merged into a bitmap, from which the bitmap is put again with the deltas applied.
+    val FoldThreshold = 16
+
+    /** Encode a delta that marks an output spent or unspent.
+      *
+      * The output index is complemented, so that the first four bytes of a delta decode to a negative output count.
+      * A delta stored without a bitmap is not misread as a bitmap.
+      */
+    private fun delta(outputIndex : Int, spent : Boolean) : ByteArray {
+      val complement = outputIndex.inv()
+      return byteArrayOf(
+        complement.toByte(),
+        (complement ushr 8).toByte(),
+        (complement ushr 16).toByte(),
+        (complement ushr 24).toByte(),
+        (if (spent) 1 else 0).toByte()
+      )
+    }
+
+    /** Read a 32 bit little endian integer, the encoding of the output count of a bitmap.
+      */
+    private fun readInt32L(rawValue : ByteArray, offset : Int) : Int {
+      return (rawValue[offset].toInt() and 0xFF) or
+        ((rawValue[offset + 1].toInt() and 0xFF) shl 8) or
+        ((rawValue[offset + 2].toInt() and 0xFF) shl 16) or
+        ((rawValue[offset + 3].toInt() and 0xFF) shl 24)
+    }
+
+    /** Get the size of the encoded bitmap at the head of a stored value, or null if the value starts with a delta.
+      */
+    private fun bitmapSize(rawValue : ByteArray) : Int? {
+      if (rawValue.size < 4) {
+        return null
+      }
+      val outputCount = readInt32L(rawValue, 0)
+      return if (outputCount < 0) null else 4 + SpentOutputBitmap.byteCount(outputCount)
+    }
+
+    /** Get the number of deltas merged into a stored bitmap.
+      */
+    private fun deltaCount(rawValue : ByteArray) : Int {
+      val bitmapSize = bitmapSize(rawValue) ?: return 0
+      // Each delta is preceded by the delimiter.
+      return (rawValue.size - bitmapSize) / (DeltaSize + 1)
+    }
+
+    /** Decode a stored bitmap, and apply the deltas merged into it.
+      * The bitmap is copied once, and all deltas are applied to the copy.
+      *
+      * @param rawValue The encoded bitmap, followed by deltas each of which is preceded by the merge delimiter.
+      * @return The bitmap with the deltas applied, or null if the value has deltas only, merged after the bitmap was deleted.
+      */
+    fun decodeSpentOutputs(rawValue : ByteArray) : SpentOutputBitmap? {
+      val bitmapSize = bitmapSize(rawValue) ?: return null
+      val outputCount = readInt32L(rawValue, 0)
+      val bitmap = rawValue.copyOfRange(4, bitmapSize)
+
+      // Skip the delimiter before each delta.
+      var offset = bitmapSize + 1
+      while (offset + DeltaSize <= rawValue.size) {
+        val outputIndex = readInt32L(rawValue, offset).inv()
+        val spent = rawValue[offset + 4] != 0.toByte()
+        assert( outputIndex >= 0 && outputIndex < outputCount )
+
+        val mask = 1 shl (outputIndex and 7)
+        val byteIndex = outputIndex shr 3
+        bitmap[byteIndex] =
+          if (spent)
+            (bitmap[byteIndex].toInt() or mask).toByte()
+          else
+            (bitmap[byteIndex].toInt() and mask.inv()).toByte()
+        offset += DeltaSize + 1
+      }
+      assert(offset == rawValue.size + 1)
+      return SpentOutputBitmap(outputCount, Bytes(bitmap))
+    }
+
+    // For transactions in blocks on the best blockchain.
+    val TRANSACTION = SpentOutputIndex(DB.TRANSACTION_SPENT_OUTPUTS, DB.TRANSACTION_OUTPUT_SPENT_BY)
+    // For transactions in the disk-pool.
+    val TRANSACTION_POOL = SpentOutputIndex(DB.TRANSACTION_POOL_SPENT_OUTPUTS, DB.TRANSACTION_POOL_OUTPUT_SPENT_BY)
+    // For transactions in the temporary transaction pool used while creating blocks.
+    val TEMP_TRANSACTION_POOL = SpentOutputIndex(DB.TEMP_TRANSACTION_POOL_SPENT_OUTPUTS, DB.TEMP_TRANSACTION_POOL_OUTPUT_SPENT_BY)
+  }
+}
@@ -0,0 +1,193 @@
+package io.scalechain.blockchain.storage.index
+
+import io.scalechain.blockchain.proto.*
+import io.scalechain.blockchain.proto.codec.*
+import io.scalechain.blockchain.proto.codec.primitive.Codecs
+import io.scalechain.util.Option
+import org.slf4j.LoggerFactory
+
+/**
+  * Migrates the on-disk index written before spent outputs were kept in SpentOutputIndex.
+  *
+  * Before the migration, TransactionDescriptor and TransactionPoolEntry had the list of in-points spending each output.
+  * The migration rewrites them without the list, and puts the spent outputs into SpentOutputIndex.
+  *
+  * Records are migrated in transactions of MigrationBatchSize records.
+  * A record whose bitmap of spent outputs already exists was migrated, so an interrupted migration can be resumed.
+  */
+object SpentOutputMigration {
+  private val logger = LoggerFactory.getLogger(SpentOutputMigration::class.java)
+
+  // The version of the index after spent outputs were moved to SpentOutputIndex.
+  val SpentOutputIndexVersion = 1L
+
+  // The number of records to migrate in a database transaction.
+  val MigrationBatchSize = 10000
+
+  // The schema version is the only record under DB.SCHEMA_VERSION, so the key is a constant.
+  private val SchemaVersionKey = LongValue(0L)
+
+  private data class LegacyTransactionDescriptor( val transactionLocator : FileRecordLocator, val blockHeight : Long, val outputsSpentBy : List<InPoint?> )
+
+  private data class LegacyTransactionPoolEntry( val transaction : Transaction, val outputsSpentBy : List<InPoint?>, val createdAtNanos : Long )
+
+  private val LegacyOptionalInPointListCodec =
+    Codecs.variableListOf(
+      valueCodec = Codecs.optional(valueCodec = InPointCodec)
+    )
+
+  private object LegacyTransactionDescriptorCodec : Codec<LegacyTransactionDescriptor> {
+    override fun transcode(io : CodecInputOutputStream, obj : LegacyTransactionDescriptor? ) : LegacyTransactionDescriptor? {
+      val transactionLocator = FileRecordLocatorCodec.transcode( io, obj?.transactionLocator )
+      val blockHeight        = Codecs.Int64.transcode( io, obj?.blockHeight )
+      val outputsSpentBy     = LegacyOptionalInPointListCodec.transcode( io, obj?.outputsSpentBy?.map{ Option.from(it) } )
+
+      if (io.isInput) {
+        return LegacyTransactionDescriptor(
+          transactionLocator!!,
+          blockHeight!!,
+          outputsSpentBy!!.map{ it.toNullable() }
+        )
+      }
+      return null
+    }
+  }
+
+  private object LegacyTransactionPoolEntryCodec : Codec<LegacyTransactionPoolEntry> {
+    override fun transcode(io : CodecInputOutputStream, obj : LegacyTransactionPoolEntry? ) : LegacyTransactionPoolEntry? {
+      val transaction    = TransactionCodec.transcode(io, obj?.transaction)
+      val outputsSpentBy = LegacyOptionalInPointListCodec.transcode(io, obj?.outputsSpentBy?.map{ Option.from(it) })
+      val createdAtNanos = Codecs.Int64.transcode(io, obj?.createdAtNanos)
+
+      if (io.isInput) {
+        return LegacyTransactionPoolEntry(
+          transaction!!,
+          outputsSpentBy!!.map{ it.toNullable() },
+          createdAtNanos!!
+        )
+      }
+      return null
+    }
+  }
+
+  /** Get the version of the on-disk index.
+    *
+    * @return The version, or null if the version was not written yet.
+    */
+  fun getSchemaVersion(db : KeyValueDatabase) : Long? {
+    return db.getObject(LongValueCodec, LongValueCodec, DB.SCHEMA_VERSION, SchemaVersionKey)?.value
+  }
+
+  /** Put the version of the on-disk index.
+    *
+    * @param version The version to put.
+    */
+  fun putSchemaVersion(db : KeyValueDatabase, version : Long) : Unit {
+    db.putObject(LongValueCodec, LongValueCodec, DB.SCHEMA_VERSION, SchemaVersionKey, LongValue(version))
+  }
+
+  /** Migrate the index if it was written in the legacy format.
+    *
+    * @param db The (non-transacting) database to migrate.
+    * @param isEmpty true if nothing was written on the database yet. Nothing is migrated, but the version is written.
+    */
+  fun migrate(db : KeyValueDatabase, isEmpty : Boolean) : Unit {
+    val version = getSchemaVersion(db)
+    if (version != null && version >= SpentOutputIndexVersion) {
+      return
+    }
+
+    if (!isEmpty) {
+      logger.info("Migrating spent outputs of transactions to the spent output index.")
+      val descriptorCount = migrateTransactionDescriptors(db)
+      val poolEntryCount = migrateTransactionPoolEntries(db)
+      logger.info("Migrated spent outputs. Transaction descriptors : ${descriptorCount}, Transaction pool entries : ${poolEntryCount}")
+    }
+
+    putSchemaVersion(db, SpentOutputIndexVersion)
+  }
+
+  /** Iterate each (raw key, raw value) pair whose key starts with the given prefix.
+    * Records are put into a transacting database, which is committed for every MigrationBatchSize records.
+    *
+    * @return The number of records for which the migrate function returned true.
+    */
+  private fun migrateRecords(db : KeyValueDatabase, prefix : Byte, migrate : (KeyValueDatabase, ByteArray, ByteArray) -> Boolean) : Int {
+    val transactingDB = db.transacting()
+    var migratedCount = 0
+    val iterator = db.seekPrefix(ByteArray(1, {prefix}))
+    try {
+      transactingDB.beginTransaction()
+      var uncommittedCount = 0
+      while (iterator.hasNext()) {
+        val (rawKey, rawValue) = iterator.next()
+        if (migrate(transactingDB, rawKey, rawValue)) {
+          migratedCount += 1
+          uncommittedCount += 1
+          if (uncommittedCount >= MigrationBatchSize) {
+            transactingDB.commitTransaction()
+            transactingDB.beginTransaction()
+            uncommittedCount = 0
+          }
+        }
+      }
+      transactingDB.commitTransaction()
+    } finally {
+      iterator.close()
+    }
+    return migratedCount
+  }
+
+  private fun putSpentOutputs(db : KeyValueDatabase, spentOutputIndex : SpentOutputIndex, txHash : Hash, outputsSpentBy : List<InPoint?>) : Unit {
+    // Put the bitmap even though no output was spent. It is used to check if the record was migrated.
+    spentOutputIndex.putSpentOutputs(db, txHash, SpentOutputBitmap.unspent(outputsSpentBy.size))
+    outputsSpentBy.forEachIndexed { outputIndex, inPoint ->
+      if (inPoint != null) {
+        spentOutputIndex.markOutputSpent(db, OutPoint(txHash, outputIndex), inPoint)
+      }
+    }
+  }
+
+  private fun migrateTransactionDescriptors(db : KeyValueDatabase) : Int {
+    val spentOutputIndex = SpentOutputIndex.TRANSACTION
+    return migrateRecords(db, DB.TRANSACTION) { transactingDB, rawKey, rawValue ->
+      val txHash = HashCodec.decode( rawKey.copyOfRange(1, rawKey.size) )!!
+      if (spentOutputIndex.getSpentOutputs(transactingDB, txHash) != null) {
+        false // Already migrated.
+      } else {
+        val legacyDesc = LegacyTransactionDescriptorCodec.decode(rawValue)!!
+        putSpentOutputs(transactingDB, spentOutputIndex, txHash, legacyDesc.outputsSpentBy)
+        transactingDB.putObject(HashCodec, TransactionDescriptorCodec, DB.TRANSACTION, txHash,
+          TransactionDescriptor(
+            legacyDesc.transactionLocator,
+            legacyDesc.blockHeight,
+            legacyDesc.outputsSpentBy.size
+          )
+        )
+        true
+      }
+    }
+  }
+
+  private fun migrateTransactionPoolEntries(db : KeyValueDatabase) : Int {
+    val spentOutputIndex = SpentOutputIndex.TRANSACTION_POOL
+    val keyCodec = Codecs.cstringPrefixed(HashCodec)
+    return migrateRecords(db, DB.TRANSACTION_POOL) { transactingDB, rawKey, rawValue ->
+      val prefixedHash = keyCodec.decode( rawKey.copyOfRange(1, rawKey.size) )!!
+      val txHash = prefixedHash.data
+      if (spentOutputIndex.getSpentOutputs(transactingDB, txHash) != null) {
+        false // Already migrated.
+      } else {
+        val legacyEntry = LegacyTransactionPoolEntryCodec.decode(rawValue)!!
+        putSpentOutputs(transactingDB, spentOutputIndex, txHash, legacyEntry.outputsSpentBy)
+        transactingDB.putPrefixedObject(HashCodec, TransactionPoolEntryCodec, DB.TRANSACTION_POOL, prefixedHash.prefix, txHash,
+          TransactionPoolEntry(
+            legacyEntry.transaction,
+            legacyEntry.createdAtNanos
+          )
+        )
+        true
+      }
+    }
+  }
+}
@@ -18,7 +18,7 @@ class TransactingMapDatabase(private val db : MapDatabase) : TransactingKeyValue
   }
 
   override fun put(key: ByteArray, value: ByteArray) {
-    db.getTreeMap().put(key, value)
+    db.putIntoTreeMap(key, value)
   }
 
   override fun get(key: ByteArray): ByteArray? {
@@ -26,13 +26,25 @@ class TransactingMapDatabase(private val db : MapDatabase) : TransactingKeyValue
   }
 
   override fun del(key: ByteArray) {
-    db.getTreeMap().remove(key)
+    db.removeFromTreeMap(key)
+  }
+
+  override fun merge(key: ByteArray, operand: ByteArray) {
+    db.mergeIntoTreeMap(key, operand)
   }
 
   override fun seek(keyOption: ByteArray?): ClosableIterator<Pair<ByteArray, ByteArray>> {
     return db.seek(keyOption)
   }
 
+  /** Get a snapshot of the database. MapDB puts uncommitted changes into the tree map,
+    * so changes the transaction made before the snapshot was taken are visible on the snapshot, even if the transaction is aborted later.
+    * Changes made after the snapshot was taken are not visible.
+    */
+  override fun snapshot() : KeyValueSnapshot {
+    return db.snapshot()
+  }
+
   @Deprecated("TransactingMapDatabase.transacting should never be called. transacting method can be called from a non-transactional MapDatabase only.", ReplaceWith(""), DeprecationLevel.ERROR)
   override fun transacting(): TransactingKeyValueDatabase {
     throw AssertionError()
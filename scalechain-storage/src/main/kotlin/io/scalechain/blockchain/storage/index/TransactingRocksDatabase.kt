@@ -13,6 +13,8 @@ class TransactingRocksDatabase(private val db : RocksDatabase) : TransactingKeyV
 
   private var putCache : MutableMap<Bytes, ByteArray>? = null // key, value
   private var delCache : MutableMap<Bytes, Unit>? = null // key, dummy
+  // key -> operands merged into the value in the database, in the order they were merged. No key is in both mergeCache and putCache or delCache.
+  private var mergeCache : MutableMap<Bytes, MutableList<ByteArray>>? = null
 
   /**
     * Begin a database transaction.
@@ -22,6 +24,7 @@ class TransactingRocksDatabase(private val db : RocksDatabase) : TransactingKeyV
     writeBatch = WriteBatchWithIndex(true)
     putCache = mutableMapOf<Bytes, ByteArray>()
     delCache = mutableMapOf<Bytes, Unit>()
+    mergeCache = mutableMapOf<Bytes, MutableList<ByteArray>>()
   }
 
   /**
@@ -39,14 +42,15 @@ class TransactingRocksDatabase(private val db : RocksDatabase) : TransactingKeyV
 */
     //    println(s"Committing a transaction. Write count : ${writeBatch.count}")
     val writeOptions = WriteOptions()
-    writeOptions.setSync(true)
-    //writeOptions.setDisableWAL(true)
-
-    db.getDb().write(writeOptions, writeBatch)
-
-    writeBatch = null
-    putCache = null
-    delCache = null
+    try {
+      writeOptions.setSync(true)
+      //writeOptions.setDisableWAL(true)
+
+      db.getDb().write(writeOptions, writeBatch)
+    } finally {
+      writeOptions.close()
+      endTransaction()
+    }
   }
 
   /**
@@ -55,9 +59,17 @@ class TransactingRocksDatabase(private val db : RocksDatabase) : TransactingKeyV
   override fun abortTransaction() : Unit {
     assert(writeBatch != null)
 //    println(s"Aborting a transaction. Write count : ${writeBatch.count}")
+    endTransaction()
+  }
+
+  /** Release the native write batch, and clear the changes of the transaction.
+    */
+  private fun endTransaction() : Unit {
+    writeBatch!!.close()
     writeBatch = null
     putCache = null
     delCache = null
+    mergeCache = null
   }
 
 
@@ -82,7 +94,14 @@ class TransactingRocksDatabase(private val db : RocksDatabase) : TransactingKeyV
         if (value != null) {
           return value
         } else {
-          return db.get(key)
+          // Operands merged in the transaction are not visible from the database until the transaction is committed.
+          val operands = mergeCache!!.get(Bytes(key))
+          val committedValue = db.get(key)
+          if (operands == null) {
+            return committedValue
+          } else {
+            return operands.fold(committedValue) { mergedValue, operand -> KeyValueWriter.mergedValue(mergedValue, operand) }
+          }
         }
       }
     }
@@ -122,6 +141,7 @@ class TransactingRocksDatabase(private val db : RocksDatabase) : TransactingKeyV
 
     putCache!!.put(Bytes(key), value)
     delCache!!.remove(Bytes(key))
+    mergeCache!!.remove(Bytes(key))
   }
 
   override fun del(key : ByteArray) : Unit {
@@ -131,6 +151,34 @@ class TransactingRocksDatabase(private val db : RocksDatabase) : TransactingKeyV
 
     delCache!!.put(Bytes(key), Unit)
     putCache!!.remove(Bytes(key))
+    mergeCache!!.remove(Bytes(key))
+  }
+
+  /** Merge an operand with the merge operator of RocksDB when the transaction is committed. The write does not read the value.
+    * The operand is merged into a value put or deleted in the transaction, so that get returns the merged value.
+    * Iterators of WriteBatchWithIndex do not support merges, so do not seek keys merged in the transaction before it is committed.
+    */
+  override fun merge(key : ByteArray, operand : ByteArray) : Unit {
+    assert(writeBatch != null)
+    writeBatch!!.merge(key, operand)
+
+    val cacheKey = Bytes(key)
+    val value = putCache!!.get(cacheKey)
+    if (value != null) {
+      putCache!!.put(cacheKey, KeyValueWriter.mergedValue(value, operand))
+    } else if (delCache!!.containsKey(cacheKey)) {
+      // Merging into a deleted key stores the operand alone.
+      putCache!!.put(cacheKey, operand)
+      delCache!!.remove(cacheKey)
+    } else {
+      mergeCache!!.getOrPut(cacheKey) { arrayListOf<ByteArray>() }.add(operand)
+    }
+  }
+
+  /** Get a snapshot of the committed data. Changes in the transaction being executed are not visible on the snapshot.
+    */
+  override fun snapshot() : KeyValueSnapshot {
+    return db.snapshot()
   }
 
   @Deprecated("TransactingRocksDatabase.transacting should never be called. transacting method can be called from a non-transactional RocksDatabase only.", ReplaceWith(""), DeprecationLevel.ERROR)
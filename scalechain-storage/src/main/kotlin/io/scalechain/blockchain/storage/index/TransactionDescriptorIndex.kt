@@ -8,6 +8,10 @@ import io.scalechain.blockchain.proto.codec.HashCodec
 interface TransactionDescriptorIndex {
 //  private val logger = LoggerFactory.getLogger(TransactionDescriptorIndex::class.java)
 
+  /** Get the index keeping spent outputs of transactions that have transaction descriptors.
+    */
+  fun getTxDescSpentOutputIndex() : SpentOutputIndex = SpentOutputIndex.TRANSACTION
+
   /**
     * Get the descriptor of a transaction by hash
     *
@@ -21,6 +25,16 @@ interface TransactionDescriptorIndex {
     return db.getObject(HashCodec, TransactionDescriptorCodec, DB.TRANSACTION, txHash)
   }
 
+  /**
+    * Check if the descriptor of a transaction exists without decoding it.
+    *
+    * @param txHash The transaction hash.
+    * @return true if the descriptor exists; false otherwise.
+    */
+  fun hasTransactionDescriptor(db : KeyValueDatabase, txHash : Hash) : Boolean {
+    return db.existsObject(HashCodec, DB.TRANSACTION, txHash)
+  }
+
   /**
     * Put the descriptor of a transaction with hash of it
     *
@@ -29,7 +43,7 @@ interface TransactionDescriptorIndex {
     * @param txHash The transaction hash.
     * @param transactionDescriptor The descriptor of the transaction.
     */
-  fun putTransactionDescriptor(db : KeyValueDatabase, txHash : Hash, transactionDescriptor : TransactionDescriptor) : Unit {
+  fun putTransactionDescriptor(db : KeyValueWriter, txHash : Hash, transactionDescriptor : TransactionDescriptor) : Unit {
     //logger.trace(s"putTransactionDescriptor : ${txHash}")
     db.putObject(HashCodec, TransactionDescriptorCodec, DB.TRANSACTION, txHash, transactionDescriptor)
   }
@@ -41,7 +55,7 @@ interface TransactionDescriptorIndex {
     *
     * @param txHash The transaction hash
     */
-  fun delTransactionDescriptor(db : KeyValueDatabase, txHash : Hash) : Unit {
+  fun delTransactionDescriptor(db : KeyValueWriter, txHash : Hash) : Unit {
     //logger.trace(s"delTransactionDescriptor : ${txHash}")
     db.delObject(HashCodec, DB.TRANSACTION, txHash)
   }
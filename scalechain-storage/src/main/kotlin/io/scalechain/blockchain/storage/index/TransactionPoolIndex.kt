@@ -13,6 +13,10 @@ interface TransactionPoolIndex {
   //private val logger = LoggerFactory.getLogger(TransactionPoolIndex::class.java)
   fun getTxPoolPrefix() : Byte = DB.TRANSACTION_POOL
 
+  /** Get the index keeping spent outputs of transactions in the pool.
+    */
+  fun getTxPoolSpentOutputIndex() : SpentOutputIndex = SpentOutputIndex.TRANSACTION_POOL
+
   /** Put a transaction into the transaction pool.
     *
     * @param txHash The hash of the transaction to add.
@@ -39,6 +43,14 @@ interface TransactionPoolIndex {
     return db.getPrefixedObject(HashCodec, TransactionPoolEntryCodec, getTxPoolPrefix(), DUMMY_PREFIX_KEY, txHash)
   }
 
+  /** Check if a transaction exists in the transaction pool without decoding it.
+    *
+    * @param txHash The hash of the transaction to check.
+    * @return true if the transaction is in the pool; false otherwise.
+    */
+  fun hasTransactionInPool(db : KeyValueDatabase, txHash : Hash) : Boolean {
+    return db.existsPrefixedObject(HashCodec, getTxPoolPrefix(), DUMMY_PREFIX_KEY, txHash)
+  }
 
   /** Get all transactions in the pool.
     *
@@ -62,7 +74,7 @@ interface TransactionPoolIndex {
     *
     * @param txHash The hash of the transaction to remove.
     */
-  fun delTransactionFromPool(db : KeyValueDatabase, txHash : Hash) : Unit {
+  fun delTransactionFromPool(db : KeyValueWriter, txHash : Hash) : Unit {
     //println("delTransactionToPool ${txHash}")
     //logger.trace(s"delTransactionFromPool : ${txHash}")
 
@@ -57,14 +57,14 @@ interface TransactionTimeIndex {
     * @param creationTime The time when the transaction was created (in nano seconds)
     * @param txHash The hash of the transaction to remove
     */
-  fun delTransactionTime(db : KeyValueDatabase, creationTime: Long, txHash : Hash) : Unit {
+  fun delTransactionTime(db : KeyValueWriter, creationTime: Long, txHash : Hash) : Unit {
 
     val keyPrefix = timeToString(creationTime)
 
     db.delPrefixedObject(HashCodec, getTxTimePrefix(), keyPrefix, txHash )
   }
 
-  fun delTransactionTime(db : KeyValueDatabase, key : CStringPrefixed<Hash>) : Unit {
+  fun delTransactionTime(db : KeyValueWriter, key : CStringPrefixed<Hash>) : Unit {
     db.delPrefixedObject(HashCodec, getTxTimePrefix(), key )
   }
 
@@ -20,11 +20,15 @@ open class BlockAccessFile(path : File, maxFileSize : Long) {
     }
   }
 
+  /** Read bytes at the given offset.
+    * The position of the file channel is not changed, so multiple threads can read the file at the same time.
+    */
   fun read(offset : Long, size : Int) : ByteBuffer {
-    moveTo(offset)
-
     val buffer = ByteBuffer.allocate(size)
-    fileChannel.read(buffer)
+    while (buffer.hasRemaining()) {
+      val readBytes = fileChannel.read(buffer, offset + buffer.position())
+      if (readBytes < 0) break // The end of the file.
+    }
     return buffer
   }
 
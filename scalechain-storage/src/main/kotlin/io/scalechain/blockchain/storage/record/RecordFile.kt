@@ -35,6 +35,20 @@ class RecordFile(val path : File, private val maxFileSize : Long) : BlockAccessF
     }
   }
 
+  /** Read the serialized bytes of a record without decoding it.
+    *
+    * @param locator The locator of the record in this file.
+    * @return The serialized record.
+    */
+  fun readRecordBytes(locator : RecordLocator) : ByteArray {
+    rwLock.readLock().lock()
+    try {
+      return read(locator.offset, locator.size).array()
+    } finally {
+      rwLock.readLock().unlock()
+    }
+  }
+
   fun<T> appendRecord(codec : Codec<T>, record : T) : RecordLocator {
     rwLock.writeLock().lock()
 
@@ -106,6 +106,17 @@ open class RecordStorage(private val directoryPath : File, private val filePrefi
     return file.readRecord(codec, locator.recordLocator)
   }
 
+  /** Read the serialized bytes of a record without decoding it.
+    * Used for serving raw blocks and transactions without a decode/re-encode cycle.
+    */
+  fun readRecordBytes(locator : FileRecordLocator) : ByteArray {
+    if (locator.fileIndex < 0 || locator.fileIndex >= files.size) {
+      throw BlockStorageException(ErrorCode.InvalidFileNumber)
+    }
+
+    return files[locator.fileIndex].readRecordBytes(locator.recordLocator)
+  }
+
   fun close() {
     // Flush the last file first not to lose any data.
     lastFile().flush()
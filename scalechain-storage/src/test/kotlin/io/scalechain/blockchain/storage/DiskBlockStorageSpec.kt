@@ -120,7 +120,6 @@ class DiskBlockStorageSpec : BlockStorageTestTrait()  {
             expectedTx.hash(),
             TransactionPoolEntry(
               expectedTx,
-              listOf( null, InPoint(TestData.dummyHash(1), 1), null ),
               System.currentTimeMillis()
             )
           )
@@ -172,7 +171,7 @@ class DiskBlockStorageSpec : BlockStorageTestTrait()  {
           TransactionDescriptor(
             transactionLocator = txLocator,
             blockHeight = 1,
-            outputsSpentBy = ListExt.fill<InPoint?>( tx.outputs.size, null)
+            outputCount = tx.outputs.size
           )
         )
       }
@@ -7,6 +7,7 @@ import io.scalechain.blockchain.proto.*
 import io.scalechain.blockchain.proto.codec.CodecTestUtil
 import org.junit.runner.RunWith
 
+import io.scalechain.blockchain.storage.Storage
 import io.scalechain.blockchain.storage.test.TestData
 import io.scalechain.util.Bytes
 import io.scalechain.util.HexUtil.bytes
@@ -147,6 +148,31 @@ abstract class BlockDatabaseTestTrait : FlatSpec(), Matchers, CodecTestUtil {
       }
     }
 
+    "putBlockInfo" should "check the new block info against the given previous info without validation mode" {
+      val blockInfo = TestBlockInfo.copy(
+          blockLocatorOption = BLOCK_LOCATOR
+      )
+      blockDb.putBlockInfo(db, TestData.blockHash, blockInfo)
+
+      val validateWrites = Storage.validateWrites
+      Storage.validateWrites = false
+      try {
+        // Without validation mode, the current block info is not read.
+        blockDb.putBlockInfo(db, TestData.blockHash, blockInfo.copy(
+            transactionCount = 10
+        ))
+        blockDb.getBlockInfo(db, TestData.blockHash) shouldBe blockInfo.copy(transactionCount = 10)
+
+        shouldThrow<AssertionError> {
+          blockDb.putBlockInfo(db, TestData.blockHash, blockInfo.copy(
+              height = blockInfo.height + 1
+          ), blockInfo)
+        }
+      } finally {
+        Storage.validateWrites = validateWrites
+      }
+    }
+
     "putBestBlockHash/getBestBlockHash" should "successfully put/get data" {
       blockDb.getBestBlockHash(db) shouldBe null
 
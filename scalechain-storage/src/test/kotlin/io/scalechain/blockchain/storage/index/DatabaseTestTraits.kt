@@ -3,7 +3,7 @@ package io.scalechain.blockchain.storage.index
 /**
  * Created by kangmo on 15/12/2016.
  */
-interface DatabaseTestTraits : KeyValueDatabaseTestTrait, KeyValueDatabaseMultithreadTestTrait, KeyValueSeekTestTrait, KeyValuePrefixedSeekTestTrait, TransactionDescriptorIndexTestTrait, TransactionPoolIndexTestTrait, TransactionTimeIndexTestTrait{
+interface DatabaseTestTraits : KeyValueDatabaseTestTrait, KeyValueDatabaseMultithreadTestTrait, KeyValueSeekTestTrait, KeyValuePrefixedSeekTestTrait, TransactionDescriptorIndexTestTrait, TransactionPoolIndexTestTrait, TransactionTimeIndexTestTrait, SpentOutputIndexTestTrait, KeyValueWriteBatchTestTrait {
   override fun addTests() {
     super<KeyValueDatabaseTestTrait>.addTests()
     super<KeyValueDatabaseMultithreadTestTrait>.addTests()
@@ -12,5 +12,7 @@ interface DatabaseTestTraits : KeyValueDatabaseTestTrait, KeyValueDatabaseMultit
     super<TransactionDescriptorIndexTestTrait>.addTests()
     super<TransactionPoolIndexTestTrait>.addTests()
     super<TransactionTimeIndexTestTrait>.addTests()
+    super<SpentOutputIndexTestTrait>.addTests()
+    super<KeyValueWriteBatchTestTrait>.addTests()
   }
 }
\ No newline at end of file
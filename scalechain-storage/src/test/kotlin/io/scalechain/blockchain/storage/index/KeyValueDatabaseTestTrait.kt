@@ -14,6 +14,21 @@ interface KeyValueDatabaseTestTrait : ShouldSpec, KeyValueCommonTrait {
   var db : KeyValueDatabase
 
   fun addTests() {
+    "merge" should "append operands to the value with the delimiter" {
+      val D = KeyValueWriter.MERGE_DELIMITER
+
+      db.merge(B("k1"), B("a"))
+      L(db.get(B("k1"))) shouldBe L(B("a"))
+
+      db.merge(B("k1"), B("b"))
+      db.merge(B("k1"), B("c"))
+      L(db.get(B("k1"))) shouldBe L(B("a") + D + B("b") + D + B("c"))
+
+      db.put(B("k1"), B("v1"))
+      db.merge(B("k1"), B("d"))
+      L(db.get(B("k1"))) shouldBe L(B("v1") + D + B("d"))
+    }
+
     "getObject(rawKey)" should "return a value which was put" {
       val C = FileNumberCodec
 
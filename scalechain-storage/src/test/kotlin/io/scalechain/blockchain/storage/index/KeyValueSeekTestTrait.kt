@@ -13,6 +13,46 @@ interface KeyValueSeekTestTrait : ShouldSpec, KeyValueCommonTrait {
   var db : KeyValueDatabase
 
   fun addTests() {
+    "seekPrefix" should "iterate only keys with the prefix" {
+      db.put(B("a1"), B("v0"))
+      db.put(B("k1"), B("v1"))
+      db.put(B("k2"), B("v2"))
+      db.put(B("l1"), B("v3"))
+
+      db.seekPrefix(B("k")).use {
+        it.asSequence().map { pair ->
+          Pair(pair.first.toList(), pair.second.toList())
+        }.toList() shouldBe
+          listOf(
+            Pair(B("k1"), B("v1")),
+            Pair(B("k2"), B("v2"))).map { pair ->
+            Pair(pair.first.toList(), pair.second.toList())
+          }
+      }
+    }
+
+    "seekPrefix" should "start from the given key" {
+      db.put(B("k1"), B("v1"))
+      db.put(B("k2"), B("v2"))
+      db.put(B("k3"), B("v3"))
+      db.put(B("l1"), B("v4"))
+
+      db.seekPrefix(B("k"), B("k2")).use {
+        it.asSequence().map { pair -> pair.first.toList() }.toList() shouldBe listOf(B("k2").toList(), B("k3").toList())
+      }
+    }
+
+    "seekPrefix" should "iterate nothing if no key has the prefix" {
+      db.put(B("a1"), B("v1"))
+      db.put(B("l1"), B("v2"))
+
+      db.seekPrefix(B("k")).use {
+        it.hasNext() shouldBe false
+        // hasNext keeps returning false after the iteration stopped.
+        it.hasNext() shouldBe false
+      }
+    }
+
     "seek(None)" should "iterate nothing if not key exists" {
       db.seek(null).use {
         it.asSequence().toList().isEmpty() shouldBe true
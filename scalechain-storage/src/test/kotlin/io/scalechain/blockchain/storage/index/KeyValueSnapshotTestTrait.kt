@@ -0,0 +1,60 @@
+package io.scalechain.blockchain.storage.index
+
+import io.scalechain.test.ShouldSpec
+
+/**
+  * Test snapshot method of KeyValueDatabase.
+  * Only for databases that support point-in-time snapshots.
+  */
+interface KeyValueSnapshotTestTrait : ShouldSpec, KeyValueCommonTrait {
+  var db : KeyValueDatabase
+
+  fun addTests() {
+    "snapshot.get" should "see keys put before the snapshot was taken" {
+      db.put(B("k1"), B("v1"))
+      db.snapshot().use { snapshot ->
+        L(snapshot.get(B("k1"))) shouldBe L(B("v1"))
+        snapshot.exists(B("k1")) shouldBe true
+      }
+    }
+
+    "snapshot.get" should "not see keys put, updated or deleted after the snapshot was taken" {
+      db.put(B("k1"), B("v1"))
+      db.put(B("k2"), B("v2"))
+      db.snapshot().use { snapshot ->
+        db.put(B("k1"), B("v1-updated"))
+        db.del(B("k2"))
+        db.put(B("k3"), B("v3"))
+
+        L(snapshot.get(B("k1"))) shouldBe L(B("v1"))
+        L(snapshot.get(B("k2"))) shouldBe L(B("v2"))
+        snapshot.get(B("k3")) shouldBe null
+        snapshot.exists(B("k3")) shouldBe false
+      }
+      // The database sees the latest values.
+      L(db.get(B("k1"))) shouldBe L(B("v1-updated"))
+      db.get(B("k2")) shouldBe null
+      L(db.get(B("k3"))) shouldBe L(B("v3"))
+    }
+
+    "snapshot.seek" should "iterate keys at the time the snapshot was taken" {
+      db.put(B("k1"), B("v1"))
+      db.put(B("k2"), B("v2"))
+      db.snapshot().use { snapshot ->
+        db.del(B("k1"))
+        db.put(B("k3"), B("v3"))
+
+        snapshot.seek(null).use {
+          it.asSequence().map { pair ->
+            Pair(pair.first.toList(), pair.second.toList())
+          }.toList() shouldBe
+            listOf(
+              Pair(B("k1"), B("v1")),
+              Pair(B("k2"), B("v2"))).map { pair ->
+              Pair(pair.first.toList(), pair.second.toList())
+            }
+        }
+      }
+    }
+  }
+}
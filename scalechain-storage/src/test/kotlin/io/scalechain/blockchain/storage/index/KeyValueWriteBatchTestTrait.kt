@@ -0,0 +1,110 @@
+package io.scalechain.blockchain.storage.index
+
+import io.scalechain.blockchain.proto.FileNumber
+import io.scalechain.blockchain.proto.codec.FileNumberCodec
+import io.scalechain.test.ShouldSpec
+
+/**
+  * Test writeBatch method of KeyValueDatabase.
+  */
+interface KeyValueWriteBatchTestTrait : ShouldSpec, KeyValueCommonTrait {
+  var db : KeyValueDatabase
+
+  fun addTests() {
+    "writeBatch" should "not write changes until write is called" {
+      db.put(B("k1"), B("v1"))
+
+      val batch = db.writeBatch()
+      batch.put(B("k2"), B("v2"))
+      batch.del(B("k1"))
+      batch.size() shouldBe 2
+
+      L(db.get(B("k1"))) shouldBe L(B("v1"))
+      db.get(B("k2")) shouldBe null
+
+      batch.write()
+
+      db.get(B("k1")) shouldBe null
+      L(db.get(B("k2"))) shouldBe L(B("v2"))
+    }
+
+    "writeBatch" should "write the last change of a key" {
+      db.put(B("k1"), B("v1"))
+
+      val batch = db.writeBatch()
+      batch.del(B("k1"))
+      batch.put(B("k1"), B("v1-updated"))
+      batch.put(B("k2"), B("v2"))
+      batch.del(B("k2"))
+      batch.write()
+
+      L(db.get(B("k1"))) shouldBe L(B("v1-updated"))
+      db.get(B("k2")) shouldBe null
+    }
+
+    "writeBatch" should "put and delete objects" {
+      val C = FileNumberCodec
+      db.putObject(C, C, PREFIX1(), FileNumber(1), FileNumber(10))
+
+      val batch = db.writeBatch()
+      batch.delObject(C, PREFIX1(), FileNumber(1))
+      batch.putObject(C, C, PREFIX1(), FileNumber(2), FileNumber(20))
+      batch.putPrefixedObject(C, C, PREFIX2(), "prefix", FileNumber(3), FileNumber(30))
+      batch.write()
+
+      db.getObject(C, C, PREFIX1(), FileNumber(1)) shouldBe null
+      db.getObject(C, C, PREFIX1(), FileNumber(2)) shouldBe FileNumber(20)
+      db.getPrefixedObject(C, C, PREFIX2(), "prefix", FileNumber(3)) shouldBe FileNumber(30)
+    }
+
+    "writeBatch" should "merge operands in the order of changes" {
+      val D = KeyValueWriter.MERGE_DELIMITER
+      db.put(B("k1"), B("v1"))
+      db.put(B("k2"), B("v2"))
+
+      val batch = db.writeBatch()
+      // Merged into the value in the database.
+      batch.merge(B("k1"), B("a"))
+      batch.merge(B("k1"), B("b"))
+      // Merged into the value put in the batch.
+      batch.put(B("k2"), B("v2-updated"))
+      batch.merge(B("k2"), B("c"))
+      // The merge before the delete is discarded.
+      batch.merge(B("k3"), B("d"))
+      batch.del(B("k3"))
+      batch.merge(B("k3"), B("e"))
+
+      L(db.get(B("k1"))) shouldBe L(B("v1"))
+      batch.write()
+
+      L(db.get(B("k1"))) shouldBe L(B("v1") + D + B("a") + D + B("b"))
+      L(db.get(B("k2"))) shouldBe L(B("v2-updated") + D + B("c"))
+      L(db.get(B("k3"))) shouldBe L(B("e"))
+    }
+
+    "writeBatch" should "be reusable after it is written" {
+      val batch = db.writeBatch()
+      batch.put(B("k1"), B("v1"))
+      batch.write()
+      batch.size() shouldBe 0
+
+      batch.put(B("k2"), B("v2"))
+      batch.write()
+
+      L(db.get(B("k1"))) shouldBe L(B("v1"))
+      L(db.get(B("k2"))) shouldBe L(B("v2"))
+    }
+
+    "writeBatch" should "discard changes not written when it is closed" {
+      db.writeBatch().use { batch ->
+        batch.put(B("k1"), B("v1"))
+        batch.write()
+        batch.put(B("k2"), B("v2"))
+        batch.merge(B("k1"), B("a"))
+      }
+
+      L(db.get(B("k1"))) shouldBe L(B("v1"))
+      db.get(B("k2")) shouldBe null
+    }
+  }
+}
@@ -14,7 +14,7 @@ import java.io.File
 
 @RunWith(KTestJUnitRunner::class)
 @Ignore // MapDatabase is too slow. Will enable this case after optimizing MapDatabase.
-class MapDatabaseSpec : FlatSpec(), Matchers, DatabaseTestTraits {
+class MapDatabaseSpec : FlatSpec(), Matchers, DatabaseTestTraits, KeyValueSnapshotTestTrait {
 
   val testPath = File("./build/unittests-MapDatabaseSpec")
 
@@ -39,4 +39,9 @@ class MapDatabaseSpec : FlatSpec(), Matchers, DatabaseTestTraits {
     Storage.initialize()
     addTests()
   }
+
+  override fun addTests() {
+    super<DatabaseTestTraits>.addTests()
+    super<KeyValueSnapshotTestTrait>.addTests()
+  }
 }
@@ -13,7 +13,7 @@ import org.junit.runner.RunWith
   */
 // Currently RocksDB crashes while seeking a key and iterating (key,value) pairs.
 @RunWith(KTestJUnitRunner::class)
-class RocksDatabaseSpec : FlatSpec(), Matchers, DatabaseTestTraits {
+class RocksDatabaseSpec : FlatSpec(), Matchers, DatabaseTestTraits, KeyValueSnapshotTestTrait {
 
   val testPath = File("./build/unittests-RocksDatabaseSpec")
 
@@ -38,4 +38,9 @@ class RocksDatabaseSpec : FlatSpec(), Matchers, DatabaseTestTraits {
     Storage.initialize()
     addTests()
   }
+
+  override fun addTests() {
+    super<DatabaseTestTraits>.addTests()
+    super<KeyValueSnapshotTestTrait>.addTests()
+  }
 }
@@ -0,0 +1,133 @@
+package io.scalechain.blockchain.storage.index
+
+import io.kotlintest.KTestJUnitRunner
+import io.scalechain.blockchain.proto.InPoint
+import io.scalechain.blockchain.proto.OutPoint
+import io.scalechain.blockchain.proto.SpentOutputBitmap
+import io.scalechain.blockchain.proto.codec.HashCodec
+import io.scalechain.blockchain.proto.test.ProtoTestData
+import io.scalechain.blockchain.storage.test.TestData.dummyHash
+import io.scalechain.test.ShouldSpec
+import org.junit.runner.RunWith
+
+@RunWith(KTestJUnitRunner::class)
+interface SpentOutputIndexTestTrait : ShouldSpec, KeyValueCommonTrait, ProtoTestData {
+  var db : KeyValueDatabase
+
+  fun spentOutputIndexes() = listOf( SpentOutputIndex.TRANSACTION, SpentOutputIndex.TRANSACTION_POOL, SpentOutputIndex.TEMP_TRANSACTION_POOL )
+
+  fun addTests() {
+    "getSpentOutputs" should "return null if the bitmap was not put" {
+      spentOutputIndexes().forEach { index ->
+        index.getSpentOutputs(db, dummyHash(1)) shouldBe null
+      }
+    }
+
+    "getSpentOutputs" should "return the bitmap that has been put" {
+      spentOutputIndexes().forEach { index ->
+        index.putSpentOutputs(db, dummyHash(1), SpentOutputBitmap.unspent(10))
+        index.getSpentOutputs(db, dummyHash(1)) shouldBe SpentOutputBitmap.unspent(10)
+      }
+    }
+
+    "markOutputSpent" should "mark the output spent by the in-point" {
+      spentOutputIndexes().forEach { index ->
+        val outPoint = OutPoint(dummyHash(1), 9)
+        index.putSpentOutputs(db, dummyHash(1), SpentOutputBitmap.unspent(10))
+        index.getOutputSpentBy(db, outPoint) shouldBe null
+
+        index.markOutputSpent(db, outPoint, InPoint(dummyHash(2), 0))
+
+        val spentOutputs = index.getSpentOutputs(db, dummyHash(1))!!
+        spentOutputs.spentOutputIndexes() shouldBe listOf(9)
+        index.getOutputSpentBy(db, outPoint) shouldBe InPoint(dummyHash(2), 0)
+        index.getOutputSpentBy(db, OutPoint(dummyHash(1), 8)) shouldBe null
+      }
+    }
+
+    "markOutputUnspent" should "mark the output unspent" {
+      spentOutputIndexes().forEach { index ->
+        val outPoint = OutPoint(dummyHash(1), 1)
+        index.putSpentOutputs(db, dummyHash(1), SpentOutputBitmap.unspent(2))
+        index.markOutputSpent(db, outPoint, InPoint(dummyHash(2), 0))
+
+        index.markOutputUnspent(db, outPoint)
+
+        index.getSpentOutputs(db, dummyHash(1)) shouldBe SpentOutputBitmap.unspent(2)
+        index.getOutputSpentBy(db, outPoint) shouldBe null
+      }
+    }
+
+    "getSpentOutputs" should "apply marks in a write batch in order" {
+      spentOutputIndexes().forEach { index ->
+        index.putSpentOutputs(db, dummyHash(1), SpentOutputBitmap.unspent(20))
+
+        val batch = db.writeBatch()
+        index.markOutputSpent(batch, OutPoint(dummyHash(1), 3), InPoint(dummyHash(2), 0))
+        index.markOutputSpent(batch, OutPoint(dummyHash(1), 17), InPoint(dummyHash(2), 1))
+        index.markOutputUnspent(batch, OutPoint(dummyHash(1), 3))
+        batch.write()
+
+        index.getSpentOutputs(db, dummyHash(1))!!.spentOutputIndexes() shouldBe listOf(17)
+        index.getOutputSpentBy(db, OutPoint(dummyHash(1), 3)) shouldBe null
+        index.getOutputSpentBy(db, OutPoint(dummyHash(1), 17)) shouldBe InPoint(dummyHash(2), 1)
+
+        // Putting the bitmap replaces the marks merged into it.
+        index.putSpentOutputs(db, dummyHash(1), SpentOutputBitmap.unspent(20))
+        index.getSpentOutputs(db, dummyHash(1)) shouldBe SpentOutputBitmap.unspent(20)
+      }
+    }
+
+    "getSpentOutputs" should "put the bitmap with the deltas applied once FoldThreshold deltas were merged into it" {
+      val index = SpentOutputIndex.TRANSACTION
+      val rawKey = byteArrayOf(DB.TRANSACTION_SPENT_OUTPUTS) + HashCodec.encode(dummyHash(1))
+      val outputCount = SpentOutputIndex.FoldThreshold + 1
+      index.putSpentOutputs(db, dummyHash(1), SpentOutputBitmap.unspent(outputCount))
+      val bitmapSize = db.get(rawKey)!!.size
+
+      for (outputIndex in 0 until SpentOutputIndex.FoldThreshold - 1) {
+        index.markOutputSpent(db, OutPoint(dummyHash(1), outputIndex), InPoint(dummyHash(2), outputIndex))
+      }
+      // Fewer deltas than the threshold are not folded.
+      index.getSpentOutputs(db, dummyHash(1), db)
+      (db.get(rawKey)!!.size > bitmapSize) shouldBe true
+
+      index.markOutputSpent(db, OutPoint(dummyHash(1), outputCount - 1), InPoint(dummyHash(2), outputCount - 1))
+      // Without the writer, deltas are not folded.
+      index.getSpentOutputs(db, dummyHash(1))
+      (db.get(rawKey)!!.size > bitmapSize) shouldBe true
+
+      val spentOutputs = index.getSpentOutputs(db, dummyHash(1), db)!!
+      db.get(rawKey)!!.size shouldBe bitmapSize
+      index.getSpentOutputs(db, dummyHash(1)) shouldBe spentOutputs
+      spentOutputs.spentOutputIndexes() shouldBe (0 until SpentOutputIndex.FoldThreshold - 1).toList() + (outputCount - 1)
+    }
+
+    "getSpentOutputs" should "return null if outputs were marked after the bitmap was deleted" {
+      spentOutputIndexes().forEach { index ->
+        index.putSpentOutputs(db, dummyHash(1), SpentOutputBitmap.unspent(2))
+        index.delSpentOutputs(db, dummyHash(1), 2)
+
+        // The deltas are stored without a bitmap.
+        index.markOutputSpent(db, OutPoint(dummyHash(1), 0), InPoint(dummyHash(2), 0))
+        index.markOutputUnspent(db, OutPoint(dummyHash(1), 1))
+
+        index.getSpentOutputs(db, dummyHash(1)) shouldBe null
+      }
+    }
+
+    "delSpentOutputs" should "delete the bitmap and in-points spending outputs" {
+      spentOutputIndexes().forEach { index ->
+        index.putSpentOutputs(db, dummyHash(1), SpentOutputBitmap.unspent(3))
+        index.markOutputSpent(db, OutPoint(dummyHash(1), 0), InPoint(dummyHash(2), 0))
+        index.markOutputSpent(db, OutPoint(dummyHash(1), 2), InPoint(dummyHash(2), 1))
+
+        index.delSpentOutputs(db, dummyHash(1), 3)
+
+        index.getSpentOutputs(db, dummyHash(1)) shouldBe null
+        index.getOutputSpentBy(db, OutPoint(dummyHash(1), 0)) shouldBe null
+        index.getOutputSpentBy(db, OutPoint(dummyHash(1), 2)) shouldBe null
+      }
+    }
+  }
+}
@@ -35,5 +35,33 @@ class TransactingRocksDatabaseSpec : FlatSpec(), Matchers, DatabaseTestTraits {
   init {
     Storage.initialize()
     addTests()
+
+    "merge" should "be visible to get in the transaction, and be written when the transaction is committed" {
+      val D = KeyValueWriter.MERGE_DELIMITER
+      db.put(B("k1"), B("v1"))
+
+      // Merged into the value in the database.
+      txDb.merge(B("k1"), B("a"))
+      txDb.merge(B("k1"), B("b"))
+      // Merged into the value put in the transaction.
+      txDb.put(B("k2"), B("v2"))
+      txDb.merge(B("k2"), B("c"))
+      // Merged into the key deleted in the transaction.
+      txDb.merge(B("k3"), B("d"))
+      txDb.del(B("k3"))
+      txDb.merge(B("k3"), B("e"))
+
+      L(txDb.get(B("k1"))) shouldBe L(B("v1") + D + B("a") + D + B("b"))
+      L(txDb.get(B("k2"))) shouldBe L(B("v2") + D + B("c"))
+      L(txDb.get(B("k3"))) shouldBe L(B("e"))
+      L(db.get(B("k1"))) shouldBe L(B("v1"))
+
+      txDb.commitTransaction()
+      txDb.beginTransaction()
+
+      L(db.get(B("k1"))) shouldBe L(B("v1") + D + B("a") + D + B("b"))
+      L(db.get(B("k2"))) shouldBe L(B("v2") + D + B("c"))
+      L(db.get(B("k3"))) shouldBe L(B("e"))
+    }
   }
 }
\ No newline at end of file
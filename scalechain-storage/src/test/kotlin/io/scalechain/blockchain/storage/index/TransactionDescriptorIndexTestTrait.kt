@@ -9,7 +9,6 @@ import io.scalechain.blockchain.script.hash
 import io.scalechain.blockchain.storage.TransactionLocator
 import io.scalechain.blockchain.storage.test.TestData
 import io.scalechain.test.ShouldSpec
-import io.scalechain.util.ListExt
 import org.junit.runner.RunWith
 
 /**
@@ -23,7 +22,7 @@ interface TransactionDescriptorIndexTestTrait : ShouldSpec, KeyValueCommonTrait,
     return TransactionDescriptor(
       transactionLocator = FileRecordLocator(1, RecordLocator(2,3)),
       blockHeight = height,
-      outputsSpentBy = ListExt.fill<InPoint?>( outputCount, null)
+      outputCount = outputCount
     )
   }
 
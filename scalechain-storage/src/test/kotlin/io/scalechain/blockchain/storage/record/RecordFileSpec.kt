@@ -57,6 +57,12 @@ class RecordFileSpec : FlatSpec(), Matchers, CodecTestUtil {
       file.readRecord(FileNumberCodec, locator2) shouldBe record2
       file.readRecord(FileNumberCodec, locator3) shouldBe record3
     }
+
+    "readRecordBytes" should "return the serialized record" {
+      val record = FileNumber(7)
+      val locator = file.appendRecord(FileNumberCodec, record)
+      file.readRecordBytes(locator).toList() shouldBe FileNumberCodec.encode(record).toList()
+    }
   }
 
   companion object {
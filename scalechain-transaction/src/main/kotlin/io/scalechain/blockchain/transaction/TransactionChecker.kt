@@ -0,0 +1,165 @@
+package io.scalechain.blockchain.transaction
+
+import io.scalechain.blockchain.ErrorCode
+import io.scalechain.blockchain.ScriptEvalException
+import io.scalechain.blockchain.ScriptParseException
+import io.scalechain.blockchain.TransactionVerificationException
+import io.scalechain.blockchain.proto.GenerationTransactionInput
+import io.scalechain.blockchain.proto.NormalTransactionInput
+import io.scalechain.blockchain.proto.OutPoint
+import io.scalechain.blockchain.proto.Transaction
+import io.scalechain.blockchain.proto.codec.TransactionCodec
+import io.scalechain.blockchain.script.ScriptParser
+import io.scalechain.blockchain.script.ops.OpPush
+import io.scalechain.blockchain.script.ops.OpPushData
+import io.scalechain.util.Config
+
+/**
+  * Checks of a transaction that do not need the blockchain, the transaction pool or any lock.
+  * Transactions received from peers are checked before they are put into the transaction pool,
+  * so that obviously invalid transactions are rejected without touching the UTXO set. Same as CheckTransaction of the reference implementation.
+  *
+  * (1) Consensus checks : inputs and outputs exist, the serialized size, output values, duplicate inputs and coinbase rules.
+  *     A transaction failing them is invalid in any block. Throws TransactionVerificationException with ErrorCode.InvalidTransaction.
+  * (2) Script checks : the unlocking script of each input is parsed,
+  *     and the signature of an unlocking script spending a public key hash should be strict DER.
+  *     Locking scripts of outputs are not parsed. An output with a script that can not be parsed is valid in a block, and only unspendable.
+  *     Throws TransactionVerificationException with ErrorCode.ScriptParseFailure or ErrorCode.InvalidSignatureFormat.
+  */
+object TransactionChecker {
+  /** The maximum number of coin units in existence. No output or sum of outputs can exceed it.
+    */
+  val MAX_MONEY = 21000000L * 100000000L
+
+  /** Check a transaction received to be put into the transaction pool. The transaction should not be a coinbase transaction.
+    *
+    * @param transaction The transaction to check.
+    * @param serializedSize The size of the transaction on the wire. The transaction is encoded only if it was not decoded from a tx message.
+    * @throws TransactionVerificationException if the transaction is invalid.
+    */
+  fun check(transaction : Transaction, serializedSize : Int = transaction.serializedSize ?: TransactionCodec.encode(transaction).size) : Unit {
+    checkConsensus(transaction, serializedSize)
+
+    if (isCoinbase(transaction)) {
+      throw TransactionVerificationException(ErrorCode.InvalidTransaction, "A coinbase transaction is valid only in a block.")
+    }
+
+    checkScripts(transaction)
+  }
+
+  /** Check rules every transaction in a block should satisfy.
+    */
+  fun checkConsensus(transaction : Transaction, serializedSize : Int) : Unit {
+    if (transaction.inputs.isEmpty()) {
+      throw TransactionVerificationException(ErrorCode.InvalidTransaction, "The transaction has no input.")
+    }
+    if (transaction.outputs.isEmpty()) {
+      throw TransactionVerificationException(ErrorCode.InvalidTransaction, "The transaction has no output.")
+    }
+    if (serializedSize > Config.MAX_BLOCK_SIZE) {
+      throw TransactionVerificationException(ErrorCode.InvalidTransaction, "The transaction is larger than a block. Size : ${serializedSize}")
+    }
+
+    var totalValue = 0L
+    transaction.outputs.forEach { output ->
+      if (output.value < 0 || output.value > MAX_MONEY) {
+        throw TransactionVerificationException(ErrorCode.InvalidTransaction, "An output value is out of range. Value : ${output.value}")
+      }
+      totalValue += output.value
+      if (totalValue > MAX_MONEY) {
+        throw TransactionVerificationException(ErrorCode.InvalidTransaction, "The sum of output values is out of range.")
+      }
+    }
+
+    val outPoints = hashSetOf<OutPoint>()
+    transaction.inputs.forEach { input ->
+      if (!outPoints.add(input.getOutPoint())) {
+        throw TransactionVerificationException(ErrorCode.InvalidTransaction, "The transaction spends an output twice. Out point : ${input.getOutPoint()}")
+      }
+    }
+
+    if (isCoinbase(transaction)) {
+      val coinbaseDataSize = (transaction.inputs[0] as GenerationTransactionInput).coinbaseData.data.array.size
+      if (coinbaseDataSize < 2 || coinbaseDataSize > 100) {
+        throw TransactionVerificationException(ErrorCode.InvalidTransaction, "The coinbase data size is out of range. Size : ${coinbaseDataSize}")
+      }
+    } else {
+      if (transaction.inputs.any { it.isCoinBaseInput() }) {
+        throw TransactionVerificationException(ErrorCode.InvalidTransaction, "A coinbase input in a normal transaction.")
+      }
+    }
+  }
+
+  /** Parse unlocking scripts of a transaction, and check the encoding of signatures spending public key hashes.
+    */
+  fun checkScripts(transaction : Transaction) : Unit {
+    try {
+      transaction.inputs.forEach { input ->
+        if (input is NormalTransactionInput) {
+          val operations = ScriptParser.parse(input.unlockingScript).operations
+          // A pay-to-public-key-hash unlocking script : <signature> <public key>
+          if (operations.size == 2) {
+            val signature = pushedValue(operations[0])
+            val publicKey = pushedValue(operations[1])
+            if (signature != null && publicKey != null && isPublicKey(publicKey) && !isValidSignatureEncoding(signature)) {
+              throw TransactionVerificationException(ErrorCode.InvalidSignatureFormat, "The signature is not strict DER. Out point : ${input.getOutPoint()}")
+            }
+          }
+        }
+      }
+    } catch (e : ScriptParseException) {
+      throw TransactionVerificationException(ErrorCode.ScriptParseFailure, "<${e.code}>message=${e.message}")
+    } catch (e : ScriptEvalException) {
+      // Thrown while parsing a push operation without enough data.
+      throw TransactionVerificationException(ErrorCode.ScriptParseFailure, "<${e.code}>message=${e.message}")
+    }
+  }
+
+  fun isCoinbase(transaction : Transaction) : Boolean =
+    transaction.inputs.size == 1 && transaction.inputs[0] is GenerationTransactionInput
+
+  private fun pushedValue(operation : Any) : ByteArray? =
+    when(operation) {
+      is OpPush -> operation.inputValue?.value
+      is OpPushData -> operation.inputValue?.value
+      else -> null
+    }
+
+  private fun isPublicKey(value : ByteArray) : Boolean {
+    val prefix = value.getOrNull(0)?.toInt()
+    return (value.size == 33 && (prefix == 0x02 || prefix == 0x03)) || (value.size == 65 && prefix == 0x04)
+  }
+
+  /** Check if a signature followed by a hash type is strict DER, as BIP66 requires.
+    * Format : 0x30 [total-length] 0x02 [R-length] [R] 0x02 [S-length] [S] [hash-type]
+    *
+    * @param signature The signature with the hash type byte.
+    * @return true if the signature is strict DER; false otherwise.
+    */
+  fun isValidSignatureEncoding(signature : ByteArray) : Boolean {
+    fun at(i : Int) = signature[i].toInt() and 0xFF
+
+    if (signature.size < 9 || signature.size > 73) return false
+    if (at(0) != 0x30) return false
+    if (at(1) != signature.size - 3) return false
+
+    val lenR = at(3)
+    if (5 + lenR >= signature.size) return false
+    val lenS = at(5 + lenR)
+    if (lenR + lenS + 7 != signature.size) return false
+
+    // R should be a positive integer without unnecessary leading zeros.
+    if (at(2) != 0x02) return false
+    if (lenR == 0) return false
+    if ((at(4) and 0x80) != 0) return false
+    if (lenR > 1 && at(4) == 0x00 && (at(5) and 0x80) == 0) return false
+
+    // S should be a positive integer without unnecessary leading zeros.
+    if (at(lenR + 4) != 0x02) return false
+    if (lenS == 0) return false
+    if ((at(lenR + 6) and 0x80) != 0) return false
+    if (lenS > 1 && at(lenR + 6) == 0x00 && (at(lenR + 7) and 0x80) == 0) return false
+
+    return true
+  }
+}
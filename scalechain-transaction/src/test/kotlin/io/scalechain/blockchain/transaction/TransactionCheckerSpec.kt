@@ -0,0 +1,97 @@
+package io.scalechain.blockchain.transaction
+
+import io.kotlintest.KTestJUnitRunner
+import io.kotlintest.matchers.Matchers
+import io.kotlintest.specs.FlatSpec
+import io.scalechain.blockchain.ErrorCode
+import io.scalechain.blockchain.TransactionVerificationException
+import io.scalechain.blockchain.proto.CoinbaseData
+import io.scalechain.blockchain.proto.GenerationTransactionInput
+import io.scalechain.blockchain.proto.Hash
+import io.scalechain.blockchain.proto.LockingScript
+import io.scalechain.blockchain.proto.NormalTransactionInput
+import io.scalechain.blockchain.proto.Transaction
+import io.scalechain.blockchain.proto.TransactionOutput
+import io.scalechain.blockchain.proto.UnlockingScript
+import io.scalechain.blockchain.proto.test.ProtoTestData
+import io.scalechain.util.Bytes
+import io.scalechain.util.HexUtil
+import org.junit.runner.RunWith
+
+@RunWith(KTestJUnitRunner::class)
+class TransactionCheckerSpec : FlatSpec(), Matchers, ProtoTestData {
+
+  fun checkFailure(transaction : Transaction) : ErrorCode {
+    val thrown = shouldThrow<TransactionVerificationException> {
+      TransactionChecker.check(transaction)
+    }
+    return thrown.code
+  }
+
+  init {
+    "check" should "pass a valid transaction" {
+      TransactionChecker.check(transaction1())
+    }
+
+    "check" should "reject a transaction without inputs or outputs" {
+      checkFailure(transaction1().copy(inputs = listOf())) shouldBe ErrorCode.InvalidTransaction
+      checkFailure(transaction1().copy(outputs = listOf())) shouldBe ErrorCode.InvalidTransaction
+    }
+
+    "check" should "reject output values out of range" {
+      val output = transaction1().outputs[0]
+      checkFailure(transaction1().copy(outputs = listOf(output.copy(value = -1L)))) shouldBe ErrorCode.InvalidTransaction
+      checkFailure(transaction1().copy(outputs = listOf(output.copy(value = TransactionChecker.MAX_MONEY + 1)))) shouldBe ErrorCode.InvalidTransaction
+      checkFailure(transaction1().copy(outputs = listOf(output.copy(value = TransactionChecker.MAX_MONEY), output))) shouldBe ErrorCode.InvalidTransaction
+    }
+
+    "check" should "reject a transaction spending the same output twice" {
+      val input = transaction1().inputs[0]
+      checkFailure(transaction1().copy(inputs = listOf(input, input))) shouldBe ErrorCode.InvalidTransaction
+    }
+
+    "check" should "reject a coinbase transaction" {
+      val coinbase = transaction1().copy(inputs = listOf(
+        GenerationTransactionInput(Hash(Bytes(ByteArray(32))), 0xFFFFFFFFL, CoinbaseData(Bytes(byteArrayOf(1, 2, 3))), 0xFFFFFFFFL)
+      ))
+      // A coinbase transaction is valid in a block, but not in the transaction pool.
+      TransactionChecker.checkConsensus(coinbase, 100)
+      checkFailure(coinbase) shouldBe ErrorCode.InvalidTransaction
+    }
+
+    "check" should "reject a signature that is not strict DER" {
+      val input = transaction1().inputs[0] as NormalTransactionInput
+      val unlockingScriptHex = HexUtil.hex(input.unlockingScript.data.array)
+      unlockingScriptHex.startsWith("483045") shouldBe true
+      // Change the total length of the DER signature.
+      val malleatedInput = input.copy(unlockingScript = UnlockingScript(Bytes.from("483044" + unlockingScriptHex.substring(6))))
+      checkFailure(transaction1().copy(inputs = listOf(malleatedInput))) shouldBe ErrorCode.InvalidSignatureFormat
+    }
+
+    "check" should "reject an unlocking script that can not be parsed" {
+      // OP_PUSHDATA1 without the byte count.
+      val input = (transaction1().inputs[0] as NormalTransactionInput).copy(unlockingScript = UnlockingScript(Bytes(byteArrayOf(0x4c))))
+      checkFailure(transaction1().copy(inputs = listOf(input))) shouldBe ErrorCode.ScriptParseFailure
+    }
+
+    "check" should "pass a locking script that can not be parsed" {
+      // An output with a script that can not be parsed is valid in a block, and only unspendable.
+      val output = TransactionOutput(1000L, LockingScript(Bytes(byteArrayOf(0x4c))))
+      TransactionChecker.check(transaction1().copy(outputs = listOf(output)))
+    }
+
+    "isValidSignatureEncoding" should "accept strict DER and reject padded or truncated signatures" {
+      // 0x30 [len] 0x02 [lenR] [R] 0x02 [lenS] [S] [hash type]
+      val r = "00e55e797b51711148692b9cc4a2c80652c69bd78d4103438dec41e01670c046f8"
+      val s = "7ef80574570cfde8f6a788a6b2900343d01115645b6a037773c43df507493294"
+      val signature = "30450221${r}0220${s}01"
+      TransactionChecker.isValidSignatureEncoding(Bytes.from(signature).array) shouldBe true
+      // R without the leading zero is a negative integer.
+      TransactionChecker.isValidSignatureEncoding(Bytes.from("30440220${r.substring(2)}0220${s}01").array) shouldBe false
+      // R with an unnecessary leading zero.
+      TransactionChecker.isValidSignatureEncoding(Bytes.from("30460222${"00" + r}0220${s}01").array) shouldBe false
+      // Truncated.
+      TransactionChecker.isValidSignatureEncoding(Bytes.from(signature.substring(0, 20)).array) shouldBe false
+    }
+  }
+}
@@ -0,0 +1,147 @@
+package io.scalechain.util
+
+import io.netty.bootstrap.Bootstrap
+import io.netty.bootstrap.ServerBootstrap
+import io.netty.buffer.ByteBufAllocator
+import io.netty.buffer.PooledByteBufAllocator
+import io.netty.channel.ChannelOption
+import io.netty.channel.EventLoopGroup
+import io.netty.channel.ServerChannel
+import io.netty.channel.epoll.Epoll
+import io.netty.channel.epoll.EpollEventLoopGroup
+import io.netty.channel.epoll.EpollServerSocketChannel
+import io.netty.channel.epoll.EpollSocketChannel
+import io.netty.channel.nio.NioEventLoopGroup
+import io.netty.channel.socket.SocketChannel
+import io.netty.channel.socket.nio.NioServerSocketChannel
+import io.netty.channel.socket.nio.NioSocketChannel
+import io.netty.util.concurrent.DefaultThreadFactory
+import org.slf4j.LoggerFactory
+
+/**
+  * The netty transport, event loop sizes and socket options of a server or a client.
+  *
+  * Uses the Linux epoll transport if it is available, and NIO otherwise.
+  * Channels use a pooled allocator preferring direct buffers, and socket options tuned for block sized messages.
+  *
+  * @param useEpoll Whether to use the epoll transport. Set only if Epoll.isAvailable() is true.
+  * @param bossThreads The number of threads accepting connections.
+  * @param workerThreads The number of threads doing I/O on connections. 0 means netty's default, twice the number of cores.
+  * @param socketBufferBytes The size of the send and receive buffers of sockets. 0 keeps the OS default.
+  * @param backlog The maximum number of connections waiting to be accepted.
+  */
+data class NettyTransport(val useEpoll : Boolean,
+                          val bossThreads : Int = DefaultBossThreads,
+                          val workerThreads : Int = DefaultWorkerThreads,
+                          val socketBufferBytes : Int = DefaultSocketBufferBytes,
+                          val backlog : Int = DefaultBacklog) {
+
+  /** Create an event loop group for the transport.
+    *
+    * @param threads The number of threads. 0 means netty's default.
+    * @param name The prefix of the thread names.
+    */
+  fun eventLoopGroup(threads : Int, name : String) : EventLoopGroup {
+    val threadFactory = DefaultThreadFactory(name)
+    return if (useEpoll) EpollEventLoopGroup(threads, threadFactory) else NioEventLoopGroup(threads, threadFactory)
+  }
+
+  fun bossGroup(name : String) : EventLoopGroup = eventLoopGroup(bossThreads, "${name}-boss")
+
+  fun workerGroup(name : String) : EventLoopGroup = eventLoopGroup(workerThreads, "${name}-worker")
+
+  fun serverChannelClass() : Class<out ServerChannel> =
+    if (useEpoll) EpollServerSocketChannel::class.java else NioServerSocketChannel::class.java
+
+  fun socketChannelClass() : Class<out SocketChannel> =
+    if (useEpoll) EpollSocketChannel::class.java else NioSocketChannel::class.java
+
+  /** Set the channel class and options of a server bootstrap.
+    * The bootstrap should use event loop groups created by this transport.
+    */
+  fun configure(b : ServerBootstrap) : ServerBootstrap {
+    b.channel(serverChannelClass())
+     .option(ChannelOption.SO_BACKLOG, backlog)
+     .option(ChannelOption.SO_REUSEADDR, true)
+     .option(ChannelOption.ALLOCATOR, Allocator)
+     .childOption(ChannelOption.SO_KEEPALIVE, true)
+     .childOption(ChannelOption.TCP_NODELAY, true)
+     .childOption(ChannelOption.ALLOCATOR, Allocator)
+    if (socketBufferBytes > 0) {
+      // The receive buffer of accepted sockets is inherited from the server socket, so that the TCP window can be large from the start.
+      b.option(ChannelOption.SO_RCVBUF, socketBufferBytes)
+       .childOption(ChannelOption.SO_RCVBUF, socketBufferBytes)
+       .childOption(ChannelOption.SO_SNDBUF, socketBufferBytes)
+    }
+    return b
+  }
+
+  /** Set the channel class and options of a client bootstrap.
+    * The bootstrap should use an event loop group created by this transport.
+    */
+  fun configure(b : Bootstrap) : Bootstrap {
+    b.channel(socketChannelClass())
+     .option(ChannelOption.SO_KEEPALIVE, true)
+     .option(ChannelOption.TCP_NODELAY, true)
+     .option(ChannelOption.ALLOCATOR, Allocator)
+    if (socketBufferBytes > 0) {
+      b.option(ChannelOption.SO_RCVBUF, socketBufferBytes)
+       .option(ChannelOption.SO_SNDBUF, socketBufferBytes)
+    }
+    return b
+  }
+
+  companion object {
+    private val logger = LoggerFactory.getLogger(NettyTransport::class.java)
+
+    val DefaultBossThreads = 1
+    val DefaultWorkerThreads = 0
+    // Large enough to keep a 1MB block in flight on a connection.
+    val DefaultSocketBufferBytes = 1024 * 1024
+    val DefaultBacklog = 1024
+
+    /** The allocator of all channels. Pooled direct buffers avoid copying data between the heap and sockets.
+      */
+    val Allocator : ByteBufAllocator = PooledByteBufAllocator(true)
+
+    /** Create a transport with settings under a path in the configuration file.
+      *
+      * <path>.transport : "epoll", "nio" or "auto". "auto", the default, uses epoll if it is available.
+      * <path>.boss_threads : The number of threads accepting connections.
+      * <path>.worker_threads : The number of I/O threads. 0 means netty's default, twice the number of cores.
+      * <path>.socket_buffer_kb : The size of the send and receive buffers of sockets. 0 keeps the OS default.
+      * <path>.backlog : The maximum number of connections waiting to be accepted.
+      *
+      * @param path The path of the settings, ex> "scalechain.p2p".
+      */
+    fun create(path : String, config : Config = Config.get()) : NettyTransport {
+      fun getInt(name : String, default : Int) : Int =
+        if (config.hasPath("${path}.${name}")) config.getInt("${path}.${name}") else default
+
+      val transportName = if (config.hasPath("${path}.transport")) config.getString("${path}.transport") else "auto"
+      val useEpoll = when(transportName) {
+        "nio" -> false
+        "epoll" -> {
+          if (!Epoll.isAvailable()) {
+            logger.warn("The epoll transport is not available for ${path}. Using NIO. Cause : ${Epoll.unavailabilityCause()}")
+          }
+          Epoll.isAvailable()
+        }
+        "auto" -> Epoll.isAvailable()
+        else -> {
+          logger.warn("Unknown transport for ${path} : ${transportName}. Using auto.")
+          Epoll.isAvailable()
+        }
+      }
+
+      val transport = NettyTransport(
+        useEpoll,
+        getInt("boss_threads", DefaultBossThreads),
+        getInt("worker_threads", DefaultWorkerThreads),
+        getInt("socket_buffer_kb", DefaultSocketBufferBytes / 1024) * 1024,
+        getInt("backlog", DefaultBacklog))
+      logger.info("Netty transport for ${path} : ${transport}")
+      return transport
+    }
+  }
+}
@@ -0,0 +1,120 @@
+package io.scalechain.util
+
+import com.typesafe.config.ConfigFactory
+import io.kotlintest.KTestJUnitRunner
+import io.kotlintest.matchers.Matchers
+import io.kotlintest.specs.FlatSpec
+import io.netty.bootstrap.Bootstrap
+import io.netty.bootstrap.ServerBootstrap
+import io.netty.buffer.ByteBuf
+import io.netty.channel.Channel
+import io.netty.channel.ChannelHandlerContext
+import io.netty.channel.ChannelInboundHandlerAdapter
+import io.netty.channel.ChannelInitializer
+import io.netty.channel.epoll.Epoll
+import io.netty.channel.epoll.EpollServerSocketChannel
+import io.netty.channel.socket.SocketChannel
+import io.netty.channel.socket.nio.NioServerSocketChannel
+import io.netty.channel.socket.nio.NioSocketChannel
+import org.junit.runner.RunWith
+import org.slf4j.LoggerFactory
+import java.net.InetSocketAddress
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+@RunWith(KTestJUnitRunner::class)
+class NettyTransportSpec : FlatSpec(), Matchers {
+  private val logger = LoggerFactory.getLogger(NettyTransportSpec::class.java)
+
+  fun config(text : String) = Config(ConfigFactory.parseString(text))
+
+  /** Send messages one at a time to an echo server, and return the average round trip time in microseconds.
+    */
+  fun echoRoundTripMicros(transport : NettyTransport, messageCount : Int, messageSize : Int) : Long {
+    val bossGroup = transport.bossGroup("test")
+    val workerGroup = transport.workerGroup("test")
+    val channels = arrayListOf<Channel>()
+    try {
+      val serverChannel = transport.configure(ServerBootstrap().group(bossGroup, workerGroup))
+        .childHandler(object : ChannelInitializer<SocketChannel>() {
+          override fun initChannel(ch : SocketChannel) {
+            ch.pipeline().addLast(object : ChannelInboundHandlerAdapter() {
+              override fun channelRead(ctx : ChannelHandlerContext, msg : Any) {
+                ctx.writeAndFlush(msg)
+              }
+            })
+          }
+        })
+        .bind(InetSocketAddress("127.0.0.1", 0)).sync().channel()
+      channels.add(serverChannel)
+
+      val receivedBytes = AtomicLong()
+      var latch = CountDownLatch(1)
+      var expectedBytes = 0L
+      val clientChannel = transport.configure(Bootstrap().group(workerGroup))
+        .handler(object : ChannelInitializer<SocketChannel>() {
+          override fun initChannel(ch : SocketChannel) {
+            ch.pipeline().addLast(object : ChannelInboundHandlerAdapter() {
+              override fun channelRead(ctx : ChannelHandlerContext, msg : Any) {
+                val buf = msg as ByteBuf
+                if (receivedBytes.addAndGet(buf.readableBytes().toLong()) >= expectedBytes) {
+                  latch.countDown()
+                }
+                buf.release()
+              }
+            })
+          }
+        })
+        .connect(serverChannel.localAddress()).sync().channel()
+      channels.add(clientChannel)
+
+      val message = ByteArray(messageSize)
+      val startNanos = System.nanoTime()
+      for (i in 1 .. messageCount) {
+        latch = CountDownLatch(1)
+        expectedBytes = i.toLong() * messageSize
+        clientChannel.writeAndFlush(clientChannel.alloc().buffer(messageSize).writeBytes(message))
+        latch.await(10, TimeUnit.SECONDS) shouldBe true
+      }
+      return (System.nanoTime() - startNanos) / messageCount / 1000
+    } finally {
+      channels.forEach { it.close().sync() }
+      bossGroup.shutdownGracefully().sync()
+      workerGroup.shutdownGracefully().sync()
+    }
+  }
+
+  init {
+    "create" should "read the transport settings under the path" {
+      val transport = NettyTransport.create("scalechain.p2p", config(
+        "scalechain.p2p { transport = nio, boss_threads = 2, worker_threads = 3, socket_buffer_kb = 64, backlog = 16 }"))
+      transport shouldBe NettyTransport(false, 2, 3, 64 * 1024, 16)
+      transport.serverChannelClass() shouldBe NioServerSocketChannel::class.java
+      transport.socketChannelClass() shouldBe NioSocketChannel::class.java
+    }
+
+    "create" should "use epoll by default if it is available" {
+      val transport = NettyTransport.create("scalechain.p2p", config(""))
+      transport shouldBe NettyTransport(Epoll.isAvailable())
+      if (Epoll.isAvailable()) {
+        transport.serverChannelClass() shouldBe EpollServerSocketChannel::class.java
+      }
+    }
+
+    "create" should "fall back to NIO for an unavailable or unknown transport" {
+      NettyTransport.create("scalechain.api", config("scalechain.api.transport = epoll")).useEpoll shouldBe Epoll.isAvailable()
+      NettyTransport.create("scalechain.api", config("scalechain.api.transport = unknown")).useEpoll shouldBe Epoll.isAvailable()
+    }
+
+    "configure" should "echo block sized messages on loopback with each available transport" {
+      val MessageCount = 200
+      val MessageSize = 256 * 1024
+      val transports = if (Epoll.isAvailable()) listOf(NettyTransport(false), NettyTransport(true)) else listOf(NettyTransport(false))
+      transports.forEach { transport ->
+        val micros = echoRoundTripMicros(transport, MessageCount, MessageSize)
+        logger.info("Echoed ${MessageCount} messages of ${MessageSize} bytes. Average round trip : ${micros} us. ${transport}")
+      }
+    }
+  }
+}
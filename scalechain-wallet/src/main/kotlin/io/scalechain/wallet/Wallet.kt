@@ -8,7 +8,9 @@ import io.scalechain.blockchain.chain.ChainEventListener
 import io.scalechain.blockchain.chain.TransactionAnalyzer
 import io.scalechain.blockchain.proto.*
 import io.scalechain.blockchain.script.hash
+import io.scalechain.blockchain.storage.Storage
 import io.scalechain.blockchain.storage.index.KeyValueDatabase
+import io.scalechain.blockchain.storage.index.KeyValueWriteBatch
 import io.scalechain.blockchain.transaction.TransactionSigner
 import io.scalechain.blockchain.transaction.SignedTransaction
 import io.scalechain.blockchain.transaction.*
@@ -70,37 +72,211 @@ class Wallet() : ChainEventListener {
     *
     * Used by : getreceivedbyaddress RPC.
     *
-    * TODO : Test Automation
+    * The amount is read from the balances kept by registerTransaction/unregisterTransaction,
+    * so it does not scan outputs of the address.
     *
     * @param address The coin address to calculate the amount of received coins.
     * @param minConfirmations The number of confirmations to filter the UTXO.
     */
   fun getReceivedByAddress(db : KeyValueDatabase, blockchainView : BlockchainView, address : CoinAddress, minConfirmations : Long) : CoinAmount {
     // TODO : BUGBUG : We are counting outputs that an address is just one of multiple addresses in multisig outputs.
-//    println(s"getReceivedByAddress(${address.base58})")
+    // Read from a snapshot, so that we neither wait for nor block registerTransaction/unregisterTransaction.
+    return db.snapshot().use { snapshot ->
+      val balance = store.getAddressBalance(snapshot, address, blockchainView.getBestBlockHeight(), minConfirmations)
+      CoinAmount.from(balance.received)
+    }
+  }
 
+  /** Returns the sum of unspent outputs of an account or the whole wallet.
+    *
+    * Used by : getbalance RPC.
+    *
+    * @param accountOption Some(account) to get the balance of an account. None to get the balance of the whole wallet.
+    * @param minConfirmations The minimum number of confirmations of outputs to count.
+    */
+  fun getBalance(db : KeyValueDatabase, blockchainView : BlockchainView, accountOption : String?, minConfirmations : Long) : CoinAmount {
+    return db.snapshot().use { snapshot ->
+      val balance = store.getAccountBalance(snapshot, accountOption ?: WalletStore.ALL_ACCOUNTS, blockchainView.getBestBlockHeight(), minConfirmations)
+      CoinAmount.from(balance.unspent)
+    }
+  }
 
-//    println(s"outputs111=${getTransactionOutputs(Some(address))}")
+  /** The contribution of a wallet output to the balance.
+    */
+  private fun balanceOf(walletOutput : WalletOutput) : WalletBalance {
+    val value = walletOutput.transactionOutput.value
+    return WalletBalance(received = value, unspent = if (walletOutput.spent) 0L else value)
+  }
 
-    // Step 1 : Wallet Store : Iterate UTXOs for an output ownership.
-    val total = getTransactionOutputs(db, address).fold(0L, { sum : Long, walletOutput : WalletOutputWithInfo ->
-      // Step 2 : Sum up the amount of UTXOs.
+  private fun heightOf(walletOutput : WalletOutput) : Long = walletOutput.blockindex ?: WalletStore.MEMPOOL_HEIGHT
 
-//        println(s"sum=${sum}, walletOutput=${walletOutput}")
-        val confirmations =
-            if (walletOutput.walletOutput.blockindex == null) 0L
-            else getConfirmations(db, blockchainView, walletOutput.walletOutput.blockindex!!)
+  /** Changes of balances made while a transaction is registered or unregistered.
+    * Changes are accumulated by the key of each balance, so that each balance is written once to the write batch.
+    */
+  private class BalanceChanges {
+    val addressBalances = hashMapOf<CStringPrefixed<Long>, WalletBalance>()
+    val accountBalances = hashMapOf<CStringPrefixed<Long>, WalletBalance>()
+  }
 
-//        println(s"confirmations=${confirmations}, minConfirmations=${minConfirmations}")
+  private fun addBalance(balances : MutableMap<CStringPrefixed<Long>, WalletBalance>, key : CStringPrefixed<Long>, delta : WalletBalance) {
+    val balance = (balances.get(key) ?: WalletBalance.ZERO) + delta
+    if (balance.isZero()) balances.remove(key) else balances.put(key, balance)
+  }
 
-        if (confirmations >= minConfirmations) {
-          sum + walletOutput.walletOutput.transactionOutput.value
-        } else {
-          sum
+  /** Add changes of balances of output ownerships owning an output and their accounts when the output changes.
+    *
+    * @param changes The changes of balances to add the changes to.
+    * @param ownerships The output ownerships owning the output.
+    * @param oldOutput The output before the change. null if the output is newly put.
+    * @param newOutput The output after the change. null if the output is removed.
+    */
+  private fun updateBalances(db : KeyValueDatabase, changes : BalanceChanges, ownerships : List<OutputOwnership>, oldOutput : WalletOutput?, newOutput : WalletOutput?) : Unit {
+    val accounts = getAccounts(db, ownerships.toSet()) + WalletStore.ALL_ACCOUNTS
+    fun add(output : WalletOutput, delta : WalletBalance) {
+      val height = heightOf(output)
+      ownerships.forEach { ownership ->
+        addBalance(changes.addressBalances, CStringPrefixed(ownership.stringKey(), height), delta)
+      }
+      accounts.forEach { account ->
+        addBalance(changes.accountBalances, CStringPrefixed(account, height), delta)
+      }
+    }
+    if (oldOutput != null) {
+      add(oldOutput, WalletBalance.ZERO - balanceOf(oldOutput))
+    }
+    if (newOutput != null) {
+      add(newOutput, balanceOf(newOutput))
+    }
+  }
+
+  /** Write the changes of balances to a write batch.
+    */
+  private fun writeBalances(db : KeyValueDatabase, changes : BalanceChanges, batch : KeyValueWriteBatch) : Unit {
+    store.addBalances(db, addressBalances = true, deltas = changes.addressBalances, writer = batch)
+    store.addBalances(db, addressBalances = false, deltas = changes.accountBalances, writer = batch)
+  }
+
+  /** Calculate balances at each block height from wallet outputs.
+    *
+    * @return The pair of (balances of output ownerships, balances of accounts).
+    */
+  internal fun calculateBalances(db : KeyValueDatabase) : Pair<Map<CStringPrefixed<Long>, WalletBalance>, Map<CStringPrefixed<Long>, WalletBalance>> {
+    val addressBalances = hashMapOf<CStringPrefixed<Long>, WalletBalance>()
+    val accountBalances = hashMapOf<CStringPrefixed<Long>, WalletBalance>()
+
+    store.getWalletOutputs(db).forEach { output ->
+      val ownerships = getWalletOutputOwnerships(db, output.walletOutput.transactionOutput.lockingScript)
+      if (!ownerships.isEmpty()) {
+        val height = heightOf(output.walletOutput)
+        val balance = balanceOf(output.walletOutput)
+        ownerships.forEach { ownership ->
+          addBalance(addressBalances, CStringPrefixed(ownership.stringKey(), height), balance)
+        }
+        (getAccounts(db, ownerships.toSet()) + WalletStore.ALL_ACCOUNTS).forEach { account ->
+          addBalance(accountBalances, CStringPrefixed(account, height), balance)
+        }
+      }
+    }
+    return Pair(addressBalances, accountBalances)
+  }
+
+  /** Check if the balances kept by registerTransaction/unregisterTransaction match the balances calculated from wallet outputs.
+    *
+    * @return true if the balances are consistent; false otherwise.
+    */
+  fun checkBalances(db : KeyValueDatabase) : Boolean {
+    return synchronized(this) {
+      val (addressBalances, accountBalances) = calculateBalances(db)
+
+      fun totalsOf(balances : Map<CStringPrefixed<Long>, WalletBalance>) : Map<String, WalletBalance> {
+        val totals = hashMapOf<String, WalletBalance>()
+        balances.forEach { (key, balance) ->
+          totals.put(key.prefix, (totals.get(key.prefix) ?: WalletBalance.ZERO) + balance)
+        }
+        return totals.filterValues { !it.isZero() }
+      }
+
+      val consistent =
+        store.getBalancesByHeight(db, addressBalances = true) == addressBalances &&
+        store.getBalancesByHeight(db, addressBalances = false) == accountBalances &&
+        store.getBalanceTotals(db, addressBalances = true) == totalsOf(addressBalances) &&
+        store.getBalanceTotals(db, addressBalances = false) == totalsOf(accountBalances)
+
+      if (!consistent) {
+        logger.warn("Wallet balances do not match wallet outputs.")
+      }
+      consistent
+    }
+  }
+
+  /** Remove all balances and calculate them again from wallet outputs.
+    * Used for wallets created before balances were kept, or when checkBalances finds an inconsistency.
+    */
+  fun rebuildBalances(db : KeyValueDatabase) : Unit {
+    synchronized(this) {
+      store.delBalances(db)
+
+      val (addressBalances, accountBalances) = calculateBalances(db)
+      db.writeBatch().use { batch ->
+        store.addBalances(db, addressBalances = true, deltas = addressBalances, writer = batch)
+        store.addBalances(db, addressBalances = false, deltas = accountBalances, writer = batch)
+        batch.write()
+      }
+    }
+  }
+
+  /** Remove the unspent output index and the wallet transaction indexes, and create them again
+    * from wallet outputs and wallet transactions.
+    * Used for wallets created before the indexes were kept.
+    */
+  fun rebuildIndexes(db : KeyValueDatabase) : Unit {
+    synchronized(this) {
+      store.delUnspentOutputs(db)
+      store.delTransactionOrders(db)
+
+      db.writeBatch().use { batch ->
+        store.getWalletOutputs(db).forEach { output ->
+          if (!output.walletOutput.spent) {
+            getWalletOutputOwnerships(db, output.walletOutput.transactionOutput.lockingScript).forEach { ownership ->
+              store.putUnspentOutput(batch, ownership, output.outPoint, output.walletOutput)
+            }
+          }
+        }
+
+        // The output ownerships related to each transaction, from the index registerTransaction has always kept.
+        val relatedOwnerships = hashMapOf<Hash, MutableSet<OutputOwnership>>()
+        store.getOutputOwnerships(db, null).forEach { ownership ->
+          store.getTransactionHashes(db, ownership).forEach { transactionHash ->
+            relatedOwnerships.getOrPut(transactionHash) { hashSetOf() }.add(ownership)
+          }
         }
+
+        store.getWalletTransactions(db).forEach { (transactionHash, walletTransaction) ->
+          val accounts = getAccounts(db, relatedOwnerships.get(transactionHash) ?: setOf<OutputOwnership>())
+          val summary = WalletTransactionSummary(fee = calculateFee(db, walletTransaction.transaction))
+          store.putTransactionOrder(batch, accounts, getTransactionOrder(transactionHash, walletTransaction), summary)
+        }
+        batch.write()
       }
-    )
-    return CoinAmount.from(total)
+    }
+  }
+
+  /** Rebuild indexes and balances if the wallet was written before they were kept.
+    * Called when the wallet is opened, before any transaction is registered.
+    *
+    * @param db The (non-transacting) database of the wallet.
+    */
+  fun migrate(db : KeyValueDatabase) : Unit {
+    val version = store.getSchemaVersion(db)
+    if (version != null && version >= WalletIndexVersion) {
+      return
+    }
+
+    logger.info("Rebuilding wallet indexes and balances.")
+    rebuildIndexes(db)
+    rebuildBalances(db)
+    store.putSchemaVersion(db, WalletIndexVersion)
+    logger.info("Rebuilt wallet indexes and balances.")
   }
 
   /** Get an iterator of transaction hashes searched by an optional account.
@@ -289,21 +465,62 @@ class Wallet() : ChainEventListener {
     }
   }
 
+  /** Get the position of a wallet transaction in the wallet transaction indexes.
+    *
+    * @param transactionHash The hash of the transaction.
+    * @param walletTransaction The wallet transaction.
+    * @return The order of the transaction, which makes more recent transactions come first.
+    */
+  internal fun getTransactionOrder(transactionHash : Hash, walletTransaction : WalletTransaction) : WalletTransactionOrder {
+    val blockIndex = walletTransaction.blockIndex
+    return if (blockIndex == null) {
+      WalletTransactionOrder(inBlock = false, time = walletTransaction.addedTime, transactionIndex = 0, transactionHash = transactionHash)
+    } else {
+      WalletTransactionOrder(inBlock = true, time = blockIndex, transactionIndex = walletTransaction.transactionIndex ?: 0, transactionHash = transactionHash)
+    }
+  }
+
+  /** Calculate the fee of a transaction from the wallet outputs it spends.
+    * Wallet outputs are kept even after they are spent, so the fee of a transaction sending coins of the wallet is known
+    * without searching the blockchain.
+    *
+    * @return The fee in satoshi, or null if any output spent by the transaction is not in the wallet.
+    */
+  internal fun calculateFee(db : KeyValueDatabase, transaction : Transaction) : Long? {
+    if (transaction.inputs[0].isCoinBaseInput()) {
+      return 0L
+    }
+    var sumOfInputAmounts = 0L
+    transaction.inputs.forEach { input ->
+      val spentOutput = store.getWalletOutput(db, input.getOutPoint())
+      if (spentOutput == null) {
+        return null
+      }
+      sumOfInputAmounts += spentOutput.transactionOutput.value
+    }
+    return sumOfInputAmounts - transaction.outputs.fold(0L) { sum, output -> sum + output.value }
+  }
+
+  /** Get the accounts that own any of the given output ownerships.
+    */
+  internal fun getAccounts(db : KeyValueDatabase, ownerships : Set<OutputOwnership>) : Set<String> {
+    return ownerships.map { store.getAccount(db, it) }.filterNotNull().toSet()
+  }
+
   /** Returns the most recent transactions that affect the wallet.
     *
     * listTransactions Converts WalletTransaction stored in the wallet database into TransactionDescriptor, which is converted to json response of RPC invocation.
     *
     * Execution Steps :
-    *  1. Get transactions optionally searching with an account.
-    *  2. Sort transactions by (block height, the index of the transaction in the block)
-    *  3. For each transaction,
-    *  3.1 For each input, check if any UTXO owned by output ownership in the wallet is related. (category = send)
-    *  3.2 For each output, check if any UTXO owned by output ownership in the wallet is related. (category = receive)
+    *  1. Iterate transactions optionally searching with an account from the most recent one, using the wallet transaction index.
+    *     The index is sorted by (block height, the index of the transaction in the block) in descending order.
+    *  2. For each transaction,
+    *  2.1 For each input, check if any UTXO owned by output ownership in the wallet is related. (category = send)
+    *  2.2 For each output, check if any UTXO owned by output ownership in the wallet is related. (category = receive)
+    *  3. Stop the iteration as soon as we get (skip + count) descriptors.
     *
     * Used by : listtransactions RPC.
     *
-    * TODO : Test Automation
-    *
     * @param blockchainView  The view of the best blockchain.
     * @param accountOption Some(name) to get transactions related to an account; None to get transactions related to all accounts in the wallet.
     * @param count The number of the most recent transactions to list
@@ -319,91 +536,70 @@ class Wallet() : ChainEventListener {
                         skip            : Long,
                         includeWatchOnly: Boolean
                       ) : List<WalletTransactionDescriptor> {
-    // TODO : Use RocksDB Snapshot to see consistent data.
-    // 1. Get transactions
-    val transactions: List<WalletTransaction> = getWalletTransactions(db, accountOption)
-    transactions.forEach { tx ->
-      println("tx.hash : ${tx.transaction.hash()} blockIndex : ${tx.blockIndex}, transactionIndex : ${tx.transactionIndex}")
+    if (count <= 0) {
+      return listOf()
     }
-    // 2. Sort transactions by recency in descending order. Recent transactions come first. (newest to oldest)
-    val recentTransactions: List<WalletTransaction> = transactions.sortedWith(WalletTransactionComparatorInDescendingOrder)
 
-    val outputOwnershipsFilterOption =
-        if (accountOption != null) store.getOutputOwnerships(db, accountOption)
-        else null
-
-    var transactionIndex = 0L
-    // 3. For each transaction,
-    val transactionDescriptors = (
-      recentTransactions.flatMap { walletTransaction: WalletTransaction ->
-        // 3. Calculate the transaction fee.
-        // TODO : Optimize : We are searching transaction outputs pointed by inputs of this transaction twice.
-        // A. first time -> to calculate fee.
-        // B. second time -> within getTransactionDescriptor
-
-        // The fee paid as a negative bitcoins value.
-        val negativeFee =
-          if (walletTransaction.transaction.inputs[0].isCoinBaseInput()) {
-            java.math.BigDecimal.valueOf(0)
-          } else {
-            -TransactionAnalyzer.calculateFee(db, blockchainView, walletTransaction.transaction)
-          }
-
-        /*
-            lazy val spentOutputs : List<TransactionOutput> = walletTransaction.transaction.inputs.map { transactionInput : TransactionInput =>
-              blockchainView.getTransactionOutput(OutPoint(
-                Hash( transactionInput.outputTransactionHash.value ),
-                transactionInput.outputIndex.toInt
-              ))
-            }.filter(_.isDefined).map(_.get) // Remove None values, get rid Option wrapper.
-
-            lazy val spendingAddresses = spentOutputs.flatMap{ transactionOutput =>
-              LockingScriptAnalyzer.extractAddresses(transactionOutput.lockingScript))
-            }
-        */
-        // TODO : BUGBUG : if getTransactionDescriptor returns None, we count it as skipped.
-        val sendingTransactions = if (walletTransaction.transaction.inputs[0].isCoinBaseInput()) {
-          listOf(null)
-        } else {
-          // 3.2 For each input, check if any UTXO owned by output ownership in the wallet is related. (category = send)
-          var inputIndex = -1
-          walletTransaction.transaction.inputs.map { transactionInput ->
-            inputIndex += 1
-            if (transactionIndex >= skip && transactionIndex < skip + count) {
-              // Returns Option<TransactionDescriptor>
-              val transactionDesc = getTransactionDescriptor(db, blockchainView, walletTransaction, Either.Left(transactionInput), inputIndex, /*None No paying address,*/ negativeFee, outputOwnershipsFilterOption, includeWatchOnly)
-              if (transactionDesc != null) {
-                transactionIndex += 1
-              }
-              transactionDesc
+    // Read from a snapshot, so that a long listing neither waits for nor blocks registerTransaction/unregisterTransaction,
+    // and sees the wallet at a single point in time.
+    return db.snapshot().use { snapshot ->
+      val outputOwnershipsFilterOption =
+          if (accountOption != null) store.getOutputOwnerships(snapshot, accountOption)
+          else null
+
+      // The descriptors from the newest to the oldest.
+      val transactionDescriptors = arrayListOf<WalletTransactionDescriptor>()
+      var skippedCount = 0L
+
+      // 1. Iterate transactions from the most recent one.
+      store.foreachTransactionOrder(snapshot, accountOption) { order, summary ->
+        val walletTransaction = store.getWalletTransaction(snapshot, order.transactionHash)
+        if (walletTransaction != null) {
+          val isCoinbase = walletTransaction.transaction.inputs[0].isCoinBaseInput()
+
+          // The fee is cached on the index when the transaction is registered if all spent outputs are in the wallet.
+          // Otherwise, search transaction outputs pointed by inputs of this transaction.
+          val fee = summary.fee ?: (
+            if (isCoinbase) 0L
+            else TransactionAnalyzer.calculateFee(snapshot, blockchainView, walletTransaction.transaction).toLong()
+          )
+          // The fee paid as a negative bitcoins value.
+          val negativeFee = java.math.BigDecimal.valueOf(-fee)
+
+          // 2.1 For each input, check if any UTXO owned by output ownership in the wallet is related. (category = send)
+          val sendingTransactions =
+            if (isCoinbase) {
+              listOf<WalletTransactionDescriptor?>()
             } else {
-              null
+              var inputIndex = -1
+              walletTransaction.transaction.inputs.map { transactionInput ->
+                inputIndex += 1
+                getTransactionDescriptor(snapshot, blockchainView, walletTransaction, Either.Left(transactionInput), inputIndex, negativeFee, outputOwnershipsFilterOption, includeWatchOnly)
+              }
             }
+
+          // 2.2 For each output, check if any UTXO owned by output ownership in the wallet is related. (category = receive)
+          var outputIndex = -1
+          val receivingTransactions = walletTransaction.transaction.outputs.map { transactionOutput ->
+            outputIndex += 1
+            getTransactionDescriptor(snapshot, blockchainView, walletTransaction, Either.Right(transactionOutput), outputIndex, negativeFee, outputOwnershipsFilterOption, includeWatchOnly)
           }
-        }
 
-        // 3.3 For each output, check if any UTXO owned by output ownership in the wallet is related. (category = receive)
-        var outputIndex = -1
-        val receivingTransactions = walletTransaction.transaction.outputs.map { transactionOutput ->
-          outputIndex += 1
-          if (transactionIndex >= skip && transactionIndex < skip + count) {
-            // Returns Option<TransactionDescriptor>
-            //            val payingAddressOption = spendingAddresses.headOption
-            val transactionDesc = getTransactionDescriptor(db, blockchainView, walletTransaction, Either.Right(transactionOutput), outputIndex, /*payingAddressOption,*/ negativeFee, outputOwnershipsFilterOption, includeWatchOnly)
-            if (transactionDesc != null) {
-              transactionIndex += 1
+          (sendingTransactions + receivingTransactions).filterNotNull().forEach { transactionDesc ->
+            if (skippedCount < skip) {
+              skippedCount += 1
+            } else if (transactionDescriptors.size < count) {
+              transactionDescriptors.add(transactionDesc)
             }
-            transactionDesc
-          } else {
-            null
           }
         }
-        sendingTransactions + receivingTransactions
+        // 3. Continue until we get enough descriptors.
+        transactionDescriptors.size < count
       }
-    ).filterNotNull() // Filter out any null values.
 
-    // Change the order oldest to newest.
-    return transactionDescriptors.reversed()
+      // Change the order oldest to newest.
+      transactionDescriptors.reversed()
+    }
   }
 
   /** Get an iterator for UTXOs.
@@ -505,17 +701,16 @@ class Wallet() : ChainEventListener {
                    maximumConfirmations: Long,
                    addressesOption     : List<CoinAddress>?
                  ) : List<UnspentCoinDescriptor> {
-    // Need to wait for registerTransaction/unregisterTransaction, otherwise we may return a coin as unspent,
-    // even though it is being marked as spent by the registerTransaction.
-    return synchronized(this) {
-      // TODO : Use RocksDB Snapshot to see consistent data.
+    // Read from a snapshot, so that we see consistent data without waiting for registerTransaction/unregisterTransaction.
+    // Otherwise we may return a coin as unspent, even though it is being marked as spent by the registerTransaction.
+    return db.snapshot().use { snapshot ->
       // TODO : BUGBUG : Need to consider ParsedPubKeyScript
 
       val addressesFilter =
         if (addressesOption != null) {
           addressesOption
         } else {
-          val allAddresses : List<CoinAddress> = store.getOutputOwnerships(db, null).map { ownership ->
+          val allAddresses : List<CoinAddress> = store.getOutputOwnerships(snapshot, null).map { ownership ->
             if (ownership is CoinAddress) ownership
             else null // filter out ParsedPubKeyScript
           }.filterNotNull()
@@ -523,11 +718,10 @@ class Wallet() : ChainEventListener {
         }
 
       addressesFilter.flatMap { coinAddress ->
-        // Wallet Store : Iterate UTXOs for a specific coin address
-        getTransactionOutputs(db, coinAddress)
-          .filter { !it.walletOutput.spent } // filter only unspent.
+        // Wallet Store : Iterate UTXOs for a specific coin address. The index keeps only unspent outputs.
+        store.getUnspentOutputs(snapshot, coinAddress)
           .map { walletOutput ->
-            getUnspentCoinDescription( db, blockchainView, coinAddress, walletOutput)
+            getUnspentCoinDescription( snapshot, blockchainView, coinAddress, walletOutput)
           }
       }.filterNotNull() // getUnspentCoinDescription returns Option<UnspentCoinDescriptor>. Filter out None values.
         .filter{ it.confirmations >= minimumConfirmations }
@@ -726,118 +920,152 @@ class Wallet() : ChainEventListener {
 
       logger.trace("<Wallet register tx:${transactionHash}> started.")
 
-      // If the transaction is related to the output
-      var isTransactionRelated = false
+      // Changes are written at once after all of them are put into the batch.
+      // Keys are read from the database, so a key should be read before its change is put into the batch.
+      db.writeBatch().use { batch ->
+        val balanceChanges = BalanceChanges()
 
-      // Step 2 : Put each UTXO if the output ownership owns it.
-      var outputIndex = -1
-      transaction.outputs.forEach { transactionOutput ->
-        outputIndex += 1
+        // If the transaction is related to the output
+        var isTransactionRelated = false
+        // The output ownerships related to the transaction. Used for finding accounts to put the transaction into the account index.
+        val relatedOwnerships = hashSetOf<OutputOwnership>()
 
-        val outPoint = OutPoint(transactionHash, outputIndex)
+        // Step 2 : Put each UTXO if the output ownership owns it.
+        var outputIndex = -1
+        transaction.outputs.forEach { transactionOutput ->
+          outputIndex += 1
 
-        val walletOutputOwnerships = getWalletOutputOwnerships(db, transactionOutput.lockingScript)
+          val outPoint = OutPoint(transactionHash, outputIndex)
 
-        if (walletOutputOwnerships.isEmpty()) {
-          // Do nothing, the transaction output is not related to the output ownerships in the wallet.
-        } else {
+          val walletOutputOwnerships = getWalletOutputOwnerships(db, transactionOutput.lockingScript)
 
-          walletOutputOwnerships.forEach { ownership: OutputOwnership ->
-            store.putTransactionHash(db, ownership, transactionHash)
-            store.putTransactionOutPoint(db, ownership, outPoint)
+          if (walletOutputOwnerships.isEmpty()) {
+            // Do nothing, the transaction output is not related to the output ownerships in the wallet.
+          } else {
 
-            //println(s"registerTransaction outPoint=> ${outPoint}")
-            // Step 2.1 : Wallet Store : Put a UTXO into the output ownership.
-          }
+            walletOutputOwnerships.forEach { ownership: OutputOwnership ->
+              store.putTransactionHash(db, ownership, transactionHash, batch)
+              store.putTransactionOutPoint(db, ownership, outPoint, batch)
+
+              //println(s"registerTransaction outPoint=> ${outPoint}")
+              // Step 2.1 : Wallet Store : Put a UTXO into the output ownership.
+            }
 
-          isTransactionRelated = true
+            isTransactionRelated = true
+            relatedOwnerships.addAll(walletOutputOwnerships)
 
-          val blockHeightOption = chainBlock?.height
+            val blockHeightOption = chainBlock?.height
 
-          val walletOutputOption = store.getWalletOutput(db, outPoint)
+            val walletOutputOption = store.getWalletOutput(db, outPoint)
 
-          if (walletOutputOption == null) {
-            // A transaction can be registered more than once. Ex> when added to a mempool, when a block is attached.
-            // So, we need to put the output only if the output does not exist yet.
-            // Otherwise, we may overwrite the "spent" flag from true to false.
+            if (walletOutputOption == null) {
+              // A transaction can be registered more than once. Ex> when added to a mempool, when a block is attached.
+              // So, we need to put the output only if the output does not exist yet.
+              // Otherwise, we may overwrite the "spent" flag from true to false.
 
-            val walletOutput = WalletOutput(
-              blockindex = blockHeightOption,
-              // Whether this output is in the generation transaction.
-              // TODO : BUGBUG : Need to check the outputIndex as well to see if an
-              coinbase = transaction.inputs[0].outputTransactionHash.isAllZero(),
-              spent = false,
-              transactionOutput = transactionOutput
-            )
+              val walletOutput = WalletOutput(
+                blockindex = blockHeightOption,
+                // Whether this output is in the generation transaction.
+                // TODO : BUGBUG : Need to check the outputIndex as well to see if an
+                coinbase = transaction.inputs[0].outputTransactionHash.isAllZero(),
+                spent = false,
+                transactionOutput = transactionOutput
+              )
 
-            store.putWalletOutput(db, outPoint, walletOutput)
+              store.putWalletOutput(batch, outPoint, walletOutput)
+              walletOutputOwnerships.forEach { ownership: OutputOwnership ->
+                store.putUnspentOutput(batch, ownership, outPoint, walletOutput)
+              }
+              updateBalances(db, balanceChanges, walletOutputOwnerships, null, walletOutput)
 
-            logger.trace("<Wallet register tx:${transactionHash}> put outpoint : ${outPoint}, wallet output : ${walletOutput}")
-          } else {
-            store.putWalletOutput(
-              db,
-              outPoint,
-              walletOutputOption.copy(
+              logger.trace("<Wallet register tx:${transactionHash}> put outpoint : ${outPoint}, wallet output : ${walletOutput}")
+            } else {
+              val walletOutput = walletOutputOption.copy(
                 blockindex = blockHeightOption)
-            )
+              store.putWalletOutput(batch, outPoint, walletOutput)
+              // The output moves to another block height if the transaction was included in a block.
+              updateBalances(db, balanceChanges, walletOutputOwnerships, walletOutputOption, walletOutput)
+              if (!walletOutput.spent) {
+                // Keep the block height on the unspent output index up to date.
+                walletOutputOwnerships.forEach { ownership: OutputOwnership ->
+                  store.putUnspentOutput(batch, ownership, outPoint, walletOutput)
+                }
+              }
 
-            logger.trace("<Wallet register tx:${transactionHash}> updated the blockindex from ${walletOutputOption.blockindex} to ${blockHeightOption}. outpoint : ${outPoint}")
+              logger.trace("<Wallet register tx:${transactionHash}> updated the blockindex from ${walletOutputOption.blockindex} to ${blockHeightOption}. outpoint : ${outPoint}")
+            }
           }
         }
-      }
 
 
-      if (transaction.inputs[0].isCoinBaseInput()) {
-        // do nothing
-      } else {
-        var inputIndex = -1
-        // Step 3 : Mark a UTXO spent if this transaction spends it.
-        transaction.inputs.forEach { transactionInput ->
-          inputIndex += 1
-          // TODO : Check if the transaction input is generation transaction input?
+        if (transaction.inputs[0].isCoinBaseInput()) {
+          // do nothing
+        } else {
+          var inputIndex = -1
+          // Step 3 : Mark a UTXO spent if this transaction spends it.
+          transaction.inputs.forEach { transactionInput ->
+            inputIndex += 1
+            // TODO : Check if the transaction input is generation transaction input?
 
-          // Step 3 : Block Store : Get the transaction output the input is spending.
-          val spentOutput = OutPoint(
-            Hash(transactionInput.outputTransactionHash.value),
-            transactionInput.outputIndex.toInt())
+            // Step 3 : Block Store : Get the transaction output the input is spending.
+            val spentOutput = OutPoint(
+              Hash(transactionInput.outputTransactionHash.value),
+              transactionInput.outputIndex.toInt())
 
-          val walletOutputOption = store.getWalletOutput(db, spentOutput)
-          if (walletOutputOption != null) {
-            val walletOutputOwnerships = getWalletOutputOwnerships(db, walletOutputOption.transactionOutput.lockingScript)
-            assert(!walletOutputOwnerships.isEmpty())
+            val walletOutputOption = store.getWalletOutput(db, spentOutput)
+            if (walletOutputOption != null) {
+              val walletOutputOwnerships = getWalletOutputOwnerships(db, walletOutputOption.transactionOutput.lockingScript)
+              assert(!walletOutputOwnerships.isEmpty())
 
-            walletOutputOwnerships.forEach { ownership: OutputOwnership ->
-              store.putTransactionHash(db, ownership, transactionHash)
-            }
+              walletOutputOwnerships.forEach { ownership: OutputOwnership ->
+                store.putTransactionHash(db, ownership, transactionHash, batch)
+                store.delUnspentOutput(batch, ownership, spentOutput)
+              }
+              relatedOwnerships.addAll(walletOutputOwnerships)
+              updateBalances(db, balanceChanges, walletOutputOwnerships, walletOutputOption, walletOutputOption.copy(spent = true))
 
-            // We have the output in our wallet.
-            // Step 4 : Wallet Store : Mark a UTXO spent searching by OutPoint.
-            if (store.markWalletOutputSpent(db, spentOutput, true)) {
+              // We have the output in our wallet.
+              // Step 4 : Wallet Store : Mark a UTXO spent searching by OutPoint.
+              if (store.markWalletOutputSpent(db, spentOutput, true, batch)) {
 
-              logger.trace("<Wallet register tx:${transactionHash}> set output spent. outpoint : ${spentOutput}, inputIndex : ${inputIndex}")
+                logger.trace("<Wallet register tx:${transactionHash}> set output spent. outpoint : ${spentOutput}, inputIndex : ${inputIndex}")
+              }
+
+              isTransactionRelated = true
             }
+          }
+        }
 
-            isTransactionRelated = true
+        // Step 5 : Add a transaction.
+        if (isTransactionRelated) {
+          val existingTransaction = store.getWalletTransaction(db, transactionHash)
+          val addedTime = existingTransaction?.addedTime ?: System.currentTimeMillis()
+
+          val walletTransaction = WalletTransaction(
+            blockHash         = chainBlock?.block?.header?.hash(),
+            blockIndex        = chainBlock?.height,
+            blockTime         = chainBlock?.block?.header?.timestamp ,
+            transactionId     = transactionHash,
+            addedTime         = addedTime,
+            transactionIndex  = transactionIndex,
+            transaction       = transaction
+          )
+          store.putWalletTransaction(batch, transactionHash, walletTransaction)
+
+          // Step 6 : Put the transaction into the wallet transaction indexes.
+          // The order changes when a transaction in the mempool is included in a block, so remove the previous order first.
+          val accounts = getAccounts(db, relatedOwnerships)
+          if (existingTransaction != null) {
+            store.delTransactionOrder(batch, accounts, getTransactionOrder(transactionHash, existingTransaction))
           }
+          store.putTransactionOrder(batch, accounts, getTransactionOrder(transactionHash, walletTransaction), WalletTransactionSummary(fee = calculateFee(db, transaction)))
+        } else if (Storage.validateWrites) {
+          // Checked only in validation mode, as most transactions in a block are not related to the wallet.
+          assert(store.getWalletTransaction(db, transactionHash) == null)
         }
-      }
 
-      // Step 5 : Add a transaction.
-      if (isTransactionRelated) {
-        val addedTime = store.getWalletTransaction(db, transactionHash)?.addedTime ?: System.currentTimeMillis()
-
-        val walletTransaction = WalletTransaction(
-          blockHash         = chainBlock?.block?.header?.hash(),
-          blockIndex        = chainBlock?.height,
-          blockTime         = chainBlock?.block?.header?.timestamp ,
-          transactionId     = transactionHash,
-          addedTime         = addedTime,
-          transactionIndex  = transactionIndex,
-          transaction       = transaction
-        )
-        store.putWalletTransaction(db, transactionHash, walletTransaction)
-      } else {
-        assert(store.getWalletTransaction(db, transactionHash) == null)
+        writeBalances(db, balanceChanges, batch)
+        batch.write()
       }
     }
   }
@@ -855,80 +1083,103 @@ class Wallet() : ChainEventListener {
 
       logger.trace("<Wallet unregister tx:${transactionHash}> started.")
 
-      // TODO : BUGBUG : When the JVM crashes while executing registerTransaction, related keys may exists on wallet indexes without the WalletTransaction being put into the wallet index.
-      // If the transaction is related to the output
+      // Changes are written at once after all of them are put into the batch.
+      db.writeBatch().use { batch ->
+        val balanceChanges = BalanceChanges()
 
-      var isTransactionRelated = false
+        // TODO : BUGBUG : When the JVM crashes while executing registerTransaction, related keys may exists on wallet indexes without the WalletTransaction being put into the wallet index.
+        // If the transaction is related to the output
 
-      var outputIndex = -1
-      // Step 2 : Remove each UTXO if the output ownership owns it.
-      transaction.outputs.forEach { transactionOutput ->
-        outputIndex += 1
-        val outPoint = OutPoint(transactionHash, outputIndex)
+        var isTransactionRelated = false
+        val relatedOwnerships = hashSetOf<OutputOwnership>()
 
-        val walletOutputOwnerships = getWalletOutputOwnerships(db, transactionOutput.lockingScript)
+        var outputIndex = -1
+        // Step 2 : Remove each UTXO if the output ownership owns it.
+        transaction.outputs.forEach { transactionOutput ->
+          outputIndex += 1
+          val outPoint = OutPoint(transactionHash, outputIndex)
 
-        walletOutputOwnerships.forEach { ownership: OutputOwnership ->
-          // Step 2.1 : Wallet Store : Remove a transaction from the output ownership by transaction hash.
-          store.delTransactionOutPoint(db, ownership, outPoint)
-          // Step 2.2 : Wallet Store : Remove a transaction from the output ownership.
-          store.delTransactionHash(db, ownership, transactionHash)
-        }
+          val walletOutputOwnerships = getWalletOutputOwnerships(db, transactionOutput.lockingScript)
 
-        if (walletOutputOwnerships.isEmpty()) {
-          // Do nothing, the transaction output is not related to the output ownerships in the wallet.
-        } else {
-          store.delWalletOutput(db, outPoint)
+          walletOutputOwnerships.forEach { ownership: OutputOwnership ->
+            // Step 2.1 : Wallet Store : Remove a transaction from the output ownership by transaction hash.
+            store.delTransactionOutPoint(batch, ownership, outPoint)
+            store.delUnspentOutput(batch, ownership, outPoint)
+            // Step 2.2 : Wallet Store : Remove a transaction from the output ownership.
+            store.delTransactionHash(batch, ownership, transactionHash)
+          }
+          relatedOwnerships.addAll(walletOutputOwnerships)
+
+          if (walletOutputOwnerships.isEmpty()) {
+            // Do nothing, the transaction output is not related to the output ownerships in the wallet.
+          } else {
+            updateBalances(db, balanceChanges, walletOutputOwnerships, store.getWalletOutput(db, outPoint), null)
+            store.delWalletOutput(batch, outPoint)
 
-          logger.trace("<Wallet unregister tx:${transactionHash}> del outpoint : ${outPoint}")
+            logger.trace("<Wallet unregister tx:${transactionHash}> del outpoint : ${outPoint}")
 
-          isTransactionRelated = true
+            isTransactionRelated = true
+          }
         }
-      }
 
-      var inputIndex = -1
-      if (transaction.inputs[0].isCoinBaseInput()) {
-        // Do nothing
-      } else {
-        // Step 3 : Mark a UTXO unspent if this transaction spends it.
-        transaction.inputs.forEach { transactionInput ->
-          // TODO : Check if the transaction input is generation transaction input?
-          inputIndex += 1
+        var inputIndex = -1
+        if (transaction.inputs[0].isCoinBaseInput()) {
+          // Do nothing
+        } else {
+          // Step 3 : Mark a UTXO unspent if this transaction spends it.
+          transaction.inputs.forEach { transactionInput ->
+            // TODO : Check if the transaction input is generation transaction input?
+            inputIndex += 1
 
-          // Step 3 : Block Store : Get the transaction output the input is spending.
-          val spentOutput = OutPoint(
-            Hash( transactionInput.outputTransactionHash.value ),
-            transactionInput.outputIndex.toInt())
+            // Step 3 : Block Store : Get the transaction output the input is spending.
+            val spentOutput = OutPoint(
+              Hash( transactionInput.outputTransactionHash.value ),
+              transactionInput.outputIndex.toInt())
 
-          val walletOutputOption = store.getWalletOutput(db, spentOutput)
+            val walletOutputOption = store.getWalletOutput(db, spentOutput)
 
-          if (walletOutputOption != null) {
+            if (walletOutputOption != null) {
 
-            val walletOutputOwnerships = getWalletOutputOwnerships(db, walletOutputOption.transactionOutput.lockingScript)
-            assert(!walletOutputOwnerships.isEmpty())
+              val walletOutputOwnerships = getWalletOutputOwnerships(db, walletOutputOption.transactionOutput.lockingScript)
+              assert(!walletOutputOwnerships.isEmpty())
 
-            walletOutputOwnerships.forEach { ownership: OutputOwnership ->
-              store.delTransactionHash(db, ownership, transactionHash)
-            }
+              walletOutputOwnerships.forEach { ownership: OutputOwnership ->
+                store.delTransactionHash(batch, ownership, transactionHash)
+                store.putUnspentOutput(batch, ownership, spentOutput, walletOutputOption.copy(spent = false))
+              }
+              relatedOwnerships.addAll(walletOutputOwnerships)
+              updateBalances(db, balanceChanges, walletOutputOwnerships, walletOutputOption, walletOutputOption.copy(spent = false))
 
-            // Step 4 : Wallet Store : Mark a UTXO unspent searching by OutPoint.
-            if (store.markWalletOutputSpent(db, spentOutput, false)) { // returns true if the output was found in the wallet database.
-              logger.trace("<Wallet unregister tx:${transactionHash}> set output unspent. outpoint : ${spentOutput}, inputIndex : ${inputIndex}")
-            }
+              // Step 4 : Wallet Store : Mark a UTXO unspent searching by OutPoint.
+              if (store.markWalletOutputSpent(db, spentOutput, false, batch)) { // returns true if the output was found in the wallet database.
+                logger.trace("<Wallet unregister tx:${transactionHash}> set output unspent. outpoint : ${spentOutput}, inputIndex : ${inputIndex}")
+              }
 
-            isTransactionRelated = true
+              isTransactionRelated = true
+            }
           }
         }
-      }
-      // Step 5 : Wallet Store : Remove a transaction.
-      if (isTransactionRelated) {
-        store.delWalletTransaction(db, transactionHash)
-      } else {
-        assert( store.getWalletTransaction(db, transactionHash) == null )
+        // Step 5 : Wallet Store : Remove a transaction.
+        if (isTransactionRelated) {
+          val existingTransaction = store.getWalletTransaction(db, transactionHash)
+          if (existingTransaction != null) {
+            store.delTransactionOrder(batch, getAccounts(db, relatedOwnerships), getTransactionOrder(transactionHash, existingTransaction))
+          }
+          store.delWalletTransaction(batch, transactionHash)
+        } else if (Storage.validateWrites) {
+          // Checked only in validation mode, as most transactions in a block are not related to the wallet.
+          assert(store.getWalletTransaction(db, transactionHash) == null)
+        }
+
+        writeBalances(db, balanceChanges, batch)
+        batch.write()
       }
     }
   }
   companion object {
+    // The version of the wallet after the unspent output index, the wallet transaction indexes and balances were kept.
+    val WalletIndexVersion = 1L
+
     private var theWallet : Wallet? = null
     fun create() : Wallet {
       theWallet = Wallet()
@@ -1,7 +1,9 @@
 package io.scalechain.wallet
 
 import io.scalechain.blockchain.proto.codec.*
+import io.scalechain.blockchain.proto.codec.primitive.Codecs
 import io.scalechain.blockchain.storage.index.KeyValueDatabase
+import io.scalechain.blockchain.storage.index.KeyValueWriter
 import io.scalechain.blockchain.WalletException
 import io.scalechain.blockchain.ErrorCode
 import io.scalechain.blockchain.proto.*
@@ -70,6 +72,66 @@ import kotlin.io.use
 // 3. Iterate UTXOs for a given addresses. Filter UTXOs based on confirmations.
 
 
+/////////////////////////////////////////////////////////////////////////////////////////////////
+// Output Ownership -> Unspent Outputs
+/////////////////////////////////////////////////////////////////////////////////////////////////
+// Keys and Values (K, V) :
+// A. ( OutputOwnership + '\0' + OutPoint, WalletOutput ) => For Search 1
+//
+// Only unspent outputs are kept. The WalletOutput is a copy of the one under the OutPoint,
+// so that listunspent does not have to look up each output.
+//
+// Modifications :
+// 1. Put an unspent output when it is registered or marked unspent.
+// 2. Remove an unspent output when it is marked spent or unregistered.
+// 3. Remove all unspent outputs to rebuild the index.
+//
+// Searches :
+// 1. Iterate unspent outputs for an output ownership.
+
+
+/////////////////////////////////////////////////////////////////////////////////////////////////
+// Account -> Transactions ordered by recency
+/////////////////////////////////////////////////////////////////////////////////////////////////
+// Keys and Values (K, V) :
+// A. ( Account + '\0' + WalletTransactionOrder, WalletTransactionSummary ) => For Search 1
+// B. ( WalletTransactionOrder, WalletTransactionSummary ) => For Search 2
+//
+// WalletTransactionOrderCodec encodes the more recent transaction into the smaller key.
+// WalletTransactionSummary caches the fee of the transaction, if the fee can be calculated from wallet outputs.
+//
+// Modifications :
+// 1. Put a transaction into the indexes. Remove the previous order of it if it moved from the mempool into a block.
+// 2. Remove a transaction from the indexes.
+// 3. Remove all transactions from the indexes to rebuild them.
+//
+// Searches :
+// 1. Iterate transactions of an account from the most recent one.
+// 2. Iterate transactions of all accounts from the most recent one.
+
+
+/////////////////////////////////////////////////////////////////////////////////////////////////
+// Account, Output Ownership -> Balances
+/////////////////////////////////////////////////////////////////////////////////////////////////
+// Keys and Values (K, V) :
+// A. ( OutputOwnership + '\0' + BlockHeight, WalletBalance ) => For Search 1
+// B. ( OutputOwnership, WalletBalance ) => For Search 1
+// C. ( Account + '\0' + BlockHeight, WalletBalance ) => For Search 2
+// D. ( Account, WalletBalance ) => For Search 2
+//
+// A and C keep the sum of outputs created at each block height. Outputs in the mempool are kept under MEMPOOL_HEIGHT.
+// B and D keep the sum of all outputs.
+// The account ALL_ACCOUNTS("*") keeps the balance of the whole wallet.
+//
+// Modifications :
+// 1. Add the change of balance at a block height whenever a wallet output is put, marked spent or unspent, moved to another block, or removed.
+// 2. Remove all balances to rebuild them from wallet outputs.
+//
+// Searches :
+// 1. Get the balance of an output ownership. Subtract balances at block heights that do not have enough confirmations from the total.
+// 2. Get the balance of an account in the same way.
+
+
 /////////////////////////////////////////////////////////////////////////////////////////////////
 // (transaction)Hash -> Transaction
 /////////////////////////////////////////////////////////////////////////////////////////////////
@@ -272,19 +334,19 @@ class WalletStore {
     *
     * @throws WalletException(ErrorCode.OwnershipNotFound) if the output ownership was not found.
     */
-  fun putTransactionHash(db : KeyValueDatabase, outputOwnership : OutputOwnership, transactionHash : Hash) : Unit {
+  fun putTransactionHash(db : KeyValueDatabase, outputOwnership : OutputOwnership, transactionHash : Hash, writer : KeyValueWriter = db) : Unit {
     if (!ownershipExists(db, outputOwnership)) {
       throw WalletException(ErrorCode.OwnershipNotFound)
     }
 
-    db.putPrefixedObject(HashCodec, OneByteCodec, TXHASHES, outputOwnership.stringKey(), transactionHash, OneByte(0))
+    writer.putPrefixedObject(HashCodec, OneByteCodec, TXHASHES, outputOwnership.stringKey(), transactionHash, OneByte(0))
   }
 
   /** Remove a transaction from the output ownership by transaction hash.
     *
     * Category : <Output Ownership -> Transactions> - Modification
     */
-  fun delTransactionHash(db : KeyValueDatabase, outputOwnership : OutputOwnership, transactionHash : Hash) : Unit {
+  fun delTransactionHash(db : KeyValueWriter, outputOwnership : OutputOwnership, transactionHash : Hash) : Unit {
     db.delPrefixedObject(HashCodec, TXHASHES, outputOwnership.stringKey(), transactionHash)
   }
 
@@ -322,19 +384,19 @@ class WalletStore {
     *
     * @throws WalletException(ErrorCode.OwnershipNotFound) if the output ownership was not found.
     */
-  fun putTransactionOutPoint(db : KeyValueDatabase, outputOwnership: OutputOwnership, output : OutPoint) : Unit {
+  fun putTransactionOutPoint(db : KeyValueDatabase, outputOwnership: OutputOwnership, output : OutPoint, writer : KeyValueWriter = db) : Unit {
     if (!ownershipExists(db, outputOwnership)) {
       throw WalletException(ErrorCode.OwnershipNotFound)
     }
 
-    db.putPrefixedObject(OutPointCodec, OneByteCodec, OUTPOINTS, outputOwnership.stringKey(), output, OneByte(0))
+    writer.putPrefixedObject(OutPointCodec, OneByteCodec, OUTPOINTS, outputOwnership.stringKey(), output, OneByte(0))
   }
 
   /** Remove a UTXO from the output ownership.
     *
     * Category : <Output Ownership -> UTXOs> - Modification
     */
-  fun delTransactionOutPoint(db : KeyValueDatabase, outputOwnership: OutputOwnership, output : OutPoint) : Unit {
+  fun delTransactionOutPoint(db : KeyValueWriter, outputOwnership: OutputOwnership, output : OutPoint) : Unit {
     db.delPrefixedObject(OutPointCodec, OUTPOINTS, outputOwnership.stringKey(), output)
   }
 
@@ -363,6 +425,238 @@ class WalletStore {
     }
   }
 
+  /*******************************************************************************************************
+   * Category : <Output Ownership -> Unspent Outputs>
+   *******************************************************************************************************/
+
+  /** Put an unspent output into the output ownership.
+    *
+    * Category : <Output Ownership -> Unspent Outputs> - Modification
+    */
+  fun putUnspentOutput(db : KeyValueWriter, outputOwnership: OutputOwnership, outPoint : OutPoint, walletOutput : WalletOutput) : Unit {
+    assert(!walletOutput.spent)
+    db.putPrefixedObject(OutPointCodec, WalletOutputCodec, UNSPENT_OUTPUTS, outputOwnership.stringKey(), outPoint, walletOutput)
+  }
+
+  /** Remove an unspent output from the output ownership.
+    *
+    * Category : <Output Ownership -> Unspent Outputs> - Modification
+    */
+  fun delUnspentOutput(db : KeyValueWriter, outputOwnership: OutputOwnership, outPoint : OutPoint) : Unit {
+    db.delPrefixedObject(OutPointCodec, UNSPENT_OUTPUTS, outputOwnership.stringKey(), outPoint)
+  }
+
+  /** Remove unspent outputs of all output ownerships.
+    * Used for rebuilding the index.
+    *
+    * Category : <Output Ownership -> Unspent Outputs> - Modification
+    */
+  fun delUnspentOutputs(db : KeyValueDatabase) : Unit {
+    delPrefix(db, UNSPENT_OUTPUTS)
+  }
+
+  /** Get unspent outputs of an output ownership with a range scan.
+    *
+    * Category : <Output Ownership -> Unspent Outputs> - Search
+    *
+    * @param outputOwnership The output ownership to get unspent outputs.
+    * @return The list of unspent outputs.
+    */
+  fun getUnspentOutputs(db : KeyValueDatabase, outputOwnership : OutputOwnership) : List<WalletOutputWithInfo> {
+    return db.seekPrefixedObject(OutPointCodec, WalletOutputCodec, UNSPENT_OUTPUTS, outputOwnership.stringKey()).use {
+      it.asSequence().map { pair ->
+        WalletOutputWithInfo(pair.first.data, pair.second)
+      }.toList()
+    }
+  }
+
+  /*******************************************************************************************************
+   * Category : <Account -> Transactions ordered by recency>
+   *******************************************************************************************************/
+
+  /** Put a transaction into the indexes of an account and all accounts.
+    *
+    * Category : <Account -> Transactions ordered by recency> - Modification
+    */
+  fun putTransactionOrder(db : KeyValueWriter, accounts : Set<String>, order : WalletTransactionOrder, summary : WalletTransactionSummary) : Unit {
+    accounts.forEach { account ->
+      db.putPrefixedObject(WalletTransactionOrderCodec, WalletTransactionSummaryCodec, ACCOUNT_TXORDERS, account, order, summary)
+    }
+    db.putObject(WalletTransactionOrderCodec, WalletTransactionSummaryCodec, TXORDERS, order, summary)
+  }
+
+  /** Remove a transaction from the indexes of an account and all accounts.
+    *
+    * Category : <Account -> Transactions ordered by recency> - Modification
+    */
+  fun delTransactionOrder(db : KeyValueWriter, accounts : Set<String>, order : WalletTransactionOrder) : Unit {
+    accounts.forEach { account ->
+      db.delPrefixedObject(WalletTransactionOrderCodec, ACCOUNT_TXORDERS, account, order)
+    }
+    db.delObject(WalletTransactionOrderCodec, TXORDERS, order)
+  }
+
+  /** Remove all transactions from the indexes of all accounts.
+    * Used for rebuilding the indexes.
+    *
+    * Category : <Account -> Transactions ordered by recency> - Modification
+    */
+  fun delTransactionOrders(db : KeyValueDatabase) : Unit {
+    delPrefix(db, ACCOUNT_TXORDERS)
+    delPrefix(db, TXORDERS)
+  }
+
+  /** Iterate transactions from the most recent one, and call the given function until it returns false.
+    * The iteration stops as soon as the function returns false, so only the keys visited so far are read.
+    *
+    * Category : <Account -> Transactions ordered by recency> - Search
+    *
+    * @param accountOption Some(account) to iterate transactions of an account. None to iterate transactions of all accounts.
+    * @param visit The function called with the order and the summary of each transaction. Returns false to stop the iteration.
+    */
+  fun foreachTransactionOrder(db : KeyValueDatabase, accountOption : String?, visit : (WalletTransactionOrder, WalletTransactionSummary) -> Boolean) : Unit {
+    if (accountOption == null) {
+      db.seekObject(WalletTransactionOrderCodec, WalletTransactionSummaryCodec, TXORDERS).use { iterator ->
+        while (iterator.hasNext()) {
+          val (order, summary) = iterator.next()
+          if (!visit(order, summary)) break
+        }
+      }
+    } else {
+      db.seekPrefixedObject(WalletTransactionOrderCodec, WalletTransactionSummaryCodec, ACCOUNT_TXORDERS, accountOption).use { iterator ->
+        while (iterator.hasNext()) {
+          val (prefixedOrder, summary) = iterator.next()
+          if (!visit(prefixedOrder.data, summary)) break
+        }
+      }
+    }
+  }
+
+  /*******************************************************************************************************
+   * Category : <Account, Output Ownership -> Balances>
+   *******************************************************************************************************/
+
+  /** Add changes of balances at block heights to output ownerships or accounts.
+    * Each balance and the total balance of each owner are read and written only once,
+    * so the changes can be written to a write batch, which is not visible to reads until it is written.
+    *
+    * Category : <Account, Output Ownership -> Balances> - Modification
+    *
+    * @param addressBalances true if the keys are for output ownerships; false if the keys are for accounts.
+    * @param deltas The change of balance by the key, which is the string key of the output ownership or the account name, prefixing the block height.
+    *               The block height is MEMPOOL_HEIGHT for outputs in the mempool.
+    * @param writer The writer of the changed balances. Either the database or a write batch on it.
+    */
+  fun addBalances(db : KeyValueDatabase, addressBalances : Boolean, deltas : Map<CStringPrefixed<Long>, WalletBalance>, writer : KeyValueWriter = db) : Unit {
+    val prefix = if (addressBalances) ADDRESS_BALANCES else ACCOUNT_BALANCES
+    val totalPrefix = if (addressBalances) ADDRESS_BALANCE_TOTALS else ACCOUNT_BALANCE_TOTALS
+
+    // owner key -> the change of the total balance
+    val totalDeltas = hashMapOf<String, WalletBalance>()
+    deltas.forEach { (key, delta) ->
+      if (!delta.isZero()) {
+        val balance = (db.getPrefixedObject(Codecs.Int64, WalletBalanceCodec, prefix, key.prefix, key.data) ?: WalletBalance.ZERO) + delta
+        if (balance.isZero()) {
+          writer.delPrefixedObject(Codecs.Int64, prefix, key)
+        } else {
+          writer.putPrefixedObject(Codecs.Int64, WalletBalanceCodec, prefix, key.prefix, key.data, balance)
+        }
+        totalDeltas.put(key.prefix, (totalDeltas.get(key.prefix) ?: WalletBalance.ZERO) + delta)
+      }
+    }
+
+    totalDeltas.forEach { (ownerKey, delta) ->
+      if (!delta.isZero()) {
+        val total = (db.getObject(Codecs.CString, WalletBalanceCodec, totalPrefix, ownerKey) ?: WalletBalance.ZERO) + delta
+        if (total.isZero()) {
+          writer.delObject(Codecs.CString, totalPrefix, ownerKey)
+        } else {
+          writer.putObject(Codecs.CString, WalletBalanceCodec, totalPrefix, ownerKey, total)
+        }
+      }
+    }
+  }
+
+  /** Get the balance of an output ownership counting outputs with at least the given number of confirmations.
+    *
+    * Category : <Account, Output Ownership -> Balances> - Search
+    */
+  fun getAddressBalance(db : KeyValueDatabase, outputOwnership : OutputOwnership, bestBlockHeight : Long, minConfirmations : Long) : WalletBalance {
+    return getBalance(db, ADDRESS_BALANCES, ADDRESS_BALANCE_TOTALS, outputOwnership.stringKey(), bestBlockHeight, minConfirmations)
+  }
+
+  /** Get the balance of an account counting outputs with at least the given number of confirmations.
+    *
+    * Category : <Account, Output Ownership -> Balances> - Search
+    *
+    * @param account The account name. ALL_ACCOUNTS to get the balance of the whole wallet.
+    */
+  fun getAccountBalance(db : KeyValueDatabase, account : String, bestBlockHeight : Long, minConfirmations : Long) : WalletBalance {
+    return getBalance(db, ACCOUNT_BALANCES, ACCOUNT_BALANCE_TOTALS, account, bestBlockHeight, minConfirmations)
+  }
+
+  /** Get the total balance, and subtract balances at block heights that do not have enough confirmations.
+    * An output at height h has (bestBlockHeight - h + 1) confirmations, so we read at most minConfirmations keys
+    * regardless of the number of outputs in the wallet.
+    */
+  private fun getBalance(db : KeyValueDatabase, prefix : Byte, totalPrefix : Byte, ownerKey : String, bestBlockHeight : Long, minConfirmations : Long) : WalletBalance {
+    val total = db.getObject(Codecs.CString, WalletBalanceCodec, totalPrefix, ownerKey) ?: WalletBalance.ZERO
+    if (minConfirmations <= 0) {
+      return total
+    }
+    // Outputs from this height, including the ones in the mempool, have less confirmations than minConfirmations.
+    val fromHeight = Math.max(0L, bestBlockHeight - minConfirmations + 2)
+    var balance = total
+    db.seekObject(Codecs.cstringPrefixed(Codecs.Int64), WalletBalanceCodec, prefix, CStringPrefixed(ownerKey, fromHeight)).use { iterator ->
+      while (iterator.hasNext()) {
+        val (key, heightBalance) = iterator.next()
+        if (key.prefix != ownerKey) break
+        balance -= heightBalance
+      }
+    }
+    return balance
+  }
+
+  /** Get balances at each block height for all output ownerships(addressBalances = true) or all accounts(addressBalances = false).
+    *
+    * Category : <Account, Output Ownership -> Balances> - Search
+    */
+  fun getBalancesByHeight(db : KeyValueDatabase, addressBalances : Boolean) : Map<CStringPrefixed<Long>, WalletBalance> {
+    val prefix = if (addressBalances) ADDRESS_BALANCES else ACCOUNT_BALANCES
+    return db.seekObject(Codecs.cstringPrefixed(Codecs.Int64), WalletBalanceCodec, prefix).use {
+      it.asSequence().toMap()
+    }
+  }
+
+  /** Get total balances for all output ownerships(addressBalances = true) or all accounts(addressBalances = false).
+    * The key of the map is the string key of the output ownership or the account name.
+    *
+    * Category : <Account, Output Ownership -> Balances> - Search
+    */
+  fun getBalanceTotals(db : KeyValueDatabase, addressBalances : Boolean) : Map<String, WalletBalance> {
+    val prefix = if (addressBalances) ADDRESS_BALANCE_TOTALS else ACCOUNT_BALANCE_TOTALS
+    return db.seekObject(Codecs.CString, WalletBalanceCodec, prefix).use {
+      it.asSequence().toMap()
+    }
+  }
+
+  /** Remove all balances.
+    *
+    * Category : <Account, Output Ownership -> Balances> - Modification
+    */
+  fun delBalances(db : KeyValueDatabase) : Unit {
+    listOf(true, false).forEach { addressBalances ->
+      val prefix = if (addressBalances) ADDRESS_BALANCES else ACCOUNT_BALANCES
+      getBalancesByHeight(db, addressBalances).keys.forEach { key ->
+        db.delPrefixedObject(Codecs.Int64, prefix, key)
+      }
+      val totalPrefix = if (addressBalances) ADDRESS_BALANCE_TOTALS else ACCOUNT_BALANCE_TOTALS
+      getBalanceTotals(db, addressBalances).keys.forEach { ownerKey ->
+        db.delObject(Codecs.CString, totalPrefix, ownerKey)
+      }
+    }
+  }
+
   /*******************************************************************************************************
    * Category : <(transaction)Hash -> Transaction>
    *******************************************************************************************************/
@@ -372,7 +666,7 @@ class WalletStore {
     * Category : <(transaction)Hash -> Transaction> - Modification
     *
     */
-  fun putWalletTransaction(db : KeyValueDatabase, transactionHash : Hash, transaction : WalletTransaction) : Unit {
+  fun putWalletTransaction(db : KeyValueWriter, transactionHash : Hash, transaction : WalletTransaction) : Unit {
     db.putObject(HashCodec, WalletTransactionCodec, WALLETTX, transactionHash, transaction)
   }
 
@@ -380,7 +674,7 @@ class WalletStore {
     *
     * Category : <(transaction)Hash -> Transaction> - Modification
     */
-  fun delWalletTransaction(db : KeyValueDatabase, transactionHash : Hash) : Unit {
+  fun delWalletTransaction(db : KeyValueWriter, transactionHash : Hash) : Unit {
     db.delObject(HashCodec, WALLETTX, transactionHash)
   }
 
@@ -393,6 +687,16 @@ class WalletStore {
   }
 
 
+  /** Get all transactions in the wallet.
+    *
+    * Category : <(transaction)Hash -> Transaction> - Search
+    */
+  fun getWalletTransactions(db : KeyValueDatabase) : List<Pair<Hash, WalletTransaction>> {
+    return db.seekObject(HashCodec, WalletTransactionCodec, WALLETTX).use {
+      it.asSequence().toList()
+    }
+  }
+
   /*******************************************************************************************************
    * Category : <OutPoint -> TransactionOutput>
    *******************************************************************************************************/
@@ -401,7 +705,7 @@ class WalletStore {
     *
     * Category : <OutPoint -> TransactionOutput> - Modifications
     */
-  fun putWalletOutput(db : KeyValueDatabase, outPoint : OutPoint, walletOutput : WalletOutput) : Unit {
+  fun putWalletOutput(db : KeyValueWriter, outPoint : OutPoint, walletOutput : WalletOutput) : Unit {
     db.putObject(OutPointCodec, WalletOutputCodec, WALLETOUTPUT, outPoint, walletOutput)
   }
 
@@ -409,7 +713,7 @@ class WalletStore {
     *
     * Category : <OutPoint -> TransactionOutput> - Modifications
     */
-  fun delWalletOutput(db : KeyValueDatabase, outPoint : OutPoint) : Unit {
+  fun delWalletOutput(db : KeyValueWriter, outPoint : OutPoint) : Unit {
     db.delObject(OutPointCodec, WALLETOUTPUT, outPoint)
   }
 
@@ -421,18 +725,30 @@ class WalletStore {
     return db.getObject(OutPointCodec, WalletOutputCodec, WALLETOUTPUT, outPoint)
   }
 
+  /** Get all transaction outputs in the wallet.
+    *
+    * Category : <OutPoint -> TransactionOutput> - Search
+    */
+  fun getWalletOutputs(db : KeyValueDatabase) : List<WalletOutputWithInfo> {
+    return db.seekObject(OutPointCodec, WalletOutputCodec, WALLETOUTPUT).use {
+      it.asSequence().map { pair ->
+        WalletOutputWithInfo(pair.first, pair.second)
+      }.toList()
+    }
+  }
+
   /** Mark a UTXO spent searching by OutPoint.
     *
     * Category : <Output Ownership -> UTXOs> - Modification
     *
     * @return true if the output was found in the wallet; false otherwise.
     */
-  fun markWalletOutputSpent(db : KeyValueDatabase, outPoint : OutPoint, spent : Boolean) : Boolean {
+  fun markWalletOutputSpent(db : KeyValueDatabase, outPoint : OutPoint, spent : Boolean, writer : KeyValueWriter = db) : Boolean {
     val outPointOption : WalletOutput? = db.getObject(OutPointCodec, WalletOutputCodec, WALLETOUTPUT, outPoint)
     if (outPointOption == null) {
       return false
     } else {
-      db.putObject(OutPointCodec, WalletOutputCodec, WALLETOUTPUT, outPoint,
+      writer.putObject(OutPointCodec, WalletOutputCodec, WALLETOUTPUT, outPoint,
         outPointOption.copy(
           spent = spent
         )
@@ -441,6 +757,37 @@ class WalletStore {
     }
   }
 
+  /*******************************************************************************************************
+   * Category : <Schema Version>
+   *******************************************************************************************************/
+
+  /** Get the version of the indexes kept by the wallet.
+    *
+    * @return The version, or null if the wallet was written before versions were kept.
+    */
+  fun getSchemaVersion(db : KeyValueDatabase) : Long? {
+    return db.getObject(LongValueCodec, LongValueCodec, SCHEMA_VERSION, SchemaVersionKey)?.value
+  }
+
+  /** Put the version of the indexes kept by the wallet.
+    */
+  fun putSchemaVersion(db : KeyValueDatabase, version : Long) : Unit {
+    db.putObject(LongValueCodec, LongValueCodec, SCHEMA_VERSION, SchemaVersionKey, LongValue(version))
+  }
+
+  /** Remove all keys starting with the given prefix at once.
+    */
+  private fun delPrefix(db : KeyValueDatabase, prefix : Byte) : Unit {
+    db.writeBatch().use { batch ->
+      db.seekPrefix(ByteArray(1, {prefix})).use { iterator ->
+        while (iterator.hasNext()) {
+          batch.del(iterator.next().first)
+        }
+      }
+      batch.write()
+    }
+  }
+
   /////////////////////////////////////////////////////////////////////////////////////////////////
   // OutPoint -> WalletOutput
   /////////////////////////////////////////////////////////////////////////////////////////////////
@@ -486,6 +833,42 @@ class WalletStore {
     // A. ( OutputOwnership + '\0' + OutPoint, None )
     val OUTPOINTS = 'P'.toByte()
 
+    /////////////////////////////////////////////////////////////////////////////////////////////////
+    // Output Ownership -> Unspent Outputs
+    /////////////////////////////////////////////////////////////////////////////////////////////////
+    // A. ( OutputOwnership + '\0' + OutPoint, WalletOutput )
+    val UNSPENT_OUTPUTS = 'N'.toByte()
+
+    /////////////////////////////////////////////////////////////////////////////////////////////////
+    // Account -> Transactions ordered by recency
+    /////////////////////////////////////////////////////////////////////////////////////////////////
+    // A. ( Account + '\0' + WalletTransactionOrder, WalletTransactionSummary )
+    val ACCOUNT_TXORDERS = 'A'.toByte()
+
+    // B. ( WalletTransactionOrder, WalletTransactionSummary )
+    val TXORDERS = 'L'.toByte()
+
+    /////////////////////////////////////////////////////////////////////////////////////////////////
+    // Account, Output Ownership -> Balances
+    /////////////////////////////////////////////////////////////////////////////////////////////////
+    // A. ( OutputOwnership + '\0' + BlockHeight, WalletBalance )
+    val ADDRESS_BALANCES = 'E'.toByte()
+
+    // B. ( OutputOwnership, WalletBalance )
+    val ADDRESS_BALANCE_TOTALS = 'F'.toByte()
+
+    // C. ( Account + '\0' + BlockHeight, WalletBalance )
+    val ACCOUNT_BALANCES = 'G'.toByte()
+
+    // D. ( Account, WalletBalance )
+    val ACCOUNT_BALANCE_TOTALS = 'I'.toByte()
+
+    // The block height for outputs in the mempool. Sorted after all block heights.
+    val MEMPOOL_HEIGHT = Long.MAX_VALUE
+
+    // The account name that keeps the balance of the whole wallet.
+    val ALL_ACCOUNTS = "*"
+
     /////////////////////////////////////////////////////////////////////////////////////////////////
     // (transaction)Hash -> Transaction
     /////////////////////////////////////////////////////////////////////////////////////////////////
@@ -499,6 +882,16 @@ class WalletStore {
     // Keys and Values (K, V) :
     // A. (OutPoint, WalletOutput)
     val WALLETOUTPUT = 'U'.toByte()
+
+    /////////////////////////////////////////////////////////////////////////////////////////////////
+    // Schema Version
+    /////////////////////////////////////////////////////////////////////////////////////////////////
+    // Keys and Values (K, V) :
+    // A. (0L, version)
+    val SCHEMA_VERSION = 'V'.toByte()
+
+    // The schema version is the only record under SCHEMA_VERSION, so the key is a constant.
+    private val SchemaVersionKey = LongValue(0L)
   }
 
 }
@@ -156,6 +156,60 @@ class WalletSpec : WalletTestTrait(), TransactionTestInterface, Matchers {
       wallet.getReceivedByAddress(db, S.TestBlockchainView, S.Alice.Addr1.address, 0) shouldBe CoinAmount(50+2+4)
     }
 
+    ////////////////////////////////////////////////////////////////////////////////
+    // Methods for getbalance RPC
+    ////////////////////////////////////////////////////////////////////////////////
+    "getBalance" should "return the sum of unspent outputs with enough confirmations." {
+      val S = WalletSampleData(db, wallet)
+      val bestBlockHeight = S.TestBlockchainView.getBestBlockHeight()
+
+      listOf(0L, 1L, 2L, 3L).forEach { minConfirmations ->
+        val expected = wallet.store.getWalletOutputs(db).filter { output ->
+          val blockIndex = output.walletOutput.blockindex
+          val confirmations = if (blockIndex == null) 0L else bestBlockHeight - blockIndex + 1
+          !output.walletOutput.spent && confirmations >= minConfirmations
+        }.fold(0L) { sum, output -> sum + output.walletOutput.transactionOutput.value }
+
+        wallet.getBalance(db, S.TestBlockchainView, null, minConfirmations) shouldBe CoinAmount.from(expected)
+      }
+      wallet.checkBalances(db) shouldBe true
+    }
+
+    "rebuildBalances" should "calculate balances again from wallet outputs." {
+      val S = WalletSampleData(db, wallet)
+      val balance = wallet.getBalance(db, S.TestBlockchainView, "Alice", 1)
+
+      wallet.store.delBalances(db)
+      wallet.checkBalances(db) shouldBe false
+
+      wallet.rebuildBalances(db)
+      wallet.checkBalances(db) shouldBe true
+      wallet.getBalance(db, S.TestBlockchainView, "Alice", 1) shouldBe balance
+    }
+
+    "migrate" should "rebuild indexes and balances of a wallet written before they were kept." {
+      val S = WalletSampleData(db, wallet)
+      val transactions = wallet.listTransactions(db, S.TestBlockchainView, null, 1000, 0, true)
+      val unspentCoins = wallet.listUnspent(db, S.TestBlockchainView, 0, 9999999, null)
+      val balance = wallet.getBalance(db, S.TestBlockchainView, "Alice", 1)
+      (transactions.size > 0) shouldBe true
+      (unspentCoins.size > 0) shouldBe true
+
+      // The wallet before the indexes were kept.
+      wallet.store.delUnspentOutputs(db)
+      wallet.store.delTransactionOrders(db)
+      wallet.store.delBalances(db)
+      wallet.store.getSchemaVersion(db) shouldBe null
+      wallet.listTransactions(db, S.TestBlockchainView, null, 1000, 0, true) shouldBe listOf<WalletTransactionDescriptor>()
+
+      wallet.migrate(db)
+      wallet.store.getSchemaVersion(db) shouldBe Wallet.WalletIndexVersion
+      wallet.listTransactions(db, S.TestBlockchainView, null, 1000, 0, true) shouldBe transactions
+      wallet.listUnspent(db, S.TestBlockchainView, 0, 9999999, null) shouldBe unspentCoins
+      wallet.getBalance(db, S.TestBlockchainView, "Alice", 1) shouldBe balance
+      wallet.checkBalances(db) shouldBe true
+    }
+
     ////////////////////////////////////////////////////////////////////////////////
     // Methods for listransaction RPC
     ////////////////////////////////////////////////////////////////////////////////
@@ -403,6 +457,19 @@ class WalletSpec : WalletTestTrait(), TransactionTestInterface, Matchers {
       ) shouldBe null // need to update
     }
 
+    "listTransactions" should "skip the most recent descriptors and return the next count descriptors" {
+      val S = WalletSampleData(db, wallet)
+      // From the oldest to the newest.
+      val allTransactions = wallet.listTransactions(db, S.TestBlockchainView, null, 1000, 0, true)
+      (allTransactions.size > 3) shouldBe true
+
+      for (skip in 0..allTransactions.size + 1) {
+        wallet.listTransactions(db, S.TestBlockchainView, null, 2, skip.toLong(), true) shouldBe
+          allTransactions.dropLast(skip).takeLast(2)
+      }
+      wallet.listTransactions(db, S.TestBlockchainView, null, 0, 0, true) shouldBe listOf<WalletTransactionDescriptor>()
+    }
+
 /*
     "listTransactions(null, includeWatchOnly=false)" should "return no transaction" {
       // TODO : Implement